@@ -0,0 +1,266 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.util.Log;
+import android.widget.TextView;
+
+import com.android.grafika.gles.DirectBufferPool;
+import com.android.grafika.gles.GlValidation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs GL and codec benchmarks without user interaction, and writes the results to a file.
+ * <p>
+ * Driven entirely by intent extras, so it can be started from adb or from an
+ * instrumentation test:
+ * <pre>
+ * adb shell am start -n com.google.grafika/com.android.grafika.BenchmarkActivity \
+ *     --es benchmark readPixels,readPixelsAsync --ei iterations 200
+ * adb pull /data/data/com.google.grafika/files/benchmark-results.json
+ * </pre>
+ * Extras:
+ * <ul>
+ * <li>benchmark: comma-separated benchmark names (see GlBenchmark#create()).
+ * <li>width, height: image size; default 1280x720.
+ * <li>format: rgba, rgb, or luminance; default rgba.
+ * <li>warmup, iterations: iteration counts; default 10 and 100.
+ * <li>output: file name, relative to the app's files directory; default
+ *     "benchmark-results.json".
+ * <li>glcheck: GL error checking during the run, off, full, sampled, or debug (see
+ *     GlValidation); default off, so glGetError() stalls don't skew the numbers.  How
+ *     many checks ran is logged at the end.
+ * </ul>
+ * The activity finishes itself when the run completes.  Each result is also logged.
+ * <p>
+ * "--es benchmark codec" runs the CodecBenchmark encode/decode scaling sweep instead, and
+ * writes its table as text (default "codec-benchmark.txt").  It takes these extras:
+ * <ul>
+ * <li>instances: largest number of parallel codecs to try; default 4.
+ * <li>frames: frames per codec instance; default 150.
+ * </ul>
+ */
+public class BenchmarkActivity extends Activity {
+    private static final String TAG = MainActivity.TAG;
+
+    public static final String EXTRA_BENCHMARK = "benchmark";
+    public static final String EXTRA_WIDTH = "width";
+    public static final String EXTRA_HEIGHT = "height";
+    public static final String EXTRA_FORMAT = "format";
+    public static final String EXTRA_WARMUP = "warmup";
+    public static final String EXTRA_ITERATIONS = "iterations";
+    public static final String EXTRA_OUTPUT = "output";
+    public static final String EXTRA_INSTANCES = "instances";
+    public static final String EXTRA_FRAMES = "frames";
+    public static final String EXTRA_GL_CHECK = "glcheck";
+
+    private static final String DEFAULT_BENCHMARKS =
+            ReadPixelsBenchmark.ISOLATED + "," + TextureUploadBenchmark.CREATE;
+    private static final String DEFAULT_OUTPUT = "benchmark-results.json";
+    private static final String DEFAULT_CODEC_OUTPUT = "codec-benchmark.txt";
+
+    private TextView mStatusText;
+    private BenchmarkRunner mRunner;
+    private CodecBenchmark mCodecBenchmark;
+
+    // GL check mode to put back when we're done; -1 if we haven't changed it.
+    private int mSavedGlMode = -1;
+    private int mSavedGlSampleInterval;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mStatusText = new TextView(this);
+        setContentView(mStatusText);
+
+        Intent intent = getIntent();
+        String names = intent.getStringExtra(EXTRA_BENCHMARK);
+        if (names == null) {
+            names = DEFAULT_BENCHMARKS;
+        }
+        if (CodecBenchmark.NAME.equals(names)) {
+            startCodecBenchmark(intent);
+            return;
+        }
+        String format = intent.getStringExtra(EXTRA_FORMAT);
+        if (format == null) {
+            format = BenchmarkConfig.FORMAT_RGBA;
+        }
+        String output = intent.getStringExtra(EXTRA_OUTPUT);
+        if (output == null) {
+            output = DEFAULT_OUTPUT;
+        }
+        int width = intent.getIntExtra(EXTRA_WIDTH, 1280);
+        int height = intent.getIntExtra(EXTRA_HEIGHT, 720);
+        int warmup = intent.getIntExtra(EXTRA_WARMUP, 10);
+        int iterations = intent.getIntExtra(EXTRA_ITERATIONS, 100);
+        String glCheck = intent.getStringExtra(EXTRA_GL_CHECK);
+
+        List<GlBenchmark> benchmarks = new ArrayList<GlBenchmark>();
+        try {
+            int glMode = GlValidation.parseMode(glCheck == null ? "off" : glCheck);
+            saveGlValidation();
+            GlValidation.setMode(glMode, GlValidation.DEFAULT_SAMPLE_INTERVAL);
+            for (String name : names.split(",")) {
+                benchmarks.add(GlBenchmark.create(new BenchmarkConfig(name.trim(),
+                        width, height, format, warmup, iterations)));
+            }
+        } catch (IllegalArgumentException iae) {
+            Log.e(TAG, "Bad benchmark arguments", iae);
+            mStatusText.setText(iae.getMessage());
+            finish();
+            return;
+        }
+
+        final File outputFile = new File(getFilesDir(), output);
+        mStatusText.setText("Running " + names + "...");
+        Log.d(TAG, "BenchmarkActivity: running " + names + ", output to " + outputFile);
+        GlValidation.resetCounts();
+        mRunner = new BenchmarkRunner(benchmarks, new BenchmarkRunner.Listener() {
+            @Override
+            public void onBenchmarkProgress(int index, int done, int total) {}
+
+            @Override
+            public void onBenchmarksFinished(List<BenchmarkResult> results) {
+                // Write the file from the runner thread, then wrap up on the UI thread.
+                try {
+                    BenchmarkResult.writeJson(results, outputFile);
+                    Log.i(TAG, "Benchmark results written to " + outputFile);
+                } catch (IOException ioe) {
+                    Log.e(TAG, "Unable to write " + outputFile, ioe);
+                }
+                for (BenchmarkResult result : results) {
+                    Log.i(TAG, "Benchmark result: " + result);
+                }
+                Log.i(TAG, GlValidation.getReport());
+                restoreGlValidation();
+                DirectBufferPool pool = DirectBufferPool.getInstance();
+                if (pool.isLeakTracking()) {
+                    pool.dumpStats();
+                }
+                pool.trim();
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mRunner = null;
+                        finish();
+                    }
+                });
+            }
+        });
+        mRunner.start();
+    }
+
+    /**
+     * Runs the codec scaling sweep.
+     */
+    private void startCodecBenchmark(Intent intent) {
+        String output = intent.getStringExtra(EXTRA_OUTPUT);
+        if (output == null) {
+            output = DEFAULT_CODEC_OUTPUT;
+        }
+        final int instances = intent.getIntExtra(EXTRA_INSTANCES, 4);
+        final int frames = intent.getIntExtra(EXTRA_FRAMES, 150);
+
+        final File outputFile = new File(getFilesDir(), output);
+        mStatusText.setText("Running codec benchmark...");
+        Log.d(TAG, "BenchmarkActivity: codec benchmark, " + instances + " instances, " +
+                frames + " frames, output to " + outputFile);
+
+        // The profile may have to be probed first; don't do that on the UI thread.
+        DeviceProfile.fetch(this, new DeviceProfile.Callback() {
+            @Override
+            public void onProfileReady(DeviceProfile profile) {
+                if (!isFinishing()) {
+                    startCodecBenchmark(instances, frames, profile, outputFile);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts the codec benchmark thread, once we have the device profile.
+     */
+    private void startCodecBenchmark(int instances, int frames, DeviceProfile profile,
+            final File outputFile) {
+        mCodecBenchmark = new CodecBenchmark(instances, frames, profile,
+                new CodecBenchmark.Listener() {
+            @Override
+            public void onCodecBenchmarkProgress(int done, int total) {}
+
+            @Override
+            public void onCodecBenchmarkFinished(List<CodecBenchmark.Result> results) {
+                try {
+                    CodecBenchmark.writeTable(results, outputFile);
+                    Log.i(TAG, "Codec benchmark results written to " + outputFile);
+                } catch (IOException ioe) {
+                    Log.e(TAG, "Unable to write " + outputFile, ioe);
+                }
+                for (String line : CodecBenchmark.formatTable(results).split("\n")) {
+                    Log.i(TAG, line);
+                }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCodecBenchmark = null;
+                        finish();
+                    }
+                });
+            }
+        });
+        mCodecBenchmark.start();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Results so far will still be written.
+        if (mRunner != null) {
+            mRunner.cancel();
+        }
+        if (mCodecBenchmark != null) {
+            mCodecBenchmark.cancel();
+        }
+        restoreGlValidation();
+    }
+
+    /**
+     * Remembers the process-wide GL check mode, so we can put it back after the run.
+     */
+    private synchronized void saveGlValidation() {
+        mSavedGlMode = GlValidation.getMode();
+        mSavedGlSampleInterval = GlValidation.getSampleInterval();
+    }
+
+    /**
+     * Restores the GL check mode saved by saveGlValidation().  Called from the runner thread
+     * when the run finishes, and from onDestroy() in case it didn't.
+     */
+    private synchronized void restoreGlValidation() {
+        if (mSavedGlMode >= 0) {
+            GlValidation.setMode(mSavedGlMode, mSavedGlSampleInterval);
+            mSavedGlMode = -1;
+        }
+    }
+}
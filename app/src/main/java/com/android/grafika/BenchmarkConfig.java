@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.opengl.GLES20;
+
+/**
+ * Parameters for one GlBenchmark run.
+ * <p>
+ * Object is immutable, so it can be handed between threads freely.
+ */
+public class BenchmarkConfig {
+    /** Pixel formats, as accepted on the command line. */
+    public static final String FORMAT_RGBA = "rgba";
+    public static final String FORMAT_RGB = "rgb";
+    public static final String FORMAT_LUMINANCE = "luminance";
+
+    private final String mName;
+    private final int mWidth;
+    private final int mHeight;
+    private final String mFormat;
+    private final int mWarmupIterations;
+    private final int mIterations;
+
+    /**
+     * @param name Benchmark name; see GlBenchmark#create().
+     * @param width Width of the image being transferred, in pixels.
+     * @param height Height of the image being transferred, in pixels.
+     * @param format One of the FORMAT_* values.
+     * @param warmupIterations Iterations to run and discard before measuring.
+     * @param iterations Iterations to measure.
+     */
+    public BenchmarkConfig(String name, int width, int height, String format,
+            int warmupIterations, int iterations) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("bad size " + width + "x" + height);
+        }
+        if (warmupIterations < 0 || iterations <= 0) {
+            throw new IllegalArgumentException("bad iterations " + warmupIterations + "/" +
+                    iterations);
+        }
+        getBytesPerPixel(format);       // validate
+        mName = name;
+        mWidth = width;
+        mHeight = height;
+        mFormat = format;
+        mWarmupIterations = warmupIterations;
+        mIterations = iterations;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public String getFormat() {
+        return mFormat;
+    }
+
+    public int getWarmupIterations() {
+        return mWarmupIterations;
+    }
+
+    public int getIterations() {
+        return mIterations;
+    }
+
+    /**
+     * Returns the GL format enum (GL_RGBA etc.) for the format.
+     */
+    public int getGlFormat() {
+        if (FORMAT_RGBA.equals(mFormat)) {
+            return GLES20.GL_RGBA;
+        } else if (FORMAT_RGB.equals(mFormat)) {
+            return GLES20.GL_RGB;
+        } else {
+            return GLES20.GL_LUMINANCE;
+        }
+    }
+
+    public int getBytesPerPixel() {
+        return getBytesPerPixel(mFormat);
+    }
+
+    /**
+     * Returns the size of one image, in bytes.
+     */
+    public int getImageBytes() {
+        return mWidth * mHeight * getBytesPerPixel();
+    }
+
+    private static int getBytesPerPixel(String format) {
+        if (FORMAT_RGBA.equals(format)) {
+            return 4;
+        } else if (FORMAT_RGB.equals(format)) {
+            return 3;
+        } else if (FORMAT_LUMINANCE.equals(format)) {
+            return 1;
+        } else {
+            throw new IllegalArgumentException("unknown format '" + format + "'");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mName + " " + mWidth + "x" + mHeight + " " + mFormat + " warmup=" +
+                mWarmupIterations + " iter=" + mIterations;
+    }
+}
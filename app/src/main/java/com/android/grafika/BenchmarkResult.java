@@ -0,0 +1,258 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.os.Build;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Outcome of one GlBenchmark run: the per-iteration samples, plus summary statistics and
+ * any benchmark-specific values.
+ */
+public class BenchmarkResult {
+    private final BenchmarkConfig mConfig;
+    private final long[] mSamples;          // nanoseconds, in run order
+    private int mCount;
+    private long mElapsedNanos;             // wall time for the measured iterations
+    private String mError;                  // null if the run completed
+    private String mGlRenderer;
+    private int mThreadPriority;
+    private final Map<String, Double> mExtras = new LinkedHashMap<String, Double>();
+
+    // Sorted copy of the samples, computed on demand.
+    private long[] mSorted;
+
+    public BenchmarkResult(BenchmarkConfig config) {
+        mConfig = config;
+        mSamples = new long[config.getIterations()];
+    }
+
+    public BenchmarkConfig getConfig() {
+        return mConfig;
+    }
+
+    void addSample(long nanos) {
+        mSamples[mCount++] = nanos;
+        mSorted = null;
+    }
+
+    void setElapsedNanos(long nanos) {
+        mElapsedNanos = nanos;
+    }
+
+    void setError(String error) {
+        mError = error;
+    }
+
+    void setEnvironment(String glRenderer, int threadPriority) {
+        mGlRenderer = glRenderer;
+        mThreadPriority = threadPriority;
+    }
+
+    /**
+     * Records a benchmark-specific value, e.g. "mbPerSec".
+     */
+    public void putExtra(String key, double value) {
+        mExtras.put(key, value);
+    }
+
+    /**
+     * Returns a benchmark-specific value, or NaN if it wasn't set.
+     */
+    public double getExtra(String key) {
+        Double value = mExtras.get(key);
+        return value == null ? Double.NaN : value;
+    }
+
+    /**
+     * Returns true if every iteration ran.
+     */
+    public boolean isComplete() {
+        return mError == null && mCount == mSamples.length;
+    }
+
+    public String getError() {
+        return mError;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public long getElapsedNanos() {
+        return mElapsedNanos;
+    }
+
+    /**
+     * Returns measured iterations per second of wall time.
+     */
+    public double getIterationsPerSec() {
+        return mElapsedNanos <= 0 ? 0 : mCount * 1e9 / mElapsedNanos;
+    }
+
+    public double getMeanNanos() {
+        if (mCount == 0) {
+            return 0;
+        }
+        double sum = 0;
+        for (int i = 0; i < mCount; i++) {
+            sum += mSamples[i];
+        }
+        return sum / mCount;
+    }
+
+    /**
+     * Returns the sample standard deviation.
+     */
+    public double getStdDevNanos() {
+        if (mCount < 2) {
+            return 0;
+        }
+        double mean = getMeanNanos();
+        double sumSq = 0;
+        for (int i = 0; i < mCount; i++) {
+            double diff = mSamples[i] - mean;
+            sumSq += diff * diff;
+        }
+        return Math.sqrt(sumSq / (mCount - 1));
+    }
+
+    /**
+     * Returns the nearest-rank percentile, e.g. 50 for the median.
+     */
+    public long getPercentileNanos(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        if (mSorted == null) {
+            mSorted = Arrays.copyOf(mSamples, mCount);
+            Arrays.sort(mSorted);
+        }
+        int rank = (int) Math.ceil(percentile / 100.0 * mCount);
+        return mSorted[Math.max(0, Math.min(mCount - 1, rank - 1))];
+    }
+
+    public long getMinNanos() {
+        return getPercentileNanos(0);
+    }
+
+    public long getMaxNanos() {
+        return getPercentileNanos(100);
+    }
+
+    /**
+     * Returns the result as a JSON object.  Times are in nanoseconds.
+     */
+    public JSONObject toJson() {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("benchmark", mConfig.getName());
+            json.put("width", mConfig.getWidth());
+            json.put("height", mConfig.getHeight());
+            json.put("format", mConfig.getFormat());
+            json.put("warmupIterations", mConfig.getWarmupIterations());
+            json.put("iterations", mCount);
+            json.put("complete", isComplete());
+            if (mError != null) {
+                json.put("error", mError);
+            }
+            json.put("glRenderer", mGlRenderer);
+            json.put("threadPriority", mThreadPriority);
+            json.put("elapsedNs", mElapsedNanos);
+            json.put("meanNs", getMeanNanos());
+            json.put("stdDevNs", getStdDevNanos());
+            json.put("minNs", getMinNanos());
+            json.put("p50Ns", getPercentileNanos(50));
+            json.put("p90Ns", getPercentileNanos(90));
+            json.put("p99Ns", getPercentileNanos(99));
+            json.put("maxNs", getMaxNanos());
+            JSONObject extras = new JSONObject();
+            for (Map.Entry<String, Double> entry : mExtras.entrySet()) {
+                double value = entry.getValue();
+                if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+                    extras.put(entry.getKey(), value);
+                }
+            }
+            json.put("extras", extras);
+            JSONArray samples = new JSONArray();
+            for (int i = 0; i < mCount; i++) {
+                samples.put(mSamples[i]);
+            }
+            json.put("samplesNs", samples);
+            return json;
+        } catch (JSONException je) {
+            throw new RuntimeException(je);     // only thrown for NaN/infinite values
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (mCount == 0) {
+            return mConfig + ": " + (mError != null ? mError : "no samples");
+        }
+        return String.format(Locale.US,
+                "%s: mean=%.1fus sd=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus max=%.1fus%s",
+                mConfig, getMeanNanos() / 1000, getStdDevNanos() / 1000,
+                getPercentileNanos(50) / 1000.0, getPercentileNanos(90) / 1000.0,
+                getPercentileNanos(99) / 1000.0, getMaxNanos() / 1000.0,
+                (mError != null ? " (" + mError + ")" : "") + " " + mExtras);
+    }
+
+    /**
+     * Writes a set of results to a file as a JSON object, with a description of the device.
+     */
+    public static void writeJson(List<BenchmarkResult> results, File file) throws IOException {
+        try {
+            JSONObject root = new JSONObject();
+            JSONObject device = new JSONObject();
+            device.put("manufacturer", Build.MANUFACTURER);
+            device.put("model", Build.MODEL);
+            device.put("device", Build.DEVICE);
+            device.put("sdk", Build.VERSION.SDK_INT);
+            device.put("fingerprint", Build.FINGERPRINT);
+            root.put("device", device);
+            root.put("timestampMs", System.currentTimeMillis());
+            JSONArray array = new JSONArray();
+            for (BenchmarkResult result : results) {
+                array.put(result.toJson());
+            }
+            root.put("results", array);
+
+            FileWriter writer = new FileWriter(file);
+            try {
+                writer.write(root.toString(2));
+                writer.write('\n');
+            } finally {
+                writer.close();
+            }
+        } catch (JSONException je) {
+            throw new RuntimeException(je);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.opengl.GLES20;
+import android.os.Process;
+import android.util.Log;
+
+import com.android.grafika.gles.EglCore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a list of GlBenchmarks, one after another, on a dedicated thread.
+ * <p>
+ * The AsyncTask pool that the benchmark activities used to run on is kept at background
+ * priority, which is no good for measuring anything.  This thread raises itself to
+ * THREAD_PRIORITY_URGENT_DISPLAY (or THREAD_PRIORITY_DISPLAY, if that isn't allowed) and
+ * owns a single EGL context for the whole run.  Each benchmark gets its warm-up iterations,
+ * whose times are discarded, and then its measured iterations.
+ * <p>
+ * Listener callbacks happen on the runner thread.
+ */
+public class BenchmarkRunner extends Thread {
+    private static final String TAG = MainActivity.TAG;
+
+    // Most progress callbacks issued per benchmark.
+    private static final int PROGRESS_STEPS = 16;
+
+    /**
+     * Receives progress and results.  Called on the runner thread.
+     */
+    public interface Listener {
+        /**
+         * Reports progress through the current benchmark.
+         *
+         * @param index Index of the benchmark in the list.
+         * @param done Iterations done, including warm-up.
+         * @param total Iterations to do, including warm-up.
+         */
+        void onBenchmarkProgress(int index, int done, int total);
+
+        /**
+         * Reports the results, in list order.  Canceled or failed benchmarks have an error
+         * set on their result.
+         */
+        void onBenchmarksFinished(List<BenchmarkResult> results);
+    }
+
+    private final List<GlBenchmark> mBenchmarks;
+    private final Listener mListener;
+    private volatile boolean mCanceled;
+
+
+    public BenchmarkRunner(List<GlBenchmark> benchmarks, Listener listener) {
+        super("BenchmarkRunner");
+        mBenchmarks = new ArrayList<GlBenchmark>(benchmarks);
+        mListener = listener;
+    }
+
+    /**
+     * Asks the runner to stop.  The benchmark in progress finishes its current iteration, and
+     * any that haven't started are skipped.  Results are still reported.
+     */
+    public void cancel() {
+        mCanceled = true;
+    }
+
+    @Override
+    public void run() {
+        int priority = raisePriority();
+
+        boolean needGles3 = false;
+        for (GlBenchmark benchmark : mBenchmarks) {
+            needGles3 |= benchmark.requiresGles3();
+        }
+
+        List<BenchmarkResult> results = new ArrayList<BenchmarkResult>(mBenchmarks.size());
+        EglCore eglCore = new EglCore(null, needGles3 ? EglCore.FLAG_TRY_GLES3 : 0);
+        try {
+            String renderer = null;
+            for (int i = 0; i < mBenchmarks.size(); i++) {
+                GlBenchmark benchmark = mBenchmarks.get(i);
+                BenchmarkResult result = new BenchmarkResult(benchmark.getConfig());
+                results.add(result);
+
+                if (mCanceled) {
+                    result.setError("canceled");
+                } else if (benchmark.requiresGles3() && eglCore.getGlVersion() < 3) {
+                    result.setError("requires GLES 3");
+                } else {
+                    try {
+                        benchmark.setUp(eglCore);
+                        if (renderer == null) {
+                            renderer = GLES20.glGetString(GLES20.GL_RENDERER);
+                        }
+                        runBenchmark(i, benchmark, result);
+                    } catch (RuntimeException re) {
+                        // Typically a GL error, e.g. a format the driver doesn't support.
+                        // Record it and move on; the other benchmarks may be fine.
+                        Log.w(TAG, "Benchmark " + benchmark.getConfig().getName() + " failed",
+                                re);
+                        result.setError(re.toString());
+                    } finally {
+                        benchmark.tearDown();
+                    }
+                }
+                result.setEnvironment(renderer, priority);
+                Log.d(TAG, "Benchmark " + result);
+            }
+        } finally {
+            eglCore.release();
+        }
+
+        mListener.onBenchmarksFinished(results);
+    }
+
+    /**
+     * Runs the warm-up and measured iterations for one benchmark.
+     */
+    private void runBenchmark(int index, GlBenchmark benchmark, BenchmarkResult result) {
+        BenchmarkConfig config = benchmark.getConfig();
+        int warmup = config.getWarmupIterations();
+        int total = warmup + config.getIterations();
+        int progressStep = Math.max(1, total / PROGRESS_STEPS);
+
+        for (int i = 0; i < warmup; i++) {
+            if (mCanceled) {
+                result.setError("canceled");
+                return;
+            }
+            if (i % progressStep == 0) {
+                mListener.onBenchmarkProgress(index, i, total);
+            }
+            benchmark.runIteration(i);
+        }
+
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < config.getIterations(); i++) {
+            if (mCanceled) {
+                result.setError("canceled");
+                break;
+            }
+            if ((warmup + i) % progressStep == 0) {
+                mListener.onBenchmarkProgress(index, warmup + i, total);
+            }
+            result.addSample(benchmark.runIteration(i));
+        }
+        result.setElapsedNanos(System.nanoTime() - startNanos);
+        benchmark.addExtras(result);
+        mListener.onBenchmarkProgress(index, total, total);
+    }
+
+    /**
+     * Raises the thread priority as far as we're allowed.  Returns the priority we got.
+     */
+    private static int raisePriority() {
+        try {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        } catch (SecurityException se) {
+            Log.w(TAG, "Unable to use URGENT_DISPLAY priority: " + se);
+            Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+        }
+        return Process.getThreadPriority(Process.myTid());
+    }
+}
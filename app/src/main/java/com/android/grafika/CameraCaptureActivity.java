@@ -20,12 +20,15 @@ import android.app.Activity;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.opengl.EGL14;
+import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
+import android.opengl.Matrix;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.Trace;
 import android.support.annotation.NonNull;
 import android.support.annotation.RequiresApi;
 import android.util.Log;
@@ -41,10 +44,18 @@ import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.android.grafika.gles.ColorLut;
+import com.android.grafika.gles.FilterGraph;
+import com.android.grafika.gles.FilterPass;
 import com.android.grafika.gles.FullFrameRect;
+import com.android.grafika.gles.GlUtil;
+import com.android.grafika.gles.ProgramWarmer;
+import com.android.grafika.gles.RenderTargetPool;
+import com.android.grafika.gles.SeparableKernel;
 import com.android.grafika.gles.Texture2dProgram;
 
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 
@@ -124,6 +135,10 @@ import javax.microedition.khronos.opengles.GL10;
  * "paused" message and hold on that in the recording, or leave the Camera running so it
  * continues to generate preview frames while the Activity is paused.)  The video encoder object
  * is managed as a static property of the Activity.
+ * <p>
+ * Starting the activity with the boolean extra "traceCounters" publishes the per-stage frame
+ * latency as systrace counters (see FrameLatencyTracer), on devices that support them.
+ * The boolean extra "eventTrace" turns on EventTrace while the activity is resumed.
  */
 public class CameraCaptureActivity extends Activity
         implements SurfaceTexture.OnFrameAvailableListener, OnItemSelectedListener {
@@ -137,6 +152,13 @@ public class CameraCaptureActivity extends Activity
     static final int FILTER_SHARPEN = 3;
     static final int FILTER_EDGE_DETECT = 4;
     static final int FILTER_EMBOSS = 5;
+    static final int FILTER_COLOR_GRADE = 6;
+
+    // Optional .cube file for FILTER_COLOR_GRADE; push with "adb push" to use your own look.
+    static final String COLOR_GRADE_FILE = "camera-grade.cube";
+
+    /** Boolean extra; if set, publish frame latencies as systrace counters. */
+    public static final String EXTRA_TRACE_COUNTERS = "traceCounters";
 
     private GLSurfaceView mGLView;
     private CameraSurfaceRenderer mRenderer;
@@ -147,6 +169,8 @@ public class CameraCaptureActivity extends Activity
     private int mCameraPreviewWidth, mCameraPreviewHeight;
 
     private static final TextureMovieEncoder sVideoEncoder = new TextureMovieEncoder();
+    private static final FrameLatencyTracer sLatencyTracer =
+            new FrameLatencyTracer("CameraCapture");
 
     private boolean isFrontCamera = true; // Default to front camera
 
@@ -165,13 +189,16 @@ public class CameraCaptureActivity extends Activity
         mCameraHandler = new CameraHandler(this);
 
         mRecordingEnabled = sVideoEncoder.isRecording();
+        sVideoEncoder.setLatencyTracer(sLatencyTracer);
+        sLatencyTracer.setTraceCounters(getIntent().getBooleanExtra(EXTRA_TRACE_COUNTERS, false));
 
         mGLView = findViewById(R.id.cameraPreview_surfaceView);
         mGLView.setBackgroundColor(0x00000000); // Transparent
         mGLView.setZOrderOnTop(true);
         mGLView.getHolder().setFormat(android.graphics.PixelFormat.TRANSLUCENT);
         mGLView.setEGLContextClientVersion(2);     // select GLES 2.0
-        mRenderer = new CameraSurfaceRenderer(mCameraHandler, sVideoEncoder, outputFile);
+        mRenderer = new CameraSurfaceRenderer(mCameraHandler, sVideoEncoder, sLatencyTracer,
+                outputFile, new File(getFilesDir(), COLOR_GRADE_FILE));
         mGLView.setRenderer(mRenderer);
         mGLView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
 
@@ -199,6 +226,7 @@ public class CameraCaptureActivity extends Activity
     protected void onResume() {
         Log.d(TAG, "onResume -- acquiring camera");
         super.onResume();
+        EventTrace.startFromIntent(getIntent());
         updateControls();
 
         if (PermissionHelper.hasCameraPermission(this)) {
@@ -232,6 +260,7 @@ public class CameraCaptureActivity extends Activity
         super.onPause();
         releaseCamera();
         pauseGlView();
+        EventTrace.stop();
         Log.d(TAG, "onPause complete");
     }
 
@@ -428,14 +457,33 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
     private static final int RECORDING_ON = 1;
     private static final int RECORDING_RESUMED = 2;
 
+    private static final int NUM_FILTERS = CameraCaptureActivity.FILTER_COLOR_GRADE + 1;
+
+    private static final int EV_LATCH = EventTrace.register(EventTrace.SUBSYS_CAMERA,
+            "onDrawFrame updateTexImage ts=%d tex=%d");
+
+    // Gaussian blur, in camera texels.  Applied as two separable passes of 9 fetches each.
+    private static final int BLUR_RADIUS = 8;
+    private static final float BLUR_SIGMA = 4.0f;
+
     private final CameraCaptureActivity.CameraHandler mCameraHandler;
     private final TextureMovieEncoder mVideoEncoder;
+    private final FrameLatencyTracer mLatencyTracer;
     private final File mOutputFile;
+    private final File mColorGradeFile;
+    private FilterPass[][] mFilterPasses;           // indexed by filter mode
+    private ProgramWarmer mProgramWarmer;           // non-null while compiling
 
     private FullFrameRect mFullScreen;
     private FullFrameRect mFullScreen2D; // For drawing 2D FBO texture to screen
 
+    private FilterGraph mFilterGraph;
+    private RenderTargetPool mTargetPool;
+    private RenderTargetPool.Target mOutputTarget;  // filtered frame, for screen and encoder
+
     private final float[] mSTMatrix = new float[16];
+    private final float[] mCropMatrix = new float[16];
+    private final float[] mTexMatrix = new float[16];
     private int mTextureId;
 
     public SurfaceTexture mSurfaceTexture;
@@ -451,18 +499,19 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
     private int mCurrentFilter;
     private int mNewFilter;
 
-    // FBO and filtered texture for recording
-    private int mFboId = -1;
-    private int mFboTexId = -1;
     private int size;
     private int videoWidth;
     private int videoHeight;
 
     public CameraSurfaceRenderer(CameraCaptureActivity.CameraHandler cameraHandler,
-                                 TextureMovieEncoder movieEncoder, File outputFile) {
+                                 TextureMovieEncoder movieEncoder,
+                                 FrameLatencyTracer latencyTracer, File outputFile,
+                                 File colorGradeFile) {
         mCameraHandler = cameraHandler;
         mVideoEncoder = movieEncoder;
+        mLatencyTracer = latencyTracer;
         mOutputFile = outputFile;
+        mColorGradeFile = colorGradeFile;
 
         mTextureId = -1;
 
@@ -478,6 +527,7 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
     }
 
     public void notifyPausing() {
+        mLatencyTracer.logSummary();
         if (mSurfaceTexture != null) {
             Log.d(TAG, "renderer pausing -- releasing SurfaceTexture");
             mSurfaceTexture.release();
@@ -491,6 +541,11 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
             mFullScreen2D.release(false);
             mFullScreen2D = null;
         }
+        // The EGL context is going away, taking the programs and FBOs with it.
+        mFilterGraph = null;
+        mTargetPool = null;
+        mProgramWarmer = null;
+        mOutputTarget = null;
         mIncomingWidth = mIncomingHeight = -1;
     }
 
@@ -504,61 +559,54 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
     }
 
     public void updateFilter() {
-        Texture2dProgram.ProgramType programType;
-        float[] kernel = null;
+        Log.d(TAG, "Updating filter to " + mNewFilter);
+        if (mNewFilter < 0 || mNewFilter >= mFilterPasses.length) {
+            throw new RuntimeException("Unknown filter mode " + mNewFilter);
+        }
+        // The programs were compiled ahead of time, so this is just a swap.
+        mFilterGraph.setPasses(mFilterPasses[mNewFilter]);
+        mCurrentFilter = mNewFilter;
+    }
+
+    /**
+     * Creates the filter passes for a filter mode.
+     */
+    private FilterPass[] createFilterPasses(int filter) {
+        float[] kernel;
         float colorAdj = 0.0f;
 
-        Log.d(TAG, "Updating filter to " + mNewFilter);
-        switch (mNewFilter) {
+        switch (filter) {
             case CameraCaptureActivity.FILTER_NONE:
-                programType = Texture2dProgram.ProgramType.TEXTURE_EXT;
-                break;
+                return new FilterPass[0];
             case CameraCaptureActivity.FILTER_BLACK_WHITE:
-                programType = Texture2dProgram.ProgramType.TEXTURE_EXT_BW;
-                break;
+                return new FilterPass[] { new FilterPass.Grayscale() };
             case CameraCaptureActivity.FILTER_BLUR:
-                programType = Texture2dProgram.ProgramType.TEXTURE_EXT_FILT;
-                kernel = new float[]{
-                        1f / 16f, 2f / 16f, 1f / 16f,
-                        2f / 16f, 4f / 16f, 2f / 16f,
-                        1f / 16f, 2f / 16f, 1f / 16f};
-                break;
+                return FilterPass.separable(SeparableKernel.gaussian(BLUR_RADIUS, BLUR_SIGMA));
             case CameraCaptureActivity.FILTER_SHARPEN:
-                programType = Texture2dProgram.ProgramType.TEXTURE_EXT_FILT;
                 kernel = new float[]{
                         0f, -1f, 0f,
                         -1f, 5f, -1f,
                         0f, -1f, 0f};
                 break;
             case CameraCaptureActivity.FILTER_EDGE_DETECT:
-                programType = Texture2dProgram.ProgramType.TEXTURE_EXT_FILT;
                 kernel = new float[]{
                         -1f, -1f, -1f,
                         -1f, 8f, -1f,
                         -1f, -1f, -1f};
                 break;
             case CameraCaptureActivity.FILTER_EMBOSS:
-                programType = Texture2dProgram.ProgramType.TEXTURE_EXT_FILT;
                 kernel = new float[]{
                         2f, 0f, 0f,
                         0f, -1f, 0f,
                         0f, 0f, -1f};
                 colorAdj = 0.5f;
                 break;
+            case CameraCaptureActivity.FILTER_COLOR_GRADE:
+                return new FilterPass[] { new FilterPass.ColorGrade(loadColorLut()) };
             default:
-                throw new RuntimeException("Unknown filter mode " + mNewFilter);
-        }
-
-        if (programType != mFullScreen.getProgram().getProgramType()) {
-            mFullScreen.changeProgram(new Texture2dProgram(programType));
-            mIncomingSizeUpdated = true;
+                throw new RuntimeException("Unknown filter mode " + filter);
         }
-
-        if (kernel != null) {
-            mFullScreen.getProgram().setKernel(kernel, colorAdj);
-        }
-
-        mCurrentFilter = mNewFilter;
+        return new FilterPass[] { new FilterPass.Convolution3x3(kernel, colorAdj) };
     }
 
     public void setCameraPreviewSize(int width, int height) {
@@ -585,20 +633,26 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
                 new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_2D));
 
         mTextureId = mFullScreen.createTextureObject();
-
-        int[] fbo = new int[1];
-        int[] tex = new int[1];
-        GLES20.glGenFramebuffers(1, fbo, 0);
-        GLES20.glGenTextures(1, tex, 0);
+        // The separable blur's merged taps rely on bilinear filtering of the camera frame.
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
         GLES20.glClearColor(0f, 0f, 0f, 0f);
-        mFboId = fbo[0];
-        mFboTexId = tex[0];
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFboTexId);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+        mTargetPool = new RenderTargetPool();
+        mFilterGraph = new FilterGraph(mTargetPool);
+
+        // Compile every filter's programs in the background now, rather than on the render
+        // thread when the filter is switched (which causes a visible hitch while recording).
+        // New passes are needed for each context, since some own GL textures.
+        mFilterPasses = new FilterPass[NUM_FILTERS][];
+        mProgramWarmer = new ProgramWarmer(EGL14.eglGetCurrentContext());
+        for (int i = 0; i < NUM_FILTERS; i++) {
+            mFilterPasses[i] = createFilterPasses(i);
+            FilterGraph.prepare(mProgramWarmer, "filter" + i, true, mFilterPasses[i]);
+        }
+        mProgramWarmer.start();
+        mCurrentFilter = -1;    // rebuild the graph for the new context
+        Matrix.setIdentityM(mCropMatrix, 0);
 
         mSurfaceTexture = new SurfaceTexture(mTextureId);
         mCameraHandler.sendMessage(mCameraHandler.obtainMessage(
@@ -624,8 +678,12 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
         if (VERBOSE) Log.d(TAG, "onDrawFrame tex=" + mTextureId);
         boolean showBox = false;
 
-        Log.d("MyLog", "mSurfaceTexture.updateTexImage() onDrawFrame");
+        Trace.beginSection("updateTexImage");
         mSurfaceTexture.updateTexImage();
+        Trace.endSection();
+        long timestamp = mSurfaceTexture.getTimestamp();
+        mLatencyTracer.frameLatched(timestamp);
+        EventTrace.record(EV_LATCH, timestamp, mTextureId);
 
         if (mRecordingEnabled) {
             switch (mRecordingStatus) {
@@ -654,6 +712,7 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
                     // stop recording
                     Log.d(TAG, "STOP recording");
                     mVideoEncoder.stopRecording();
+                    mLatencyTracer.logSummary();
                     mRecordingStatus = RECORDING_OFF;
                     break;
                 case RECORDING_OFF:
@@ -664,38 +723,43 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
             }
         }
 
+        if (mProgramWarmer != null && mProgramWarmer.isDone()) {
+            mFilterGraph.adoptPrograms(mProgramWarmer);
+            mProgramWarmer = null;
+        }
         if (mCurrentFilter != mNewFilter) {
             updateFilter();
         }
         if (mIncomingSizeUpdated) {
-            int incomingSize = Math.min(mIncomingWidth, mIncomingHeight);
-            float aspect = (float) size / incomingSize;
-            int texWidth = (int) (mIncomingWidth / aspect);
-            int texHeight = (int) (mIncomingHeight / aspect);
-            Log.d("Size GLES20", "size = " + size + ", texWidth = " + texWidth + ", texHeight = " + texHeight);
-            Log.d("Size GLES20", "videoWidth = " + videoWidth + ", videoHeight = " + videoHeight + ", mIncomingWidth = " + mIncomingWidth+", mIncomingHeight = "+mIncomingHeight);
-            mFullScreen.getProgram().setTexSize(mIncomingWidth, mIncomingHeight);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFboTexId);
-            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, texWidth, texHeight, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+            updateCropMatrix();
             mIncomingSizeUpdated = false;
         }
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFboId);
-        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, mFboTexId, 0);
-        setViewPort();
+        if (mOutputTarget == null || mOutputTarget.getWidth() != size) {
+            if (mOutputTarget != null) {
+                mTargetPool.release(mOutputTarget);
+            }
+            mOutputTarget = mTargetPool.acquire(size, size);
+        }
+
+        // Run the filters into the off-screen target.
+        Trace.beginSection("renderFrame");
         mSurfaceTexture.getTransformMatrix(mSTMatrix);
-        mFullScreen.drawFrame(mTextureId, mSTMatrix, videoWidth, videoHeight);
+        Matrix.multiplyMM(mTexMatrix, 0, mCropMatrix, 0, mSTMatrix, 0);
+        mFilterGraph.render(mTextureId, true, mIncomingWidth, mIncomingHeight, mTexMatrix,
+                mOutputTarget.getFramebuffer(), size, size);
         GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
         // Restore viewport for preview
         setViewPort();
-        // Draw FBO texture to screen (FBO 2D texture -> screen)
-        float[] identity = new float[16];
-        android.opengl.Matrix.setIdentityM(identity, 0);
-        mFullScreen2D.drawFrame(mFboTexId, identity, videoWidth, videoHeight);
-        // Set the video encoder's texture name to the filtered FBO texture
-        mVideoEncoder.setTextureId(mFboTexId);
+        // Draw the filtered texture to the screen.  The circle mask leaves the corners alone.
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        mFullScreen2D.drawFrame(mOutputTarget.getTexture(), GlUtil.IDENTITY_MATRIX,
+                videoWidth, videoHeight);
+        // Set the video encoder's texture name to the filtered texture
+        mVideoEncoder.setTextureId(mOutputTarget.getTexture());
         // Tell the video encoder thread that a new frame is available.
         mVideoEncoder.frameAvailable(mSurfaceTexture);
+        Trace.endSection();
+        mLatencyTracer.mark(FrameLatencyTracer.STAGE_RENDERED, timestamp);
 
         // Draw a flashing box if we're recording.  This only appears on screen.
         /*showBox = (mRecordingStatus == RECORDING_ON);
@@ -704,6 +768,83 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
         }*/
     }
 
+    /**
+     * Loads the color grading table from the .cube file, falling back to a built-in look
+     * if there isn't one.
+     */
+    private ColorLut loadColorLut() {
+        if (mColorGradeFile.exists()) {
+            try {
+                FileReader reader = new FileReader(mColorGradeFile);
+                try {
+                    ColorLut lut = ColorLut.parseCube(reader);
+                    Log.d(TAG, "Loaded " + lut.getSize() + "^3 LUT from " + mColorGradeFile);
+                    return lut;
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException ioe) {
+                Log.w(TAG, "Unable to load " + mColorGradeFile + ", using default", ioe);
+            }
+        }
+        return createDefaultLut();
+    }
+
+    /**
+     * Generates a warm, slightly faded "film" look: gentle S-curve, lifted blacks, shadows
+     * pushed toward teal and highlights toward orange.
+     */
+    private static ColorLut createDefaultLut() {
+        final int size = 17;
+        float[] data = new float[size * size * size * 3];
+        int idx = 0;
+        for (int b = 0; b < size; b++) {
+            for (int g = 0; g < size; g++) {
+                for (int r = 0; r < size; r++) {
+                    float rf = (float) r / (size - 1);
+                    float gf = (float) g / (size - 1);
+                    float bf = (float) b / (size - 1);
+                    float luma = rf * 0.3f + gf * 0.59f + bf * 0.11f;
+                    float shadow = 1.0f - luma;
+                    data[idx++] = filmCurve(rf + 0.06f * luma - 0.03f * shadow);
+                    data[idx++] = filmCurve(gf + 0.01f * shadow);
+                    data[idx++] = filmCurve(bf + 0.05f * shadow - 0.06f * luma);
+                }
+            }
+        }
+        return new ColorLut(size, data);
+    }
+
+    private static float filmCurve(float val) {
+        val = Math.max(0.0f, Math.min(1.0f, val));
+        float curved = val * val * (3.0f - 2.0f * val);     // smoothstep S-curve
+        float mixed = val + (curved - val) * 0.5f;
+        return 0.05f + mixed * 0.92f;                       // lift blacks, soften whites
+    }
+
+    /**
+     * Computes the texture-space transform that crops the center square out of the camera
+     * frame, so the square output isn't stretched.
+     */
+    private void updateCropMatrix() {
+        Log.d(TAG, "updateCropMatrix: incoming " + mIncomingWidth + "x" + mIncomingHeight +
+                ", output " + size + "x" + size);
+        Matrix.setIdentityM(mCropMatrix, 0);
+        if (mIncomingWidth <= 0 || mIncomingHeight <= 0) {
+            return;
+        }
+        float scaleX = 1.0f;
+        float scaleY = 1.0f;
+        if (mIncomingWidth > mIncomingHeight) {
+            scaleX = (float) mIncomingHeight / mIncomingWidth;
+        } else {
+            scaleY = (float) mIncomingWidth / mIncomingHeight;
+        }
+        Matrix.translateM(mCropMatrix, 0, 0.5f, 0.5f, 0.0f);
+        Matrix.scaleM(mCropMatrix, 0, scaleX, scaleY, 1.0f);
+        Matrix.translateM(mCropMatrix, 0, -0.5f, -0.5f, 0.0f);
+    }
+
     private void drawBox() {
         GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
         GLES20.glScissor(0, 0, 100, 100);
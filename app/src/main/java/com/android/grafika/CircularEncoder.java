@@ -55,6 +55,11 @@ public class CircularEncoder {
     private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
     private static final int IFRAME_INTERVAL = 1;           // sync frame every second
 
+    private static final int EV_DRAIN =
+            EventTrace.register(EventTrace.SUBSYS_ENCODER, "CircularEncoder drain");
+    private static final int EV_OUTPUT = EventTrace.register(EventTrace.SUBSYS_ENCODER,
+            "CircularEncoder output pts=%d size=%d");
+
     private EncoderThread mEncoderThread;
     private Surface mInputSurface;
     private MediaCodec mEncoder;
@@ -289,7 +294,7 @@ public class CircularEncoder {
          * Drains all pending output from the decoder, and adds it to the circular buffer.
          */
         public void drainEncoder() {
-            Log.d("MyLog", "drainEncoder CircularEncoder");
+            EventTrace.record(EV_DRAIN);
             final int TIMEOUT_USEC = 0;     // no timeout -- check for buffers, bail if none
 
             ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
@@ -336,6 +341,8 @@ public class CircularEncoder {
 
                         mEncBuffer.add(encodedData, mBufferInfo.flags,
                                 mBufferInfo.presentationTimeUs);
+                        EventTrace.record(EV_OUTPUT, mBufferInfo.presentationTimeUs,
+                                mBufferInfo.size);
 
                         if (VERBOSE) {
                             Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
@@ -415,6 +422,7 @@ public class CircularEncoder {
                     muxer.stop();
                     muxer.release();
                 }
+                mEncBuffer.releaseChunks();
             }
 
             if (VERBOSE) {
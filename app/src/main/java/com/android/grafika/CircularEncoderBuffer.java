@@ -19,6 +19,8 @@ package com.android.grafika;
 import android.media.MediaCodec;
 import android.util.Log;
 
+import com.android.grafika.gles.DirectBufferPool;
+
 import java.nio.ByteBuffer;
 
 /**
@@ -43,10 +45,11 @@ public class CircularEncoderBuffer {
     //
     // It's much more convenient to work with a byte[], so we just wrap it with a ByteBuffer
     // as needed.  This is a bit awkward when we hit the edge of the buffer, but for that
-    // we can just do an allocation and data copy (we know it happens at most once per file
-    // save operation).
+    // we can just copy the data into a buffer from the shared pool (we know it happens at
+    // most once per file save operation).
     private ByteBuffer mDataBufferWrapper;
     private byte[] mDataBuffer;
+    private ByteBuffer mWrapChunk;
 
     // Meta-data held here.  We're using a collection of arrays, rather than an array of
     // objects with multiple fields, to minimize allocations and heap footprint.
@@ -195,7 +198,8 @@ public class CircularEncoderBuffer {
      * BufferInfo.
      * <p>
      * The caller must not modify the contents of the returned ByteBuffer.  Altering
-     * the position and limit is allowed.
+     * the position and limit is allowed.  The buffer is only valid until the next call
+     * to getChunk() or releaseChunks().
      */
     public ByteBuffer getChunk(int index, MediaCodec.BufferInfo info) {
         final int dataLen = mDataBuffer.length;
@@ -212,7 +216,16 @@ public class CircularEncoderBuffer {
             return mDataBufferWrapper;
         } else {
             // two chunks
-            ByteBuffer tempBuf = ByteBuffer.allocateDirect(length);
+            DirectBufferPool pool = DirectBufferPool.getInstance();
+            if (mWrapChunk != null && mWrapChunk.capacity() < length) {
+                pool.release(mWrapChunk);
+                mWrapChunk = null;
+            }
+            if (mWrapChunk == null) {
+                mWrapChunk = pool.acquire(length);
+            }
+            ByteBuffer tempBuf = mWrapChunk;
+            tempBuf.clear();
             int firstSize = dataLen - packetStart;
             tempBuf.put(mDataBuffer, mPacketStart[index], firstSize);
             tempBuf.put(mDataBuffer, 0, length - firstSize);
@@ -221,6 +234,17 @@ public class CircularEncoderBuffer {
         }
     }
 
+    /**
+     * Returns any buffer used by getChunk() to the shared pool.  Call this when done
+     * saving.
+     */
+    public void releaseChunks() {
+        if (mWrapChunk != null) {
+            DirectBufferPool.getInstance().release(mWrapChunk);
+            mWrapChunk = null;
+        }
+    }
+
     /**
      * Computes the data buffer offset for the next place to store data.
      * <p>
@@ -0,0 +1,670 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+import com.android.grafika.gles.Drawable2d;
+import com.android.grafika.gles.EglCore;
+import com.android.grafika.gles.GeneratedTexture;
+import com.android.grafika.gles.Sprite2d;
+import com.android.grafika.gles.Texture2dProgram;
+import com.android.grafika.gles.WindowSurface;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures AVC encode and decode throughput, and how it scales with concurrent instances.
+ * <p>
+ * For each resolution (360p, 720p, 1080p) we run 1..N encoders in parallel, each on its own
+ * thread with its own EGL context, rendering GeneratedMovie-style GL content into the
+ * encoder's input Surface as fast as the encoder will take it.  The output of the single
+ * encoder run is kept in memory, and then fed to 1..N decoders in parallel, also as fast as
+ * they'll go.  The decoders output to ByteBuffers rather than a Surface, so their numbers
+ * include the copy out of the codec.
+ * <p>
+ * Every instance is created and configured before any of them starts, so creation cost
+ * isn't part of the timing, and a failure to create instance k tells us the device limit.
+ * When that happens we stop scaling up at that resolution.  If the DeviceProfile says no
+ * codec handles a resolution, we don't try it at all.
+ * <p>
+ * For each run we report aggregate and slowest-instance frames per second, the mean latency
+ * from the first input frame to the first output frame, and for encoders, the output bit
+ * rate relative to the requested bit rate.  Encoder latency is measured between frame
+ * submissions, so it's only as precise as the time to submit one frame.
+ */
+public class CodecBenchmark extends Thread {
+    private static final String TAG = MainActivity.TAG;
+
+    /** Name recognized by BenchmarkActivity. */
+    public static final String NAME = "codec";
+
+    private static final String MIME_TYPE = "video/avc";
+    private static final int FRAME_RATE = 30;
+    private static final int IFRAME_INTERVAL = 1;
+    private static final int TIMEOUT_USEC = 10000;
+    // Give up on a codec that produces nothing for this many timeouts in a row (2 sec).
+    private static final int MAX_TRY_AGAIN = 200;
+
+    // width, height, bit rate
+    private static final int[][] RESOLUTIONS = {
+        { 640, 360, 1000000 },
+        { 1280, 720, 4000000 },
+        { 1920, 1080, 8000000 },
+    };
+
+    /**
+     * Receives progress and results.  Called on the benchmark thread.
+     */
+    public interface Listener {
+        /**
+         * Reports progress, in runs (one run is one instance count at one resolution).
+         */
+        void onCodecBenchmarkProgress(int done, int total);
+
+        /**
+         * Reports the results, encoder runs first, in resolution and instance count order.
+         */
+        void onCodecBenchmarkFinished(List<Result> results);
+    }
+
+    /**
+     * Outcome of running some number of codec instances in parallel.
+     */
+    public static class Result {
+        public final boolean mEncode;
+        public final int mWidth;
+        public final int mHeight;
+        public final int mInstances;
+        public int mFrames;                 // output frames, all instances
+        public double mAggregateFps;        // output frames / slowest instance's time
+        public double mMinFps;              // slowest instance
+        public double mFirstOutputMs;       // mean over instances
+        public double mBitRateRatio = Double.NaN;   // encode only; actual / requested
+        public String mError;               // null if every instance ran
+
+        Result(boolean encode, int width, int height, int instances) {
+            mEncode = encode;
+            mWidth = width;
+            mHeight = height;
+            mInstances = instances;
+        }
+
+        @Override
+        public String toString() {
+            return (mEncode ? "encode " : "decode ") + mWidth + "x" + mHeight + " x" +
+                    mInstances + ": " + (mError != null ? mError :
+                    String.format(Locale.US, "%.1f fps (min %.1f), first out %.1fms, " +
+                            "bitrate %.2f", mAggregateFps, mMinFps, mFirstOutputMs,
+                            mBitRateRatio));
+        }
+    }
+
+    private final int mMaxInstances;
+    private final int mFrames;
+    private final DeviceProfile mProfile;
+    private final Listener mListener;
+    private volatile boolean mCanceled;
+
+    /**
+     * @param maxInstances Largest number of parallel instances to try.
+     * @param frames Frames to encode or decode per instance.
+     * @param profile Used to skip sizes the codecs don't support.  May be null.
+     */
+    public CodecBenchmark(int maxInstances, int frames, DeviceProfile profile,
+            Listener listener) {
+        super("CodecBenchmark");
+        if (maxInstances < 1 || frames < 1) {
+            throw new IllegalArgumentException("bad args " + maxInstances + "/" + frames);
+        }
+        mMaxInstances = maxInstances;
+        mFrames = frames;
+        mProfile = profile;
+        mListener = listener;
+    }
+
+    /**
+     * Asks the benchmark to stop after the current run.  Results so far are still reported.
+     */
+    public void cancel() {
+        mCanceled = true;
+    }
+
+    @Override
+    public void run() {
+        List<Result> encodeResults = new ArrayList<Result>();
+        List<Result> decodeResults = new ArrayList<Result>();
+        int total = RESOLUTIONS.length * mMaxInstances * 2;
+        int done = 0;
+
+        for (int[] res : RESOLUTIONS) {
+            if (mProfile != null &&
+                    !mProfile.isVideoSizeSupported(MIME_TYPE, true, res[0], res[1])) {
+                Result result = new Result(true, res[0], res[1], 1);
+                result.mError = "size not supported";
+                Log.d(TAG, "CodecBenchmark " + result);
+                encodeResults.add(result);
+                done += mMaxInstances * 2;
+                continue;
+            }
+            EncodedStream stream = null;
+            for (int n = 1; n <= mMaxInstances && !mCanceled; n++) {
+                mListener.onCodecBenchmarkProgress(done++, total);
+                EncodedStream capture = (n == 1) ? new EncodedStream() : null;
+                Result result = runEncoders(res[0], res[1], res[2], n, capture);
+                Log.d(TAG, "CodecBenchmark " + result);
+                encodeResults.add(result);
+                if (capture != null && result.mError == null && capture.mFormat != null) {
+                    stream = capture;
+                }
+                if (result.mError != null) {
+                    break;
+                }
+            }
+            if (stream == null) {
+                continue;
+            }
+            for (int n = 1; n <= mMaxInstances && !mCanceled; n++) {
+                mListener.onCodecBenchmarkProgress(done++, total);
+                Result result = runDecoders(stream, res[0], res[1], n);
+                Log.d(TAG, "CodecBenchmark " + result);
+                decodeResults.add(result);
+                if (result.mError != null) {
+                    break;
+                }
+            }
+        }
+
+        List<Result> results = new ArrayList<Result>(encodeResults);
+        results.addAll(decodeResults);
+        mListener.onCodecBenchmarkProgress(total, total);
+        mListener.onCodecBenchmarkFinished(results);
+    }
+
+    /**
+     * Runs N encoders in parallel.
+     *
+     * @param capture If non-null, receives the output of the first encoder.
+     */
+    private Result runEncoders(int width, int height, int bitRate, int instances,
+            EncodedStream capture) {
+        CountDownLatch ready = new CountDownLatch(instances);
+        CountDownLatch go = new CountDownLatch(1);
+        EncodeWorker[] workers = new EncodeWorker[instances];
+        for (int i = 0; i < instances; i++) {
+            workers[i] = new EncodeWorker(width, height, bitRate, mFrames, ready, go,
+                    i == 0 ? capture : null);
+            workers[i].start();
+        }
+        Result result = new Result(true, width, height, instances);
+        runWorkers(workers, ready, go, result);
+        if (result.mError == null) {
+            long bytes = 0;
+            for (EncodeWorker worker : workers) {
+                bytes += worker.mOutputBytes;
+            }
+            // Rate control targets the bit rate at the stated frame rate, which is what the
+            // presentation time stamps say.
+            double seconds = (double) result.mFrames / FRAME_RATE;
+            result.mBitRateRatio = (bytes * 8 / seconds) / bitRate;
+        }
+        return result;
+    }
+
+    /**
+     * Runs N decoders in parallel, all decoding the same stream.
+     */
+    private Result runDecoders(EncodedStream stream, int width, int height, int instances) {
+        CountDownLatch ready = new CountDownLatch(instances);
+        CountDownLatch go = new CountDownLatch(1);
+        DecodeWorker[] workers = new DecodeWorker[instances];
+        for (int i = 0; i < instances; i++) {
+            workers[i] = new DecodeWorker(stream, ready, go);
+            workers[i].start();
+        }
+        Result result = new Result(false, width, height, instances);
+        runWorkers(workers, ready, go, result);
+        return result;
+    }
+
+    /**
+     * Waits for the workers to finish setting up, releases them together, and collects the
+     * timing.
+     */
+    private static void runWorkers(CodecWorker[] workers, CountDownLatch ready,
+            CountDownLatch go, Result result) {
+        try {
+            ready.await();
+            go.countDown();
+            for (CodecWorker worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException ie) {
+            throw new RuntimeException(ie);
+        }
+
+        int started = 0;
+        long maxElapsed = 0;
+        double minFps = Double.MAX_VALUE;
+        double latencySum = 0;
+        for (CodecWorker worker : workers) {
+            if (worker.mError != null) {
+                Log.w(TAG, "codec worker failed: " + worker.mError);
+                if (result.mError == null) {
+                    result.mError = worker.mError;
+                }
+                continue;
+            }
+            started++;
+            result.mFrames += worker.mOutputFrames;
+            maxElapsed = Math.max(maxElapsed, worker.mElapsedNanos);
+            minFps = Math.min(minFps, worker.mOutputFrames * 1e9 / worker.mElapsedNanos);
+            latencySum += worker.mFirstOutputNanos / 1e6;
+        }
+        if (started != workers.length) {
+            result.mError = "only " + started + " of " + workers.length + " ran (" +
+                    result.mError + ")";
+            return;
+        }
+        result.mAggregateFps = result.mFrames * 1e9 / maxElapsed;
+        result.mMinFps = minFps;
+        result.mFirstOutputMs = latencySum / workers.length;
+    }
+
+    /**
+     * Formats results as a table, with a header describing the device.
+     */
+    public static String formatTable(List<Result> results) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(Build.MANUFACTURER).append(' ').append(Build.MODEL).append(" (")
+                .append(Build.DEVICE).append("), API ").append(Build.VERSION.SDK_INT)
+                .append('\n');
+        sb.append(String.format(Locale.US, "%-6s %-9s %4s %8s %8s %9s %7s\n",
+                "mode", "size", "n", "agg fps", "min fps", "1st ms", "bitrate"));
+        for (Result result : results) {
+            String size = result.mWidth + "x" + result.mHeight;
+            if (result.mError != null) {
+                sb.append(String.format(Locale.US, "%-6s %-9s %4d  %s\n",
+                        result.mEncode ? "encode" : "decode", size, result.mInstances,
+                        result.mError));
+            } else {
+                sb.append(String.format(Locale.US, "%-6s %-9s %4d %8.1f %8.1f %9.1f %7s\n",
+                        result.mEncode ? "encode" : "decode", size, result.mInstances,
+                        result.mAggregateFps, result.mMinFps, result.mFirstOutputMs,
+                        result.mEncode ?
+                                String.format(Locale.US, "%.2f", result.mBitRateRatio) : "-"));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the table to a file.
+     */
+    public static void writeTable(List<Result> results, File file) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(formatTable(results));
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Encoded AVC access units, as captured from an encoder.
+     */
+    private static class EncodedStream {
+        MediaFormat mFormat;        // encoder output format, with csd-0/csd-1
+        final List<byte[]> mSamples = new ArrayList<byte[]>();
+        final List<Long> mPtsUsec = new ArrayList<Long>();
+    }
+
+    /**
+     * Common state for the encode and decode threads.
+     */
+    private abstract static class CodecWorker extends Thread {
+        private final CountDownLatch mReady;
+        private final CountDownLatch mGo;
+
+        // Results.  Read after join().
+        String mError;
+        int mOutputFrames;
+        long mElapsedNanos;
+        long mFirstOutputNanos;
+
+        CodecWorker(String name, CountDownLatch ready, CountDownLatch go) {
+            super(name);
+            mReady = ready;
+            mGo = go;
+        }
+
+        @Override
+        public void run() {
+            try {
+                try {
+                    prepare();
+                } catch (Exception ex) {
+                    mError = ex.toString();
+                    return;
+                } finally {
+                    mReady.countDown();
+                }
+                mGo.await();
+                execute();
+            } catch (Exception ex) {
+                Log.w(TAG, getName() + " failed", ex);
+                mError = ex.toString();
+            } finally {
+                release();
+            }
+        }
+
+        /** Creates and configures the codec.  Any exception counts as a creation failure. */
+        abstract void prepare() throws Exception;
+
+        /** Runs the timed part. */
+        abstract void execute();
+
+        /** Releases everything.  May be called after partial / failed preparation. */
+        abstract void release();
+    }
+
+    /**
+     * Renders frames into an encoder's input Surface and drains the output.
+     */
+    private static class EncodeWorker extends CodecWorker {
+        private final int mWidth;
+        private final int mHeight;
+        private final int mBitRate;
+        private final int mFrames;
+        private final EncodedStream mCapture;
+
+        private MediaCodec mEncoder;
+        private EglCore mEglCore;
+        private WindowSurface mInputSurface;
+        private Texture2dProgram mTexProgram;
+        private Sprite2d mSprite;
+        private final float[] mProjectionMatrix = new float[16];
+        private MediaCodec.BufferInfo mBufferInfo;
+
+        private long mStartNanos;
+        long mOutputBytes;
+
+        EncodeWorker(int width, int height, int bitRate, int frames, CountDownLatch ready,
+                CountDownLatch go, EncodedStream capture) {
+            super("CodecBenchmark-enc", ready, go);
+            mWidth = width;
+            mHeight = height;
+            mBitRate = bitRate;
+            mFrames = frames;
+            mCapture = capture;
+        }
+
+        @Override
+        void prepare() throws IOException {
+            mBufferInfo = new MediaCodec.BufferInfo();
+            MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                    MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
+
+            mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+            mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            Surface surface = mEncoder.createInputSurface();
+            mEglCore = new EglCore(null, EglCore.FLAG_RECORDABLE);
+            mInputSurface = new WindowSurface(mEglCore, surface, true);
+            mInputSurface.makeCurrent();
+
+            // A rotating, magnified checkerboard gives the encoder motion and detail to work
+            // on; flat fills would let it hit any frame rate and undershoot any bit rate.
+            mTexProgram = new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_2D);
+            mSprite = new Sprite2d(new Drawable2d(Drawable2d.Prefab.RECTANGLE));
+            mSprite.setTexture(GeneratedTexture.createTestTexture(GeneratedTexture.Image.FINE));
+            float diag = (float) Math.hypot(mWidth, mHeight);
+            mSprite.setScale(diag, diag);
+            mSprite.setPosition(mWidth / 2.0f, mHeight / 2.0f);
+            Matrix.orthoM(mProjectionMatrix, 0, 0, mWidth, 0, mHeight, -1, 1);
+
+            mEncoder.start();
+        }
+
+        @Override
+        void execute() {
+            for (int i = 0; i < mFrames; i++) {
+                drainEncoder(false);
+                generateFrame(i);
+                mInputSurface.setPresentationTime(i * 1000000000L / FRAME_RATE);
+                if (i == 0) {
+                    mStartNanos = System.nanoTime();
+                }
+                mInputSurface.swapBuffers();
+            }
+            drainEncoder(true);
+            mElapsedNanos = System.nanoTime() - mStartNanos;
+        }
+
+        /**
+         * Draws the checkerboard at a new angle, plus one of eight rectangles, as in
+         * MovieEightRects.
+         */
+        private void generateFrame(int frameIndex) {
+            GLES20.glClearColor(0f, 136 / 255.0f, 0f, 1.0f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            mSprite.setRotation((frameIndex * 3) % 360);
+            mSprite.draw(mTexProgram, mProjectionMatrix);
+
+            int rect = frameIndex % 8;
+            int startX = (rect < 4 ? rect : 7 - rect) * (mWidth / 4);
+            int startY = rect < 4 ? mHeight / 2 : 0;
+            GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
+            GLES20.glScissor(startX, startY, mWidth / 4, mHeight / 2);
+            GLES20.glClearColor(236 / 255.0f, 50 / 255.0f, 186 / 255.0f, 1.0f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+        }
+
+        /**
+         * Pulls all pending output from the encoder, as GeneratedMovie does, but counts it
+         * instead of muxing it.
+         */
+        private void drainEncoder(boolean endOfStream) {
+            if (endOfStream) {
+                mEncoder.signalEndOfInputStream();
+            }
+
+            ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
+            int tryAgainCount = 0;
+            while (true) {
+                int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo,
+                        endOfStream ? TIMEOUT_USEC : 0);
+                if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    if (!endOfStream) {
+                        break;      // out of while
+                    }
+                    if (++tryAgainCount == MAX_TRY_AGAIN) {
+                        throw new RuntimeException("encoder stalled waiting for end of stream");
+                    }
+                } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    encoderOutputBuffers = mEncoder.getOutputBuffers();
+                } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    if (mCapture != null) {
+                        mCapture.mFormat = mEncoder.getOutputFormat();
+                    }
+                } else if (encoderStatus < 0) {
+                    Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
+                            encoderStatus);
+                } else {
+                    tryAgainCount = 0;
+                    // Codec config data is in the output format; don't count it as a frame.
+                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 &&
+                            mBufferInfo.size != 0) {
+                        if (mOutputFrames == 0) {
+                            mFirstOutputNanos = System.nanoTime() - mStartNanos;
+                        }
+                        mOutputFrames++;
+                        mOutputBytes += mBufferInfo.size;
+                        if (mCapture != null) {
+                            ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
+                            byte[] sample = new byte[mBufferInfo.size];
+                            encodedData.position(mBufferInfo.offset);
+                            encodedData.get(sample);
+                            mCapture.mSamples.add(sample);
+                            mCapture.mPtsUsec.add(mBufferInfo.presentationTimeUs);
+                        }
+                    }
+                    mEncoder.releaseOutputBuffer(encoderStatus, false);
+                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        break;      // out of while
+                    }
+                }
+            }
+        }
+
+        @Override
+        void release() {
+            if (mEncoder != null) {
+                try {
+                    mEncoder.stop();
+                } catch (IllegalStateException ise) {
+                    // never started
+                }
+                mEncoder.release();
+                mEncoder = null;
+            }
+            if (mTexProgram != null) {
+                mTexProgram.release();
+                mTexProgram = null;
+            }
+            if (mInputSurface != null) {
+                mInputSurface.release();
+                mInputSurface = null;
+            }
+            if (mEglCore != null) {
+                mEglCore.release();
+                mEglCore = null;
+            }
+        }
+    }
+
+    /**
+     * Feeds a captured stream through a decoder, discarding the output.
+     */
+    private static class DecodeWorker extends CodecWorker {
+        private final EncodedStream mStream;
+        private MediaCodec mDecoder;
+
+        DecodeWorker(EncodedStream stream, CountDownLatch ready, CountDownLatch go) {
+            super("CodecBenchmark-dec", ready, go);
+            mStream = stream;
+        }
+
+        @Override
+        void prepare() throws IOException {
+            mDecoder = MediaCodec.createDecoderByType(MIME_TYPE);
+            mDecoder.configure(mStream.mFormat, null, null, 0);
+            mDecoder.start();
+        }
+
+        @Override
+        void execute() {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            ByteBuffer[] inputBuffers = mDecoder.getInputBuffers();
+            int numSamples = mStream.mSamples.size();
+            int nextSample = 0;
+            boolean inputDone = false;
+            int tryAgainCount = 0;
+
+            long startNanos = System.nanoTime();
+            while (true) {
+                // Keep the input full, then take whatever output is ready.
+                while (!inputDone) {
+                    int inputBufIndex = mDecoder.dequeueInputBuffer(0);
+                    if (inputBufIndex < 0) {
+                        break;
+                    }
+                    tryAgainCount = 0;
+                    if (nextSample == numSamples) {
+                        mDecoder.queueInputBuffer(inputBufIndex, 0, 0, 0L,
+                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                    } else {
+                        byte[] sample = mStream.mSamples.get(nextSample);
+                        ByteBuffer inputBuf = inputBuffers[inputBufIndex];
+                        inputBuf.clear();
+                        inputBuf.put(sample);
+                        mDecoder.queueInputBuffer(inputBufIndex, 0, sample.length,
+                                mStream.mPtsUsec.get(nextSample), 0);
+                        nextSample++;
+                    }
+                }
+
+                int decoderStatus = mDecoder.dequeueOutputBuffer(info, TIMEOUT_USEC);
+                if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    // A decoder that wedges would otherwise keep us here forever.  The
+                    // exception marks this run as failed.
+                    if (++tryAgainCount == MAX_TRY_AGAIN) {
+                        throw new RuntimeException("decoder stalled after " + mOutputFrames +
+                                " frames");
+                    }
+                } else if (decoderStatus >= 0) {
+                    tryAgainCount = 0;
+                    if (info.size != 0) {
+                        if (mOutputFrames == 0) {
+                            mFirstOutputNanos = System.nanoTime() - startNanos;
+                        }
+                        mOutputFrames++;
+                    }
+                    mDecoder.releaseOutputBuffer(decoderStatus, false);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        break;
+                    }
+                }
+                // else a format / buffers change we don't care about
+            }
+            mElapsedNanos = System.nanoTime() - startNanos;
+        }
+
+        @Override
+        void release() {
+            if (mDecoder != null) {
+                try {
+                    mDecoder.stop();
+                } catch (IllegalStateException ise) {
+                    // never started
+                }
+                mDecoder.release();
+                mDecoder = null;
+            }
+        }
+    }
+}
@@ -22,21 +22,33 @@ import android.media.MediaFormat;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
+import android.widget.ProgressBar;
+import android.widget.TextView;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
 
+import java.util.List;
+
 /**
  * Opens a large number of MediaCodec encoders, just to see what happens.
  * <p>
  * We never explicitly release the instances, though they will get garbage collected
  * eventually.  The activity provides a "GC" button (so you can force the GC to happen)
  * and a "Halt" button (which kills the app so you can see if mediaserver is cleaning up).
+ * <p>
+ * The "Throughput" button runs CodecBenchmark, which measures encode and decode speed with
+ * increasing numbers of codecs running at once.
  */
 public class CodecOpenActivity extends Activity {
     private static final String TAG = MainActivity.TAG;
 
     private static final int MAX_OPEN = 256;
+    private static final int BENCHMARK_INSTANCES = 4;
+    private static final int BENCHMARK_FRAMES = 150;
+
+    private CodecBenchmark mBenchmark;
+    private boolean mBenchmarkCanceled;     // canceled while waiting for DeviceProfile
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -105,6 +117,87 @@ public class CodecOpenActivity extends Activity {
         dialog.show();
     }
 
+    /**
+     * onClick handler for "throughput" button.
+     */
+    public void clickBenchmark(@SuppressWarnings("unused") View unused) {
+        final TextView resultText = (TextView) findViewById(R.id.codecBenchmarkResult_text);
+        resultText.setText(R.string.state_running);
+        final AlertDialog dialog = showBenchmarkDialog();
+
+        // The benchmark checks each size against the device profile.  Getting that can mean
+        // probing the codecs, so don't do it on the UI thread.
+        DeviceProfile.fetch(this, new DeviceProfile.Callback() {
+            @Override
+            public void onProfileReady(DeviceProfile profile) {
+                if (mBenchmarkCanceled || isFinishing()) {
+                    mBenchmarkCanceled = false;
+                    dialog.dismiss();
+                    resultText.setText("");
+                    return;
+                }
+                startBenchmark(profile, dialog, resultText);
+            }
+        });
+    }
+
+    /**
+     * Puts up the "running" dialog, with a cancel button.
+     */
+    private AlertDialog showBenchmarkDialog() {
+        AlertDialog.Builder builder = WorkDialog.create(this, R.string.running_test);
+        builder.setCancelable(false);   // only by button
+        builder.setNegativeButton(R.string.cancel, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                if (mBenchmark != null) {
+                    mBenchmark.cancel();
+                } else {
+                    mBenchmarkCanceled = true;
+                }
+                // let the results (or profile) callback dismiss the dialog
+            }
+        });
+        return builder.show();
+    }
+
+    /**
+     * Starts the benchmark thread, once we have the device profile.
+     */
+    private void startBenchmark(DeviceProfile profile, final AlertDialog dialog,
+            final TextView resultText) {
+        final ProgressBar progressBar = (ProgressBar) dialog.findViewById(R.id.work_progress);
+
+        mBenchmark = new CodecBenchmark(BENCHMARK_INSTANCES, BENCHMARK_FRAMES, profile,
+                new CodecBenchmark.Listener() {
+            @Override
+            public void onCodecBenchmarkProgress(final int done, final int total) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        progressBar.setMax(total);
+                        progressBar.setProgress(done);
+                    }
+                });
+            }
+
+            @Override
+            public void onCodecBenchmarkFinished(List<CodecBenchmark.Result> results) {
+                final String table = CodecBenchmark.formatTable(results);
+                Log.i(TAG, "Codec benchmark:\n" + table);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        dialog.dismiss();
+                        mBenchmark = null;
+                        resultText.setText(table);
+                    }
+                });
+            }
+        });
+        mBenchmark.start();
+    }
+
     /**
      * onClick handler for "GC" button.
      * <p>
@@ -35,6 +35,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 import android.app.Activity;
 
+import com.android.grafika.gles.DirectBufferPool;
 import com.android.grafika.gles.EglCore;
 import com.android.grafika.gles.FullFrameRect;
 import com.android.grafika.gles.Texture2dProgram;
@@ -64,6 +65,9 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
     private static final int VIDEO_HEIGHT = 720;
     private static final int DESIRED_PREVIEW_FPS = 15;
 
+    private static final int EV_LATCH = EventTrace.register(EventTrace.SUBSYS_CAMERA,
+            "drawFrame updateTexImage ts=%d");
+
     private EglCore mEglCore;
     private WindowSurface mDisplaySurface;
     private SurfaceTexture mCameraTexture;  // receives the output from the camera preview
@@ -183,6 +187,7 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
     @Override
     protected void onResume() {
         super.onResume();
+        EventTrace.startFromIntent(getIntent());
 
         if (!PermissionHelper.hasCameraPermission(this)) {
             PermissionHelper.requestCameraPermission(this, false);
@@ -203,10 +208,19 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         super.onPause();
 
         releaseCamera();
+        EventTrace.stop();
 
         if (mCircEncoder != null) {
             mCircEncoder.shutdown();
             mCircEncoder = null;
+
+            // The encoder buffer has returned its chunks; report leaks, and give the pooled
+            // memory back since we won't be saving again until we resume.
+            DirectBufferPool pool = DirectBufferPool.getInstance();
+            if (pool.isLeakTracking()) {
+                pool.dumpStats();
+            }
+            pool.trim();
         }
         if (mCameraTexture != null) {
             mCameraTexture.release();
@@ -474,8 +488,8 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
 
         // Latch the next frame from the camera.
         mDisplaySurface.makeCurrent();
-        Log.d("MyLog", "mSurfaceTexture.updateTexImage() drawFrame");
         mCameraTexture.updateTexImage();
+        EventTrace.record(EV_LATCH, mCameraTexture.getTimestamp(), 0);
         mCameraTexture.getTransformMatrix(mTmpMatrix);
 
         // Fill the SurfaceView with it.
@@ -0,0 +1,585 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.content.Context;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.opengl.EGL14;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.android.grafika.gles.EglCore;
+import com.android.grafika.gles.OffscreenSurface;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * What this device's GLES driver and media codecs can do, so code can pick its fast path
+ * without probing.
+ * <p>
+ * The first time it's needed, we create a throwaway EGL context to query GL and EGL
+ * (versions, extensions, limits), and walk MediaCodecList for the video encoders and
+ * decoders (supported sizes and profile/levels).  That takes a few hundred milliseconds.
+ * The result is written to FILE_NAME in the app's files dir, tagged with the build
+ * fingerprint, and read back on later launches; a system update changes the fingerprint,
+ * which triggers a new probe.
+ * <p>
+ * MainActivity calls prefetch() so the probe normally happens in the background on first
+ * launch.  getInstance() blocks until the profile is available, probing on the caller's
+ * thread if necessary, so it shouldn't be used on the UI thread.  There, use peek() if a
+ * missing profile is acceptable, or fetch() to get a callback once it's ready.
+ * <p>
+ * The GL information describes a context created with FLAG_TRY_GLES3.  Code that has a
+ * context of its own should still trust that over the profile.
+ * <p>
+ * Class is thread-safe; the profile is immutable once created.
+ */
+public class DeviceProfile {
+    private static final String TAG = MainActivity.TAG;
+
+    /** File name, relative to the app's files dir, holding the cached profile. */
+    public static final String FILE_NAME = "device-profile.json";
+
+    // Bump this when the contents change, so stale caches get replaced.
+    private static final int FORMAT_VERSION = 1;
+
+    private static final String VIDEO_MIME_PREFIX = "video/";
+
+    // Housekeeping.
+    private static final Object sLock = new Object();
+    private static volatile DeviceProfile sInstance = null;
+
+    private String mFingerprint;
+    private boolean mFromCache;
+
+    // GL / EGL.
+    private int mGlVersion;
+    private String mGlVendor;
+    private String mGlRenderer;
+    private String mGlVersionString;
+    private String mEglVersionString;
+    private Set<String> mGlExtensions = new HashSet<String>();
+    private Set<String> mEglExtensions = new HashSet<String>();
+    private int mMaxTextureSize;
+    private int mMaxRenderbufferSize;
+
+    // Video codecs.
+    private List<CodecProfile> mCodecs = new ArrayList<CodecProfile>();
+
+    /**
+     * One codec's support for one video MIME type.
+     * <p>
+     * The size limits come from MediaCodecInfo.VideoCapabilities, which needs API 21; on
+     * older releases they're zero, meaning "unknown".
+     */
+    public static class CodecProfile {
+        public final String mName;
+        public final String mMimeType;
+        public final boolean mEncoder;
+        public final int[] mProfiles;       // parallel to mLevels
+        public final int[] mLevels;
+        public final int mMaxWidth;
+        public final int mMaxHeight;
+        public final int mWidthAlignment;
+        public final int mHeightAlignment;
+
+        CodecProfile(String name, String mimeType, boolean encoder, int[] profiles,
+                int[] levels, int maxWidth, int maxHeight, int widthAlignment,
+                int heightAlignment) {
+            mName = name;
+            mMimeType = mimeType;
+            mEncoder = encoder;
+            mProfiles = profiles;
+            mLevels = levels;
+            mMaxWidth = maxWidth;
+            mMaxHeight = maxHeight;
+            mWidthAlignment = widthAlignment;
+            mHeightAlignment = heightAlignment;
+        }
+
+        /**
+         * Returns true if the size is within the codec's limits, or the limits are unknown.
+         * This is a quick check; the codec may still refuse some combinations (e.g. at
+         * the maximum width, the maximum height may be lower).
+         */
+        public boolean isSizeSupported(int width, int height) {
+            if (mMaxWidth == 0) {
+                return true;
+            }
+            return width <= mMaxWidth && height <= mMaxHeight &&
+                    (mWidthAlignment == 0 || width % mWidthAlignment == 0) &&
+                    (mHeightAlignment == 0 || height % mHeightAlignment == 0);
+        }
+
+        /**
+         * Returns true if the codec lists the profile (any level).
+         */
+        public boolean hasProfile(int profile) {
+            for (int value : mProfiles) {
+                if (value == profile) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return (mEncoder ? "enc " : "dec ") + mName + " " + mMimeType +
+                    (mMaxWidth != 0 ? " max " + mMaxWidth + "x" + mMaxHeight : "") +
+                    " profiles=" + mProfiles.length;
+        }
+    }
+
+    /**
+     * Receives the profile from fetch().
+     */
+    public interface Callback {
+        /**
+         * Called on the main thread, or from within fetch() if the profile was already
+         * available.
+         */
+        void onProfileReady(DeviceProfile profile);
+    }
+
+    private DeviceProfile() {}
+
+    /**
+     * Returns the profile, loading or probing it first if necessary.  The first call on a
+     * new build can take a few hundred milliseconds; prefer to let prefetch() do that.
+     */
+    public static DeviceProfile getInstance(Context context) {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = loadOrProbe(new File(context.getFilesDir(), FILE_NAME));
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Returns the profile if it's already available, or null if nobody has asked for it
+     * yet (or the probe is still running).  Doesn't block.
+     */
+    public static DeviceProfile peek() {
+        // Don't want to wait on sLock while a probe is running.
+        return sInstance;
+    }
+
+    /**
+     * Makes sure the profile is available, on a background thread.  Returns immediately.
+     */
+    public static void prefetch(Context context) {
+        fetch(context, null);
+    }
+
+    /**
+     * Passes the profile to the callback on the main thread, loading or probing it on a
+     * background thread first if necessary.  If the profile is already available, the
+     * callback is made before this returns.  Call from the main thread.
+     *
+     * @param callback Callback, or null to just start the probe.
+     */
+    public static void fetch(Context context, final Callback callback) {
+        DeviceProfile profile = peek();
+        if (profile != null) {
+            if (callback != null) {
+                callback.onProfileReady(profile);
+            }
+            return;
+        }
+
+        final Context appContext = context.getApplicationContext();
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        new Thread("DeviceProfile") {
+            @Override
+            public void run() {
+                final DeviceProfile profile = getInstance(appContext);
+                if (callback != null) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onProfileReady(profile);
+                        }
+                    });
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Reads the cached profile if it's valid for this build, otherwise probes and writes
+     * a new one.
+     */
+    private static DeviceProfile loadOrProbe(File file) {
+        DeviceProfile profile = null;
+        if (file.canRead()) {
+            try {
+                profile = fromJson(new JSONObject(readFile(file)));
+                if (profile == null) {
+                    Log.d(TAG, "DeviceProfile: cached profile is stale");
+                }
+            } catch (IOException ioe) {
+                Log.w(TAG, "DeviceProfile: unable to read " + file, ioe);
+            } catch (JSONException je) {
+                Log.w(TAG, "DeviceProfile: bad cached profile", je);
+            }
+        }
+        if (profile != null) {
+            Log.d(TAG, "DeviceProfile: loaded " + profile);
+            return profile;
+        }
+
+        long startNanos = System.nanoTime();
+        profile = probe();
+        Log.d(TAG, "DeviceProfile: probed in " +
+                (System.nanoTime() - startNanos) / 1000000 + "ms: " + profile);
+        try {
+            FileWriter writer = new FileWriter(file);
+            try {
+                writer.write(profile.toJson().toString(2));
+            } finally {
+                writer.close();
+            }
+        } catch (IOException ioe) {
+            Log.w(TAG, "DeviceProfile: unable to write " + file, ioe);
+        } catch (JSONException je) {
+            throw new RuntimeException(je);     // not expected
+        }
+        return profile;
+    }
+
+    /**
+     * Queries GL, EGL, and the media codecs.
+     */
+    private static DeviceProfile probe() {
+        DeviceProfile profile = new DeviceProfile();
+        profile.mFingerprint = Build.FINGERPRINT;
+
+        // We need a GL context to examine, which means we need an EGL surface.  Create a 1x1
+        // pbuffer.
+        EglCore eglCore = new EglCore(null, EglCore.FLAG_TRY_GLES3);
+        OffscreenSurface surface = new OffscreenSurface(eglCore, 1, 1);
+        surface.makeCurrent();
+        profile.mGlVersion = eglCore.getGlVersion();
+        profile.mGlVendor = GLES20.glGetString(GLES20.GL_VENDOR);
+        profile.mGlRenderer = GLES20.glGetString(GLES20.GL_RENDERER);
+        profile.mGlVersionString = GLES20.glGetString(GLES20.GL_VERSION);
+        splitInto(GLES20.glGetString(GLES20.GL_EXTENSIONS), profile.mGlExtensions);
+        int[] values = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, values, 0);
+        profile.mMaxTextureSize = values[0];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_RENDERBUFFER_SIZE, values, 0);
+        profile.mMaxRenderbufferSize = values[0];
+        profile.mEglVersionString = eglCore.queryString(EGL14.EGL_VERSION);
+        splitInto(eglCore.queryString(EGL14.EGL_EXTENSIONS), profile.mEglExtensions);
+        surface.release();
+        eglCore.release();
+
+        int numCodecs = MediaCodecList.getCodecCount();
+        for (int i = 0; i < numCodecs; i++) {
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+            for (String type : info.getSupportedTypes()) {
+                if (!type.startsWith(VIDEO_MIME_PREFIX)) {
+                    continue;
+                }
+                try {
+                    profile.mCodecs.add(probeCodec(info, type));
+                } catch (IllegalArgumentException iae) {
+                    // Some codecs list types they then refuse to describe.
+                    Log.w(TAG, "DeviceProfile: no capabilities for " + info.getName() +
+                            " " + type);
+                }
+            }
+        }
+        return profile;
+    }
+
+    private static CodecProfile probeCodec(MediaCodecInfo info, String type) {
+        MediaCodecInfo.CodecCapabilities caps = info.getCapabilitiesForType(type);
+        MediaCodecInfo.CodecProfileLevel[] profileLevels = caps.profileLevels;
+        int[] profiles = new int[profileLevels.length];
+        int[] levels = new int[profileLevels.length];
+        for (int j = 0; j < profileLevels.length; j++) {
+            profiles[j] = profileLevels[j].profile;
+            levels[j] = profileLevels[j].level;
+        }
+        int maxWidth = 0, maxHeight = 0, widthAlignment = 0, heightAlignment = 0;
+        if (Build.VERSION.SDK_INT >= 21) {
+            MediaCodecInfo.VideoCapabilities video = caps.getVideoCapabilities();
+            if (video != null) {
+                maxWidth = video.getSupportedWidths().getUpper();
+                maxHeight = video.getSupportedHeights().getUpper();
+                widthAlignment = video.getWidthAlignment();
+                heightAlignment = video.getHeightAlignment();
+            }
+        }
+        return new CodecProfile(info.getName(), type, info.isEncoder(), profiles, levels,
+                maxWidth, maxHeight, widthAlignment, heightAlignment);
+    }
+
+    public boolean isFromCache() {
+        return mFromCache;
+    }
+
+    /**
+     * Returns the GLES major version (2 or 3).
+     */
+    public int getGlVersion() {
+        return mGlVersion;
+    }
+
+    public String getGlRenderer() {
+        return mGlRenderer;
+    }
+
+    public boolean hasGlExtension(String name) {
+        return mGlExtensions.contains(name);
+    }
+
+    public boolean hasEglExtension(String name) {
+        return mEglExtensions.contains(name);
+    }
+
+    public int getMaxTextureSize() {
+        return mMaxTextureSize;
+    }
+
+    public int getMaxRenderbufferSize() {
+        return mMaxRenderbufferSize;
+    }
+
+    /**
+     * Returns true if glBlitFramebuffer() is available.
+     */
+    public boolean hasBlitFramebuffer() {
+        return mGlVersion >= 3;
+    }
+
+    /**
+     * Returns true if GpuTimer will work.
+     */
+    public boolean hasTimerQuery() {
+        return mGlVersion >= 3 && hasGlExtension("GL_EXT_disjoint_timer_query");
+    }
+
+    /**
+     * Returns all video codecs, in MediaCodecList order.
+     */
+    public List<CodecProfile> getCodecs() {
+        return Collections.unmodifiableList(mCodecs);
+    }
+
+    /**
+     * Returns the encoders or decoders for a MIME type, in MediaCodecList order (which is
+     * the order MediaCodec.createEncoderByType() tries them).
+     */
+    public List<CodecProfile> findCodecs(String mimeType, boolean encoder) {
+        List<CodecProfile> result = new ArrayList<CodecProfile>();
+        for (CodecProfile codec : mCodecs) {
+            if (codec.mEncoder == encoder && codec.mMimeType.equalsIgnoreCase(mimeType)) {
+                result.add(codec);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if some encoder or decoder for the MIME type should handle the size.
+     * See CodecProfile#isSizeSupported().
+     */
+    public boolean isVideoSizeSupported(String mimeType, boolean encoder, int width,
+            int height) {
+        for (CodecProfile codec : findCodecs(mimeType, encoder)) {
+            if (codec.isSizeSupported(width, height)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a multi-line summary, for display.
+     */
+    public String toSummaryString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("GLES ").append(mGlVersion).append(", max texture ").append(mMaxTextureSize)
+                .append(", max renderbuffer ").append(mMaxRenderbufferSize);
+        sb.append("\ntimer query: ").append(hasTimerQuery());
+        sb.append("\nprofile ").append(mFromCache ? "cached" : "probed")
+                .append(" for ").append(mFingerprint);
+        for (CodecProfile codec : mCodecs) {
+            sb.append("\n  ").append(codec);
+        }
+        sb.append("\n");
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "GLES " + mGlVersion + " " + mGlRenderer + ", " + mGlExtensions.size() +
+                " GL ext, " + mEglExtensions.size() + " EGL ext, " + mCodecs.size() +
+                " video codecs" + (mFromCache ? " (cached)" : "");
+    }
+
+    private JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("formatVersion", FORMAT_VERSION);
+        json.put("fingerprint", mFingerprint);
+        json.put("glVersion", mGlVersion);
+        json.put("glVendor", mGlVendor);
+        json.put("glRenderer", mGlRenderer);
+        json.put("glVersionString", mGlVersionString);
+        json.put("eglVersionString", mEglVersionString);
+        json.put("glExtensions", toSortedArray(mGlExtensions));
+        json.put("eglExtensions", toSortedArray(mEglExtensions));
+        json.put("maxTextureSize", mMaxTextureSize);
+        json.put("maxRenderbufferSize", mMaxRenderbufferSize);
+        JSONArray codecs = new JSONArray();
+        for (CodecProfile codec : mCodecs) {
+            JSONObject entry = new JSONObject();
+            entry.put("name", codec.mName);
+            entry.put("mimeType", codec.mMimeType);
+            entry.put("encoder", codec.mEncoder);
+            entry.put("profiles", toArray(codec.mProfiles));
+            entry.put("levels", toArray(codec.mLevels));
+            entry.put("maxWidth", codec.mMaxWidth);
+            entry.put("maxHeight", codec.mMaxHeight);
+            entry.put("widthAlignment", codec.mWidthAlignment);
+            entry.put("heightAlignment", codec.mHeightAlignment);
+            codecs.put(entry);
+        }
+        json.put("codecs", codecs);
+        return json;
+    }
+
+    /**
+     * Rebuilds a profile from toJson() output.  Returns null if it's from a different
+     * build or an older version of this class.
+     */
+    private static DeviceProfile fromJson(JSONObject json) throws JSONException {
+        if (json.getInt("formatVersion") != FORMAT_VERSION ||
+                !Build.FINGERPRINT.equals(json.getString("fingerprint"))) {
+            return null;
+        }
+        DeviceProfile profile = new DeviceProfile();
+        profile.mFromCache = true;
+        profile.mFingerprint = json.getString("fingerprint");
+        profile.mGlVersion = json.getInt("glVersion");
+        profile.mGlVendor = json.getString("glVendor");
+        profile.mGlRenderer = json.getString("glRenderer");
+        profile.mGlVersionString = json.getString("glVersionString");
+        profile.mEglVersionString = json.getString("eglVersionString");
+        fromArray(json.getJSONArray("glExtensions"), profile.mGlExtensions);
+        fromArray(json.getJSONArray("eglExtensions"), profile.mEglExtensions);
+        profile.mMaxTextureSize = json.getInt("maxTextureSize");
+        profile.mMaxRenderbufferSize = json.getInt("maxRenderbufferSize");
+        JSONArray codecs = json.getJSONArray("codecs");
+        for (int i = 0; i < codecs.length(); i++) {
+            JSONObject entry = codecs.getJSONObject(i);
+            profile.mCodecs.add(new CodecProfile(entry.getString("name"),
+                    entry.getString("mimeType"), entry.getBoolean("encoder"),
+                    toIntArray(entry.getJSONArray("profiles")),
+                    toIntArray(entry.getJSONArray("levels")),
+                    entry.getInt("maxWidth"), entry.getInt("maxHeight"),
+                    entry.getInt("widthAlignment"), entry.getInt("heightAlignment")));
+        }
+        return profile;
+    }
+
+    /**
+     * Adds the entries of a space-separated list (e.g. an extension string) to "out".
+     */
+    private static void splitInto(String list, Set<String> out) {
+        if (list == null) {
+            return;
+        }
+        for (String value : list.split(" ")) {
+            if (!value.isEmpty()) {
+                out.add(value);
+            }
+        }
+    }
+
+    private static JSONArray toSortedArray(Set<String> values) {
+        String[] sorted = values.toArray(new String[values.size()]);
+        Arrays.sort(sorted);
+        JSONArray array = new JSONArray();
+        for (String value : sorted) {
+            array.put(value);
+        }
+        return array;
+    }
+
+    private static void fromArray(JSONArray array, Set<String> out) throws JSONException {
+        for (int i = 0; i < array.length(); i++) {
+            out.add(array.getString(i));
+        }
+    }
+
+    private static JSONArray toArray(int[] values) {
+        JSONArray array = new JSONArray();
+        for (int value : values) {
+            array.put(value);
+        }
+        return array;
+    }
+
+    private static int[] toIntArray(JSONArray array) throws JSONException {
+        int[] values = new int[array.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = array.getInt(i);
+        }
+        return values;
+    }
+
+    private static String readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < data.length) {
+                int count = in.read(data, offset, data.length - offset);
+                if (count < 0) {
+                    break;
+                }
+                offset += count;
+            }
+            return new String(data, 0, offset, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.content.Intent;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Cheap event trace for code that runs every frame.
+ * <p>
+ * Logging with Log.d() from a per-frame path builds a string and talks to logd 30-60
+ * times a second, which is enough to show up in the timing we're trying to look at.
+ * Instead, hot paths record fixed-size binary events -- an event id, a System.nanoTime()
+ * timestamp, and two longs -- into a ring owned by the calling thread.  Nothing is allocated
+ * and nothing is formatted until the rings are dumped.
+ * <p>
+ * Events are registered once, typically in a static initializer, with a subsystem and a
+ * format string that takes the two longs:
+ * <pre>
+ *   private static final int EV_DRAIN = EventTrace.register(EventTrace.SUBSYS_ENCODER,
+ *           "drainEncoder status=%d pts=%d");
+ *   ...
+ *   EventTrace.record(EV_DRAIN, status, ptsUsec);
+ * </pre>
+ * Subsystems can be switched on and off at runtime with setEnabled(); a disabled event
+ * costs a volatile read and a branch.  Everything is off by default.  The camera activities
+ * turn on all subsystems while they're resumed if started with the boolean extra
+ * "eventTrace", and log the recent events when they pause:
+ * <pre>
+ *   adb shell am start -n com.android.grafika/.CameraCaptureActivity --ez eventTrace true
+ * </pre>
+ * <p>
+ * Dumps read other threads' rings without stopping them, so a record being written during
+ * the dump may come out garbled.  That's acceptable for a debugging aid.
+ */
+public class EventTrace {
+    private static final String TAG = MainActivity.TAG;
+
+    /** Camera frame latching (updateTexImage). */
+    public static final int SUBSYS_CAMERA = 1;
+    /** MediaCodec encoder drains. */
+    public static final int SUBSYS_ENCODER = 1 << 1;
+    /** Render loops. */
+    public static final int SUBSYS_RENDER = 1 << 2;
+    public static final int SUBSYS_ALL = SUBSYS_CAMERA | SUBSYS_ENCODER | SUBSYS_RENDER;
+
+    private static final int MAX_EVENTS = 256;
+    private static final int RING_SIZE = 1024;          // records per thread, power of 2
+    private static final int RECORD_LONGS = 4;          // id, time, arg1, arg2
+    private static final int MAX_RETIRED_RINGS = 4;     // rings kept after their thread exits
+    private static final int DEFAULT_DUMP_RECORDS = 64;
+
+    /** Boolean extra; if set, startFromIntent() enables every subsystem. */
+    public static final String EXTRA_ENABLE = "eventTrace";
+
+    // Event registry.  Written only by register().
+    private static final String[] sFormats = new String[MAX_EVENTS];
+    private static final int[] sSubsystems = new int[MAX_EVENTS];
+    private static int sEventCount;
+
+    private static volatile int sEnabled;
+
+    // All rings that have been created, guarded by itself.
+    private static final ArrayList<Ring> sRings = new ArrayList<Ring>();
+
+    private static final ThreadLocal<Ring> sThreadRing = new ThreadLocal<Ring>() {
+        @Override
+        protected Ring initialValue() {
+            Ring ring = new Ring(Thread.currentThread());
+            addRing(ring);
+            return ring;
+        }
+    };
+
+    private EventTrace() {}     // static methods only
+
+    /**
+     * Registers an event.  The format string is passed to String.format() with the two
+     * arguments as longs, so use %d, %x, and so on.
+     *
+     * @return The event id to pass to record().
+     */
+    public static synchronized int register(int subsystem, String format) {
+        if (sEventCount == MAX_EVENTS) {
+            throw new RuntimeException("too many trace events");
+        }
+        sFormats[sEventCount] = format;
+        sSubsystems[sEventCount] = subsystem;
+        return sEventCount++;
+    }
+
+    /**
+     * Sets the mask of subsystems whose events are recorded.
+     */
+    public static void setEnabled(int subsystems) {
+        sEnabled = subsystems;
+    }
+
+    /**
+     * Enables every subsystem if the intent has EXTRA_ENABLE set.  Activities call this when
+     * they resume, and stop() when they pause.
+     */
+    public static void startFromIntent(Intent intent) {
+        if (intent.getBooleanExtra(EXTRA_ENABLE, false)) {
+            setEnabled(SUBSYS_ALL);
+        }
+    }
+
+    /**
+     * Sends the most recent events to the log, if tracing is enabled at all, and then
+     * disables it.
+     */
+    public static void stop() {
+        if (sEnabled != 0) {
+            logRecent(DEFAULT_DUMP_RECORDS);
+            setEnabled(0);
+        }
+    }
+
+    /**
+     * Returns true if any of the given subsystems is being recorded.
+     */
+    public static boolean isEnabled(int subsystems) {
+        return (sEnabled & subsystems) != 0;
+    }
+
+    /**
+     * Records an event with no arguments.
+     */
+    public static void record(int event) {
+        record(event, 0, 0);
+    }
+
+    /**
+     * Records an event in the calling thread's ring.
+     */
+    public static void record(int event, long arg1, long arg2) {
+        if ((sEnabled & sSubsystems[event]) == 0) {
+            return;
+        }
+        sThreadRing.get().put(event, System.nanoTime(), arg1, arg2);
+    }
+
+    /**
+     * Writes the most recent "maxRecords" events from all threads, oldest first, one per
+     * line.
+     */
+    public static void dump(Writer writer, int maxRecords) throws IOException {
+        String[] lines = format(maxRecords);
+        for (String line : lines) {
+            writer.write(line);
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * Sends the most recent "maxRecords" events from all threads to the log, oldest first.
+     */
+    public static void logRecent(int maxRecords) {
+        String[] lines = format(maxRecords);
+        Log.d(TAG, "EventTrace: " + lines.length + " events");
+        for (String line : lines) {
+            Log.d(TAG, line);
+        }
+    }
+
+    /**
+     * Discards all recorded events.
+     */
+    public static void clear() {
+        synchronized (sRings) {
+            for (Ring ring : sRings) {
+                ring.mClearedAt = ring.mCount;
+            }
+        }
+    }
+
+    /**
+     * Merges the rings by timestamp and formats the newest records.
+     */
+    private static String[] format(int maxRecords) {
+        // Copy everything out first, so the rings are only touched briefly.
+        ArrayList<long[]> records = new ArrayList<long[]>();
+        ArrayList<String> threadNames = new ArrayList<String>();
+        synchronized (sRings) {
+            for (Ring ring : sRings) {
+                long count = ring.mCount;
+                long first = Math.max(count - RING_SIZE, ring.mClearedAt);
+                for (long i = first; i < count; i++) {
+                    int offset = (int) (i & (RING_SIZE - 1)) * RECORD_LONGS;
+                    long[] rec = new long[RECORD_LONGS + 1];
+                    System.arraycopy(ring.mData, offset, rec, 0, RECORD_LONGS);
+                    rec[RECORD_LONGS] = threadNames.size();
+                    records.add(rec);
+                }
+                threadNames.add(ring.mThreadName);
+            }
+        }
+
+        long[][] sorted = records.toArray(new long[records.size()][]);
+        Arrays.sort(sorted, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] lhs, long[] rhs) {
+                return lhs[1] < rhs[1] ? -1 : (lhs[1] == rhs[1] ? 0 : 1);
+            }
+        });
+
+        int start = Math.max(0, sorted.length - maxRecords);
+        String[] lines = new String[sorted.length - start];
+        long baseNs = (sorted.length > start) ? sorted[start][1] : 0;
+        String[] formats;
+        synchronized (EventTrace.class) {
+            formats = Arrays.copyOf(sFormats, sEventCount);
+        }
+        for (int i = start; i < sorted.length; i++) {
+            long[] rec = sorted[i];
+            int event = (int) rec[0];
+            String msg;
+            if (event >= 0 && event < formats.length) {
+                msg = String.format(Locale.US, formats[event], rec[2], rec[3]);
+            } else {
+                msg = "bad event " + event;
+            }
+            lines[i - start] = String.format(Locale.US, "%10.3f ms [%s] %s",
+                    (rec[1] - baseNs) / 1000000.0, threadNames.get((int) rec[RECORD_LONGS]), msg);
+        }
+        return lines;
+    }
+
+    /**
+     * Adds a new ring, dropping rings of threads that have exited beyond the most recent
+     * few.
+     */
+    private static void addRing(Ring ring) {
+        synchronized (sRings) {
+            int retired = 0;
+            for (int i = sRings.size() - 1; i >= 0; i--) {
+                Ring old = sRings.get(i);
+                if (!old.isAlive() && ++retired > MAX_RETIRED_RINGS) {
+                    sRings.remove(i);
+                }
+            }
+            sRings.add(ring);
+        }
+    }
+
+    /**
+     * One thread's events.  Only the owning thread writes.
+     */
+    private static class Ring {
+        final long[] mData = new long[RING_SIZE * RECORD_LONGS];
+        final String mThreadName;
+        final WeakReference<Thread> mThread;
+        volatile long mCount;       // records ever written; published after each write
+        volatile long mClearedAt;   // records before this were discarded by clear()
+
+        Ring(Thread thread) {
+            mThreadName = thread.getName();
+            mThread = new WeakReference<Thread>(thread);
+        }
+
+        boolean isAlive() {
+            Thread thread = mThread.get();
+            return thread != null && thread.isAlive();
+        }
+
+        void put(int event, long timeNs, long arg1, long arg2) {
+            long count = mCount;
+            int offset = (int) (count & (RING_SIZE - 1)) * RECORD_LONGS;
+            mData[offset] = event;
+            mData[offset + 1] = timeNs;
+            mData[offset + 2] = arg1;
+            mData[offset + 3] = arg2;
+            mCount = count + 1;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import java.util.HashMap;
+
+/**
+ * A repeating pattern of hold counts that maps content at one frame rate onto a display
+ * refreshing at another.
+ * <p>
+ * Each entry is the number of refreshes a source frame stays on screen.  24fps content on
+ * a 60Hz display gives the familiar 3-2 pulldown; on a 90Hz display it's "4434", and on
+ * 120Hz it's just "5".  The pattern is generated by error diffusion: frame i ends at
+ * refresh round((i + 1) * ratio), so every hold is either floor(ratio) or ceil(ratio), and
+ * a frame is never more than half a refresh from where it ideally belongs.  If the content
+ * is faster than the display, some holds are zero, meaning the frame is skipped.
+ * <p>
+ * The pattern repeats after the smallest number of frames that brings the accumulated
+ * error back to (nearly) zero, up to MAX_LENGTH frames.  For rates that never quite line up,
+ * e.g. 24fps on a 59.94Hz panel, the pattern drifts very slowly against the true rate.
+ * <p>
+ * This has no Android dependencies.
+ */
+public class FrameCadence {
+    /** Longest pattern we'll generate. */
+    public static final int MAX_LENGTH = 240;
+
+    // Accumulated error, in refresh periods, that we accept at the end of a cycle.
+    private static final double CYCLE_TOLERANCE = 0.01;
+
+    private static final HashMap<String, FrameCadence> sCache =
+            new HashMap<String, FrameCadence>();
+
+    private final double mContentFps;
+    private final long mRefreshNs;
+    private final int[] mHolds;
+    private final int mRefreshesPerCycle;
+
+
+    /**
+     * Returns the cadence for the given content rate and display refresh period.  Results
+     * are cached, so this is cheap to call repeatedly.
+     *
+     * @param contentFps Source frame rate, e.g. 23.976.
+     * @param refreshNs Display refresh period, e.g. from MiscUtils.getDisplayRefreshNsec().
+     */
+    public static FrameCadence get(double contentFps, long refreshNs) {
+        if (contentFps <= 0 || refreshNs <= 0) {
+            throw new IllegalArgumentException("bad rates: " + contentFps + " fps, " +
+                    refreshNs + " ns");
+        }
+        String key = contentFps + "/" + refreshNs;
+        synchronized (sCache) {
+            FrameCadence cadence = sCache.get(key);
+            if (cadence == null) {
+                cadence = new FrameCadence(contentFps, refreshNs);
+                sCache.put(key, cadence);
+            }
+            return cadence;
+        }
+    }
+
+    private FrameCadence(double contentFps, long refreshNs) {
+        mContentFps = contentFps;
+        mRefreshNs = refreshNs;
+
+        // Display refreshes per content frame.
+        double ratio = (1000000000.0 / contentFps) / refreshNs;
+
+        // Find the shortest cycle that closes up.  If none do, take the best one.
+        int length = 1;
+        double bestError = Double.MAX_VALUE;
+        for (int n = 1; n <= MAX_LENGTH; n++) {
+            double total = n * ratio;
+            double error = Math.abs(total - Math.rint(total));
+            if (error < bestError) {
+                bestError = error;
+                length = n;
+            }
+            if (error < CYCLE_TOLERANCE) {
+                break;
+            }
+        }
+
+        mHolds = new int[length];
+        long prevEnd = 0;
+        for (int i = 0; i < length; i++) {
+            long end = Math.round((i + 1) * ratio);
+            mHolds[i] = (int) (end - prevEnd);
+            prevEnd = end;
+        }
+        mRefreshesPerCycle = (int) prevEnd;
+    }
+
+    /**
+     * Returns the number of source frames in one cycle of the pattern.
+     */
+    public int getLength() {
+        return mHolds.length;
+    }
+
+    /**
+     * Returns the number of display refreshes in one cycle of the pattern.
+     */
+    public int getRefreshesPerCycle() {
+        return mRefreshesPerCycle;
+    }
+
+    /**
+     * Returns the number of refreshes frame "index" should be held for.  The index may be
+     * any non-negative frame number; it wraps around the pattern.
+     */
+    public int getHold(long index) {
+        return mHolds[(int) (index % mHolds.length)];
+    }
+
+    /**
+     * Returns how long frame "index" should be on screen, i.e. getHold() refresh periods.
+     */
+    public long getFrameDurationNs(long index) {
+        return getHold(index) * mRefreshNs;
+    }
+
+    /**
+     * Returns the frame rate the pattern actually delivers.  This differs from the content
+     * rate only when the pattern doesn't close up exactly.
+     */
+    public double getEffectiveFps() {
+        return mHolds.length * 1000000000.0 / ((double) mRefreshesPerCycle * mRefreshNs);
+    }
+
+    /**
+     * Returns the largest difference between any two holds in the pattern, in refreshes.
+     * By construction this is 0 or 1.
+     */
+    public int getJudder() {
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for (int hold : mHolds) {
+            min = Math.min(min, hold);
+            max = Math.max(max, hold);
+        }
+        return max - min;
+    }
+
+    /**
+     * Returns the pattern in the same notation as ScheduledSwapActivity used, e.g. "32".
+     * Holds of 10 or more are shown in brackets.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int hold : mHolds) {
+            if (hold < 10) {
+                sb.append(hold);
+            } else {
+                sb.append('[').append(hold).append(']');
+            }
+        }
+        return mContentFps + "fps@" + (1000000000.0 / mRefreshNs) + "Hz: " + sb;
+    }
+}
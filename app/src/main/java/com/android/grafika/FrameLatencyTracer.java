@@ -0,0 +1,279 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * Follows individual frames through the camera capture / encode / mux pipeline, and keeps
+ * a latency histogram for each hop.
+ * <p>
+ * Frames are identified by their SurfaceTexture timestamp.  The encoder is given that
+ * timestamp as its presentation time, so the PTS that comes out of MediaCodec (in
+ * microseconds) identifies the same frame; we key everything by microseconds.  The stages,
+ * and the thread each is marked on:
+ * <ol>
+ * <li>LATCHED: updateTexImage() returned (GL thread).  Measured from the SurfaceTexture
+ *     timestamp, if that looks like it's on the System.nanoTime() clock.
+ * <li>RENDERED: preview drawn and the frame handed to the encoder thread (GL thread).
+ * <li>ENCODER_INPUT: frame drawn and swapped onto the encoder's input Surface (encoder
+ *     thread).
+ * <li>ENCODED: encoder output buffer with the matching PTS dequeued (encoder thread).
+ * <li>MUXED: sample written to the muxer (encoder thread).
+ * </ol>
+ * Each stage's latency is the time since the previous stage; "total" runs from capture to
+ * mux.  Frames are tracked in a fixed ring, so nothing is allocated per frame.  A frame that
+ * doesn't make it to the last stage (preview-only, or dropped by the encoder) just falls
+ * out of the ring; the stages it did reach are still counted.
+ * <p>
+ * The work for each stage should be wrapped in android.os.Trace sections by the caller.
+ * If enabled with setTraceCounters(), the latency of each stage is also published as a
+ * systrace counter, so it lines up with the sections in systrace or Perfetto.  Counters
+ * are set through reflection (Trace.setCounter() is API 29, newer than our compile SDK), which
+ * boxes its arguments, so they're off by default.
+ */
+public class FrameLatencyTracer {
+    private static final String TAG = MainActivity.TAG;
+
+    public static final int STAGE_LATCHED = 0;
+    public static final int STAGE_RENDERED = 1;
+    public static final int STAGE_ENCODER_INPUT = 2;
+    public static final int STAGE_ENCODED = 3;
+    public static final int STAGE_MUXED = 4;
+    public static final int NUM_STAGES = 5;
+
+    private static final String[] STAGE_NAMES =
+            { "latch", "render", "encoder-input", "encode", "mux" };
+
+    // Frames in flight we can keep track of.  The encoder usually holds a few; at 30fps this
+    // is a second's worth.
+    private static final int RING_SIZE = 32;
+
+    // A SurfaceTexture timestamp more than this far from System.nanoTime() is assumed to be
+    // on some other clock, and the capture-to-latch time is not recorded.
+    private static final long MAX_CAPTURE_LATENCY_NS = 1000000000L;
+
+    private final String mName;
+    private final String[] mCounterNames;
+
+    // All guarded by "this".  Marks come from the GL and encoder threads.
+    private final long[] mKeyUsec = new long[RING_SIZE];
+    private final long[][] mStageNs = new long[RING_SIZE][NUM_STAGES + 1];  // [0] is capture
+    private int mHead;
+    private final LatencyHistogram[] mStageLatency = new LatencyHistogram[NUM_STAGES];
+    private final LatencyHistogram mTotalLatency = new LatencyHistogram();
+    private long mFramesLatched;
+    private long mUnmatchedMarks;
+
+    private volatile boolean mTraceCounters;
+
+
+    public FrameLatencyTracer(String name) {
+        mName = name;
+        mCounterNames = new String[NUM_STAGES];
+        for (int i = 0; i < NUM_STAGES; i++) {
+            mStageLatency[i] = new LatencyHistogram();
+            mCounterNames[i] = name + " " + STAGE_NAMES[i] + " us";
+        }
+    }
+
+    /**
+     * Enables or disables systrace counters.
+     */
+    public void setTraceCounters(boolean enabled) {
+        mTraceCounters = enabled && TraceCounter.isAvailable();
+    }
+
+    /**
+     * Starts tracking a frame.  Call right after updateTexImage().
+     *
+     * @param timestampNs The SurfaceTexture timestamp.
+     */
+    public void frameLatched(long timestampNs) {
+        long nowNs = System.nanoTime();
+        long latencyNs;
+        synchronized (this) {
+            mHead = (mHead + 1) % RING_SIZE;
+            long[] stages = mStageNs[mHead];
+            mKeyUsec[mHead] = timestampNs / 1000;
+            for (int i = 0; i < stages.length; i++) {
+                stages[i] = 0;
+            }
+            stages[STAGE_LATCHED + 1] = nowNs;
+            mFramesLatched++;
+
+            latencyNs = nowNs - timestampNs;
+            if (latencyNs >= 0 && latencyNs < MAX_CAPTURE_LATENCY_NS) {
+                stages[0] = timestampNs;
+                mStageLatency[STAGE_LATCHED].record(latencyNs);
+            } else {
+                latencyNs = -1;
+            }
+        }
+        if (mTraceCounters && latencyNs >= 0) {
+            TraceCounter.set(mCounterNames[STAGE_LATCHED], latencyNs / 1000);
+        }
+    }
+
+    /**
+     * Marks a later stage for the frame with the given SurfaceTexture timestamp.
+     */
+    public void mark(int stage, long timestampNs) {
+        markUsec(stage, timestampNs / 1000);
+    }
+
+    /**
+     * Marks a later stage for the frame with the given encoder presentation time.
+     */
+    public void markPtsUsec(int stage, long ptsUsec) {
+        markUsec(stage, ptsUsec);
+    }
+
+    private void markUsec(int stage, long keyUsec) {
+        long nowNs = System.nanoTime();
+        long latencyNs = -1;
+        synchronized (this) {
+            int slot = findLocked(keyUsec);
+            if (slot < 0) {
+                mUnmatchedMarks++;
+                return;
+            }
+            long[] stages = mStageNs[slot];
+            long prevNs = stages[stage];        // previous stage, offset by one
+            stages[stage + 1] = nowNs;
+            if (prevNs != 0) {
+                latencyNs = nowNs - prevNs;
+                mStageLatency[stage].record(latencyNs);
+            }
+            if (stage == STAGE_MUXED) {
+                long startNs = (stages[0] != 0) ? stages[0] : stages[STAGE_LATCHED + 1];
+                mTotalLatency.record(nowNs - startNs);
+            }
+        }
+        if (mTraceCounters && latencyNs >= 0) {
+            TraceCounter.set(mCounterNames[stage], latencyNs / 1000);
+        }
+    }
+
+    /**
+     * Finds the ring slot for a frame, searching back from the newest.  Returns -1 if the
+     * frame isn't there (never latched, or pushed out by newer frames).
+     */
+    private int findLocked(long keyUsec) {
+        int slot = mHead;
+        for (int i = 0; i < RING_SIZE; i++) {
+            if (mKeyUsec[slot] == keyUsec && mStageNs[slot][STAGE_LATCHED + 1] != 0) {
+                return slot;
+            }
+            slot = (slot + RING_SIZE - 1) % RING_SIZE;
+        }
+        return -1;
+    }
+
+    /**
+     * Clears the statistics and forgets frames in flight.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < RING_SIZE; i++) {
+            mKeyUsec[i] = 0;
+            mStageNs[i][STAGE_LATCHED + 1] = 0;
+        }
+        for (LatencyHistogram hist : mStageLatency) {
+            hist.reset();
+        }
+        mTotalLatency.reset();
+        mFramesLatched = mUnmatchedMarks = 0;
+    }
+
+    /**
+     * Returns a per-stage latency breakdown.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(mName).append(" latency: frames=").append(mFramesLatched)
+                .append(" unmatched=").append(mUnmatchedMarks);
+        for (int i = 0; i < NUM_STAGES; i++) {
+            LatencyHistogram hist = mStageLatency[i];
+            if (hist.getCount() != 0) {
+                sb.append("\n  ").append(STAGE_NAMES[i]).append(" (").append(hist.getCount())
+                        .append("): ").append(hist.toSummaryString());
+            }
+        }
+        if (mTotalLatency.getCount() != 0) {
+            sb.append("\n  total (").append(mTotalLatency.getCount()).append("): ")
+                    .append(mTotalLatency.toSummaryString());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Logs the breakdown.
+     */
+    public void logSummary() {
+        Log.d(TAG, toString());
+    }
+
+
+    /**
+     * Systrace counters, via Trace.setCounter() (API 29) or the hidden Trace.traceCounter()
+     * it replaced.
+     */
+    private static class TraceCounter {
+        private static final long TRACE_TAG_APP = 1L << 12;
+        private static final Method sSetCounter;
+        private static final boolean sLegacy;
+
+        static {
+            Method method = null;
+            boolean legacy = false;
+            try {
+                method = android.os.Trace.class.getMethod("setCounter", String.class,
+                        long.class);
+            } catch (NoSuchMethodException nsme) {
+                try {
+                    method = android.os.Trace.class.getMethod("traceCounter", long.class,
+                            String.class, int.class);
+                    legacy = true;
+                } catch (NoSuchMethodException nsme2) {
+                    Log.w(TAG, "systrace counters not available");
+                }
+            }
+            sSetCounter = method;
+            sLegacy = legacy;
+        }
+
+        static boolean isAvailable() {
+            return sSetCounter != null;
+        }
+
+        static void set(String name, long value) {
+            try {
+                if (sLegacy) {
+                    sSetCounter.invoke(null, TRACE_TAG_APP, name, (int) value);
+                } else {
+                    sSetCounter.invoke(null, name, value);
+                }
+            } catch (Exception ex) {
+                // Not fatal; we just lose the counter.
+                Log.w(TAG, "setCounter failed: " + ex);
+            }
+        }
+    }
+}
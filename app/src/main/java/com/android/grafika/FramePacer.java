@@ -0,0 +1,271 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+/**
+ * Decides when frames should be presented, and which frames should be dropped, for content
+ * scheduled a fixed number of refreshes ahead of the Choreographer vsync time.
+ * <p>
+ * The model (see the comments in ScheduledSwapActivity for the long version): a frame drawn
+ * in response to vsync N is given a presentation time of N + framesAhead refresh periods.
+ * SurfaceFlinger latches it at the first vsync at or after that time, so it will only
+ * appear on schedule if we manage to submit it before then.  The pacer:
+ * <ul>
+ * <li>computes the target presentation time for each frame;
+ * <li>drops frames that can no longer make their target, or that would land on the same
+ *     refresh as an earlier frame (a collision -- one of the two would never be seen);
+ * <li>drops frames when MAX_QUEUED buffers are already waiting to be latched, so we never
+ *     block in eglSwapBuffers();
+ * <li>records, per frame, the difference between the target and the estimated latch time.
+ * </ul>
+ * We don't get latch feedback from SurfaceFlinger at this API level, so the latch time is
+ * estimated as the first vsync after swapBuffers() returns, but no earlier than the target.
+ * <p>
+ * Usage, on the render thread: call onVsync() for every Choreographer event, then
+ * scheduleFrame() when the content has a new frame to show.  If that doesn't return DROP,
+ * draw, set the presentation time (if framesAhead > 0), swap, and call frameSubmitted().
+ * <p>
+ * This has no Android dependencies.
+ */
+public class FramePacer {
+    /** Returned by scheduleFrame() when the frame should not be drawn. */
+    public static final long DROP = -1;
+
+    /** Most buffers we allow to be queued and not yet latched. */
+    public static final int MAX_QUEUED = 2;
+
+    // Submitting this close to a vsync counts as missing it.
+    private static final long LATCH_MARGIN_NS = 1000000;
+
+    /**
+     * Pacing statistics.  Latch errors are measured in whole refresh periods.
+     */
+    public static class Stats {
+        /** Choreographer events seen. */
+        public long vsyncs;
+        /** Gaps of more than one refresh between Choreographer events. */
+        public long vsyncSkips;
+        /** Frames passed to scheduleFrame(). */
+        public long scheduled;
+        /** Frames dropped because they would have missed their target. */
+        public long droppedLate;
+        /** Frames dropped because they would have collided with the previous frame. */
+        public long droppedCollision;
+        /** Frames dropped because MAX_QUEUED buffers were already waiting. */
+        public long droppedQueueFull;
+        /** Frames submitted, and how many were latched on time, one refresh late, or worse. */
+        public long submitted;
+        public long latchedOnTime;
+        public long latchedLate1;
+        public long latchedLate2Plus;
+        /** Worst difference between estimated latch and target. */
+        public long maxLatchErrorNs;
+
+        public long getDropped() {
+            return droppedLate + droppedCollision + droppedQueueFull;
+        }
+
+        @Override
+        public String toString() {
+            return "vsyncs=" + vsyncs + " skips=" + vsyncSkips + " scheduled=" + scheduled +
+                    " dropped=" + getDropped() + " (late=" + droppedLate + " collide=" +
+                    droppedCollision + " full=" + droppedQueueFull + ") latched on-time=" +
+                    latchedOnTime + " late1=" + latchedLate1 + " late2+=" + latchedLate2Plus +
+                    " maxErr=" + (maxLatchErrorNs / 1000000.0) + "ms";
+        }
+    }
+
+    private final long mRefreshPeriodNs;
+    private final PacingClock mClock;
+    private int mFramesAhead;
+
+    private long mVsyncNs;              // most recent Choreographer time
+    private long mLastTargetNs;         // target of the last frame submitted
+    private long mPendingTargetNs;      // target of the frame between schedule and submit
+
+    // Estimated latch times of submitted frames not yet on screen; a small ring.
+    private final long[] mQueued = new long[MAX_QUEUED];
+    private int mQueuedHead;
+    private int mQueuedCount;
+
+    private final Stats mStats = new Stats();
+
+
+    /**
+     * @param refreshPeriodNs Display refresh period, e.g. from MiscUtils.getDisplayRefreshNsec().
+     * @param framesAhead How many refresh periods ahead of vsync frames are scheduled.  Zero
+     *     means "as soon as possible", with no presentation time.
+     */
+    public FramePacer(long refreshPeriodNs, int framesAhead) {
+        this(refreshPeriodNs, framesAhead, PacingClock.SYSTEM);
+    }
+
+    /**
+     * As above, but with a caller-supplied clock, e.g. for simulation.
+     */
+    public FramePacer(long refreshPeriodNs, int framesAhead, PacingClock clock) {
+        if (refreshPeriodNs <= 0) {
+            throw new IllegalArgumentException("bad refresh period " + refreshPeriodNs);
+        }
+        mRefreshPeriodNs = refreshPeriodNs;
+        mClock = clock;
+        setFramesAhead(framesAhead);
+    }
+
+    /**
+     * Changes the schedule.  Queued-frame tracking and stats are kept.
+     * <p>
+     * framesAhead can't exceed MAX_QUEUED.  Scheduling further out would keep more than
+     * MAX_QUEUED buffers waiting to be latched, and the extra frames would be dropped.
+     */
+    public void setFramesAhead(int framesAhead) {
+        if (framesAhead < 0 || framesAhead > MAX_QUEUED) {
+            throw new IllegalArgumentException("bad framesAhead " + framesAhead);
+        }
+        mFramesAhead = framesAhead;
+    }
+
+    public int getFramesAhead() {
+        return mFramesAhead;
+    }
+
+    /**
+     * Call for every Choreographer event, before scheduleFrame().
+     */
+    public void onVsync(long frameTimeNs) {
+        mStats.vsyncs++;
+        if (mVsyncNs != 0 && frameTimeNs - mVsyncNs > mRefreshPeriodNs + LATCH_MARGIN_NS) {
+            mStats.vsyncSkips++;
+        }
+        mVsyncNs = frameTimeNs;
+
+        // Anything due to be latched by now has left the queue.  The latch times are
+        // extrapolated from the refresh period, and real vsync timestamps wander a little,
+        // so match to the nearest vsync rather than requiring the exact time to have passed.
+        long retireBeforeNs = frameTimeNs + mRefreshPeriodNs / 2;
+        while (mQueuedCount > 0 && mQueued[mQueuedHead] <= retireBeforeNs) {
+            mQueuedHead = (mQueuedHead + 1) % MAX_QUEUED;
+            mQueuedCount--;
+        }
+    }
+
+    /**
+     * Decides whether a new frame should be drawn for the current vsync.
+     *
+     * @return The presentation time to use, or DROP if the frame should be skipped.
+     */
+    public long scheduleFrame() {
+        mStats.scheduled++;
+        long earliestNs = nextVsyncAfter(now() + LATCH_MARGIN_NS);
+
+        long targetNs;
+        if (mFramesAhead == 0) {
+            // No presentation time; it'll show up whenever it's latched.
+            targetNs = earliestNs;
+        } else {
+            targetNs = mVsyncNs + mRefreshPeriodNs * mFramesAhead;
+            if (earliestNs > targetNs) {
+                mStats.droppedLate++;
+                return DROP;
+            }
+        }
+        if (mLastTargetNs != 0 && targetNs <= mLastTargetNs) {
+            mStats.droppedCollision++;
+            return DROP;
+        }
+        if (mQueuedCount >= MAX_QUEUED) {
+            mStats.droppedQueueFull++;
+            return DROP;
+        }
+
+        mPendingTargetNs = targetNs;
+        return targetNs;
+    }
+
+    /**
+     * Call after swapBuffers() for a frame accepted by scheduleFrame().
+     */
+    public void frameSubmitted() {
+        if (mPendingTargetNs == 0) {
+            throw new IllegalStateException("frameSubmitted without scheduleFrame");
+        }
+        long targetNs = mPendingTargetNs;
+        mPendingTargetNs = 0;
+        mLastTargetNs = targetNs;
+
+        long latchNs = Math.max(targetNs, nextVsyncAfter(now() + LATCH_MARGIN_NS));
+        long errorNs = latchNs - targetNs;
+        long periodsLate = (errorNs + mRefreshPeriodNs / 2) / mRefreshPeriodNs;
+        mStats.submitted++;
+        if (periodsLate == 0) {
+            mStats.latchedOnTime++;
+        } else if (periodsLate == 1) {
+            mStats.latchedLate1++;
+        } else {
+            mStats.latchedLate2Plus++;
+        }
+        if (errorNs > mStats.maxLatchErrorNs) {
+            mStats.maxLatchErrorNs = errorNs;
+        }
+
+        if (mQueuedCount < MAX_QUEUED) {
+            mQueued[(mQueuedHead + mQueuedCount) % MAX_QUEUED] = latchNs;
+            mQueuedCount++;
+        }
+    }
+
+    /**
+     * Returns the number of submitted frames that haven't been latched yet.
+     */
+    public int getQueuedCount() {
+        return mQueuedCount;
+    }
+
+    /**
+     * Copies the current statistics into "stats".
+     */
+    public void getStats(Stats stats) {
+        Stats src = mStats;
+        stats.vsyncs = src.vsyncs;
+        stats.vsyncSkips = src.vsyncSkips;
+        stats.scheduled = src.scheduled;
+        stats.droppedLate = src.droppedLate;
+        stats.droppedCollision = src.droppedCollision;
+        stats.droppedQueueFull = src.droppedQueueFull;
+        stats.submitted = src.submitted;
+        stats.latchedOnTime = src.latchedOnTime;
+        stats.latchedLate1 = src.latchedLate1;
+        stats.latchedLate2Plus = src.latchedLate2Plus;
+        stats.maxLatchErrorNs = src.maxLatchErrorNs;
+    }
+
+    /**
+     * Returns the first vsync time strictly after "timeNs", extrapolated from the most
+     * recent Choreographer event.
+     */
+    private long nextVsyncAfter(long timeNs) {
+        if (timeNs < mVsyncNs) {
+            return mVsyncNs;
+        }
+        long periods = (timeNs - mVsyncNs) / mRefreshPeriodNs + 1;
+        return mVsyncNs + periods * mRefreshPeriodNs;
+    }
+
+    private long now() {
+        return mClock.nanoTime();
+    }
+}
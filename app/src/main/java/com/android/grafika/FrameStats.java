@@ -0,0 +1,259 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Frame timing recorder for render threads.
+ * <p>
+ * Records the interval between frames and the time spent in each stage of a frame (update,
+ * draw, swap) into LatencyHistograms, so recording doesn't allocate.  Jank is counted against
+ * the display refresh period: an interval of more than 1.5 refreshes is a janky frame, and
+ * the number of refreshes it covered beyond the first are missed vsyncs.
+ * <p>
+ * Usage, on the render thread:
+ * <pre>
+ *   stats.beginFrame(frameTimeNanos);
+ *   update();   stats.stageDone(FrameStats.STAGE_UPDATE);
+ *   draw();     stats.stageDone(FrameStats.STAGE_DRAW);
+ *   swap();     stats.stageDone(FrameStats.STAGE_SWAP);
+ * </pre>
+ * Call frameDropped() instead of drawing if the frame is skipped.  snapshot() may be called
+ * from any thread; it copies into a caller-supplied Snapshot, so that doesn't allocate
+ * either.  Snapshots can be appended to a file with Snapshot#appendTo(), to compare runs.
+ */
+public class FrameStats {
+    public static final int STAGE_UPDATE = 0;
+    public static final int STAGE_DRAW = 1;
+    public static final int STAGE_SWAP = 2;
+    public static final int NUM_STAGES = 3;
+
+    /** Metric indices: the frame interval, then the stages. */
+    public static final int METRIC_INTERVAL = NUM_STAGES;
+    public static final int NUM_METRICS = NUM_STAGES + 1;
+
+    /** File name, relative to the app's files dir, that activities append snapshots to. */
+    public static final String EXPORT_FILE_NAME = "frame-stats.txt";
+
+    private static final String[] METRIC_NAMES = { "update", "draw", "swap", "interval" };
+
+    private final String mName;
+    private final long mRefreshPeriodNs;
+
+    // All guarded by "this".  Recording happens on one thread, so the lock is uncontended
+    // except when a snapshot is being taken.
+    private final LatencyHistogram[] mMetrics = newMetrics();
+    private long mFrames;
+    private long mDroppedFrames;
+    private long mJankFrames;
+    private long mMissedVsyncs;
+
+    // Render thread only.
+    private long mPrevFrameTimeNs;
+    private long mStageStartNs;
+
+
+    /**
+     * @param name Label for logs and exported snapshots, e.g. "HardwareScaler".
+     * @param refreshPeriodNs Display refresh period, for jank counting.
+     */
+    public FrameStats(String name, long refreshPeriodNs) {
+        mName = name;
+        mRefreshPeriodNs = refreshPeriodNs;
+    }
+
+    /**
+     * Starts a frame.  "frameTimeNs" is the Choreographer (or other) frame time; the
+     * interval is measured between consecutive calls.  Stage timing starts now.
+     */
+    public void beginFrame(long frameTimeNs) {
+        long nowNs = System.nanoTime();
+        synchronized (this) {
+            mFrames++;
+            if (mPrevFrameTimeNs != 0) {
+                long intervalNs = frameTimeNs - mPrevFrameTimeNs;
+                mMetrics[METRIC_INTERVAL].record(intervalNs);
+                if (intervalNs * 2 > mRefreshPeriodNs * 3) {
+                    mJankFrames++;
+                    mMissedVsyncs += (intervalNs + mRefreshPeriodNs / 2) / mRefreshPeriodNs - 1;
+                }
+            }
+        }
+        mPrevFrameTimeNs = frameTimeNs;
+        mStageStartNs = nowNs;
+    }
+
+    /**
+     * Records the time since beginFrame() or the previous stageDone() against "stage".
+     */
+    public void stageDone(int stage) {
+        long nowNs = System.nanoTime();
+        synchronized (this) {
+            mMetrics[stage].record(nowNs - mStageStartNs);
+        }
+        mStageStartNs = nowNs;
+    }
+
+    /**
+     * Notes that the current frame was not drawn.
+     */
+    public synchronized void frameDropped() {
+        mDroppedFrames++;
+    }
+
+    /**
+     * Clears everything.  The next beginFrame() won't record an interval.
+     */
+    public synchronized void reset() {
+        for (LatencyHistogram metric : mMetrics) {
+            metric.reset();
+        }
+        mFrames = mDroppedFrames = mJankFrames = mMissedVsyncs = 0;
+        mPrevFrameTimeNs = 0;
+    }
+
+    /**
+     * Copies the current state into "out".
+     */
+    public synchronized void snapshot(Snapshot out) {
+        out.mName = mName;
+        out.mRefreshPeriodNs = mRefreshPeriodNs;
+        for (int i = 0; i < NUM_METRICS; i++) {
+            out.mMetrics[i].copyFrom(mMetrics[i]);
+        }
+        out.mFrames = mFrames;
+        out.mDroppedFrames = mDroppedFrames;
+        out.mJankFrames = mJankFrames;
+        out.mMissedVsyncs = mMissedVsyncs;
+    }
+
+    private static LatencyHistogram[] newMetrics() {
+        LatencyHistogram[] metrics = new LatencyHistogram[NUM_METRICS];
+        for (int i = 0; i < NUM_METRICS; i++) {
+            metrics[i] = new LatencyHistogram();
+        }
+        return metrics;
+    }
+
+    /**
+     * A copy of the statistics at some point in time.  Allocate one and reuse it.
+     */
+    public static class Snapshot {
+        private String mName;
+        private long mRefreshPeriodNs;
+        private final LatencyHistogram[] mMetrics = newMetrics();
+        private long mFrames;
+        private long mDroppedFrames;
+        private long mJankFrames;
+        private long mMissedVsyncs;
+
+        public long getFrames() {
+            return mFrames;
+        }
+
+        public long getDroppedFrames() {
+            return mDroppedFrames;
+        }
+
+        public long getJankFrames() {
+            return mJankFrames;
+        }
+
+        public long getMissedVsyncs() {
+            return mMissedVsyncs;
+        }
+
+        /**
+         * Returns the histogram for a stage or METRIC_INTERVAL.  Don't modify it.
+         */
+        public LatencyHistogram getMetric(int metric) {
+            return mMetrics[metric];
+        }
+
+        public long getCount(int metric) {
+            return mMetrics[metric].getCount();
+        }
+
+        public long getMaxNs(int metric) {
+            return mMetrics[metric].getMaxNs();
+        }
+
+        public long getMeanNs(int metric) {
+            return mMetrics[metric].getMeanNs();
+        }
+
+        public long getPercentileNs(int metric, double percentile) {
+            return mMetrics[metric].getPercentileNs(percentile);
+        }
+
+        /**
+         * Returns a one-line summary, for logging.
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(mName).append(": frames=").append(mFrames)
+                    .append(" dropped=").append(mDroppedFrames)
+                    .append(" jank=").append(mJankFrames)
+                    .append(" missedVsyncs=").append(mMissedVsyncs);
+            for (int i = 0; i < NUM_METRICS; i++) {
+                if (mMetrics[i].getCount() != 0) {
+                    sb.append("; ").append(METRIC_NAMES[i]).append(' ')
+                            .append(mMetrics[i].toSummaryString());
+                }
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Writes the snapshot as CSV: a "#" header line, one summary line per metric, then
+         * the non-empty histogram buckets (upper bound in microseconds, count).
+         */
+        public void writeTo(Writer writer) throws IOException {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+            writer.write("# " + mName + " " + format.format(new Date()) + " refresh_ns=" +
+                    mRefreshPeriodNs + " frames=" + mFrames + " dropped=" + mDroppedFrames +
+                    " jank=" + mJankFrames + " missed_vsyncs=" + mMissedVsyncs + "\n");
+            writer.write("metric,count,mean_ns,p50_ns,p90_ns,p99_ns,max_ns\n");
+            for (int i = 0; i < NUM_METRICS; i++) {
+                mMetrics[i].writeSummary(writer, METRIC_NAMES[i]);
+            }
+            for (int i = 0; i < NUM_METRICS; i++) {
+                mMetrics[i].writeBuckets(writer, METRIC_NAMES[i]);
+            }
+        }
+
+        /**
+         * Appends the snapshot to a file, so successive runs accumulate and can be compared.
+         */
+        public void appendTo(File file) throws IOException {
+            FileWriter writer = new FileWriter(file, true);
+            try {
+                writeTo(writer);
+            } finally {
+                writer.close();
+            }
+        }
+    }
+}
@@ -39,6 +39,9 @@ public abstract class GeneratedMovie implements Content {
 
     private static final int IFRAME_INTERVAL = 5;
 
+    private static final int EV_DRAIN = EventTrace.register(EventTrace.SUBSYS_ENCODER,
+            "GeneratedMovie drain eos=%d");
+
     // set by sub-class to indicate that the movie has been generated
     // TODO: remove this now?
     protected boolean mMovieReady = false;
@@ -171,7 +174,7 @@ public abstract class GeneratedMovie implements Content {
      * Calling this with endOfStream set should be done once, right before stopping the muxer.
      */
     protected void drainEncoder(boolean endOfStream) {
-        Log.d("MyLog", "drainEncoder GeneratedMovie");
+        EventTrace.record(EV_DRAIN, endOfStream ? 1 : 0, 0);
         final int TIMEOUT_USEC = 10000;
         if (VERBOSE) Log.d(TAG, "drainEncoder(" + endOfStream + ")");
 
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import com.android.grafika.gles.EglCore;
+
+/**
+ * A GL benchmark that can be driven by BenchmarkRunner.
+ * <p>
+ * All methods are called on the runner thread.  setUp() is called with an EGL context
+ * available but nothing current; the benchmark creates whatever surface it needs and makes
+ * it current.  runIteration() is then called for the warm-up iterations and the measured
+ * iterations, and tearDown() releases everything.
+ */
+public abstract class GlBenchmark {
+    protected final BenchmarkConfig mConfig;
+
+    protected GlBenchmark(BenchmarkConfig config) {
+        mConfig = config;
+    }
+
+    /**
+     * Creates the benchmark named by the config.
+     *
+     * @throws IllegalArgumentException if the name isn't recognized.
+     */
+    public static GlBenchmark create(BenchmarkConfig config) {
+        String name = config.getName();
+        if (ReadPixelsBenchmark.ISOLATED.equals(name)) {
+            return new ReadPixelsBenchmark(config, ReadPixelsBenchmark.MODE_ISOLATED);
+        } else if (ReadPixelsBenchmark.STREAMING.equals(name)) {
+            return new ReadPixelsBenchmark(config, ReadPixelsBenchmark.MODE_STREAMING);
+        } else if (ReadPixelsBenchmark.ASYNC.equals(name)) {
+            return new ReadPixelsBenchmark(config, ReadPixelsBenchmark.MODE_ASYNC);
+        } else if (TextureUploadBenchmark.CREATE.equals(name)) {
+            return new TextureUploadBenchmark(config, TextureUploadBenchmark.MODE_CREATE);
+        } else if (TextureUploadBenchmark.SUB_IMAGE.equals(name)) {
+            return new TextureUploadBenchmark(config, TextureUploadBenchmark.MODE_SUB_IMAGE);
+        } else if (TextureUploadBenchmark.PBO.equals(name)) {
+            return new TextureUploadBenchmark(config, TextureUploadBenchmark.MODE_PBO);
+        } else {
+            throw new IllegalArgumentException("unknown benchmark '" + name + "'");
+        }
+    }
+
+    public BenchmarkConfig getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * Returns true if the benchmark can't run without GLES 3.
+     */
+    public boolean requiresGles3() {
+        return false;
+    }
+
+    /**
+     * Prepares to run.
+     */
+    public abstract void setUp(EglCore eglCore);
+
+    /**
+     * Runs one iteration.
+     *
+     * @return The measured time for the iteration, in nanoseconds.
+     */
+    public abstract long runIteration(int iteration);
+
+    /**
+     * Adds benchmark-specific values, such as throughput, to the result.  Called after the
+     * last measured iteration, before tearDown().
+     */
+    public void addExtras(BenchmarkResult result) {}
+
+    /**
+     * Releases everything allocated by setUp().  Also called if setUp() or runIteration()
+     * threw, so it must cope with a partial setup.
+     */
+    public abstract void tearDown();
+}
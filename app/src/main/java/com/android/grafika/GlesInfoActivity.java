@@ -53,8 +53,21 @@ public class GlesInfoActivity extends Activity {
 
         mGlInfo = gatherGlInfo();
 
-        tv = (TextView) findViewById(R.id.glesInfo_text);
-        tv.setText(mGlInfo);
+        final TextView infoText = (TextView) findViewById(R.id.glesInfo_text);
+        infoText.setText(mGlInfo);
+
+        // What the rest of the app will assume, from the cached capability profile.  If it
+        // has to be probed, that happens in the background and the section shows up late.
+        DeviceProfile.fetch(this, new DeviceProfile.Callback() {
+            @Override
+            public void onProfileReady(DeviceProfile profile) {
+                if (isFinishing()) {
+                    return;
+                }
+                mGlInfo += "\n===== Capability Profile =====\n" + profile.toSummaryString();
+                infoText.setText(mGlInfo);
+            }
+        });
     }
 
     /**
@@ -19,11 +19,8 @@ package com.android.grafika;
 import android.opengl.GLES20;
 import android.opengl.Matrix;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
+import android.os.Process;
 import android.util.Log;
-import android.view.Choreographer;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
@@ -34,6 +31,9 @@ import android.widget.TextView;
 import android.app.Activity;
 import android.graphics.Rect;
 
+import java.io.File;
+import java.io.IOException;
+
 import com.android.grafika.gles.Drawable2d;
 import com.android.grafika.gles.EglCore;
 import com.android.grafika.gles.FlatShadedProgram;
@@ -43,8 +43,6 @@ import com.android.grafika.gles.Sprite2d;
 import com.android.grafika.gles.Texture2dProgram;
 import com.android.grafika.gles.WindowSurface;
 
-import java.lang.ref.WeakReference;
-
 
 /**
  * Exercises SurfaceHolder#setFixedSize().
@@ -59,8 +57,7 @@ import java.lang.ref.WeakReference;
  * <p>
  * TODO: examine effects on touch input
  */
-public class HardwareScalerActivity extends Activity implements SurfaceHolder.Callback,
-        Choreographer.FrameCallback {
+public class HardwareScalerActivity extends Activity implements SurfaceHolder.Callback {
     private static final String TAG = MainActivity.TAG;
 
     // [ This used to have "a few thoughts about app life cycle and SurfaceView".  These
@@ -87,7 +84,7 @@ public class HardwareScalerActivity extends Activity implements SurfaceHolder.Ca
     private boolean mFlatShadingChecked;
 
     // Rendering code runs on this thread.  The thread's life span is tied to the Surface.
-    private RenderThread mRenderThread;
+    private RenderLoop mRenderLoop;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -108,11 +105,12 @@ public class HardwareScalerActivity extends Activity implements SurfaceHolder.Ca
     protected void onPause() {
         super.onPause();
 
-        // If the callback was posted, remove it.  This stops the notifications.  Ideally we
-        // would send a message to the thread letting it know, so when it wakes up it can
-        // reset its notion of when the previous Choreographer event arrived.
-        Log.d(TAG, "onPause unhooking choreographer");
-        Choreographer.getInstance().removeFrameCallback(this);
+        // Stop the frame notifications.  The render loop's stats will show the gap as a long
+        // frame interval when we resume.
+        Log.d(TAG, "onPause pausing frames");
+        if (mRenderLoop != null) {
+            mRenderLoop.pauseFrames();
+        }
     }
 
     @Override
@@ -120,9 +118,9 @@ public class HardwareScalerActivity extends Activity implements SurfaceHolder.Ca
         super.onResume();
 
         // If we already have a Surface, we just need to resume the frame notifications.
-        if (mRenderThread != null) {
-            Log.d(TAG, "onResume re-hooking choreographer");
-            Choreographer.getInstance().postFrameCallback(this);
+        if (mRenderLoop != null) {
+            Log.d(TAG, "onResume resuming frames");
+            mRenderLoop.resumeFrames();
         }
     }
 
@@ -160,19 +158,17 @@ public class HardwareScalerActivity extends Activity implements SurfaceHolder.Ca
         updateControls();
 
         SurfaceView sv = (SurfaceView) findViewById(R.id.hardwareScaler_surfaceView);
-        mRenderThread = new RenderThread(sv.getHolder());
-        mRenderThread.setName("HardwareScaler GL render");
-        mRenderThread.start();
-        mRenderThread.waitUntilReady();
-
-        RenderHandler rh = mRenderThread.getHandler();
-        if (rh != null) {
-            rh.sendSetFlatShading(mFlatShadingChecked);
-            rh.sendSurfaceCreated();
-        }
+        mRenderLoop = new RenderLoop("HardwareScaler GL render",
+                Process.THREAD_PRIORITY_DISPLAY, new Renderer(sv.getHolder(),
+                        MiscUtils.getDisplayRefreshNsec(this),
+                        new File(getFilesDir(), FrameStats.EXPORT_FILE_NAME)));
+        mRenderLoop.start();
+
+        mRenderLoop.postLatest(Renderer.SLOT_FLAT_SHADING, mFlatShadingChecked ? 1 : 0, 0, null);
+        mRenderLoop.post(Renderer.CMD_SURFACE_CREATED, 0, 0, null);
 
         // start the draw events
-        Choreographer.getInstance().postFrameCallback(this);
+        mRenderLoop.resumeFrames();
     }
 
     @Override
@@ -180,10 +176,8 @@ public class HardwareScalerActivity extends Activity implements SurfaceHolder.Ca
         Log.d(TAG, "surfaceChanged fmt=" + format + " size=" + width + "x" + height +
                 " holder=" + holder);
 
-        RenderHandler rh = mRenderThread.getHandler();
-        if (rh != null) {
-            rh.sendSurfaceChanged(format, width, height);
-        }
+        // ignore format
+        mRenderLoop.postLatest(Renderer.SLOT_SURFACE_CHANGED, width, height, null);
     }
 
     @Override
@@ -194,36 +188,12 @@ public class HardwareScalerActivity extends Activity implements SurfaceHolder.Ca
         // don't want the Surface to disappear out from under it mid-render.  The frame
         // notifications will have been stopped back in onPause(), but there might have
         // been one in progress.
-
-        RenderHandler rh = mRenderThread.getHandler();
-        if (rh != null) {
-            rh.sendShutdown();
-            try {
-                mRenderThread.join();
-            } catch (InterruptedException ie) {
-                // not expected
-                throw new RuntimeException("join was interrupted", ie);
-            }
-        }
-        mRenderThread = null;
+        mRenderLoop.stop();
+        mRenderLoop = null;
 
         Log.d(TAG, "surfaceDestroyed complete");
     }
 
-    /*
-     * Choreographer callback, called near vsync.
-     *
-     * @see android.view.Choreographer.FrameCallback#doFrame(long)
-     */
-    @Override
-    public void doFrame(long frameTimeNanos) {
-        RenderHandler rh = mRenderThread.getHandler();
-        if (rh != null) {
-            Choreographer.getInstance().postFrameCallback(this);
-            rh.sendDoFrame(frameTimeNanos);
-        }
-    }
-
     /**
      * onClick handler for radio buttons.
      */
@@ -268,9 +238,9 @@ public class HardwareScalerActivity extends Activity implements SurfaceHolder.Ca
         CheckBox cb = (CheckBox) findViewById(R.id.flatShading_checkbox);
         mFlatShadingChecked = cb.isChecked();
 
-        RenderHandler rh = mRenderThread.getHandler();
-        if (rh != null) {
-            rh.sendSetFlatShading(mFlatShadingChecked);
+        if (mRenderLoop != null) {
+            mRenderLoop.postLatest(Renderer.SLOT_FLAT_SHADING, mFlatShadingChecked ? 1 : 0, 0,
+                    null);
         }
     }
 
@@ -302,23 +272,20 @@ public class HardwareScalerActivity extends Activity implements SurfaceHolder.Ca
     }
 
     /**
-     * This class handles all OpenGL rendering.
+     * This class handles all OpenGL rendering.  It runs on a RenderLoop thread.
      * <p>
      * We use Choreographer to coordinate with the device vsync.  We deliver one frame
      * per vsync.  We can't actually know when the frame we render will be drawn, but at
      * least we get a consistent frame interval.
      * <p>
-     * Start the render thread after the Surface has been created.
+     * Start the render loop after the Surface has been created.
      */
-    private static class RenderThread extends Thread {
-        // Object must be created on render thread to get correct Looper, but is used from
-        // UI thread, so we need to declare it volatile to ensure the UI thread sees a fully
-        // constructed object.
-        private volatile RenderHandler mHandler;
-
-        // Used to wait for the thread to start.
-        private Object mStartLock = new Object();
-        private boolean mReady = false;
+    private static class Renderer implements RenderLoop.Callback {
+        // Commands.  Surface size and shading mode only care about the most recent value,
+        // so those are coalesced.
+        public static final int SLOT_FLAT_SHADING = 0;
+        public static final int SLOT_SURFACE_CHANGED = 1;
+        public static final int CMD_SURFACE_CREATED = RenderLoop.MAX_LATEST_SLOTS;
 
         private volatile SurfaceHolder mSurfaceHolder;  // contents may be updated by UI thread
         private EglCore mEglCore;
@@ -347,12 +314,19 @@ public class HardwareScalerActivity extends Activity implements SurfaceHolder.Ca
         // Previous frame time.
         private long mPrevTimeNanos;
 
+        // Frame timing, logged and appended to mStatsFile when the loop stops.
+        private final FrameStats mFrameStats;
+        private final FrameStats.Snapshot mStatsSnapshot = new FrameStats.Snapshot();
+        private final File mStatsFile;
+
 
         /**
          * Pass in the SurfaceView's SurfaceHolder.  Note the Surface may not yet exist.
          */
-        public RenderThread(SurfaceHolder holder) {
+        public Renderer(SurfaceHolder holder, long refreshPeriodNs, File statsFile) {
             mSurfaceHolder = holder;
+            mFrameStats = new FrameStats("HardwareScaler", refreshPeriodNs);
+            mStatsFile = statsFile;
 
             mIdentityMatrix = new float[16];
             Matrix.setIdentityM(mIdentityMatrix, 0);
@@ -365,62 +339,45 @@ public class HardwareScalerActivity extends Activity implements SurfaceHolder.Ca
             }
         }
 
-        /**
-         * Thread entry point.
-         * <p>
-         * The thread should not be started until the Surface associated with the SurfaceHolder
-         * has been created.  That way we don't have to wait for a separate "surface created"
-         * message to arrive.
-         */
         @Override
-        public void run() {
-            Looper.prepare();
-            mHandler = new RenderHandler(this);
+        public void onLoopStarted() {
             mEglCore = new EglCore(null, 0);
-            synchronized (mStartLock) {
-                mReady = true;
-                mStartLock.notify();    // signal waitUntilReady()
-            }
-
-            Looper.loop();
+        }
 
-            Log.d(TAG, "looper quit");
+        @Override
+        public void onLoopStopped() {
             releaseGl();
             mEglCore.release();
 
-            synchronized (mStartLock) {
-                mReady = false;
+            mFrameStats.snapshot(mStatsSnapshot);
+            Log.d(TAG, mStatsSnapshot.toString());
+            try {
+                mStatsSnapshot.appendTo(mStatsFile);
+            } catch (IOException ioe) {
+                Log.w(TAG, "Unable to write " + mStatsFile, ioe);
             }
         }
 
-        /**
-         * Waits until the render thread is ready to receive messages.
-         * <p>
-         * Call from the UI thread.
-         */
-        public void waitUntilReady() {
-            synchronized (mStartLock) {
-                while (!mReady) {
-                    try {
-                        mStartLock.wait();
-                    } catch (InterruptedException ie) { /* not expected */ }
-                }
+        @Override
+        public void onCommand(int what, int arg1, int arg2, Object obj) {
+            switch (what) {
+                case CMD_SURFACE_CREATED:
+                    surfaceCreated();
+                    break;
+                case SLOT_SURFACE_CHANGED:
+                    surfaceChanged(arg1, arg2);
+                    break;
+                case SLOT_FLAT_SHADING:
+                    setFlatShading(arg1 != 0);
+                    break;
+                default:
+                    throw new RuntimeException("unknown command " + what);
             }
         }
 
-        /**
-         * Shuts everything down.
-         */
-        private void shutdown() {
-            Log.d(TAG, "shutdown");
-            Looper.myLooper().quit();
-        }
-
-        /**
-         * Returns the render thread's Handler.  This may be called from any thread.
-         */
-        public RenderHandler getHandler() {
-            return mHandler;
+        @Override
+        public void onFrame(long frameTimeNanos, int missedFrames) {
+            doFrame(frameTimeNanos);
         }
 
         /**
@@ -460,7 +417,7 @@ public class HardwareScalerActivity extends Activity implements SurfaceHolder.Ca
         /**
          * Handles changes to the size of the underlying surface.  Adjusts viewport as needed.
          * Must be called before we start drawing.
-         * (Called from RenderHandler.)
+         * (Called from onCommand().)
          */
         private void surfaceChanged(int width, int height) {
             // This method is called when the surface is first created, and shortly after the
@@ -580,17 +537,22 @@ public class HardwareScalerActivity extends Activity implements SurfaceHolder.Ca
             // by recording at ~30fps instead of the display refresh rate.  As a quick hack
             // we just record every-other frame, using a "recorded previous" flag.
 
+            mFrameStats.beginFrame(timeStampNanos);
             update(timeStampNanos);
+            mFrameStats.stageDone(FrameStats.STAGE_UPDATE);
 
             long diff = (System.nanoTime() - timeStampNanos) / 1000000;
             if (diff > 15) {
                 // too much, drop a frame
                 Log.d(TAG, "diff is " + diff + ", skipping render");
+                mFrameStats.frameDropped();
                 return;
             }
 
             draw();
+            mFrameStats.stageDone(FrameStats.STAGE_DRAW);
             mWindowSurface.swapBuffers();
+            mFrameStats.stageDone(FrameStats.STAGE_SWAP);
         }
 
         /**
@@ -653,7 +615,7 @@ public class HardwareScalerActivity extends Activity implements SurfaceHolder.Ca
          * Draws the scene.
          */
         private void draw() {
-            GlUtil.checkGlError("draw start");
+            if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("draw start");
 
             // Clear to a non-black color to make the content easily differentiable from
             // the pillar-/letter-boxing.
@@ -676,114 +638,7 @@ public class HardwareScalerActivity extends Activity implements SurfaceHolder.Ca
                 mEdges[i].draw(mFlatProgram, mDisplayProjectionMatrix);
             }
 
-            GlUtil.checkGlError("draw done");
-        }
-    }
-
-
-    /**
-     * Handler for RenderThread.  Used for messages sent from the UI thread to the render thread.
-     * <p>
-     * The object is created on the render thread, and the various "send" methods are called
-     * from the UI thread.
-     */
-    private static class RenderHandler extends Handler {
-        private static final int MSG_SURFACE_CREATED = 0;
-        private static final int MSG_SURFACE_CHANGED = 1;
-        private static final int MSG_DO_FRAME = 2;
-        private static final int MSG_FLAT_SHADING = 3;
-        private static final int MSG_SHUTDOWN = 5;
-
-        // This shouldn't need to be a weak ref, since we'll go away when the Looper quits,
-        // but no real harm in it.
-        private WeakReference<RenderThread> mWeakRenderThread;
-
-        /**
-         * Call from render thread.
-         */
-        public RenderHandler(RenderThread rt) {
-            mWeakRenderThread = new WeakReference<RenderThread>(rt);
-        }
-
-        /**
-         * Sends the "surface created" message.
-         * <p>
-         * Call from UI thread.
-         */
-        public void sendSurfaceCreated() {
-            sendMessage(obtainMessage(MSG_SURFACE_CREATED));
-        }
-
-        /**
-         * Sends the "surface changed" message, forwarding what we got from the SurfaceHolder.
-         * <p>
-         * Call from UI thread.
-         */
-        public void sendSurfaceChanged(@SuppressWarnings("unused") int format, int width,
-                int height) {
-            // ignore format
-            sendMessage(obtainMessage(MSG_SURFACE_CHANGED, width, height));
-        }
-
-        /**
-         * Sends the "do frame" message, forwarding the Choreographer event.
-         * <p>
-         * Call from UI thread.
-         */
-        public void sendDoFrame(long frameTimeNanos) {
-            sendMessage(obtainMessage(MSG_DO_FRAME,
-                    (int) (frameTimeNanos >> 32), (int) frameTimeNanos));
-        }
-
-        /**
-         * Sends a new value for the "flat shaded" boolean.
-         */
-        public void sendSetFlatShading(boolean useFlatShading) {
-            // ignore format
-            sendMessage(obtainMessage(MSG_FLAT_SHADING, useFlatShading ? 1:0, 0));
-        }
-
-        /**
-         * Sends the "shutdown" message, which tells the render thread to halt.
-         * <p>
-         * Call from UI thread.
-         */
-        public void sendShutdown() {
-            sendMessage(obtainMessage(RenderHandler.MSG_SHUTDOWN));
-        }
-
-        @Override  // runs on RenderThread
-        public void handleMessage(Message msg) {
-            int what = msg.what;
-            //Log.d(TAG, "RenderHandler [" + this + "]: what=" + what);
-
-            RenderThread renderThread = mWeakRenderThread.get();
-            if (renderThread == null) {
-                Log.w(TAG, "RenderHandler.handleMessage: weak ref is null");
-                return;
-            }
-
-            switch (what) {
-                case MSG_SURFACE_CREATED:
-                    renderThread.surfaceCreated();
-                    break;
-                case MSG_SURFACE_CHANGED:
-                    renderThread.surfaceChanged(msg.arg1, msg.arg2);
-                    break;
-                case MSG_DO_FRAME:
-                    long timestamp = (((long) msg.arg1) << 32) |
-                                     (((long) msg.arg2) & 0xffffffffL);
-                    renderThread.doFrame(timestamp);
-                    break;
-                case MSG_FLAT_SHADING:
-                    renderThread.setFlatShading(msg.arg1 != 0);
-                    break;
-                case MSG_SHUTDOWN:
-                    renderThread.shutdown();
-                    break;
-               default:
-                    throw new RuntimeException("unknown message " + what);
-            }
+            if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("draw done");
         }
     }
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Fixed-size log-linear histogram of durations.
+ * <p>
+ * Values are kept in microseconds.  Below 8us each value gets its own bucket; above that,
+ * each power of two is split into 8 linear buckets, so any value is known to within 12.5%,
+ * out to about 16 seconds.  Recording doesn't allocate.
+ * <p>
+ * Not thread-safe; callers provide their own locking.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 24;            // 2^24 us = ~16.7 sec
+    static final int NUM_BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final long[] mBuckets = new long[NUM_BUCKETS];
+    private long mCount;
+    private long mSumNs;
+    private long mMaxNs;
+
+    /**
+     * Adds a value.  Negative values are recorded as zero.
+     */
+    public void record(long valueNs) {
+        if (valueNs < 0) {
+            valueNs = 0;
+        }
+        mBuckets[bucketIndex(valueNs / 1000)]++;
+        mCount++;
+        mSumNs += valueNs;
+        if (valueNs > mMaxNs) {
+            mMaxNs = valueNs;
+        }
+    }
+
+    public void reset() {
+        Arrays.fill(mBuckets, 0);
+        mCount = mSumNs = mMaxNs = 0;
+    }
+
+    /**
+     * Makes this histogram a copy of "src".
+     */
+    public void copyFrom(LatencyHistogram src) {
+        System.arraycopy(src.mBuckets, 0, mBuckets, 0, NUM_BUCKETS);
+        mCount = src.mCount;
+        mSumNs = src.mSumNs;
+        mMaxNs = src.mMaxNs;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getMaxNs() {
+        return mMaxNs;
+    }
+
+    public long getMeanNs() {
+        return mCount == 0 ? 0 : mSumNs / mCount;
+    }
+
+    /**
+     * Returns the value below which "percentile" percent of the samples fall, to within
+     * the bucket resolution.  This is the midpoint of the bucket holding that sample,
+     * limited to the maximum seen.
+     */
+    public long getPercentileNs(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100.0 * mCount);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += mBuckets[i];
+            if (seen >= rank) {
+                long lowUs = (i == 0) ? 0 : bucketLimit(i - 1);
+                long midNs = (lowUs + bucketLimit(i)) * 500;
+                return Math.min(midNs, mMaxNs);
+            }
+        }
+        return mMaxNs;
+    }
+
+    /**
+     * Returns "p50=... p90=... p99=... max=... ms", for logging.
+     */
+    public String toSummaryString() {
+        return String.format(Locale.US, "p50=%.2f p90=%.2f p99=%.2f max=%.2f ms",
+                getPercentileNs(50) / 1e6, getPercentileNs(90) / 1e6,
+                getPercentileNs(99) / 1e6, mMaxNs / 1e6);
+    }
+
+    /**
+     * Writes "label,count,mean_ns,p50_ns,p90_ns,p99_ns,max_ns".
+     */
+    public void writeSummary(Writer writer, String label) throws IOException {
+        writer.write(label + "," + mCount + "," + getMeanNs() + "," + getPercentileNs(50) +
+                "," + getPercentileNs(90) + "," + getPercentileNs(99) + "," + mMaxNs + "\n");
+    }
+
+    /**
+     * Writes one "hist,label,upper_bound_us,count" line for each non-empty bucket.
+     */
+    public void writeBuckets(Writer writer, String label) throws IOException {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            if (mBuckets[i] != 0) {
+                writer.write("hist," + label + "," + bucketLimit(i) + "," + mBuckets[i] + "\n");
+            }
+        }
+    }
+
+    /**
+     * Returns the bucket for a value in microseconds.
+     */
+    static int bucketIndex(long us) {
+        if (us < SUB_BUCKETS) {
+            return (int) us;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(us);
+        if (exponent > MAX_EXPONENT) {
+            return NUM_BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BITS;
+        int sub = (int) (us >> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the upper bound (exclusive) of a bucket, in microseconds.
+     */
+    static long bucketLimit(int index) {
+        if (index < SUB_BUCKETS) {
+            return index + 1;
+        }
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub + 1) << shift;
+    }
+}
@@ -19,6 +19,7 @@ package com.android.grafika;
 import android.os.Bundle;
 import android.app.ListActivity;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -26,6 +27,9 @@ import android.view.View;
 import android.widget.ListView;
 import android.widget.SimpleAdapter;
 
+import com.android.grafika.gles.DirectBufferPool;
+import com.android.grafika.gles.GlValidation;
+
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -136,6 +140,19 @@ public class MainActivity extends ListActivity {
         // One-time singleton initialization; requires activity context to get file location.
         ContentManager.initialize(this);
 
+        // Load (or, on first launch, gather) the device capabilities in the background.
+        DeviceProfile.prefetch(this);
+
+        // Track direct buffer leaks in debuggable builds.
+        boolean debuggable = (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+        DirectBufferPool.getInstance().setLeakTracking(debuggable);
+
+        // Check every GL call in debuggable builds; release builds only sample the per-frame
+        // checks, because glGetError() can stall the pipeline.  Setup errors are always fatal.
+        if (!debuggable) {
+            GlValidation.setMode(GlValidation.MODE_SAMPLED, GlValidation.DEFAULT_SAMPLE_INTERVAL);
+        }
+
         setListAdapter(new SimpleAdapter(this, createActivityList(),
                 android.R.layout.two_line_list_item, new String[] { TITLE, DESCRIPTION },
                 new int[] { android.R.id.text1, android.R.id.text2 } ));
@@ -174,6 +191,13 @@ public class MainActivity extends ListActivity {
         return testList;
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // The pool's free buffers are only a cache.
+        DirectBufferPool.getInstance().trim();
+    }
+
     @Override
     protected void onListItemClick(ListView listView, View view, int position, long id) {
         Map<String, Object> map = (Map<String, Object>)listView.getItemAtPosition(position);
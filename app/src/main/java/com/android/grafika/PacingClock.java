@@ -0,0 +1,50 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+/**
+ * Source of time for the frame pacing code (FramePacer, PlaybackTimer, VsyncDeadline).
+ * <p>
+ * The app uses SYSTEM.  The pacing simulator in the benchmark module substitutes a
+ * simulated clock, so the same decisions can be replayed against recorded or synthetic
+ * vsync traces without a device.
+ */
+public interface PacingClock {
+    /**
+     * Returns the current time on the System.nanoTime() timebase, which is also the
+     * timebase of Choreographer frame times.
+     */
+    long nanoTime();
+
+    /**
+     * Sleeps for approximately the given number of nanoseconds.
+     */
+    void sleepNanos(long nanos) throws InterruptedException;
+
+    /** The real clock. */
+    PacingClock SYSTEM = new PacingClock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleepNanos(long nanos) throws InterruptedException {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        }
+    };
+}
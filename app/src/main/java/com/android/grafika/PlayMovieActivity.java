@@ -166,6 +166,7 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
             if (((CheckBox) findViewById(R.id.locked60fps_checkbox)).isChecked()) {
                 // TODO: consider changing this to be "free running" mode
                 callback.setFixedPlaybackRate(60);
+                callback.setDisplayRefreshNsec(MiscUtils.getDisplayRefreshNsec(this));
             }
             SurfaceTexture st = mTextureView.getSurfaceTexture();
             Surface surface = new Surface(st);
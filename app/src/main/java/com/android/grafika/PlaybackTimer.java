@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+/**
+ * The timing half of SpeedControlCallback: decides how long to wait before each video frame
+ * is released, and waits.
+ * <p>
+ * Time comes from a PacingClock, so the pacing simulator can drive this on the JVM.  There
+ * are no Android dependencies; warnings go to onWarning(), which subclasses can route to
+ * the log.
+ */
+public class PlaybackTimer {
+    private static final long ONE_MILLION = 1000000L;
+
+    private final PacingClock mClock;
+
+    private long mPrevPresentUsec;
+    private long mPrevMonoUsec;
+    private long mFixedFrameDurationUsec;
+    private FrameCadence mCadence;
+    private long mFrameIndex;
+    private boolean mLoopReset;
+    private boolean mCheckSleepTime;
+
+    public PlaybackTimer(PacingClock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Sets a fixed frame duration, ignoring the presentation time stamps.  Zero restores
+     * PTS-based timing.
+     */
+    public void setFixedFrameDurationUsec(long durationUsec) {
+        mFixedFrameDurationUsec = durationUsec;
+    }
+
+    /**
+     * Sets a cadence to take frame durations from, ignoring the presentation time stamps.
+     * Takes precedence over setFixedFrameDurationUsec().  Pass null to clear.
+     */
+    public void setCadence(FrameCadence cadence) {
+        mCadence = cadence;
+        mFrameIndex = 0;
+    }
+
+    /**
+     * If enabled, every sleep is measured and reported to onSleepChecked().
+     */
+    public void setCheckSleepTime(boolean check) {
+        mCheckSleepTime = check;
+    }
+
+    /**
+     * Tells the timer the movie has looped, so the next time stamp will jump backward.
+     */
+    public void loopReset() {
+        mLoopReset = true;
+    }
+
+    /**
+     * Waits until it's time to release the frame with the given presentation time.
+     */
+    public void waitForFrame(long presentationTimeUsec) {
+        // For the first frame, we grab the presentation time from the video
+        // and the current monotonic clock time.  For subsequent frames, we
+        // sleep for a bit to try to ensure that we're rendering frames at the
+        // pace dictated by the video stream.
+        //
+        // If the frame rate is faster than vsync we should be dropping frames.  On
+        // Android 4.4 this may not be happening.
+
+        if (mPrevMonoUsec == 0) {
+            // Latch current values, then return immediately.
+            mPrevMonoUsec = mClock.nanoTime() / 1000;
+            mPrevPresentUsec = presentationTimeUsec;
+            return;
+        }
+
+        // Compute the desired time delta between the previous frame and this frame.
+        long frameDelta;
+        if (mLoopReset) {
+            // We don't get an indication of how long the last frame should appear
+            // on-screen, so we just throw a reasonable value in.  We could probably
+            // do better by using a previous frame duration or some sort of average;
+            // for now we just use 30fps.
+            mPrevPresentUsec = presentationTimeUsec - ONE_MILLION / 30;
+            mLoopReset = false;
+        }
+        if (mCadence != null) {
+            // Fixed frame rate, held for whole refreshes.  A hold of zero means the
+            // content is faster than the display, and this frame won't be seen anyway.
+            frameDelta = mCadence.getFrameDurationNs(mFrameIndex++) / 1000;
+        } else if (mFixedFrameDurationUsec != 0) {
+            // Caller requested a fixed frame rate.  Ignore PTS.
+            frameDelta = mFixedFrameDurationUsec;
+        } else {
+            frameDelta = presentationTimeUsec - mPrevPresentUsec;
+        }
+        if (frameDelta < 0) {
+            onWarning("Weird, video times went backward");
+            frameDelta = 0;
+        } else if (frameDelta == 0 && mCadence == null) {
+            // This suggests a possible bug in movie generation.
+            onWarning("Warning: current frame and previous frame had same timestamp");
+        } else if (frameDelta > 10 * ONE_MILLION) {
+            // Inter-frame times could be arbitrarily long.  For this player, we want
+            // to alert the developer that their movie might have issues (maybe they
+            // accidentally output timestamps in nsec rather than usec).
+            onWarning("Inter-frame pause was " + (frameDelta / ONE_MILLION) +
+                    "sec, capping at 5 sec");
+            frameDelta = 5 * ONE_MILLION;
+        }
+
+        long desiredUsec = mPrevMonoUsec + frameDelta;  // when we want to wake up
+        long nowUsec = mClock.nanoTime() / 1000;
+        while (nowUsec < (desiredUsec - 100) /*&& mState == RUNNING*/) {
+            // Sleep until it's time to wake up.  To be responsive to "stop" commands
+            // we're going to wake up every half a second even if the sleep is supposed
+            // to be longer (which should be rare).  The alternative would be
+            // to interrupt the thread, but that requires more work.
+            //
+            // The precision of the sleep call varies widely from one device to another;
+            // we may wake early or late.  Different devices will have a minimum possible
+            // sleep time. If we're within 100us of the target time, we'll probably
+            // overshoot if we try to sleep, so just go ahead and continue on.
+            long sleepTimeUsec = desiredUsec - nowUsec;
+            if (sleepTimeUsec > 500000) {
+                sleepTimeUsec = 500000;
+            }
+            try {
+                if (mCheckSleepTime) {
+                    long startNsec = mClock.nanoTime();
+                    mClock.sleepNanos(sleepTimeUsec * 1000);
+                    long actualSleepNsec = mClock.nanoTime() - startNsec;
+                    onSleepChecked(sleepTimeUsec, actualSleepNsec / 1000);
+                } else {
+                    mClock.sleepNanos(sleepTimeUsec * 1000);
+                }
+            } catch (InterruptedException ie) {}
+            nowUsec = mClock.nanoTime() / 1000;
+        }
+
+        // Advance times using calculated time values, not the post-sleep monotonic
+        // clock time, to avoid drifting.
+        mPrevMonoUsec += frameDelta;
+        mPrevPresentUsec += frameDelta;
+    }
+
+    /**
+     * Called for questionable time stamps.  The default implementation does nothing.
+     */
+    protected void onWarning(String msg) {}
+
+    /**
+     * Called after each sleep if setCheckSleepTime() is enabled.  The default implementation
+     * does nothing.
+     */
+    protected void onSleepChecked(long requestedUsec, long actualUsec) {}
+}
@@ -16,11 +16,7 @@
 
 package com.android.grafika;
 
-import android.opengl.GLES20;
-import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.Environment;
-import android.os.Process;
 import android.util.Log;
 import android.view.View;
 import android.widget.ProgressBar;
@@ -30,13 +26,8 @@ import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.res.Resources;
 
-import com.android.grafika.gles.EglCore;
-import com.android.grafika.gles.OffscreenSurface;
-
-import java.io.File;
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
@@ -47,9 +38,10 @@ public class ReadPixelsActivity extends Activity {
 
     private static final int WIDTH = 1280;
     private static final int HEIGHT = 720;
+    private static final int WARMUP_ITERATIONS = 10;
     private static final int ITERATIONS = 100;
 
-    private volatile boolean mIsCanceled;
+    private BenchmarkRunner mRunner;
 
 
     @Override
@@ -79,8 +71,10 @@ public class ReadPixelsActivity extends Activity {
                 new DialogInterface.OnClickListener() {
             @Override
             public void onClick(DialogInterface dialog, int which) {
-                mIsCanceled = true;
-                // let the async task handle dismiss the dialog
+                if (mRunner != null) {
+                    mRunner.cancel();
+                }
+                // let the results callback dismiss the dialog
             }
         });
         return builder.show();
@@ -94,156 +88,90 @@ public class ReadPixelsActivity extends Activity {
         Resources res = getResources();
         String running = res.getString(R.string.state_running);
         setMessage(R.id.gfxResult_text, running);
-
-        AlertDialog dialog = showProgressDialog();
-        ReadPixelsTask task = new ReadPixelsTask(dialog, R.id.gfxResult_text,
-                WIDTH, HEIGHT, ITERATIONS);
-        mIsCanceled = false;
-        task.execute();
+        runBenchmarks(R.id.gfxResult_text, ReadPixelsBenchmark.ISOLATED);
     }
 
     /**
-     * AsyncTask class that executes the test.
+     * onClick handler for the sync-vs-async comparison button.
+     * <p>
+     * We render and read back a sequence of frames twice, once with a blocking glReadPixels()
+     * and once through an AsyncPixelReader, and report the throughput and latency of each.
      */
-    private class ReadPixelsTask extends AsyncTask<Void, Integer, Long> {
-        private int mWidth;
-        private int mHeight;
-        private int mIterations;
-        private int mResultTextId;
-        private AlertDialog mDialog;
-
-        private ProgressBar mProgressBar;
-
-        /**
-         * Prepare for the glReadPixels test.
-         */
-        public ReadPixelsTask(AlertDialog dialog, int resultTextId,
-                int width, int height, int iterations) {
-            mDialog = dialog;
-            mResultTextId = resultTextId;
-            mWidth = width;
-            mHeight = height;
-            mIterations = iterations;
-
-            mProgressBar = (ProgressBar) dialog.findViewById(R.id.work_progress);
-            mProgressBar.setMax(mIterations);
-        }
+    public void clickRunAsyncTest(@SuppressWarnings("unused") View unused) {
+        Resources res = getResources();
+        String running = res.getString(R.string.state_running);
+        setMessage(R.id.asyncResult_text, running);
+        runBenchmarks(R.id.asyncResult_text, ReadPixelsBenchmark.STREAMING,
+                ReadPixelsBenchmark.ASYNC);
+    }
 
-        @Override
-        protected Long doInBackground(Void... params) {
-            long result = -1;
-            EglCore eglCore = null;
-            OffscreenSurface surface = null;
-
-            // TODO: this should not use AsyncTask.  The AsyncTask worker thread is run at
-            // a lower priority, making it unsuitable for benchmarks.  We can counteract
-            // it in the current implementation, but this is not guaranteed to work in
-            // future releases.
-            Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
-
-            try {
-                eglCore = new EglCore(null, 0);
-                surface = new OffscreenSurface(eglCore, mWidth, mHeight);
-                Log.d(TAG, "Buffer size " + mWidth + "x" + mHeight);
-                result = runGfxTest(surface);
-            } finally {
-                if (surface != null) {
-                    surface.release();
-                }
-                if (eglCore != null) {
-                    eglCore.release();
-                }
-            }
-            return result < 0 ? result : result / mIterations;
+    /**
+     * Runs the named benchmarks on a BenchmarkRunner, with a progress dialog up, and
+     * reports the results in the specified text field.
+     */
+    private void runBenchmarks(final int resultTextId, String... names) {
+        List<GlBenchmark> benchmarks = new ArrayList<GlBenchmark>(names.length);
+        for (String name : names) {
+            benchmarks.add(GlBenchmark.create(new BenchmarkConfig(name, WIDTH, HEIGHT,
+                    BenchmarkConfig.FORMAT_RGBA, WARMUP_ITERATIONS, ITERATIONS)));
         }
+        final int perBenchmark = WARMUP_ITERATIONS + ITERATIONS;
 
-        @Override
-        protected void onProgressUpdate(Integer... progress) {
-            mProgressBar.setProgress(progress[0]);
-        }
+        final AlertDialog dialog = showProgressDialog();
+        final ProgressBar progressBar = (ProgressBar) dialog.findViewById(R.id.work_progress);
+        progressBar.setMax(perBenchmark * names.length);
 
-        @Override
-        protected void onPostExecute(Long result) {
-            Log.d(TAG, "onPostExecute result=" + result);
-            mDialog.dismiss();
-            mDialog = null;
-
-            Resources res = getResources();
-            if (result < 0) {
-                setMessage(mResultTextId, res.getString(R.string.did_not_complete));
-            } else {
-                setMessage(mResultTextId, (result / 1000) +
-                        res.getString(R.string.usec_per_iteration));
+        mRunner = new BenchmarkRunner(benchmarks, new BenchmarkRunner.Listener() {
+            @Override
+            public void onBenchmarkProgress(final int index, final int done, int total) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        progressBar.setProgress(index * perBenchmark + done);
+                    }
+                });
             }
-        }
-
-        /**
-         * Does a simple bit of rendering and then reads the pixels back.
-         *
-         * @return total time spent on glReadPixels()
-         */
-        private long runGfxTest(OffscreenSurface eglSurface) {
-            long totalTime = 0;
-
-            eglSurface.makeCurrent();
-
-            ByteBuffer pixelBuf = ByteBuffer.allocateDirect(mWidth * mHeight * 4);
-            pixelBuf.order(ByteOrder.LITTLE_ENDIAN);
-
-            Log.d(TAG, "Running...");
-            float colorMult = 1.0f / mIterations;
-            for (int i = 0; i < mIterations; i++) {
-                if (mIsCanceled) {
-                    Log.d(TAG, "Canceled!");
-                    totalTime = -2;
-                    break;
-                }
-                if ((i % (mIterations / 8)) == 0) {
-                    publishProgress(i);
-                }
 
-                // Clear the screen to a solid color, then add a rectangle.  Change the color
-                // each time.
-                float r = i * colorMult;
-                float g = 1.0f - r;
-                float b = (r + g) / 2.0f;
-                GLES20.glClearColor(r, g, b, 1.0f);
-                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-
-                GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
-                GLES20.glScissor(mWidth / 4, mHeight / 4, mWidth / 2, mHeight / 2);
-                GLES20.glClearColor(b, g, r, 1.0f);
-                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-                GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
-
-                // Try to ensure that rendering has finished.
-                GLES20.glFinish();
-                GLES20.glReadPixels(0, 0, 1, 1,
-                        GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixelBuf);
-
-                // Time individual extraction.  Ideally we'd be timing a bunch of these calls
-                // and measuring the aggregate time, but we want the isolated time, and if we
-                // just read the same buffer repeatedly we might get some sort of cache effect.
-                long startWhen = System.nanoTime();
-                GLES20.glReadPixels(0, 0, mWidth, mHeight,
-                        GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixelBuf);
-                totalTime += System.nanoTime() - startWhen;
+            @Override
+            public void onBenchmarksFinished(final List<BenchmarkResult> results) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        dialog.dismiss();
+                        mRunner = null;
+                        showResults(resultTextId, results);
+                    }
+                });
             }
-            Log.d(TAG, "done");
-
-            if (true) {
-                // save the last one off into a file
-                long startWhen = System.nanoTime();
-                try {
-                    eglSurface.saveFrame(new File(Environment.getExternalStorageDirectory(),
-                            "test.png"));
-                } catch (IOException ioe) {
-                    throw new RuntimeException(ioe);
-                }
-                Log.d(TAG, "Saved frame in " + ((System.nanoTime() - startWhen) / 1000000) + "ms");
+        });
+        mRunner.start();
+    }
+
+    /**
+     * Formats the results into the text field.
+     */
+    private void showResults(int resultTextId, List<BenchmarkResult> results) {
+        Resources res = getResources();
+        for (BenchmarkResult result : results) {
+            if (!result.isComplete()) {
+                Log.d(TAG, "did not complete: " + result);
+                setMessage(resultTextId, res.getString(R.string.did_not_complete));
+                return;
             }
+        }
 
-            return totalTime;
+        if (results.size() == 1) {
+            setMessage(resultTextId, ((long) results.get(0).getMeanNanos() / 1000) +
+                    res.getString(R.string.usec_per_iteration));
+        } else {
+            BenchmarkResult sync = results.get(0);
+            BenchmarkResult async = results.get(1);
+            setMessage(resultTextId, res.getString(R.string.asyncResult_format,
+                    (int) sync.getIterationsPerSec(),
+                    (long) sync.getMeanNanos() / 1000,
+                    (int) async.getIterationsPerSec(),
+                    (long) async.getMeanNanos() / 1000,
+                    (long) async.getExtra("latencyNs") / 1000));
         }
     }
 }
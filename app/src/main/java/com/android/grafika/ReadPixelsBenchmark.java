@@ -0,0 +1,197 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.android.grafika.gles.AsyncPixelReader;
+import com.android.grafika.gles.EglCore;
+import com.android.grafika.gles.OffscreenSurface;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * glReadPixels() speed tests.
+ * <p>
+ * Three modes:
+ * <ul>
+ * <li>ISOLATED: render, glFinish(), then time a full-frame glReadPixels().  This is the
+ *     cost of the copy alone.
+ * <li>STREAMING: render and read back without glFinish(), timing the read call.  This is how
+ *     long the render thread is held up when it reads every frame, since the read has to
+ *     wait for the rendering that precedes it.
+ * <li>ASYNC: as STREAMING, but through an AsyncPixelReader.  The extras report the latency
+ *     from issuing a read to having the pixels in hand.  Requires GLES 3.
+ * </ul>
+ * The "rgba" format reads GL_RGBA / GL_UNSIGNED_BYTE, which every implementation supports.
+ * Other formats are read as GL_RGB or GL_LUMINANCE, which only work if the implementation
+ * advertises them as its GL_IMPLEMENTATION_COLOR_READ_FORMAT; ASYNC is RGBA only.
+ */
+public class ReadPixelsBenchmark extends GlBenchmark {
+    private static final String TAG = MainActivity.TAG;
+
+    /** Benchmark names, for GlBenchmark#create(). */
+    public static final String ISOLATED = "readPixels";
+    public static final String STREAMING = "readPixelsStreaming";
+    public static final String ASYNC = "readPixelsAsync";
+
+    static final int MODE_ISOLATED = 0;
+    static final int MODE_STREAMING = 1;
+    static final int MODE_ASYNC = 2;
+
+    private static final int PBO_RING_SIZE = 3;
+
+    private final int mMode;
+    private OffscreenSurface mSurface;
+    private ByteBuffer mPixelBuf;
+    private AsyncPixelReader mReader;
+    private long mAsyncLatencyNanos;
+    private int mAsyncFrames;
+
+    ReadPixelsBenchmark(BenchmarkConfig config, int mode) {
+        super(config);
+        if (mode == MODE_ASYNC && config.getBytesPerPixel() != 4) {
+            throw new IllegalArgumentException("async readback is RGBA only");
+        }
+        mMode = mode;
+    }
+
+    @Override
+    public boolean requiresGles3() {
+        return mMode == MODE_ASYNC;
+    }
+
+    @Override
+    public void setUp(EglCore eglCore) {
+        int width = mConfig.getWidth();
+        int height = mConfig.getHeight();
+        mSurface = new OffscreenSurface(eglCore, width, height);
+        mSurface.makeCurrent();
+        GLES20.glPixelStorei(GLES20.GL_PACK_ALIGNMENT, 1);
+
+        mPixelBuf = ByteBuffer.allocateDirect(mConfig.getImageBytes());
+        mPixelBuf.order(ByteOrder.LITTLE_ENDIAN);
+        if (mMode == MODE_ASYNC) {
+            mReader = new AsyncPixelReader(width, height, PBO_RING_SIZE);
+            mAsyncLatencyNanos = 0;
+            mAsyncFrames = 0;
+        }
+        Log.d(TAG, "ReadPixelsBenchmark " + mConfig);
+    }
+
+    @Override
+    public long runIteration(int iteration) {
+        drawFrame((iteration % 64) / 64.0f);
+
+        int width = mConfig.getWidth();
+        int height = mConfig.getHeight();
+        long startNanos;
+        switch (mMode) {
+            case MODE_ISOLATED:
+                // Try to ensure that rendering has finished.
+                GLES20.glFinish();
+                GLES20.glReadPixels(0, 0, 1, 1,
+                        GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mPixelBuf);
+
+                // Time individual extraction.  Ideally we'd be timing a bunch of these calls
+                // and measuring the aggregate time, but we want the isolated time, and if we
+                // just read the same buffer repeatedly we might get some sort of cache effect.
+                mPixelBuf.clear();
+                startNanos = System.nanoTime();
+                GLES20.glReadPixels(0, 0, width, height,
+                        mConfig.getGlFormat(), GLES20.GL_UNSIGNED_BYTE, mPixelBuf);
+                return System.nanoTime() - startNanos;
+            case MODE_STREAMING:
+                mPixelBuf.clear();
+                startNanos = System.nanoTime();
+                GLES20.glReadPixels(0, 0, width, height,
+                        mConfig.getGlFormat(), GLES20.GL_UNSIGNED_BYTE, mPixelBuf);
+                return System.nanoTime() - startNanos;
+            case MODE_ASYNC:
+                startNanos = System.nanoTime();
+                ByteBuffer frame = mReader.readPixels(iteration);
+                long callNanos = System.nanoTime() - startNanos;
+                if (frame != null) {
+                    mAsyncLatencyNanos += mReader.getFrameLatencyNanos();
+                    mAsyncFrames++;
+                    mReader.recycle(frame);
+                }
+                return callNanos;
+            default:
+                throw new RuntimeException("bad mode " + mMode);
+        }
+    }
+
+    @Override
+    public void addExtras(BenchmarkResult result) {
+        result.putExtra("fps", result.getIterationsPerSec());
+        double meanSec = result.getMeanNanos() / 1e9;
+        if (meanSec > 0) {
+            result.putExtra("mbPerSec", mConfig.getImageBytes() / (1024.0 * 1024.0) / meanSec);
+        }
+        if (mMode == MODE_ASYNC) {
+            // 0 means the reader fell back to synchronous reads (pre-N).
+            result.putExtra("pbo", mReader.isAsync() ? 1 : 0);
+            // Collect the frames still in flight, so the latency covers every frame.
+            ByteBuffer frame;
+            while ((frame = mReader.finish()) != null) {
+                mAsyncLatencyNanos += mReader.getFrameLatencyNanos();
+                mAsyncFrames++;
+                mReader.recycle(frame);
+            }
+            if (mAsyncFrames != 0) {
+                result.putExtra("latencyNs", (double) mAsyncLatencyNanos / mAsyncFrames);
+            }
+            result.putExtra("stalls", mReader.getStallCount());
+            result.putExtra("reads", mReader.getReadCount());
+        }
+    }
+
+    @Override
+    public void tearDown() {
+        if (mReader != null) {
+            mReader.release();
+            mReader = null;
+        }
+        if (mSurface != null) {
+            mSurface.release();
+            mSurface = null;
+        }
+        mPixelBuf = null;
+    }
+
+    /**
+     * Clears the screen to a solid color, then adds a rectangle.  The colors are derived
+     * from the value passed in, which should be in [0,1].
+     */
+    private void drawFrame(float r) {
+        int width = mConfig.getWidth();
+        int height = mConfig.getHeight();
+        float g = 1.0f - r;
+        float b = (r + g) / 2.0f;
+        GLES20.glClearColor(r, g, b, 1.0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+
+        GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
+        GLES20.glScissor(width / 4, height / 4, width / 2, height / 2);
+        GLES20.glClearColor(b, g, r, 1.0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+    }
+}
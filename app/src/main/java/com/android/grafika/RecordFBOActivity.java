@@ -16,15 +16,15 @@
 
 package com.android.grafika;
 
+import android.content.SharedPreferences;
 import android.opengl.GLES20;
 import android.opengl.GLES30;
 import android.opengl.Matrix;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import android.util.Log;
-import android.view.Choreographer;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
@@ -38,15 +38,22 @@ import android.graphics.Rect;
 import com.android.grafika.gles.Drawable2d;
 import com.android.grafika.gles.EglCore;
 import com.android.grafika.gles.FlatShadedProgram;
+import com.android.grafika.gles.FrameDumpReader;
+import com.android.grafika.gles.FrameDumper;
 import com.android.grafika.gles.FullFrameRect;
 import com.android.grafika.gles.GlUtil;
+import com.android.grafika.gles.GpuTimer;
 import com.android.grafika.gles.Sprite2d;
 import com.android.grafika.gles.Texture2dProgram;
 import com.android.grafika.gles.WindowSurface;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
 
 /**
  * Demonstrates efficient display + recording of OpenGL rendering using an FBO.  This
@@ -61,7 +68,8 @@ import java.lang.ref.WeakReference;
  * thread receive the Choreographer events directly, but that appears to be creating
  * a permanent JNI global reference to the render thread object, preventing it from
  * being garbage collected (which, in turn, causes the Activity to be retained).  So
- * instead we receive the vsync on the UI thread and forward it.
+ * instead we receive the vsync on the UI thread and forward it; RenderLoop does that
+ * for us.
  * <p>
  * If the rendering is fairly simple, it may be more efficient to just render the scene
  * twice (i.e. configure for display, call draw(), configure for video, call draw()).  If
@@ -88,13 +96,24 @@ import java.lang.ref.WeakReference;
  * fully-constructed object.  The encoder object then "lives" in the encoder thread.  The main
  * thread doesn't need to talk to it directly, because all of the input goes through Surface.
  * <p>
+ * The "compare methods" button (or starting the activity with the boolean extra "benchmark")
+ * runs each recording method in turn with recording on, and picks the one that works best
+ * on this device; see RecordMethodBenchmark.  The choice is remembered, and used as the
+ * initial method the next time the activity starts.  The results table is shown on screen,
+ * logged, and appended to record-method-benchmark.txt in the app's files dir.  The
+ * benchmark records to the same file as the "start recording" button.
+ * <p>
+ * Starting the activity with the int extra "dumpFrames" captures that many displayed frames
+ * to fbo-frames.grfd in the app's files dir, using FrameDumper so the capture doesn't
+ * disturb the frame rate much.  When the render thread exits, the first frame is converted
+ * to fbo-frame0.png as a quick check; use FrameDumpReader to get at the rest.
+ * <p>
  * TODO: add another bouncing rect that uses decoded video as a texture.  Useful for
  * evaluating simultaneous video playback and recording.
  * <p>
  * TODO: show the MP4 file name somewhere in the UI so people can find it in the player
  */
-public class RecordFBOActivity extends Activity implements SurfaceHolder.Callback,
-        Choreographer.FrameCallback {
+public class RecordFBOActivity extends Activity implements SurfaceHolder.Callback {
     private static final String TAG = MainActivity.TAG;
 
     // See the (lengthy) notes at the top of HardwareScalerActivity for thoughts about
@@ -104,18 +123,37 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
     private static final int RECMETHOD_FBO = 1;
     private static final int RECMETHOD_BLIT_FRAMEBUFFER = 2;
 
+    /** Boolean extra; if set, compare the recording methods as soon as we're running. */
+    public static final String EXTRA_BENCHMARK = "benchmark";
+
+    /** Int extra; if nonzero, dump this many displayed frames to a file. */
+    public static final String EXTRA_DUMP_FRAMES = "dumpFrames";
+
+    // Preference holding the record method chosen by the most recent comparison.
+    private static final String PREF_RECORD_METHOD = "recordMethod";
+
     private boolean mRecordingEnabled = false;          // controls button state
     private boolean mBlitFramebufferAllowed = false;    // requires GLES3
     private int mSelectedRecordMethod;                  // current radio button
+    private boolean mBenchmarkRunning = false;          // comparing record methods
+    private boolean mBenchmarkPending;                  // start comparing once we have a surface
 
-    private RenderThread mRenderThread;
+    // Rendering code runs on this thread.  The thread's life span is tied to the Surface.
+    private RenderLoop mRenderLoop;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_record_fbo);
 
-        mSelectedRecordMethod = RECMETHOD_FBO;
+        mSelectedRecordMethod = getPreferences(MODE_PRIVATE).getInt(PREF_RECORD_METHOD,
+                RECMETHOD_FBO);
+        mBenchmarkPending = getIntent().getBooleanExtra(EXTRA_BENCHMARK, false);
+        // Enable the blit option up front if we expect to get GLES 3; the render thread
+        // reports the actual version once its context exists.  Don't wait for the profile
+        // if it isn't ready yet.
+        DeviceProfile profile = DeviceProfile.peek();
+        mBlitFramebufferAllowed = profile != null && profile.hasBlitFramebuffer();
         updateControls();
 
         SurfaceView sv = (SurfaceView) findViewById(R.id.fboActivity_surfaceView);
@@ -132,11 +170,12 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
         //       which is pretty boring since we're not outputting any frames (test this
         //       by blanking the screen with the power button).
 
-        // If the callback was posted, remove it.  This stops the notifications.  Ideally we
-        // would send a message to the thread letting it know, so when it wakes up it can
-        // reset its notion of when the previous Choreographer event arrived.
-        Log.d(TAG, "onPause unhooking choreographer");
-        Choreographer.getInstance().removeFrameCallback(this);
+        // Stop the frame notifications.  Ideally we would let the render thread know, so
+        // when it wakes up it can reset its notion of when the previous frame arrived.
+        Log.d(TAG, "onPause pausing frames");
+        if (mRenderLoop != null) {
+            mRenderLoop.pauseFrames();
+        }
     }
 
     @Override
@@ -144,9 +183,9 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
         super.onResume();
 
         // If we already have a Surface, we just need to resume the frame notifications.
-        if (mRenderThread != null) {
-            Log.d(TAG, "onResume re-hooking choreographer");
-            Choreographer.getInstance().postFrameCallback(this);
+        if (mRenderLoop != null) {
+            Log.d(TAG, "onResume resuming frames");
+            mRenderLoop.resumeFrames();
         }
 
         updateControls();
@@ -158,29 +197,28 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
 
         File outputFile = new File(getFilesDir(), "fbo-gl-recording.mp4");
         SurfaceView sv = (SurfaceView) findViewById(R.id.fboActivity_surfaceView);
-        mRenderThread = new RenderThread(sv.getHolder(), new ActivityHandler(this), outputFile,
-                MiscUtils.getDisplayRefreshNsec(this));
-        mRenderThread.setName("RecordFBO GL render");
-        mRenderThread.start();
-        mRenderThread.waitUntilReady();
-        mRenderThread.setRecordMethod(mSelectedRecordMethod);
-
-        RenderHandler rh = mRenderThread.getHandler();
-        if (rh != null) {
-            rh.sendSurfaceCreated();
-        }
+        mRenderLoop = new RenderLoop("RecordFBO GL render", Process.THREAD_PRIORITY_DEFAULT,
+                new Renderer(sv.getHolder(), new ActivityHandler(this), outputFile,
+                        MiscUtils.getDisplayRefreshNsec(this),
+                        getIntent().getIntExtra(EXTRA_DUMP_FRAMES, 0), DeviceProfile.peek()));
+        mRenderLoop.start();
+
+        mRenderLoop.post(Renderer.CMD_RECORD_METHOD, mSelectedRecordMethod, 0, null);
+        mRenderLoop.post(Renderer.CMD_SURFACE_CREATED, 0, 0, null);
 
         // start the draw events
-        Choreographer.getInstance().postFrameCallback(this);
+        mRenderLoop.resumeFrames();
     }
 
     @Override
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
         Log.d(TAG, "surfaceChanged fmt=" + format + " size=" + width + "x" + height +
                 " holder=" + holder);
-        RenderHandler rh = mRenderThread.getHandler();
-        if (rh != null) {
-            rh.sendSurfaceChanged(format, width, height);
+        // ignore format
+        mRenderLoop.post(Renderer.CMD_SURFACE_CHANGED, width, height, null);
+        if (mBenchmarkPending) {
+            mBenchmarkPending = false;
+            startBenchmark();
         }
     }
 
@@ -193,42 +231,16 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
         // notifications will have been stopped back in onPause(), but there might have
         // been one in progress.
         //
-        // TODO: the RenderThread doesn't currently wait for the encoder / muxer to stop,
+        // TODO: the render thread doesn't currently wait for the encoder / muxer to stop,
         //       so we can't use this as an indication that the .mp4 file is complete.
-
-        RenderHandler rh = mRenderThread.getHandler();
-        if (rh != null) {
-            rh.sendShutdown();
-            try {
-                mRenderThread.join();
-            } catch (InterruptedException ie) {
-                // not expected
-                throw new RuntimeException("join was interrupted", ie);
-            }
-        }
-        mRenderThread = null;
+        mRenderLoop.stop();
+        mRenderLoop = null;
         mRecordingEnabled = false;
+        mBenchmarkRunning = false;     // abandoned along with the render thread
 
-        // If the callback was posted, remove it.  Without this, we could get one more
-        // call on doFrame().
-        Choreographer.getInstance().removeFrameCallback(this);
         Log.d(TAG, "surfaceDestroyed complete");
     }
 
-    /*
-     * Choreographer callback, called near vsync.
-     *
-     * @see android.view.Choreographer.FrameCallback#doFrame(long)
-     */
-    @Override
-    public void doFrame(long frameTimeNanos) {
-        RenderHandler rh = mRenderThread.getHandler();
-        if (rh != null) {
-            Choreographer.getInstance().postFrameCallback(this);
-            rh.sendDoFrame(frameTimeNanos);
-        }
-    }
-
     /**
      * Updates the GLES version string.
      * <p>
@@ -237,9 +249,15 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
     void handleShowGlesVersion(int version) {
         TextView tv = (TextView) findViewById(R.id.glesVersionValue_text);
         tv.setText("" + version);
-        if (version >= 3) {
-            mBlitFramebufferAllowed = true;
+        mBlitFramebufferAllowed = version >= 3;
+        updateControls();
+        if (version < 3 && mSelectedRecordMethod == RECMETHOD_BLIT_FRAMEBUFFER) {
+            // Remembered from a GLES 3 context; shouldn't happen, but don't get stuck on it.
+            mSelectedRecordMethod = RECMETHOD_FBO;
             updateControls();
+            if (mRenderLoop != null) {
+                mRenderLoop.post(Renderer.CMD_RECORD_METHOD, mSelectedRecordMethod, 0, null);
+            }
         }
     }
 
@@ -254,6 +272,47 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
         tv.setText(str);
     }
 
+    /**
+     * Shows the results of the record method comparison, and adopts the winner.
+     * <p>
+     * Called from the render thread (via ActivityHandler) when the comparison finishes.
+     * The render thread has already switched to the winning method.
+     */
+    void handleBenchmarkDone(int recordMethod, String results) {
+        mBenchmarkRunning = false;
+        mSelectedRecordMethod = recordMethod;
+        getPreferences(MODE_PRIVATE).edit()
+                .putInt(PREF_RECORD_METHOD, recordMethod)
+                .apply();
+        TextView tv = (TextView) findViewById(R.id.fboBenchmarkResult_text);
+        tv.setText(results);
+        updateControls();
+    }
+
+    /**
+     * onClick handler for "compare methods" button.
+     */
+    public void clickBenchmark(@SuppressWarnings("unused") View unused) {
+        Log.d(TAG, "clickBenchmark");
+        if (mRenderLoop != null) {
+            startBenchmark();
+        }
+    }
+
+    /**
+     * Asks the render thread to compare the recording methods.
+     */
+    private void startBenchmark() {
+        if (mBenchmarkRunning) {
+            return;
+        }
+        mBenchmarkRunning = true;
+        TextView tv = (TextView) findViewById(R.id.fboBenchmarkResult_text);
+        tv.setText(R.string.fboBenchmarkRunning);
+        updateControls();
+        mRenderLoop.post(Renderer.CMD_START_BENCHMARK, 0, 0, null);
+    }
+
     /**
      * onClick handler for "record" button.
      * <p>
@@ -263,11 +322,11 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
      */
     public void clickToggleRecording(@SuppressWarnings("unused") View unused) {
         Log.d(TAG, "clickToggleRecording");
-        RenderHandler rh = mRenderThread.getHandler();
-        if (rh != null) {
+        if (mRenderLoop != null) {
             mRecordingEnabled = !mRecordingEnabled;
             updateControls();
-            rh.setRecordingEnabled(mRecordingEnabled);
+            mRenderLoop.post(Renderer.CMD_RECORDING_ENABLED, mRecordingEnabled ? 1 : 0, 0,
+                    null);
         }
     }
 
@@ -296,9 +355,8 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
         }
 
         Log.d(TAG, "Selected rec mode " + mSelectedRecordMethod);
-        RenderHandler rh = mRenderThread.getHandler();
-        if (rh != null) {
-            rh.setRecordMethod(mSelectedRecordMethod);
+        if (mRenderLoop != null) {
+            mRenderLoop.post(Renderer.CMD_RECORD_METHOD, mSelectedRecordMethod, 0, null);
         }
     }
 
@@ -311,14 +369,22 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
                 R.string.toggleRecordingOff : R.string.toggleRecordingOn;
         toggleRelease.setText(id);
 
+        // The render thread drives recording and the record method while it's comparing
+        // methods, so keep the user's hands off them.
+        toggleRelease.setEnabled(!mBenchmarkRunning);
+        Button benchmark = (Button) findViewById(R.id.fboBenchmark_button);
+        benchmark.setEnabled(!mBenchmarkRunning);
+
         RadioButton rb;
         rb = (RadioButton) findViewById(R.id.recDrawTwice_radio);
         rb.setChecked(mSelectedRecordMethod == RECMETHOD_DRAW_TWICE);
+        rb.setEnabled(!mBenchmarkRunning);
         rb = (RadioButton) findViewById(R.id.recFbo_radio);
         rb.setChecked(mSelectedRecordMethod == RECMETHOD_FBO);
+        rb.setEnabled(!mBenchmarkRunning);
         rb = (RadioButton) findViewById(R.id.recFramebuffer_radio);
         rb.setChecked(mSelectedRecordMethod == RECMETHOD_BLIT_FRAMEBUFFER);
-        rb.setEnabled(mBlitFramebufferAllowed);
+        rb.setEnabled(mBlitFramebufferAllowed && !mBenchmarkRunning);
 
         TextView tv = (TextView) findViewById(R.id.nowRecording_text);
         if (mRecordingEnabled) {
@@ -337,6 +403,7 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
     static class ActivityHandler extends Handler {
         private static final int MSG_GLES_VERSION = 0;
         private static final int MSG_UPDATE_FPS = 1;
+        private static final int MSG_BENCHMARK_DONE = 2;
 
         // Weak reference to the Activity; only access this from the UI thread.
         private WeakReference<RecordFBOActivity> mWeakActivity;
@@ -365,6 +432,15 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
             sendMessage(obtainMessage(MSG_UPDATE_FPS, tfps, dropped));
         }
 
+        /**
+         * Send the outcome of the record method comparison.
+         * <p>
+         * Call from non-UI thread.
+         */
+        public void sendBenchmarkDone(int recordMethod, String results) {
+            sendMessage(obtainMessage(MSG_BENCHMARK_DONE, recordMethod, 0, results));
+        }
+
         @Override  // runs on UI thread
         public void handleMessage(Message msg) {
             int what = msg.what;
@@ -383,6 +459,9 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
                 case MSG_UPDATE_FPS:
                     activity.handleUpdateFps(msg.arg1, msg.arg2);
                     break;
+                case MSG_BENCHMARK_DONE:
+                    activity.handleBenchmarkDone(msg.arg1, (String) msg.obj);
+                    break;
                 default:
                     throw new RuntimeException("unknown msg " + what);
             }
@@ -391,26 +470,36 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
 
 
     /**
-     * This class handles all OpenGL rendering.
+     * This class handles all OpenGL rendering.  It runs on a RenderLoop thread.
      * <p>
      * We use Choreographer to coordinate with the device vsync.  We deliver one frame
      * per vsync.  We can't actually know when the frame we render will be drawn, but at
      * least we get a consistent frame interval.
      * <p>
-     * Start the render thread after the Surface has been created.
+     * All commands are queued in order, not coalesced: the record method comparison takes
+     * over the recording state and method, so a UI change must not be applied after it
+     * even if it was sent first.
+     * <p>
+     * Start the render loop after the Surface has been created.
      */
-    private static class RenderThread extends Thread {
-        // Object must be created on render thread to get correct Looper, but is used from
-        // UI thread, so we need to declare it volatile to ensure the UI thread sees a fully
-        // constructed object.
-        private volatile RenderHandler mHandler;
+    private static class Renderer implements RenderLoop.Callback {
+        public static final int CMD_SURFACE_CREATED = 0;
+        public static final int CMD_SURFACE_CHANGED = 1;
+        public static final int CMD_RECORDING_ENABLED = 2;
+        public static final int CMD_RECORD_METHOD = 3;
+        public static final int CMD_START_BENCHMARK = 4;
+
+        // If we're within this much of the next vsync, don't bother rendering.
+        public static final long DROP_MARGIN_NS = 2000000;
 
         // Handler we can send messages to if we want to update the app UI.
         private ActivityHandler mActivityHandler;
 
-        // Used to wait for the thread to start.
-        private Object mStartLock = new Object();
-        private boolean mReady = false;
+        // Device capabilities, or null if the profile wasn't ready when we started.
+        private final DeviceProfile mProfile;
+
+        // Set if swapBuffers() fails; we stop drawing until the loop is stopped.
+        private boolean mRenderingStopped;
 
         private volatile SurfaceHolder mSurfaceHolder;  // may be updated by UI thread
         private EglCore mEglCore;
@@ -437,11 +526,13 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
         private long mPrevTimeNanos;
 
         // FPS / drop counter.
-        private long mRefreshPeriodNanos;
+        private VsyncDeadline mDeadline;
         private long mFpsCountStartNanos;
         private int mFpsCountFrame;
         private int mDroppedFrames;
         private boolean mPreviousWasDropped;
+        private final FrameStats mFrameStats;
+        private final FrameStats.Snapshot mStatsSnapshot = new FrameStats.Snapshot();
 
         // Used for off-screen rendering.
         private int mOffscreenTexture;
@@ -459,17 +550,38 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
         private Rect mVideoRect;
         private int videoWidth;
         private int videoHeight;
-
+        private VideoEncoderCore mEncoderCore;
+        private int mEncoderFramesSubmitted;
+
+        // Record method comparison; non-null while it's running.
+        private RecordMethodBenchmark mBenchmark;
+        private GpuTimer mGpuTimer;     // null if timer queries aren't available
+        private int mBenchmarkSavedMethod;
+        private boolean mBenchmarkSavedRecording;
+
+        // Frame capture; mFrameDumper is non-null while it's running.
+        private static final String DUMP_FILE_NAME = "fbo-frames.grfd";
+        private static final String DUMP_PNG_NAME = "fbo-frame0.png";
+        private static final int DUMP_BUFFERS = 4;
+        private final int mDumpFrameLimit;
+        private int mDumpFramesTaken;
+        private FrameDumper mFrameDumper;
 
         /**
          * Pass in the SurfaceView's SurfaceHolder.  Note the Surface may not yet exist.
+         *
+         * @param dumpFrames Number of displayed frames to capture with FrameDumper, or 0.
+         * @param profile Cached device profile, or null if it isn't available yet.
          */
-        public RenderThread(SurfaceHolder holder, ActivityHandler ahandler, File outputFile,
-                long refreshPeriodNs) {
+        public Renderer(SurfaceHolder holder, ActivityHandler ahandler, File outputFile,
+                long refreshPeriodNs, int dumpFrames, DeviceProfile profile) {
             mSurfaceHolder = holder;
             mActivityHandler = ahandler;
             mOutputFile = outputFile;
-            mRefreshPeriodNanos = refreshPeriodNs;
+            mDumpFrameLimit = dumpFrames;
+            mProfile = profile;
+            mDeadline = new VsyncDeadline(refreshPeriodNs, DROP_MARGIN_NS, PacingClock.SYSTEM);
+            mFrameStats = new FrameStats("RecordFBO", refreshPeriodNs);
 
             mVideoRect = new Rect();
 
@@ -485,63 +597,61 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
             mRecordRect = new Sprite2d(mRectDrawable);
         }
 
-        /**
-         * Thread entry point.
-         * <p>
-         * The thread should not be started until the Surface associated with the SurfaceHolder
-         * has been created.  That way we don't have to wait for a separate "surface created"
-         * message to arrive.
-         */
         @Override
-        public void run() {
-            Looper.prepare();
-            mHandler = new RenderHandler(this);
+        public void onLoopStarted() {
             mEglCore = new EglCore(null, EglCore.FLAG_RECORDABLE | EglCore.FLAG_TRY_GLES3);
-            synchronized (mStartLock) {
-                mReady = true;
-                mStartLock.notify();    // signal waitUntilReady()
-            }
-
-            Looper.loop();
+        }
 
-            Log.d(TAG, "looper quit");
+        @Override
+        public void onLoopStopped() {
+            stopEncoder();
+            mFrameStats.snapshot(mStatsSnapshot);
+            Log.d(TAG, mStatsSnapshot.toString());
+            File statsFile = new File(mOutputFile.getParentFile(), FrameStats.EXPORT_FILE_NAME);
+            try {
+                mStatsSnapshot.appendTo(statsFile);
+            } catch (IOException ioe) {
+                Log.w(TAG, "Unable to write " + statsFile, ioe);
+            }
+            finishFrameDump();
             releaseGl();
             mEglCore.release();
-
-            synchronized (mStartLock) {
-                mReady = false;
-            }
         }
 
-        /**
-         * Waits until the render thread is ready to receive messages.
-         * <p>
-         * Call from the UI thread.
-         */
-        public void waitUntilReady() {
-            synchronized (mStartLock) {
-                while (!mReady) {
-                    try {
-                        mStartLock.wait();
-                    } catch (InterruptedException ie) { /* not expected */ }
-                }
+        @Override
+        public void onCommand(int what, int arg1, int arg2, Object obj) {
+            switch (what) {
+                case CMD_SURFACE_CREATED:
+                    surfaceCreated();
+                    break;
+                case CMD_SURFACE_CHANGED:
+                    surfaceChanged(arg1, arg2);
+                    break;
+                case CMD_RECORDING_ENABLED:
+                    setRecordingEnabled(arg1 != 0);
+                    break;
+                case CMD_RECORD_METHOD:
+                    setRecordMethod(arg1);
+                    break;
+                case CMD_START_BENCHMARK:
+                    startBenchmark();
+                    break;
+                default:
+                    throw new RuntimeException("unknown command " + what);
             }
         }
 
-        /**
-         * Shuts everything down.
-         */
-        private void shutdown() {
-            Log.d(TAG, "shutdown");
-            stopEncoder();
-            Looper.myLooper().quit();
-        }
-
-        /**
-         * Returns the render thread's Handler.  This may be called from any thread.
-         */
-        public RenderHandler getHandler() {
-            return mHandler;
+        @Override
+        public void onFrame(long frameTimeNanos, int missedFrames) {
+            if (mRenderingStopped) {
+                return;
+            }
+            // Vsyncs we fell too far behind to see are drops, just like the late ones
+            // doFrame() skips.  The record method comparison depends on counting them.
+            for (int i = 0; i < missedFrames; i++) {
+                frameDropped();
+            }
+            doFrame(frameTimeNanos);
         }
 
         /**
@@ -584,7 +694,7 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
        /**
          * Handles changes to the size of the underlying surface.  Adjusts viewport as needed.
          * Must be called before we start drawing.
-         * (Called from RenderHandler.)
+         * (Called from onCommand().)
          */
         private void surfaceChanged(int width, int height) {
             Log.d(TAG, "surfaceChanged " + width + "x" + height);
@@ -640,6 +750,64 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
 
             Log.d(TAG, "mTri: " + mTri);
             Log.d(TAG, "mRect: " + mRect);
+
+            if (mDumpFrameLimit > 0 && mFrameDumper == null && mDumpFramesTaken == 0) {
+                File dumpFile = new File(mOutputFile.getParentFile(), DUMP_FILE_NAME);
+                try {
+                    mFrameDumper = new FrameDumper(dumpFile, mWindowSurface.getWidth(),
+                            mWindowSurface.getHeight(), mDumpFrameLimit, DUMP_BUFFERS);
+                } catch (IOException ioe) {
+                    Log.w(TAG, "Unable to create " + dumpFile, ioe);
+                }
+            }
+        }
+
+        /**
+         * Captures the frame we're about to show, if a frame dump is running.  Expects the
+         * window surface to be current, with the frame drawn but not yet swapped.
+         */
+        private void dumpFrame(long timeStampNanos) {
+            if (mFrameDumper == null || mDumpFramesTaken >= mDumpFrameLimit) {
+                return;
+            }
+            if (mWindowSurface.getWidth() != mFrameDumper.getWidth() ||
+                    mWindowSurface.getHeight() != mFrameDumper.getHeight()) {
+                // The file has a fixed frame size; keep what we have so far.
+                Log.w(TAG, "Window size changed, ending frame dump after " +
+                        mDumpFramesTaken + " frames");
+                mDumpFramesTaken = mDumpFrameLimit;
+                return;
+            }
+            if (mWindowSurface.dumpFrame(mFrameDumper, timeStampNanos)) {
+                mDumpFramesTaken++;
+            }
+        }
+
+        /**
+         * Flushes the frame dump, if any, and converts the first frame to PNG.
+         */
+        private void finishFrameDump() {
+            if (mFrameDumper == null) {
+                return;
+            }
+            File dumpFile = new File(mOutputFile.getParentFile(), DUMP_FILE_NAME);
+            try {
+                mFrameDumper.shutdown();
+                Log.d(TAG, "Dumped " + mFrameDumper.getFrameCount() + " frames to " + dumpFile +
+                        " (" + mFrameDumper.getDroppedFrames() + " dropped)");
+                if (mFrameDumper.getFrameCount() > 0) {
+                    FrameDumpReader reader = new FrameDumpReader(dumpFile);
+                    try {
+                        reader.savePng(0, new File(mOutputFile.getParentFile(), DUMP_PNG_NAME),
+                                null);
+                    } finally {
+                        reader.close();
+                    }
+                }
+            } catch (IOException ioe) {
+                Log.w(TAG, "Frame dump failed", ioe);
+            }
+            mFrameDumper = null;
         }
 
         /**
@@ -722,6 +890,10 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
 
             int[] values = new int[1];
 
+            if (mGpuTimer != null) {
+                mGpuTimer.release();
+                mGpuTimer = null;
+            }
             if (mWindowSurface != null) {
                 mWindowSurface.release();
                 mWindowSurface = null;
@@ -819,6 +991,8 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
             }
             mInputWindowSurface = new WindowSurface(mEglCore, encoderCore.getInputSurface(), true);
             mVideoEncoder = new TextureMovieEncoder2(encoderCore);
+            mEncoderCore = encoderCore;
+            mEncoderFramesSubmitted = 0;
         }
 
         /**
@@ -831,6 +1005,7 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
                 // TODO: wait (briefly) until it finishes shutting down so we know file is
                 //       complete, or have a callback that updates the UI
                 mVideoEncoder = null;
+                mEncoderCore = null;
             }
             if (mInputWindowSurface != null) {
                 mInputWindowSurface.release();
@@ -838,6 +1013,106 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
             }
         }
 
+        /**
+         * Starts comparing the record methods.  Recording is switched on for the duration.
+         */
+        private void startBenchmark() {
+            if (mBenchmark != null) {
+                Log.w(TAG, "record method comparison already running");
+                return;
+            }
+            int[] methods;
+            String[] names;
+            if (mEglCore.getGlVersion() >= 3) {
+                methods = new int[] {
+                        RECMETHOD_DRAW_TWICE, RECMETHOD_FBO, RECMETHOD_BLIT_FRAMEBUFFER };
+                names = new String[] { "draw twice", "FBO", "blit" };
+            } else {
+                methods = new int[] { RECMETHOD_DRAW_TWICE, RECMETHOD_FBO };
+                names = new String[] { "draw twice", "FBO" };
+            }
+            mBenchmark = new RecordMethodBenchmark(methods, names);
+            mBenchmarkSavedMethod = mRecordMethod;
+            mBenchmarkSavedRecording = mRecordingEnabled;
+            // Use the cached profile if we have it, rather than parsing the extension string.
+            boolean timerQuery = mProfile != null ?
+                    mEglCore.getGlVersion() >= 3 && mProfile.hasTimerQuery() :
+                    GpuTimer.isSupported(mEglCore);
+            if (timerQuery) {
+                mGpuTimer = new GpuTimer(4);
+            }
+            Log.d(TAG, "comparing record methods, GPU timer " +
+                    (mGpuTimer != null ? "available" : "not available"));
+
+            setRecordingEnabled(true);
+            setRecordMethod(mBenchmark.getCurrentMethod());
+        }
+
+        /**
+         * Collects GPU timings and moves the comparison along at the end of a frame.
+         */
+        private void benchmarkEndFrame(boolean dropped) {
+            if (mGpuTimer != null) {
+                while (mGpuTimer.poll()) {
+                    mBenchmark.gpuTime(mGpuTimer.getResultTag(), mGpuTimer.getResultNanos());
+                }
+            }
+            if (!mBenchmark.endFrame(dropped)) {
+                return;
+            }
+            if (!mBenchmark.isDone()) {
+                setRecordMethod(mBenchmark.getCurrentMethod());
+                return;
+            }
+
+            boolean haveGpuTimer = mGpuTimer != null;
+            if (haveGpuTimer) {
+                // Wait for the last few results.
+                GLES20.glFinish();
+                while (mGpuTimer.poll()) {
+                    mBenchmark.gpuTime(mGpuTimer.getResultTag(), mGpuTimer.getResultNanos());
+                }
+                mGpuTimer.release();
+                mGpuTimer = null;
+            }
+            String results = mBenchmark.formatResults(haveGpuTimer);
+            int winner = mBenchmark.getWinner();
+            mBenchmark = null;
+            for (String line : results.split("\n")) {
+                Log.i(TAG, line);
+            }
+            writeBenchmarkResults(results);
+
+            // Put recording back the way it was, but keep the winning method.
+            setRecordingEnabled(mBenchmarkSavedRecording);
+            setRecordMethod(winner);
+            Log.d(TAG, "record method comparison done, was " + mBenchmarkSavedMethod +
+                    ", now " + winner);
+            mActivityHandler.sendBenchmarkDone(winner, results);
+        }
+
+        /**
+         * Appends the comparison results to a file next to the recording.
+         */
+        private void writeBenchmarkResults(String results) {
+            File file = new File(mOutputFile.getParentFile(),
+                    RecordMethodBenchmark.EXPORT_FILE_NAME);
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+            try {
+                FileWriter writer = new FileWriter(file, true);
+                try {
+                    writer.write("# RecordFBO " + format.format(new Date()) + " gles=" +
+                            mEglCore.getGlVersion() + " window=" + mWindowSurface.getWidth() +
+                            "x" + mWindowSurface.getHeight() + "\n");
+                    writer.write(results);
+                } finally {
+                    writer.close();
+                }
+            } catch (IOException ioe) {
+                Log.w(TAG, "Unable to write " + file, ioe);
+            }
+        }
+
         /**
          * Advance state and draw frame in response to a vsync event.
          */
@@ -856,17 +1131,17 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
             // by recording at ~30fps instead of the display refresh rate.  As a quick hack
             // we just record every-other frame, using a "recorded previous" flag.
 
+            mFrameStats.beginFrame(timeStampNanos);
             update(timeStampNanos);
+            mFrameStats.stageDone(FrameStats.STAGE_UPDATE);
 
-            long diff = System.nanoTime() - timeStampNanos;
-            long max = mRefreshPeriodNanos - 2000000;   // if we're within 2ms, don't bother
-            if (diff > max) {
+            if (mDeadline.isMissed(timeStampNanos)) {
                 // too much, drop a frame
-                Log.d(TAG, "diff is " + (diff / 1000000.0) + " ms, max " + (max / 1000000.0) +
+                Log.d(TAG, "diff is " + (mDeadline.getElapsedNs(timeStampNanos) / 1000000.0) +
+                        " ms, max " + (mDeadline.getMaxElapsedNs() / 1000000.0) +
                         ", skipping render");
-                mRecordedPrevious = false;
-                mPreviousWasDropped = true;
-                mDroppedFrames++;
+                mFrameStats.frameDropped();
+                frameDropped();
                 return;
             }
 
@@ -876,16 +1151,26 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
                 mRecordedPrevious = false;
                 // Render the scene, swap back to front.
                 draw();
+                mFrameStats.stageDone(FrameStats.STAGE_DRAW);
+                dumpFrame(timeStampNanos);
                 swapResult = mWindowSurface.swapBuffers();
+                mFrameStats.stageDone(FrameStats.STAGE_SWAP);
             } else {
                 mRecordedPrevious = true;
 
+                // When comparing record methods, time the whole recording operation.
+                boolean measuring = mBenchmark != null && mBenchmark.isMeasuring();
+                boolean gpuTiming = measuring && mGpuTimer != null &&
+                        mGpuTimer.begin(mBenchmark.getCurrentPhase());
+                long recordStartNanos = System.nanoTime();
+
                 // recording
                 if (mRecordMethod == RECMETHOD_DRAW_TWICE) {
                     //Log.d(TAG, "MODE: draw 2x");
 
                     // Draw for display, swap.
                     draw();
+                    dumpFrame(timeStampNanos);
                     swapResult = mWindowSurface.swapBuffers();
 
                     // Draw for recording, swap.
@@ -934,7 +1219,7 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
                     // this is excessive -- we don't need to clear the entire screen.
                     GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
                     GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-                    GlUtil.checkGlError("before glBlitFramebuffer");
+                    if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("before glBlitFramebuffer");
                     Log.v(TAG, "glBlitFramebuffer: 0,0," + mWindowSurface.getWidth() + "," +
                             mWindowSurface.getHeight() + "  " + mVideoRect.left + "," +
                             mVideoRect.top + "," + mVideoRect.right + "," + mVideoRect.bottom +
@@ -953,19 +1238,21 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
 
                     // Now swap the display buffer.
                     mWindowSurface.makeCurrent();
+                    dumpFrame(timeStampNanos);
                     swapResult = mWindowSurface.swapBuffers();
 
                 } else {
                     //Log.d(TAG, "MODE: offscreen + blit 2x");
                     // Render offscreen.
                     GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
-                    GlUtil.checkGlError("glBindFramebuffer");
+                    if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("glBindFramebuffer");
                     draw();
 
                     // Blit to display.
                     GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-                    GlUtil.checkGlError("glBindFramebuffer");
+                    if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("glBindFramebuffer");
                     mFullScreen.drawFrame(mOffscreenTexture, mIdentityMatrix, videoWidth, videoHeight);
+                    dumpFrame(timeStampNanos);
                     swapResult = mWindowSurface.swapBuffers();
 
                     // Blit to encoder.
@@ -983,17 +1270,42 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
                     GLES20.glViewport(0, 0, mWindowSurface.getWidth(), mWindowSurface.getHeight());
                     mWindowSurface.makeCurrent();
                 }
+
+                // Drawing and swapping are interleaved when recording, so the whole thing
+                // counts as the draw stage.
+                mFrameStats.stageDone(FrameStats.STAGE_DRAW);
+
+                mEncoderFramesSubmitted++;
+                if (measuring) {
+                    long cpuNanos = System.nanoTime() - recordStartNanos;
+                    if (gpuTiming) {
+                        mGpuTimer.end();
+                    } else if (mGpuTimer == null) {
+                        // No timer queries.  Settle for how long it takes the GPU to go idle,
+                        // which includes the CPU time and disturbs the pipelining a bit.
+                        GLES20.glFinish();
+                        mBenchmark.gpuTime(mBenchmark.getCurrentPhase(),
+                                System.nanoTime() - recordStartNanos);
+                    }
+                    mBenchmark.frameRecorded(cpuNanos, mEncoderFramesSubmitted -
+                            mEncoderCore.getEncodedFrameCount());
+                }
             }
 
             mPreviousWasDropped = false;
 
             if (!swapResult) {
                 // This can happen if the Activity stops without waiting for us to halt.
-                Log.w(TAG, "swapBuffers failed, killing renderer thread");
-                shutdown();
+                Log.w(TAG, "swapBuffers failed, halting rendering");
+                stopEncoder();
+                mRenderingStopped = true;
                 return;
             }
 
+            if (mBenchmark != null) {
+                benchmarkEndFrame(false);
+            }
+
             // Update the FPS counter.
             //
             // Ideally we'd generate something approximate quickly to make the UI look
@@ -1018,6 +1330,18 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
             }
         }
 
+        /**
+         * Accounts for a frame that wasn't rendered.
+         */
+        private void frameDropped() {
+            mRecordedPrevious = false;
+            mPreviousWasDropped = true;
+            mDroppedFrames++;
+            if (mBenchmark != null) {
+                benchmarkEndFrame(true);
+            }
+        }
+
         /**
          * We use the time delta from the previous event to determine how far everything
          * moves.  Ideally this will yield identical animation sequences regardless of
@@ -1076,7 +1400,7 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
          * Draws the scene.
          */
         private void draw() {
-            GlUtil.checkGlError("draw start");
+            if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("draw start");
 
             // Clear to a non-black color to make the content easily differentiable from
             // the pillar-/letter-boxing.
@@ -1109,127 +1433,7 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
             }
             mRecordRect.draw(mProgram, mDisplayProjectionMatrix);
 
-            GlUtil.checkGlError("draw done");
-        }
-    }
-
-    /**
-     * Handler for RenderThread.  Used for messages sent from the UI thread to the render thread.
-     * <p>
-     * The object is created on the render thread, and the various "send" methods are called
-     * from the UI thread.
-     */
-    private static class RenderHandler extends Handler {
-        private static final int MSG_SURFACE_CREATED = 0;
-        private static final int MSG_SURFACE_CHANGED = 1;
-        private static final int MSG_DO_FRAME = 2;
-        private static final int MSG_RECORDING_ENABLED = 3;
-        private static final int MSG_RECORD_METHOD = 4;
-        private static final int MSG_SHUTDOWN = 5;
-
-        // This shouldn't need to be a weak ref, since we'll go away when the Looper quits,
-        // but no real harm in it.
-        private WeakReference<RenderThread> mWeakRenderThread;
-
-        /**
-         * Call from render thread.
-         */
-        public RenderHandler(RenderThread rt) {
-            mWeakRenderThread = new WeakReference<RenderThread>(rt);
-        }
-
-        /**
-         * Sends the "surface created" message.
-         * <p>
-         * Call from UI thread.
-         */
-        public void sendSurfaceCreated() {
-            sendMessage(obtainMessage(RenderHandler.MSG_SURFACE_CREATED));
-        }
-
-        /**
-         * Sends the "surface changed" message, forwarding what we got from the SurfaceHolder.
-         * <p>
-         * Call from UI thread.
-         */
-        public void sendSurfaceChanged(@SuppressWarnings("unused") int format,
-                int width, int height) {
-            // ignore format
-            sendMessage(obtainMessage(RenderHandler.MSG_SURFACE_CHANGED, width, height));
-        }
-
-        /**
-         * Sends the "do frame" message, forwarding the Choreographer event.
-         * <p>
-         * Call from UI thread.
-         */
-        public void sendDoFrame(long frameTimeNanos) {
-            sendMessage(obtainMessage(RenderHandler.MSG_DO_FRAME,
-                    (int) (frameTimeNanos >> 32), (int) frameTimeNanos));
-        }
-
-        /**
-         * Enable or disable recording.
-         * <p>
-         * Call from non-UI thread.
-         */
-        public void setRecordingEnabled(boolean enabled) {
-            sendMessage(obtainMessage(MSG_RECORDING_ENABLED, enabled ? 1 : 0, 0));
-        }
-
-        /**
-         * Set the method used to render a frame for the encoder.
-         * <p>
-         * Call from non-UI thread.
-         */
-        public void setRecordMethod(int recordMethod) {
-            sendMessage(obtainMessage(MSG_RECORD_METHOD, recordMethod, 0));
-        }
-
-        /**
-         * Sends the "shutdown" message, which tells the render thread to halt.
-         * <p>
-         * Call from UI thread.
-         */
-        public void sendShutdown() {
-            sendMessage(obtainMessage(RenderHandler.MSG_SHUTDOWN));
-        }
-
-        @Override  // runs on RenderThread
-        public void handleMessage(Message msg) {
-            int what = msg.what;
-            //Log.d(TAG, "RenderHandler [" + this + "]: what=" + what);
-
-            RenderThread renderThread = mWeakRenderThread.get();
-            if (renderThread == null) {
-                Log.w(TAG, "RenderHandler.handleMessage: weak ref is null");
-                return;
-            }
-
-            switch (what) {
-                case MSG_SURFACE_CREATED:
-                    renderThread.surfaceCreated();
-                    break;
-                case MSG_SURFACE_CHANGED:
-                    renderThread.surfaceChanged(msg.arg1, msg.arg2);
-                    break;
-                case MSG_DO_FRAME:
-                    long timestamp = (((long) msg.arg1) << 32) |
-                                     (((long) msg.arg2) & 0xffffffffL);
-                    renderThread.doFrame(timestamp);
-                    break;
-                case MSG_RECORDING_ENABLED:
-                    renderThread.setRecordingEnabled(msg.arg1 != 0);
-                    break;
-                case MSG_RECORD_METHOD:
-                    renderThread.setRecordMethod(msg.arg1);
-                    break;
-                case MSG_SHUTDOWN:
-                    renderThread.shutdown();
-                    break;
-               default:
-                    throw new RuntimeException("unknown message " + what);
-            }
+            if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("draw done");
         }
     }
 }
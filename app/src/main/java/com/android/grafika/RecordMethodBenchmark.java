@@ -0,0 +1,214 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import java.util.Locale;
+
+/**
+ * Bookkeeping for RecordFBOActivity's comparison of recording methods.
+ * <p>
+ * The render thread runs each method in turn for a fixed number of display frames, with
+ * recording on.  The first few frames of each phase are a warm-up and aren't counted.
+ * For each recorded frame it reports the CPU time the render thread spent, the GPU time
+ * (which arrives a few frames later, tagged with the phase it belongs to), and the encoder
+ * backlog, i.e. frames submitted to the encoder that haven't come out the other end.
+ * Dropped frames are counted across the whole measured part of the phase.
+ * <p>
+ * GPU time comes from GpuTimer where timer queries are available.  Otherwise the render
+ * thread calls glFinish() after each measured frame and reports the time from the start of
+ * the frame until the GPU went idle; that includes the CPU time, and the "fin" columns
+ * replace the "gpu" ones in the results.
+ * <p>
+ * The winner is the method that dropped the fewest frames; methods within 1% of each
+ * other count as a tie, and ties go to the lowest 90th-percentile frame cost, where a
+ * frame's cost is the larger of its CPU and GPU time.
+ * <p>
+ * Not thread-safe; everything but the final results is used from the render thread.
+ */
+public class RecordMethodBenchmark {
+    /** Display frames per phase that aren't counted. */
+    public static final int WARMUP_FRAMES = 60;
+    /** Display frames per phase that are counted.  Only every other one is recorded. */
+    public static final int MEASURED_FRAMES = 300;
+
+    /** File name, relative to the app's files dir, that results are appended to. */
+    public static final String EXPORT_FILE_NAME = "record-method-benchmark.txt";
+
+    private final int[] mMethods;
+    private final String[] mNames;
+    private final Phase[] mPhases;
+    private int mPhase;
+    private int mPhaseFrame;
+
+    private static class Phase {
+        final LatencyHistogram cpu = new LatencyHistogram();
+        final LatencyHistogram gpu = new LatencyHistogram();
+        int frames;
+        int dropped;
+        int backlogMax;
+        long backlogSum;
+        int backlogSamples;
+
+        long costNs() {
+            return Math.max(cpu.getPercentileNs(90), gpu.getPercentileNs(90));
+        }
+    }
+
+    /**
+     * @param methods The record methods to try, in order.
+     * @param names Display names for the methods, parallel to "methods".
+     */
+    public RecordMethodBenchmark(int[] methods, String[] names) {
+        if (methods.length == 0 || methods.length != names.length) {
+            throw new IllegalArgumentException("bad method list");
+        }
+        mMethods = methods;
+        mNames = names;
+        mPhases = new Phase[methods.length];
+        for (int i = 0; i < methods.length; i++) {
+            mPhases[i] = new Phase();
+        }
+    }
+
+    /**
+     * Returns the record method for the current phase.
+     */
+    public int getCurrentMethod() {
+        return mMethods[mPhase];
+    }
+
+    /**
+     * Returns the index of the current phase, for tagging GPU timings.
+     */
+    public int getCurrentPhase() {
+        return mPhase;
+    }
+
+    /**
+     * Returns true if the current frame counts, i.e. we're past the warm-up.
+     */
+    public boolean isMeasuring() {
+        return !isDone() && mPhaseFrame >= WARMUP_FRAMES;
+    }
+
+    /**
+     * Returns true once every method has been run.
+     */
+    public boolean isDone() {
+        return mPhase == mMethods.length;
+    }
+
+    /**
+     * Records a frame that was rendered and sent to the encoder.
+     *
+     * @param cpuNs Time the render thread spent on the frame, including swaps.
+     * @param backlog Frames submitted to the encoder that it hasn't output yet.
+     */
+    public void frameRecorded(long cpuNs, int backlog) {
+        if (!isMeasuring()) {
+            return;
+        }
+        Phase phase = mPhases[mPhase];
+        phase.cpu.record(cpuNs);
+        phase.backlogSum += backlog;
+        phase.backlogSamples++;
+        if (backlog > phase.backlogMax) {
+            phase.backlogMax = backlog;
+        }
+    }
+
+    /**
+     * Records a GPU timing for the specified phase.
+     */
+    public void gpuTime(int phase, long gpuNs) {
+        mPhases[phase].gpu.record(gpuNs);
+    }
+
+    /**
+     * Ends a display frame.  Returns true if that moved us on to a new phase (or finished).
+     *
+     * @param dropped True if the frame was skipped.
+     */
+    public boolean endFrame(boolean dropped) {
+        if (isDone()) {
+            return false;
+        }
+        if (isMeasuring()) {
+            Phase phase = mPhases[mPhase];
+            phase.frames++;
+            if (dropped) {
+                phase.dropped++;
+            }
+        }
+        if (++mPhaseFrame == WARMUP_FRAMES + MEASURED_FRAMES) {
+            mPhase++;
+            mPhaseFrame = 0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the index of the winning method.  Only valid after isDone().
+     */
+    public int getWinnerIndex() {
+        int dropTolerance = MEASURED_FRAMES / 100;
+        int best = 0;
+        for (int i = 1; i < mPhases.length; i++) {
+            Phase candidate = mPhases[i];
+            Phase current = mPhases[best];
+            if (candidate.dropped + dropTolerance < current.dropped) {
+                best = i;
+            } else if (candidate.dropped <= current.dropped + dropTolerance &&
+                    candidate.costNs() < current.costNs()) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the winning record method.  Only valid after isDone().
+     */
+    public int getWinner() {
+        return mMethods[getWinnerIndex()];
+    }
+
+    /**
+     * Returns a multi-line table of the results, with the winner marked.
+     */
+    public String formatResults(boolean haveGpuTimer) {
+        int winner = getWinnerIndex();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%-2s%-12s %6s %5s %8s %8s %8s %8s %7s%n",
+                "", "method", "frames", "drop", "cpu p50", "cpu p90",
+                haveGpuTimer ? "gpu p50" : "fin p50", haveGpuTimer ? "gpu p90" : "fin p90",
+                "backlog"));
+        for (int i = 0; i < mPhases.length; i++) {
+            Phase phase = mPhases[i];
+            double backlogMean = phase.backlogSamples == 0 ? 0 :
+                    (double) phase.backlogSum / phase.backlogSamples;
+            sb.append(String.format(Locale.US,
+                    "%-2s%-12s %6d %5d %8.2f %8.2f %8.2f %8.2f %3.1f/%-3d%n",
+                    i == winner ? "*" : "", mNames[i], phase.frames, phase.dropped,
+                    phase.cpu.getPercentileNs(50) / 1e6, phase.cpu.getPercentileNs(90) / 1e6,
+                    phase.gpu.getPercentileNs(50) / 1e6, phase.gpu.getPercentileNs(90) / 1e6,
+                    backlogMean, phase.backlogMax));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+import android.view.Choreographer;
+
+/**
+ * A dedicated render thread, driven by Choreographer, with a command queue for the UI thread
+ * to talk to it.
+ * <p>
+ * This packages up the RenderThread / RenderHandler pattern that several activities used to
+ * implement by hand.  The differences:
+ * <ul>
+ * <li>Commands are stored in a preallocated ring instead of one Message per event.
+ * <li>Commands posted with postLatest() are coalesced: if the UI thread sends five slider
+ *     updates before the render thread gets around to them, only the last one is applied.
+ * <li>Vsync events coalesce the same way.  If the render thread falls behind, it renders
+ *     once with the most recent frame time, rather than working through a backlog of stale
+ *     frames.  Missed vsyncs are counted in the stats.
+ * <li>The render thread's priority is configurable, e.g. THREAD_PRIORITY_URGENT_DISPLAY.
+ * <li>Frame count, missed frames, and per-frame CPU time are tracked automatically.
+ * </ul>
+ * The Choreographer callbacks arrive on the thread that calls resumeFrames() (normally the UI
+ * thread) and are forwarded.  Registering the callback on the render thread itself appears to
+ * leave a JNI global reference to the thread behind (see RecordFBOActivity).
+ * <p>
+ * Before each frame, and whenever a command arrives while frames are paused, the render
+ * thread runs queued commands in order, then the coalesced commands in slot order, then
+ * onFrame() if a vsync has arrived.
+ */
+public class RenderLoop implements Choreographer.FrameCallback {
+    private static final String TAG = MainActivity.TAG;
+
+    /** Number of slots available to postLatest(). */
+    public static final int MAX_LATEST_SLOTS = 16;
+
+    private static final int INITIAL_QUEUE_SIZE = 16;
+    private static final int MSG_WAKE = 0;
+    private static final int MSG_QUIT = 1;
+
+    /**
+     * Render-thread callbacks.
+     */
+    public interface Callback {
+        /** Called on the render thread before anything else, e.g. to create the EGL context. */
+        void onLoopStarted();
+
+        /** Called on the render thread for each command. */
+        void onCommand(int what, int arg1, int arg2, Object obj);
+
+        /**
+         * Called on the render thread once per vsync (or fewer, if it can't keep up).
+         * "missedFrames" is the number of vsyncs superseded by this one since the previous
+         * call, so callers that count drops can count these too.
+         */
+        void onFrame(long frameTimeNanos, int missedFrames);
+
+        /** Called on the render thread just before it exits, e.g. to release EGL. */
+        void onLoopStopped();
+    }
+
+    /**
+     * Frame timing statistics.
+     */
+    public static class Stats {
+        /** Number of times onFrame() was called. */
+        public long frameCount;
+        /** Vsyncs that were superseded before the render thread got to them. */
+        public long missedFrames;
+        /** Number of commands executed. */
+        public long commandCount;
+        /** postLatest() values that were overwritten before being applied. */
+        public long coalescedCommands;
+        /** Total and worst-case time spent in onFrame(). */
+        public long totalFrameNanos;
+        public long maxFrameNanos;
+        /** Worst-case interval between consecutive frame times. */
+        public long maxIntervalNanos;
+
+        @Override
+        public String toString() {
+            double avgMsec = frameCount == 0 ? 0.0 : totalFrameNanos / (frameCount * 1000000.0);
+            return "frames=" + frameCount + " missed=" + missedFrames +
+                    " commands=" + commandCount + " coalesced=" + coalescedCommands +
+                    String.format(" work avg=%.2fms max=%.2fms interval max=%.2fms", avgMsec,
+                            maxFrameNanos / 1000000.0, maxIntervalNanos / 1000000.0);
+        }
+    }
+
+    private static class Command {
+        int what;
+        int arg1;
+        int arg2;
+        Object obj;
+
+        void set(int what, int arg1, int arg2, Object obj) {
+            this.what = what;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+            this.obj = obj;
+        }
+    }
+
+    private final String mName;
+    private final int mThreadPriority;
+    private final Callback mCallback;
+
+    private Thread mThread;
+    private volatile Handler mHandler;
+    private boolean mFramesEnabled;             // accessed on the UI thread only
+
+    // Everything below is guarded by mLock.
+    private final Object mLock = new Object();
+    private boolean mReady;
+    private Command[] mQueue;
+    private int mQueueHead;
+    private int mQueueCount;
+    private final Command[] mLatest = new Command[MAX_LATEST_SLOTS];
+    private final boolean[] mLatestPending = new boolean[MAX_LATEST_SLOTS];
+    private int mLatestPendingCount;
+    private long mPendingFrameNanos;            // 0 if no frame is pending
+    private int mPendingMissedFrames;
+    private boolean mWakePosted;
+    private final Stats mStats = new Stats();
+
+    // Render-thread copies, so callbacks run without holding mLock.
+    private Command[] mDrainQueue;
+    private final Command[] mDrainLatest = new Command[MAX_LATEST_SLOTS];
+    private long mPrevFrameNanos;
+
+    /**
+     * Creates the loop.  Call start() to launch the thread.
+     *
+     * @param name Thread name.
+     * @param threadPriority Priority for the render thread, from android.os.Process, e.g.
+     *     Process.THREAD_PRIORITY_DISPLAY.
+     * @param callback Receives commands and frames on the render thread.
+     */
+    public RenderLoop(String name, int threadPriority, Callback callback) {
+        mName = name;
+        mThreadPriority = threadPriority;
+        mCallback = callback;
+
+        mQueue = allocCommands(INITIAL_QUEUE_SIZE);
+        mDrainQueue = allocCommands(INITIAL_QUEUE_SIZE);
+        for (int i = 0; i < MAX_LATEST_SLOTS; i++) {
+            mLatest[i] = new Command();
+            mDrainLatest[i] = new Command();
+        }
+    }
+
+    /**
+     * Starts the render thread, and waits until it has run onLoopStarted().
+     */
+    public void start() {
+        if (mThread != null) {
+            throw new IllegalStateException("already started");
+        }
+        mThread = new Thread(mName) {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        };
+        mThread.start();
+
+        synchronized (mLock) {
+            while (!mReady) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException ie) { /* not expected */ }
+            }
+        }
+    }
+
+    /**
+     * Stops frame delivery, tells the render thread to finish, and waits for it to exit.
+     * Commands already queued are executed first.
+     * <p>
+     * Call from the UI thread.
+     */
+    public void stop() {
+        pauseFrames();
+        Handler handler = mHandler;
+        if (handler == null) {
+            return;
+        }
+        handler.sendEmptyMessage(MSG_QUIT);
+        try {
+            mThread.join();
+        } catch (InterruptedException ie) {
+            // not expected
+            throw new RuntimeException("join was interrupted", ie);
+        }
+        mThread = null;
+    }
+
+    /**
+     * Starts delivering vsync events to onFrame().
+     * <p>
+     * Call from the UI thread (or another thread with a Looper).
+     */
+    public void resumeFrames() {
+        if (!mFramesEnabled) {
+            mFramesEnabled = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Stops delivering vsync events.  Commands are still executed.
+     * <p>
+     * Call from the same thread as resumeFrames().
+     */
+    public void pauseFrames() {
+        if (mFramesEnabled) {
+            mFramesEnabled = false;
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+    }
+
+    /**
+     * Queues a command.  Commands posted this way are all executed, in order.
+     * <p>
+     * May be called from any thread.
+     */
+    public void post(int what, int arg1, int arg2, Object obj) {
+        synchronized (mLock) {
+            if (mQueueCount == mQueue.length) {
+                growQueue();
+            }
+            int index = (mQueueHead + mQueueCount) % mQueue.length;
+            mQueue[index].set(what, arg1, arg2, obj);
+            mQueueCount++;
+            wakeLocked();
+        }
+    }
+
+    /**
+     * Posts a command that replaces any not-yet-executed command in the same slot.  Use this
+     * for state updates where only the latest value matters (slider positions, touch
+     * coordinates, sizes).  The slot number is passed to onCommand() as "what".
+     * <p>
+     * May be called from any thread.
+     */
+    public void postLatest(int slot, int arg1, int arg2, Object obj) {
+        synchronized (mLock) {
+            if (mLatestPending[slot]) {
+                mStats.coalescedCommands++;
+            } else {
+                mLatestPending[slot] = true;
+                mLatestPendingCount++;
+            }
+            mLatest[slot].set(slot, arg1, arg2, obj);
+            wakeLocked();
+        }
+    }
+
+    /**
+     * Copies the current statistics into "stats".
+     * <p>
+     * May be called from any thread.
+     */
+    public void getStats(Stats stats) {
+        synchronized (mLock) {
+            stats.frameCount = mStats.frameCount;
+            stats.missedFrames = mStats.missedFrames;
+            stats.commandCount = mStats.commandCount;
+            stats.coalescedCommands = mStats.coalescedCommands;
+            stats.totalFrameNanos = mStats.totalFrameNanos;
+            stats.maxFrameNanos = mStats.maxFrameNanos;
+            stats.maxIntervalNanos = mStats.maxIntervalNanos;
+        }
+    }
+
+    /**
+     * Zeroes the statistics.
+     */
+    public void resetStats() {
+        synchronized (mLock) {
+            mStats.frameCount = mStats.missedFrames = mStats.commandCount = 0;
+            mStats.coalescedCommands = 0;
+            mStats.totalFrameNanos = mStats.maxFrameNanos = mStats.maxIntervalNanos = 0;
+        }
+    }
+
+    /*
+     * Choreographer callback, called near vsync on the UI thread.
+     *
+     * @see android.view.Choreographer.FrameCallback#doFrame(long)
+     */
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mFramesEnabled) {
+            return;
+        }
+        Choreographer.getInstance().postFrameCallback(this);
+        synchronized (mLock) {
+            if (mPendingFrameNanos != 0) {
+                mStats.missedFrames++;
+                mPendingMissedFrames++;
+            }
+            mPendingFrameNanos = frameTimeNanos;
+            wakeLocked();
+        }
+    }
+
+    private void wakeLocked() {
+        if (!mWakePosted && mHandler != null) {
+            mWakePosted = true;
+            mHandler.sendEmptyMessage(MSG_WAKE);
+        }
+    }
+
+    private void growQueue() {
+        Command[] newQueue = allocCommands(mQueue.length * 2);
+        for (int i = 0; i < mQueueCount; i++) {
+            Command src = mQueue[(mQueueHead + i) % mQueue.length];
+            newQueue[i].set(src.what, src.arg1, src.arg2, src.obj);
+        }
+        Log.d(TAG, mName + ": command queue grown to " + newQueue.length);
+        mQueue = newQueue;
+        mQueueHead = 0;
+    }
+
+    private static Command[] allocCommands(int count) {
+        Command[] commands = new Command[count];
+        for (int i = 0; i < count; i++) {
+            commands[i] = new Command();
+        }
+        return commands;
+    }
+
+    private void runLoop() {
+        Process.setThreadPriority(mThreadPriority);
+        Looper.prepare();
+        mCallback.onLoopStarted();
+
+        synchronized (mLock) {
+            mHandler = new Handler() {
+                @Override
+                public void handleMessage(Message msg) {
+                    switch (msg.what) {
+                        case MSG_WAKE:
+                            processPending();
+                            break;
+                        case MSG_QUIT:
+                            processPending();
+                            Looper.myLooper().quit();
+                            break;
+                        default:
+                            throw new RuntimeException("unknown message " + msg.what);
+                    }
+                }
+            };
+            mReady = true;
+            if (mQueueCount != 0 || mLatestPendingCount != 0) {
+                wakeLocked();
+            }
+            mLock.notify();     // signal start()
+        }
+
+        Looper.loop();
+
+        Log.d(TAG, mName + ": looper quit; " + describeStats());
+        mCallback.onLoopStopped();
+        synchronized (mLock) {
+            mReady = false;
+            mHandler = null;
+        }
+    }
+
+    /**
+     * Runs everything that has accumulated since the last wake-up.  Render thread only.
+     */
+    private void processPending() {
+        int queued;
+        int latestCount = 0;
+        long frameNanos;
+        int missedFrames;
+        synchronized (mLock) {
+            mWakePosted = false;
+
+            queued = mQueueCount;
+            if (mDrainQueue.length < queued) {
+                mDrainQueue = allocCommands(mQueue.length);
+            }
+            for (int i = 0; i < queued; i++) {
+                Command src = mQueue[(mQueueHead + i) % mQueue.length];
+                mDrainQueue[i].set(src.what, src.arg1, src.arg2, src.obj);
+                src.obj = null;
+            }
+            mQueueHead = (mQueueHead + queued) % mQueue.length;
+            mQueueCount = 0;
+
+            if (mLatestPendingCount != 0) {
+                for (int slot = 0; slot < MAX_LATEST_SLOTS; slot++) {
+                    if (mLatestPending[slot]) {
+                        Command src = mLatest[slot];
+                        mDrainLatest[latestCount++].set(src.what, src.arg1, src.arg2, src.obj);
+                        mLatestPending[slot] = false;
+                        src.obj = null;
+                    }
+                }
+                mLatestPendingCount = 0;
+            }
+
+            frameNanos = mPendingFrameNanos;
+            mPendingFrameNanos = 0;
+            missedFrames = mPendingMissedFrames;
+            mPendingMissedFrames = 0;
+            mStats.commandCount += queued + latestCount;
+        }
+
+        for (int i = 0; i < queued; i++) {
+            Command cmd = mDrainQueue[i];
+            mCallback.onCommand(cmd.what, cmd.arg1, cmd.arg2, cmd.obj);
+            cmd.obj = null;
+        }
+        for (int i = 0; i < latestCount; i++) {
+            Command cmd = mDrainLatest[i];
+            mCallback.onCommand(cmd.what, cmd.arg1, cmd.arg2, cmd.obj);
+            cmd.obj = null;
+        }
+
+        if (frameNanos != 0) {
+            long startNanos = System.nanoTime();
+            mCallback.onFrame(frameNanos, missedFrames);
+            long workNanos = System.nanoTime() - startNanos;
+
+            synchronized (mLock) {
+                mStats.frameCount++;
+                mStats.totalFrameNanos += workNanos;
+                if (workNanos > mStats.maxFrameNanos) {
+                    mStats.maxFrameNanos = workNanos;
+                }
+                if (mPrevFrameNanos != 0) {
+                    long interval = frameNanos - mPrevFrameNanos;
+                    if (interval > mStats.maxIntervalNanos) {
+                        mStats.maxIntervalNanos = interval;
+                    }
+                }
+            }
+            mPrevFrameNanos = frameNanos;
+        }
+    }
+
+    private String describeStats() {
+        synchronized (mLock) {
+            return mStats.toString();
+        }
+    }
+}
@@ -18,13 +18,10 @@ package com.android.grafika;
 
 import android.opengl.GLES20;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
+import android.os.Process;
 import android.os.Trace;
 import android.app.Activity;
 import android.util.Log;
-import android.view.Choreographer;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
@@ -39,7 +36,8 @@ import com.android.grafika.gles.EglCore;
 import com.android.grafika.gles.GlUtil;
 import com.android.grafika.gles.WindowSurface;
 
-import java.lang.ref.WeakReference;
+import java.io.File;
+import java.io.IOException;
 
 /**
  * Exercises a SurfaceFlinger feature that defers acquisition of a buffer until a
@@ -54,34 +52,32 @@ import java.lang.ref.WeakReference;
  * enhancements may cause the Choreographer-reported vsync time to be offset from the
  * actual-reported vsync time (which may itself be slightly offset from the actual-actual
  * vsync time).  None of this is terribly important unless you care about A/V sync.
+ * <p>
+ * The render thread is a RenderLoop at normal priority, since scheduling ahead is what's
+ * supposed to let us get away without an elevated one.
  */
 public class ScheduledSwapActivity extends Activity implements OnItemSelectedListener,
-        SurfaceHolder.Callback, Choreographer.FrameCallback {
+        SurfaceHolder.Callback {
     private static final String TAG = MainActivity.TAG;
 
-    private final static long ONE_MILLISECOND_NS = 1000000;
-
     /**
-     * Frame update patterns.  Each digit represents the number of times a given source
-     * frame will be repeated.  The associated labels ("30 fps") assume the display refresh
-     * is 60fps.  If it's not, to meet the expected frame rate you'd either need to
-     * pre-compute arrays for expected refresh rates, or just compute the hold counts
-     * dynamically.  Using fixed patterns here removes a potential source of non-determinism,
-     * making it easier to analyze the output with systrace.
+     * Frame update rates.  The hold pattern for each -- the number of times each source
+     * frame is repeated -- is computed by FrameCadence from the measured display refresh, so
+     * the labels are right on 90Hz and 120Hz displays as well as 60Hz.  The patterns are
+     * still fixed for a given display, which keeps the output deterministic and easy to
+     * analyze with systrace.
      * <p>
-     * For example, for 24 fps we use an alternating pattern of 3 and 2 (3-2 pulldown).  This
-     * means every 2 frames of source material is held on screen for a total of 5 frames;
-     * 2x12=24, 5x12=60.
+     * For example, 24 fps on a 60Hz display gives an alternating pattern of 3 and 2 (3-2
+     * pulldown).  This means every 2 frames of source material is held on screen for a total
+     * of 5 frames; 2x12=24, 5x12=60.
+     * <p>
+     * A rate of zero selects ERRATIC_HOLDS.
      */
-    private static final String[] UPDATE_PATTERNS = {   // sync with scheduledSwapUpdateNames
-        "4",        // 15 fps
-        "32",       // 24 fps
-        "32322",    // 25 fps
-        "2",        // 30 fps
-        "2111",     // 48 fps
-        "1",        // 60 fps
-        "15"        // erratic, useful for examination with systrace
+    private static final int[] UPDATE_RATES = {   // sync with scheduledSwapUpdateNames
+        15, 24, 25, 30, 48, 60,
+        0           // erratic, useful for examination with systrace
     };
+    private static final int[] ERRATIC_HOLDS = { 1, 5 };
 
     /**
      * How far ahead of time we schedule frames.
@@ -92,8 +88,9 @@ public class ScheduledSwapActivity extends Activity implements OnItemSelectedLis
      * <p>
      * N=2 is safe, N=1 requires everything to be running quickly *and* be using nonzero
      * DispSync offsets, and N=0 is impossible.  The BufferQueue will probably have three
-     * buffers, one of which will be tied up by the display, so N=3 will cause us to stall
-     * in eglSwapBuffers() if we're submitting at 60Hz.
+     * buffers, one of which will be tied up by the display, so N=3 would cause us to stall
+     * in eglSwapBuffers() if we're submitting at 60Hz.  FramePacer keeps at most MAX_QUEUED
+     * buffers queued, so N=3 isn't offered.
      * <p>
      * We could just blast frames as quickly as possible; eglSwapBuffers() will stall
      * when necessary.  However, it will be harder to tell if we're falling behind and need
@@ -102,11 +99,11 @@ public class ScheduledSwapActivity extends Activity implements OnItemSelectedLis
      * handle that in the app.)
      */
     private static final int[] FRAME_AHEAD = {  // sync with scheduledSwapAheadNames
-        0, 1, 2, 3
+        0, 1, 2         // no more than FramePacer.MAX_QUEUED
     };
 
     // Rendering code runs on this thread.  The thread's life span is tied to the Surface.
-    private RenderThread mRenderThread;
+    private RenderLoop mRenderLoop;
 
     private long mRefreshPeriodNs;
 
@@ -151,11 +148,12 @@ public class ScheduledSwapActivity extends Activity implements OnItemSelectedLis
     protected void onPause() {
         super.onPause();
 
-        // If the callback was posted, remove it.  This stops the notifications.  Ideally we
-        // would send a message to the thread letting it know, so when it wakes up it can
-        // reset its notion of when the previous Choreographer event arrived.
-        Log.d(TAG, "onPause unhooking choreographer");
-        Choreographer.getInstance().removeFrameCallback(this);
+        // Stop the frame notifications.  FramePacer will count the gap as skipped vsyncs
+        // when we resume.
+        Log.d(TAG, "onPause pausing frames");
+        if (mRenderLoop != null) {
+            mRenderLoop.pauseFrames();
+        }
     }
 
     @Override
@@ -163,31 +161,27 @@ public class ScheduledSwapActivity extends Activity implements OnItemSelectedLis
         super.onResume();
 
         // If we already have a Surface, we just need to resume the frame notifications.
-        if (mRenderThread != null) {
-            Log.d(TAG, "onResume re-hooking choreographer");
-            Choreographer.getInstance().postFrameCallback(this);
+        if (mRenderLoop != null) {
+            Log.d(TAG, "onResume resuming frames");
+            mRenderLoop.resumeFrames();
         }
     }
 
     @Override
     public void surfaceCreated(SurfaceHolder holder) {
         Log.d(TAG, "surfaceCreated holder=" + holder);
-        // If we already have a Surface, we just need to resume the frame notifications.
 
         SurfaceView sv = (SurfaceView) findViewById(R.id.scheduledSwap_surfaceView);
-        mRenderThread = new RenderThread(sv.getHolder(), this);
-        mRenderThread.setName("ScheduledSwap GL render");
-        mRenderThread.start();
-        mRenderThread.waitUntilReady();
-
-        RenderHandler rh = mRenderThread.getHandler();
-        if (rh != null) {
-            rh.sendSetParameters(mUpdatePatternIndex, mFramesAheadIndex);
-            rh.sendSurfaceCreated();
-        }
+        mRenderLoop = new RenderLoop("ScheduledSwap GL render",
+                Process.THREAD_PRIORITY_DEFAULT, new Renderer(sv.getHolder(), this));
+        mRenderLoop.start();
+
+        mRenderLoop.postLatest(Renderer.SLOT_PARAMETERS, mUpdatePatternIndex, mFramesAheadIndex,
+                null);
+        mRenderLoop.post(Renderer.CMD_SURFACE_CREATED, 0, 0, null);
 
         // start the draw events
-        Choreographer.getInstance().postFrameCallback(this);
+        mRenderLoop.resumeFrames();
     }
 
     @Override
@@ -195,10 +189,8 @@ public class ScheduledSwapActivity extends Activity implements OnItemSelectedLis
         Log.d(TAG, "surfaceChanged fmt=" + format + " size=" + width + "x" + height +
                 " holder=" + holder);
 
-        RenderHandler rh = mRenderThread.getHandler();
-        if (rh != null) {
-            rh.sendSurfaceChanged(format, width, height);
-        }
+        // ignore format
+        mRenderLoop.postLatest(Renderer.SLOT_SURFACE_CHANGED, width, height, null);
     }
 
     @Override
@@ -209,36 +201,12 @@ public class ScheduledSwapActivity extends Activity implements OnItemSelectedLis
         // don't want the Surface to disappear out from under it mid-render.  The frame
         // notifications will have been stopped back in onPause(), but there might have
         // been one in progress.
-
-        RenderHandler rh = mRenderThread.getHandler();
-        if (rh != null) {
-            rh.sendShutdown();
-            try {
-                mRenderThread.join();
-            } catch (InterruptedException ie) {
-                // not expected
-                throw new RuntimeException("join was interrupted", ie);
-            }
-        }
-        mRenderThread = null;
+        mRenderLoop.stop();
+        mRenderLoop = null;
 
         Log.d(TAG, "surfaceDestroyed complete");
     }
 
-    /**
-     * Choreographer callback, called near vsync.
-     */
-    @Override
-    public void doFrame(long frameTimeNanos) {
-        // The events should not start until the RenderThread is created, and should stop
-        // before it's nulled out.
-        RenderHandler rh = mRenderThread.getHandler();
-        if (rh != null) {
-            Choreographer.getInstance().postFrameCallback(this);
-            rh.sendDoFrame(frameTimeNanos);
-        }
-    }
-
     // spinner item selected
     @Override
     public void onItemSelected(AdapterView<?> parent, View view, int pos, long id) {
@@ -262,14 +230,12 @@ public class ScheduledSwapActivity extends Activity implements OnItemSelectedLis
             throw new RuntimeException("Unknown spinner");
         }
 
-        if (mRenderThread == null) {
+        if (mRenderLoop == null) {
             // huh
             Log.d(TAG, "In onItemSelected while the activity is paused");
         } else if (updated) {
-            RenderHandler rh = mRenderThread.getHandler();
-            if (rh != null) {
-                rh.sendSetParameters(mUpdatePatternIndex, mFramesAheadIndex);
-            }
+            mRenderLoop.postLatest(Renderer.SLOT_PARAMETERS, mUpdatePatternIndex,
+                    mFramesAheadIndex, null);
         }
     }
 
@@ -289,33 +255,40 @@ public class ScheduledSwapActivity extends Activity implements OnItemSelectedLis
     }
 
     /**
-     * This class handles all OpenGL rendering.
+     * This class handles all OpenGL rendering.  It runs on a RenderLoop thread.
      * <p>
-     * Start the render thread after the Surface has been created.
+     * Start the render loop after the Surface has been created.
+     * <p>
+     * If the render thread falls behind, RenderLoop delivers only the most recent vsync.
+     * FramePacer counts the ones in between as skips, the same as when Choreographer itself
+     * misses a frame, and the update pattern advances by one step rather than replaying
+     * stale frames.
      */
-    private static class RenderThread extends Thread {
-        // Object must be created on render thread to get correct Looper, but is used from
-        // UI thread, so we need to declare it volatile to ensure the UI thread sees a fully
-        // constructed object.
-        private volatile RenderHandler mHandler;
+    private static class Renderer implements RenderLoop.Callback {
+        // Commands.  The parameters and surface size only care about the most recent value,
+        // so those are coalesced.
+        public static final int SLOT_PARAMETERS = 0;
+        public static final int SLOT_SURFACE_CHANGED = 1;
+        public static final int CMD_SURFACE_CREATED = RenderLoop.MAX_LATEST_SLOTS;
 
         // A reference to our Activity, so we can update the UI with runOnUiThread().
         private ScheduledSwapActivity mActivity;
 
-        // Used to wait for the thread to start.
-        private Object mStartLock = new Object();
-        private boolean mReady = false;
-
         private volatile SurfaceHolder mSurfaceHolder;  // may be updated by UI thread
         private EglCore mEglCore;
         private WindowSurface mWindowSurface;
 
         private int mUpdatePatternOffset;
         private int mHoldFrames;
+        private FrameCadence mCadence;          // null for the erratic pattern
 
-        private int mChoreographerSkips;
-        private int mDroppedFrames;
-        private long mPreviousRefreshNs;
+        private FramePacer mFramePacer;
+        private final FramePacer.Stats mPacerStats = new FramePacer.Stats();
+        private long mReportedDrops;
+
+        private final FrameStats mFrameStats;
+        private final FrameStats.Snapshot mStatsSnapshot = new FrameStats.Snapshot();
+        private final File mStatsFile;
 
         // These have slightly different names from the equivalents in the Activity to reduce
         // confusion.
@@ -334,70 +307,58 @@ public class ScheduledSwapActivity extends Activity implements OnItemSelectedLis
         /**
          * Pass in the SurfaceView's SurfaceHolder.  Note the Surface may not yet exist.
          */
-        public RenderThread(SurfaceHolder holder, ScheduledSwapActivity activity) {
+        public Renderer(SurfaceHolder holder, ScheduledSwapActivity activity) {
             mSurfaceHolder = holder;
             mActivity = activity;
 
             // Query the display for its approximate refresh rate.
             mRefreshPeriodNs = MiscUtils.getDisplayRefreshNsec(activity);
+            mFramePacer = new FramePacer(mRefreshPeriodNs, FRAME_AHEAD[mFramesAheadIdx]);
+            mCadence = FrameCadence.get(UPDATE_RATES[mUpdatePatternIdx], mRefreshPeriodNs);
+            mFrameStats = new FrameStats("ScheduledSwap", mRefreshPeriodNs);
+            mStatsFile = new File(activity.getFilesDir(), FrameStats.EXPORT_FILE_NAME);
         }
 
-        /**
-         * Thread entry point.
-         * <p>
-         * The thread should not be started until the Surface associated with the SurfaceHolder
-         * has been created.  That way we don't have to wait for a separate "surface created"
-         * message to arrive.
-         */
         @Override
-        public void run() {
-            Looper.prepare();
-            mHandler = new RenderHandler(this);
+        public void onLoopStarted() {
             mEglCore = new EglCore(null, EglCore.FLAG_RECORDABLE | EglCore.FLAG_TRY_GLES3);
-            synchronized (mStartLock) {
-                mReady = true;
-                mStartLock.notify();    // signal waitUntilReady()
-            }
-
-            Looper.loop();
+        }
 
-            Log.d(TAG, "looper quit");
+        @Override
+        public void onLoopStopped() {
+            mFramePacer.getStats(mPacerStats);
+            Log.d(TAG, "pacing: " + mPacerStats);
+            mFrameStats.snapshot(mStatsSnapshot);
+            Log.d(TAG, mStatsSnapshot.toString());
+            try {
+                mStatsSnapshot.appendTo(mStatsFile);
+            } catch (IOException ioe) {
+                Log.w(TAG, "Unable to write " + mStatsFile, ioe);
+            }
             releaseGl();
             mEglCore.release();
-
-            synchronized (mStartLock) {
-                mReady = false;
-            }
         }
 
-        /**
-         * Waits until the render thread is ready to receive messages.
-         * <p>
-         * Call from the UI thread.
-         */
-        public void waitUntilReady() {
-            synchronized (mStartLock) {
-                while (!mReady) {
-                    try {
-                        mStartLock.wait();
-                    } catch (InterruptedException ie) { /* not expected */ }
-                }
+        @Override
+        public void onCommand(int what, int arg1, int arg2, Object obj) {
+            switch (what) {
+                case CMD_SURFACE_CREATED:
+                    surfaceCreated();
+                    break;
+                case SLOT_SURFACE_CHANGED:
+                    surfaceChanged(arg1, arg2);
+                    break;
+                case SLOT_PARAMETERS:
+                    setParameters(arg1, arg2);
+                    break;
+                default:
+                    throw new RuntimeException("unknown command " + what);
             }
         }
 
-        /**
-         * Shuts everything down.
-         */
-        private void shutdown() {
-            Log.d(TAG, "shutdown");
-            Looper.myLooper().quit();
-        }
-
-        /**
-         * Returns the render thread's Handler.  This may be called from any thread.
-         */
-        public RenderHandler getHandler() {
-            return mHandler;
+        @Override
+        public void onFrame(long frameTimeNanos, int missedFrames) {
+            doFrame(frameTimeNanos);
         }
 
         /**
@@ -439,7 +400,7 @@ public class ScheduledSwapActivity extends Activity implements OnItemSelectedLis
         /**
          * Handles changes to the size of the underlying surface.  Adjusts viewport as needed.
          * Must be called before we start drawing.
-         * (Called from RenderHandler.)
+         * (Called from onCommand().)
          */
         private void surfaceChanged(int width, int height) {
             Log.d(TAG, "surfaceChanged " + width + "x" + height);
@@ -460,6 +421,10 @@ public class ScheduledSwapActivity extends Activity implements OnItemSelectedLis
                 mUpdatePatternIdx = updatePatternIndex;
                 mFramesAheadIdx = framesAheadIndex;
                 mUpdatePatternOffset = mHoldFrames = 0;
+                int rate = UPDATE_RATES[updatePatternIndex];
+                mCadence = (rate == 0) ? null : FrameCadence.get(rate, mRefreshPeriodNs);
+                Log.d(TAG, "Cadence: " + (mCadence == null ? "erratic" : mCadence));
+                mFramePacer.setFramesAhead(FRAME_AHEAD[framesAheadIndex]);
                 Log.d(TAG, "Parameters now " + mUpdatePatternIdx + " / " + mFramesAheadIdx);
             }
         }
@@ -467,10 +432,10 @@ public class ScheduledSwapActivity extends Activity implements OnItemSelectedLis
         /**
          * Advance state and draw frame in response to a Choreographer vsync event.
          * <p>
-         * This currently just kicks out frames with timestamp: reported-vsync + (N * refresh).
-         * We don't drop frames, and we complain in situations that are recoverable.
+         * Frames get timestamp: reported-vsync + (N * refresh).  FramePacer decides which
+         * frames to drop.
          */
-        public void doFrame(long frameTimeNs) {
+        private void doFrame(long frameTimeNs) {
             // Why do we want to use the PTS feature?
             //
             // When you submit a buffer for display, it gets latched by SurfaceFlinger, and
@@ -543,38 +508,62 @@ public class ScheduledSwapActivity extends Activity implements OnItemSelectedLis
             // deadline.  The disadvantage to doing it this way is that it will look terrible
             // on pre-4.4 devices that don't have the PTS handling in SurfaceFlinger.
 
-            // TODO: the existing code isn't particularly sophisticated, and does not fully
-            // implement what is described above.  It just kicks out frames and complains a
-            // little if we appear to be falling behind.
-            boolean draw = advance(frameTimeNs);
+            // FramePacer implements the above: it keeps at most two buffers queued, and
+            // drops frames that can't make their target or would collide with the previous
+            // one.  Dropping a frame doesn't stall the animation, which is driven by the
+            // update pattern rather than by what actually reached the screen.
+            mFramePacer.onVsync(frameTimeNs);
+            mFrameStats.beginFrame(frameTimeNs);
+            boolean draw = advance();
+            mFrameStats.stageDone(FrameStats.STAGE_UPDATE);
 
             if (draw) {
-                Trace.beginSection("doFrame draw");
-                mWindowSurface.makeCurrent();
-                draw();
-
-                // Set the timestamp.  The refresh period is approximate, so this value may
-                // be slightly off of the actual refresh time, but SurfaceFlinger provides
-                // for some amount of slop.
-                int framesAhead = FRAME_AHEAD[mFramesAheadIdx];
-                if (framesAhead > 0) {
-                    long presentNs = frameTimeNs + mRefreshPeriodNs * framesAhead;
-                    mWindowSurface.setPresentationTime(presentNs);
-                }
+                long presentNs = mFramePacer.scheduleFrame();
+                if (presentNs == FramePacer.DROP) {
+                    Trace.beginSection("doFrame drop");
+                    mFrameStats.frameDropped();
+                    Log.d(TAG, frameTimeNs + ": dropping frame, " +
+                            (System.nanoTime() - frameTimeNs) / 1000000.0 + " ms after vsync");
+                } else {
+                    Trace.beginSection("doFrame draw");
+                    mWindowSurface.makeCurrent();
+                    draw();
+                    mFrameStats.stageDone(FrameStats.STAGE_DRAW);
+
+                    // Set the timestamp.  The refresh period is approximate, so this value
+                    // may be slightly off of the actual refresh time, but SurfaceFlinger
+                    // provides for some amount of slop.
+                    if (mFramePacer.getFramesAhead() > 0) {
+                        mWindowSurface.setPresentationTime(presentNs);
+                    }
 
-                mWindowSurface.swapBuffers();
+                    mWindowSurface.swapBuffers();
+                    mFrameStats.stageDone(FrameStats.STAGE_SWAP);
+                    mFramePacer.frameSubmitted();
+                }
             } else {
                 Trace.beginSection("doFrame nodraw");
             }
             Trace.endSection();
+
+            reportDrops();
         }
 
         /**
          * Returns the hold time for the current update pattern index/offset.
          */
         private int getHoldTime() {
-            char ch = UPDATE_PATTERNS[mUpdatePatternIdx].charAt(mUpdatePatternOffset);
-            return ch - '0';
+            if (mCadence == null) {
+                return ERRATIC_HOLDS[mUpdatePatternOffset % ERRATIC_HOLDS.length];
+            }
+            return mCadence.getHold(mUpdatePatternOffset);
+        }
+
+        /**
+         * Returns the length of the current update pattern.
+         */
+        private int getPatternLength() {
+            return mCadence == null ? ERRATIC_HOLDS.length : mCadence.getLength();
         }
 
         /**
@@ -582,190 +571,65 @@ public class ScheduledSwapActivity extends Activity implements OnItemSelectedLis
          *
          * @return True if something has visibly changed and we need to redraw.
          */
-        private boolean advance(long frameTimeNs) {
+        private boolean advance() {
             boolean draw = false;
 
             if (mHoldFrames > 1) {
                 mHoldFrames--;
                 //Log.v(TAG, "holding (now " + mHoldFrames + ")");
             } else {
-                mUpdatePatternOffset =
-                        (mUpdatePatternOffset + 1) % UPDATE_PATTERNS[mUpdatePatternIdx].length();
-                mHoldFrames = getHoldTime();
+                // If the content rate is higher than the display's, some source frames have
+                // a hold time of zero; they're never shown, but the animation still advances.
+                do {
+                    mUpdatePatternOffset = (mUpdatePatternOffset + 1) % getPatternLength();
+                    mHoldFrames = getHoldTime();
+
+                    mPosition += mSpeed;
+                    if (mPosition < -mSpeed || mPosition + mBlockWidth + mSpeed >= mWidth) {
+                        // next frame will draw partly offscreen; reverse course now
+                        mSpeed = -mSpeed;
+                    }
+                } while (mHoldFrames == 0);
                 draw = true;
                 //Log.v(TAG, "drawing (off=" + mUpdatePatternOffset + " hold=" + mHoldFrames + ")");
-
-                mPosition += mSpeed;
-                if (mPosition < -mSpeed || mPosition + mBlockWidth + mSpeed >= mWidth) {
-                    // next frame will draw partly offscreen; reverse course now
-                    mSpeed = -mSpeed;
-                }
-            }
-
-            boolean complain = false;
-
-            // Watch for Choreographer skipping frames.  The current implementation doesn't
-            // handle these.
-            if (mPreviousRefreshNs != 0 &&
-                    frameTimeNs - mPreviousRefreshNs > mRefreshPeriodNs + ONE_MILLISECOND_NS) {
-                mChoreographerSkips++;
-                complain = true;
-                Log.d(TAG, frameTimeNs + ": Choreographer skip: " +
-                        ((frameTimeNs - mPreviousRefreshNs) / 1000000.0) + " ms");
             }
-            mPreviousRefreshNs = frameTimeNs;
 
-            // Check to see if we're falling behind.  We do this by comparing the Choreographer
-            // reported-vsync time to the current time, and seeing if we're already into the
-            // next refresh.
-            //
-            // We could drop a frame by changing "draw" from true to false, but as noted elsewhere
-            // we don't necessarily want to do that every time we miss our window.  For now we
-            // just complain and carry on.
-            long diff = System.nanoTime() - frameTimeNs;
-            if (diff > mRefreshPeriodNs - ONE_MILLISECOND_NS) {
-                Log.d(TAG, frameTimeNs + ": overrun: " + (diff / 1000000.0) + " ms");
-                mDroppedFrames++;       // more like "should have dropped" frames
-                complain = true;
-            }
+            return draw;
+        }
 
-            if (complain) {
+        /**
+         * Updates the UI if the number of dropped frames or Choreographer skips has changed.
+         */
+        private void reportDrops() {
+            mFramePacer.getStats(mPacerStats);
+            final long drops = mPacerStats.getDropped() + mPacerStats.vsyncSkips;
+            if (drops != mReportedDrops) {
+                mReportedDrops = drops;
                 mActivity.runOnUiThread(new Runnable() {
                     @Override public void run() {
-                        mActivity.updateControls(mDroppedFrames + mChoreographerSkips);
+                        mActivity.updateControls((int) drops);
                     }
                  });
             }
-
-            return draw;
         }
 
         /**
          * Draws the scene.
          */
         private void draw() {
-            GlUtil.checkGlError("draw start");
+            if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("draw start");
 
             GLES20.glClearColor(0f, 0f, 0f, 1f);
             GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
             GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
             GLES20.glScissor(mPosition, mHeight * 2 / 8, mBlockWidth, mHeight / 8);
-            GLES20.glClearColor(1f, 1f * (mDroppedFrames & 0x01),
-                    1f * (mChoreographerSkips & 0x01), 1f);
+            GLES20.glClearColor(1f, 1f * (mPacerStats.getDropped() & 0x01),
+                    1f * (mPacerStats.vsyncSkips & 0x01), 1f);
             GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
             GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
 
-            GlUtil.checkGlError("draw done");
-        }
-    }
-
-
-    /**
-     * Handler for RenderThread.  Used for messages sent from the UI thread to the render thread.
-     * <p>
-     * The object is created on the render thread, and the various "send" methods are called
-     * from the UI thread.
-     */
-    private static class RenderHandler extends Handler {
-        private static final int MSG_SURFACE_CREATED = 0;
-        private static final int MSG_SURFACE_CHANGED = 1;
-        private static final int MSG_DO_FRAME = 2;
-        private static final int MSG_SET_PARAMETERS = 3;
-        private static final int MSG_SHUTDOWN = 5;
-
-        // This shouldn't need to be a weak ref, since we'll go away when the Looper quits,
-        // but no real harm in it.
-        private WeakReference<RenderThread> mWeakRenderThread;
-
-        /**
-         * Call from render thread.
-         */
-        public RenderHandler(RenderThread rt) {
-            mWeakRenderThread = new WeakReference<RenderThread>(rt);
-        }
-
-        /**
-         * Sends the "surface created" message.
-         * <p>
-         * Call from UI thread.
-         */
-        public void sendSurfaceCreated() {
-            sendMessage(obtainMessage(RenderHandler.MSG_SURFACE_CREATED));
-        }
-
-        /**
-         * Sends the "surface changed" message, forwarding what we got from the SurfaceHolder.
-         * <p>
-         * Call from UI thread.
-         */
-        public void sendSurfaceChanged(@SuppressWarnings("unused") int format,
-                int width, int height) {
-            // ignore format
-            sendMessage(obtainMessage(RenderHandler.MSG_SURFACE_CHANGED, width, height));
-        }
-
-        /**
-         * Sends the "do frame" message, forwarding the Choreographer event.
-         * <p>
-         * Call from UI thread.
-         */
-        public void sendDoFrame(long frameTimeNanos) {
-            sendMessage(obtainMessage(RenderHandler.MSG_DO_FRAME,
-                    (int) (frameTimeNanos >> 32), (int) frameTimeNanos));
-        }
-
-        /**
-         * Sends the "set parameters" message, updating the indices set by the UI elements.
-         * <p>
-         * Call from UI thread.
-         */
-        public void sendSetParameters(int updatePatternIndex, int framesAheadIndex) {
-            sendMessage(obtainMessage(RenderHandler.MSG_SET_PARAMETERS,
-                    updatePatternIndex, framesAheadIndex));
-        }
-
-        /**
-         * Sends the "shutdown" message, which tells the render thread to halt.
-         * <p>
-         * Call from UI thread.
-         */
-        public void sendShutdown() {
-            sendMessage(obtainMessage(RenderHandler.MSG_SHUTDOWN));
-        }
-
-        @Override  // runs on RenderThread
-        public void handleMessage(Message msg) {
-            int what = msg.what;
-            //Log.d(TAG, "RenderHandler [" + this + "]: what=" + what);
-
-            RenderThread renderThread = mWeakRenderThread.get();
-            if (renderThread == null) {
-                Log.w(TAG, "RenderHandler.handleMessage: weak ref is null");
-                return;
-            }
-
-            switch (what) {
-                case MSG_SURFACE_CREATED:
-                    renderThread.surfaceCreated();
-                    break;
-                case MSG_SURFACE_CHANGED:
-                    renderThread.surfaceChanged(msg.arg1, msg.arg2);
-                    break;
-                case MSG_DO_FRAME:
-                    long timestamp = (((long) msg.arg1) << 32) |
-                                     (((long) msg.arg2) & 0xffffffffL);
-                    renderThread.doFrame(timestamp);
-                    break;
-                case MSG_SET_PARAMETERS:
-                    renderThread.setParameters(msg.arg1, msg.arg2);
-                    break;
-                case MSG_SHUTDOWN:
-                    renderThread.shutdown();
-                    break;
-               default:
-                    throw new RuntimeException("unknown message " + what);
-            }
+            if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("draw done");
         }
     }
 }
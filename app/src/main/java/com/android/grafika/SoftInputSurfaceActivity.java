@@ -52,6 +52,9 @@ public class SoftInputSurfaceActivity extends Activity {
 
     private static final int NUM_FRAMES = 8;
 
+    private static final int EV_DRAIN = EventTrace.register(EventTrace.SUBSYS_ENCODER,
+            "SoftInputSurface drain eos=%d");
+
     // "live" state during recording
     private MediaCodec.BufferInfo mBufferInfo;
     private MediaCodec mEncoder;
@@ -170,7 +173,7 @@ public class SoftInputSurfaceActivity extends Activity {
      * Calling this with endOfStream set should be done once, right before stopping the muxer.
      */
     private void drainEncoder(boolean endOfStream) {
-        Log.d("MyLog", "drainEncoder SoftInputSurfaceActivity");
+        EventTrace.record(EV_DRAIN, endOfStream ? 1 : 0, 0);
         final int TIMEOUT_USEC = 10000;
         if (VERBOSE) Log.d(TAG, "drainEncoder(" + endOfStream + ")");
 
@@ -89,6 +89,9 @@ public class TextureFromCameraActivity extends Activity implements SurfaceHolder
     private static final int REQ_CAMERA_HEIGHT = 720;
     private static final int REQ_CAMERA_FPS = 30;
 
+    private static final int EV_LATCH = EventTrace.register(EventTrace.SUBSYS_CAMERA,
+            "frameAvailable updateTexImage ts=%d");
+
     // The holder for our SurfaceView.  The Surface can outlive the Activity (e.g. when
     // the screen is turned off and back on with the power button).
     //
@@ -146,6 +149,7 @@ public class TextureFromCameraActivity extends Activity implements SurfaceHolder
     protected void onResume() {
         Log.d(TAG, "onResume BEGIN");
         super.onResume();
+        EventTrace.startFromIntent(getIntent());
 
         if (!PermissionHelper.hasCameraPermission(this)) {
             PermissionHelper.requestCameraPermission(this, false);
@@ -187,6 +191,7 @@ public class TextureFromCameraActivity extends Activity implements SurfaceHolder
             throw new RuntimeException("join was interrupted", ie);
         }
         mRenderThread = null;
+        EventTrace.stop();
         Log.d(TAG, "onPause END");
     }
 
@@ -268,8 +273,7 @@ public class TextureFromCameraActivity extends Activity implements SurfaceHolder
 
         // If we're getting preview frames quickly enough we don't really need this, but
         // we don't want to have chunky-looking resize movement if the camera is slow.
-        // OTOH, if we get the updates too quickly (60fps camera?), this could jam us
-        // up and cause us to run behind.  So use with caution.
+        // Redraw requests are coalesced, so rapid updates can't jam us up.
         rh.sendRedraw();
     }
 
@@ -464,6 +468,7 @@ public class TextureFromCameraActivity extends Activity implements SurfaceHolder
         private int mSizePercent = DEFAULT_SIZE_PERCENT;
         private int mRotatePercent = DEFAULT_ROTATE_PERCENT;
         private float mPosX, mPosY;
+        private int mGeometryUpdates;
 
 
         /**
@@ -494,7 +499,8 @@ public class TextureFromCameraActivity extends Activity implements SurfaceHolder
 
             Looper.loop();
 
-            Log.d(TAG, "looper quit");
+            Log.d(TAG, "looper quit; " + mHandler.getInputStats() + ", " + mGeometryUpdates +
+                    " geometry updates");
             releaseCamera();
             releaseGl();
             mEglCore.release();
@@ -631,6 +637,7 @@ public class TextureFromCameraActivity extends Activity implements SurfaceHolder
             mPosX = width / 2.0f;
             mPosY = height / 2.0f;
 
+            mHandler.applyPendingInput(this);
             updateGeometry();
 
             // Ready to go, start the camera.
@@ -661,6 +668,7 @@ public class TextureFromCameraActivity extends Activity implements SurfaceHolder
             float zoomFactor = 1.0f - (mZoomPercent / 100.0f);
             int rotAngle = Math.round(360 * (mRotatePercent / 100.0f));
 
+            mGeometryUpdates++;
             mRect.setScale(newWidth, newHeight);
             mRect.setPosition(mPosX, mPosY);
             mRect.setRotation(rotAngle);
@@ -681,8 +689,18 @@ public class TextureFromCameraActivity extends Activity implements SurfaceHolder
          * Handles incoming frame of data from the camera.
          */
         private void frameAvailable() {
-            Log.d("MyLog", "mCameraTexture.updateTexImage() frameAvailable");
             mCameraTexture.updateTexImage();
+            EventTrace.record(EV_LATCH, mCameraTexture.getTimestamp(), 0);
+            redraw();
+        }
+
+        /**
+         * Applies whatever UI input has arrived since the last frame, then draws.
+         */
+        private void redraw() {
+            if (mHandler.applyPendingInput(this)) {
+                updateGeometry();
+            }
             draw();
         }
 
@@ -690,35 +708,34 @@ public class TextureFromCameraActivity extends Activity implements SurfaceHolder
          * Draws the scene and submits the buffer.
          */
         private void draw() {
-            GlUtil.checkGlError("draw start");
+            if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("draw start");
 
             GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
             GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
             mRect.draw(mTexProgram, mDisplayProjectionMatrix);
             mWindowSurface.swapBuffers();
 
-            GlUtil.checkGlError("draw done");
+            if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("draw done");
         }
 
+        // These are called from RenderHandler#applyPendingInput(), which calls
+        // updateGeometry() once when they're done.
+
         private void setZoom(int percent) {
             mZoomPercent = percent;
-            updateGeometry();
         }
 
         private void setSize(int percent) {
             mSizePercent = percent;
-            updateGeometry();
         }
 
         private void setRotate(int percent) {
             mRotatePercent = percent;
-            updateGeometry();
         }
 
         private void setPosition(int x, int y) {
             mPosX = x;
             mPosY = mWindowSurfaceHeight - y;   // GLES is upside-down
-            updateGeometry();
         }
 
         /**
@@ -801,6 +818,11 @@ public class TextureFromCameraActivity extends Activity implements SurfaceHolder
      * <p>
      * The object is created on the render thread, and the various "send" methods are called
      * from the UI thread.
+     * <p>
+     * The seek bars and touch events can fire much faster than we draw.  Rather than sending
+     * a message for each one, and recomputing the geometry each time, we keep the most
+     * recent value of each parameter in a mailbox.  The render thread picks up whatever is
+     * there just before it draws, so a fast drag costs at most one geometry update per frame.
      */
     private static class RenderHandler extends Handler {
         private static final int MSG_SURFACE_AVAILABLE = 0;
@@ -808,12 +830,21 @@ public class TextureFromCameraActivity extends Activity implements SurfaceHolder
         private static final int MSG_SURFACE_DESTROYED = 2;
         private static final int MSG_SHUTDOWN = 3;
         private static final int MSG_FRAME_AVAILABLE = 4;
-        private static final int MSG_ZOOM_VALUE = 5;
-        private static final int MSG_SIZE_VALUE = 6;
-        private static final int MSG_ROTATE_VALUE = 7;
-        private static final int MSG_POSITION = 8;
         private static final int MSG_REDRAW = 9;
 
+        private static final int NO_VALUE = -1;
+
+        // Latest-value mailboxes.  Guarded by mInputLock.
+        private final Object mInputLock = new Object();
+        private int mPendingZoom = NO_VALUE;
+        private int mPendingSize = NO_VALUE;
+        private int mPendingRotate = NO_VALUE;
+        private boolean mPendingPosition;
+        private int mPendingPosX, mPendingPosY;
+        private boolean mRedrawPosted;
+        private int mInputCount;
+        private int mCoalescedCount;
+
         // This shouldn't need to be a weak ref, since we'll go away when the Looper quits,
         // but no real harm in it.
         private WeakReference<RenderThread> mWeakRenderThread;
@@ -880,50 +911,121 @@ public class TextureFromCameraActivity extends Activity implements SurfaceHolder
         }
 
         /**
-         * Sends the "zoom value" message.  "progress" should be 0-100.
+         * Sets the zoom value.  "progress" should be 0-100.  Takes effect on the next frame.
          * <p>
          * Call from UI thread.
          */
         public void sendZoomValue(int progress) {
-            sendMessage(obtainMessage(MSG_ZOOM_VALUE, progress, 0));
+            synchronized (mInputLock) {
+                countInputLocked(mPendingZoom != NO_VALUE);
+                mPendingZoom = progress;
+            }
         }
 
         /**
-         * Sends the "size value" message.  "progress" should be 0-100.
+         * Sets the size value.  "progress" should be 0-100.  Takes effect on the next frame.
          * <p>
          * Call from UI thread.
          */
         public void sendSizeValue(int progress) {
-            sendMessage(obtainMessage(MSG_SIZE_VALUE, progress, 0));
+            synchronized (mInputLock) {
+                countInputLocked(mPendingSize != NO_VALUE);
+                mPendingSize = progress;
+            }
         }
 
         /**
-         * Sends the "rotate value" message.  "progress" should be 0-100.
+         * Sets the rotate value.  "progress" should be 0-100.  Takes effect on the next frame.
          * <p>
          * Call from UI thread.
          */
         public void sendRotateValue(int progress) {
-            sendMessage(obtainMessage(MSG_ROTATE_VALUE, progress, 0));
+            synchronized (mInputLock) {
+                countInputLocked(mPendingRotate != NO_VALUE);
+                mPendingRotate = progress;
+            }
         }
 
         /**
-         * Sends the "position" message.  Sets the position of the rect.
+         * Sets the position of the rect.  Takes effect on the next frame.
          * <p>
          * Call from UI thread.
          */
         public void sendPosition(int x, int y) {
-            sendMessage(obtainMessage(MSG_POSITION, x, y));
+            synchronized (mInputLock) {
+                countInputLocked(mPendingPosition);
+                mPendingPosition = true;
+                mPendingPosX = x;
+                mPendingPosY = y;
+            }
         }
 
         /**
-         * Sends the "redraw" message.  Forces an immediate redraw.
+         * Sends the "redraw" message, which applies pending input and redraws without
+         * waiting for the next camera frame.  Does nothing if a redraw is already queued.
          * <p>
          * Call from UI thread.
          */
         public void sendRedraw() {
+            synchronized (mInputLock) {
+                if (mRedrawPosted) {
+                    return;
+                }
+                mRedrawPosted = true;
+            }
             sendMessage(obtainMessage(MSG_REDRAW));
         }
 
+        private void countInputLocked(boolean overwrite) {
+            mInputCount++;
+            if (overwrite) {
+                mCoalescedCount++;
+            }
+        }
+
+        /**
+         * Hands the pending input values to the render thread, and empties the mailboxes.
+         * <p>
+         * Call from render thread.
+         *
+         * @return true if anything changed, i.e. the geometry needs to be updated.
+         */
+        public boolean applyPendingInput(RenderThread rt) {
+            synchronized (mInputLock) {
+                boolean changed = false;
+                if (mPendingZoom != NO_VALUE) {
+                    rt.setZoom(mPendingZoom);
+                    mPendingZoom = NO_VALUE;
+                    changed = true;
+                }
+                if (mPendingSize != NO_VALUE) {
+                    rt.setSize(mPendingSize);
+                    mPendingSize = NO_VALUE;
+                    changed = true;
+                }
+                if (mPendingRotate != NO_VALUE) {
+                    rt.setRotate(mPendingRotate);
+                    mPendingRotate = NO_VALUE;
+                    changed = true;
+                }
+                if (mPendingPosition) {
+                    rt.setPosition(mPendingPosX, mPendingPosY);
+                    mPendingPosition = false;
+                    changed = true;
+                }
+                return changed;
+            }
+        }
+
+        /**
+         * Returns a summary of how much UI input was received and how much was coalesced.
+         */
+        public String getInputStats() {
+            synchronized (mInputLock) {
+                return mInputCount + " UI input updates, " + mCoalescedCount + " coalesced";
+            }
+        }
+
         @Override  // runs on RenderThread
         public void handleMessage(Message msg) {
             int what = msg.what;
@@ -951,20 +1053,11 @@ public class TextureFromCameraActivity extends Activity implements SurfaceHolder
                 case MSG_FRAME_AVAILABLE:
                     renderThread.frameAvailable();
                     break;
-                case MSG_ZOOM_VALUE:
-                    renderThread.setZoom(msg.arg1);
-                    break;
-                case MSG_SIZE_VALUE:
-                    renderThread.setSize(msg.arg1);
-                    break;
-                case MSG_ROTATE_VALUE:
-                    renderThread.setRotate(msg.arg1);
-                    break;
-                case MSG_POSITION:
-                    renderThread.setPosition(msg.arg1, msg.arg2);
-                    break;
                 case MSG_REDRAW:
-                    renderThread.draw();
+                    synchronized (mInputLock) {
+                        mRedrawPosted = false;
+                    }
+                    renderThread.redraw();
                     break;
                default:
                     throw new RuntimeException("unknown message " + what);
@@ -18,9 +18,11 @@ package com.android.grafika;
 
 import android.graphics.SurfaceTexture;
 import android.opengl.EGLContext;
+import android.opengl.GLES20;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Trace;
 import android.util.Log;
 
 import com.android.grafika.gles.EglCore;
@@ -79,6 +81,7 @@ public class TextureMovieEncoder implements Runnable {
 
     // ----- accessed by multiple threads -----
     private volatile EncoderHandler mHandler;
+    private volatile FrameLatencyTracer mLatencyTracer;
 
     private Object mReadyFence = new Object();      // guards ready/running
     private boolean mReady;
@@ -172,6 +175,14 @@ public class TextureMovieEncoder implements Runnable {
         }
     }
 
+    /**
+     * Sets the tracer to mark encoder stages in, or null.  Takes effect at the next
+     * startRecording().
+     */
+    public void setLatencyTracer(FrameLatencyTracer tracer) {
+        mLatencyTracer = tracer;
+    }
+
     /**
      * Tells the video recorder to refresh its EGL surface.  (Call from non-encoder thread.)
      */
@@ -324,14 +335,25 @@ public class TextureMovieEncoder implements Runnable {
      */
     private void handleFrameAvailable(float[] transform, long timestampNanos) {
         if (VERBOSE) Log.d(TAG, "handleFrameAvailable tr=" + transform);
+        Trace.beginSection("handleFrameAvailable");
         mVideoEncoder.drainEncoder(false);
         // Use TEXTURE_2D shader for FBO texture
         float[] identity = new float[16];
         android.opengl.Matrix.setIdentityM(identity, 0);
+        // The circle mask doesn't touch the corners; clear them (this also saves tiled GPUs
+        // from reloading the previous frame).
+        GLES20.glClearColor(0f, 0f, 0f, 1f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
         mFullScreen2D.drawFrame(mTextureId, identity, 300, 500);
         drawBox(mFrameNum++);
         mInputWindowSurface.setPresentationTime(timestampNanos);
         mInputWindowSurface.swapBuffers();
+        Trace.endSection();
+
+        FrameLatencyTracer tracer = mLatencyTracer;
+        if (tracer != null) {
+            tracer.mark(FrameLatencyTracer.STAGE_ENCODER_INPUT, timestampNanos);
+        }
     }
 
     /**
@@ -385,6 +407,7 @@ public class TextureMovieEncoder implements Runnable {
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
+        mVideoEncoder.setLatencyTracer(mLatencyTracer);
         mEglCore = new EglCore(sharedContext, EglCore.FLAG_RECORDABLE);
         mInputWindowSurface = new WindowSurface(mEglCore, mVideoEncoder.getInputSurface(), true);
         mInputWindowSurface.makeCurrent();
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.android.grafika.gles.DirectBufferPool;
+import com.android.grafika.gles.Drawable2d;
+import com.android.grafika.gles.EglCore;
+import com.android.grafika.gles.GlUtil;
+import com.android.grafika.gles.OffscreenSurface;
+import com.android.grafika.gles.Sprite2d;
+import com.android.grafika.gles.Texture2dProgram;
+import com.android.grafika.gles.TextureStreamer;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Texture upload speed tests.
+ * <p>
+ * Each iteration uploads TEX_PER_ITER textures, half with a regular pattern that should
+ * compress well and half with random data.  The driver may employ various forms of
+ * cleverness, like not fully processing a texture that never gets used, so we render with
+ * the textures, then render with them again now that they're resident and subtract that off.
+ * The sample is the trimmed time divided by TEX_PER_ITER, i.e. the cost of one texture.
+ * <p>
+ * Three modes:
+ * <ul>
+ * <li>CREATE: glGenTextures + glTexImage2D, the classic createImageTexture() path.  The
+ *     textures are deleted at the end of each iteration.
+ * <li>SUB_IMAGE: glTexSubImage2D() from a client buffer into preallocated textures.
+ * <li>PBO: the same, through a TextureStreamer's ring of unpack buffers.  RGBA only;
+ *     requires GLES 3.
+ * </ul>
+ */
+public class TextureUploadBenchmark extends GlBenchmark {
+    private static final String TAG = MainActivity.TAG;
+
+    /** Benchmark names, for GlBenchmark#create(). */
+    public static final String CREATE = "textureCreate";
+    public static final String SUB_IMAGE = "textureSubImage";
+    public static final String PBO = "texturePbo";
+
+    static final int MODE_CREATE = 0;
+    static final int MODE_SUB_IMAGE = 1;
+    static final int MODE_PBO = 2;
+
+    private static final int TEX_PER_ITER = 8;  // textures uploaded per iteration
+    private static final int PBO_RING_SIZE = 3; // unpack buffers used by the streaming test
+    private static final int OUTPUT_WIDTH = 256;
+    private static final int OUTPUT_HEIGHT = 256;
+
+    private final int mMode;
+    private OffscreenSurface mSurface;
+    private Texture2dProgram mTexProgram;
+    private Sprite2d mRect;
+    private ByteBuffer[] mPixelSource;
+    private int[] mTextureHandles;
+    private TextureStreamer mStreamer;
+
+    TextureUploadBenchmark(BenchmarkConfig config, int mode) {
+        super(config);
+        if (mode == MODE_PBO && config.getBytesPerPixel() != 4) {
+            throw new IllegalArgumentException("PBO upload is RGBA only");
+        }
+        mMode = mode;
+    }
+
+    @Override
+    public boolean requiresGles3() {
+        return mMode == MODE_PBO;
+    }
+
+    @Override
+    public void setUp(EglCore eglCore) {
+        // This can take a second or two.
+        createPixelSources();
+
+        // We use an identity projection matrix, which means the surface coordinates span
+        // from -1 to 1 in both dimensions.
+        mSurface = new OffscreenSurface(eglCore, OUTPUT_WIDTH, OUTPUT_HEIGHT);
+        mSurface.makeCurrent();
+        mTexProgram = new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_2D);
+        mRect = new Sprite2d(new Drawable2d(Drawable2d.Prefab.RECTANGLE));
+
+        // RGB and luminance rows aren't necessarily a multiple of 4 bytes.
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+
+        int width = mConfig.getWidth();
+        int height = mConfig.getHeight();
+        mTextureHandles = new int[TEX_PER_ITER];
+        if (mMode == MODE_PBO) {
+            mStreamer = new TextureStreamer(width, height, PBO_RING_SIZE);
+            for (int i = 0; i < TEX_PER_ITER; i++) {
+                mTextureHandles[i] = mStreamer.createTexture();
+            }
+        } else if (mMode == MODE_SUB_IMAGE) {
+            int glFormat = mConfig.getGlFormat();
+            for (int i = 0; i < TEX_PER_ITER; i++) {
+                mTextureHandles[i] = GlUtil.createImageTexture(null, width, height, glFormat);
+            }
+        }
+        Log.d(TAG, "TextureUploadBenchmark " + mConfig);
+    }
+
+    @Override
+    public long runIteration(int iteration) {
+        int width = mConfig.getWidth();
+        int height = mConfig.getHeight();
+        int glFormat = mConfig.getGlFormat();
+
+        GLES20.glClearColor(1f, 0f, 0f, 1f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+
+        // Alternate the source order, so the same texture isn't getting the same data
+        // every time.
+        int shift = iteration % TEX_PER_ITER;
+        long uploadStartNanos = System.nanoTime();
+        for (int i = 0; i < TEX_PER_ITER; i++) {
+            ByteBuffer pixels = mPixelSource[(i + shift) % TEX_PER_ITER];
+            switch (mMode) {
+                case MODE_CREATE:
+                    // We're also including the time to generate an ID and do the other
+                    // housekeeping, but there's no reason not to include it.
+                    mTextureHandles[i] = GlUtil.createImageTexture(pixels, width, height,
+                            glFormat);
+                    break;
+                case MODE_SUB_IMAGE:
+                    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureHandles[i]);
+                    GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width, height,
+                            glFormat, GLES20.GL_UNSIGNED_BYTE, pixels);
+                    break;
+                case MODE_PBO:
+                    mStreamer.upload(pixels, mTextureHandles[i]);
+                    break;
+                default:
+                    throw new RuntimeException("bad mode " + mMode);
+            }
+        }
+        drawTextures(-0.5f);
+        GLES20.glFinish();
+        long drawEndNanos = System.nanoTime();
+
+        // Render-only pass, to factor out the drawing cost.
+        drawTextures(0.5f);
+        GLES20.glFinish();
+        long redrawEndNanos = System.nanoTime();
+
+        if (mMode == MODE_CREATE) {
+            GLES20.glDeleteTextures(TEX_PER_ITER, mTextureHandles, 0);
+        }
+        mSurface.swapBuffers();
+
+        long trimmedTime = (drawEndNanos - uploadStartNanos) - (redrawEndNanos - drawEndNanos);
+        return Math.max(0, trimmedTime) / TEX_PER_ITER;
+    }
+
+    @Override
+    public void addExtras(BenchmarkResult result) {
+        double meanSec = result.getMeanNanos() / 1e9;
+        if (meanSec > 0) {
+            result.putExtra("mbPerSec", mConfig.getImageBytes() / (1024.0 * 1024.0) / meanSec);
+        }
+        if (mStreamer != null) {
+            result.putExtra("stalls", mStreamer.getStallCount());
+            result.putExtra("uploads", mStreamer.getUploadCount());
+        }
+    }
+
+    @Override
+    public void tearDown() {
+        if (mStreamer != null) {
+            mStreamer.release();
+            mStreamer = null;
+        }
+        if (mTextureHandles != null && mMode != MODE_CREATE) {
+            GLES20.glDeleteTextures(TEX_PER_ITER, mTextureHandles, 0);
+        }
+        mTextureHandles = null;
+        if (mTexProgram != null) {
+            mTexProgram.release();
+            mTexProgram = null;
+        }
+        if (mSurface != null) {
+            mSurface.release();
+            mSurface = null;
+        }
+        releasePixelSources();
+    }
+
+    /**
+     * Renders all textures in a row, centered vertically on the specified position.
+     */
+    private void drawTextures(float centerY) {
+        float rectWidth = 2f / TEX_PER_ITER;
+        float rectHeight = 1f;
+        for (int i = 0; i < TEX_PER_ITER; i++) {
+            mRect.setScale(rectWidth, rectHeight);
+            mRect.setPosition(2f * i / TEX_PER_ITER - 1 + rectWidth / 2, centerY);
+            mRect.setTexture(mTextureHandles[i]);
+            mRect.draw(mTexProgram, GlUtil.IDENTITY_MATRIX);
+        }
+    }
+
+    /**
+     * Creates the pixel data we upload the textures from.
+     */
+    private void createPixelSources() {
+        DirectBufferPool pool = DirectBufferPool.getInstance();
+        Random rand = new Random();
+        mPixelSource = new ByteBuffer[TEX_PER_ITER];
+        for (int i = 0; i < TEX_PER_ITER; i++) {
+            mPixelSource[i] = pool.acquire(mConfig.getImageBytes());
+            if (i < TEX_PER_ITER / 2) {
+                patternPixelSource(mPixelSource[i], i, rand);
+            } else {
+                randomPixelSource(mPixelSource[i], rand);
+            }
+        }
+    }
+
+    /**
+     * Returns the pixel buffers to the pool.
+     */
+    private void releasePixelSources() {
+        if (mPixelSource == null) {
+            return;
+        }
+        DirectBufferPool pool = DirectBufferPool.getInstance();
+        for (int i = 0; i < TEX_PER_ITER; i++) {
+            pool.release(mPixelSource[i]);
+        }
+        mPixelSource = null;
+    }
+
+    /**
+     * Fills the buffer with a regular pattern of 4 colors.  This should compress well.
+     */
+    private void patternPixelSource(ByteBuffer buf, int index, Random rand) {
+        int bpp = mConfig.getBytesPerPixel();
+        int width = mConfig.getWidth();
+        byte[][] colors = new byte[4][bpp];
+        for (int i = 0; i < 4; i++) {
+            rand.nextBytes(colors[i]);
+            if (bpp == 4) {
+                colors[i][3] = (byte) 255;
+            }
+        }
+
+        final int repCount = (index % 4) + 1;
+        byte[] row = new byte[width * bpp];
+        buf.clear();
+        for (int y = 0; y < mConfig.getHeight(); y++) {
+            int colIndex = (y / repCount) % 4;
+            int off = 0;
+            for (int x = 0; x < width; ) {
+                // repeat the color N times (if possible)
+                for (int rep = 0; rep < repCount && x < width; rep++, x++) {
+                    System.arraycopy(colors[colIndex], 0, row, off, bpp);
+                    off += bpp;
+                }
+                colIndex = (colIndex + 1) % 4;
+            }
+            buf.put(row);
+        }
+        buf.clear();
+    }
+
+    /**
+     * Fills the buffer with random data.  This will not compress at all.
+     */
+    private void randomPixelSource(ByteBuffer buf, Random rand) {
+        byte[] row = new byte[mConfig.getWidth() * mConfig.getBytesPerPixel()];
+        buf.clear();
+        for (int y = 0; y < mConfig.getHeight(); y++) {
+            rand.nextBytes(row);
+            buf.put(row);
+        }
+        buf.clear();
+    }
+}
@@ -29,6 +29,9 @@ import android.graphics.SurfaceTexture;
 import com.android.grafika.gles.EglCore;
 import com.android.grafika.gles.WindowSurface;
 
+import java.io.File;
+import java.io.IOException;
+
 /**
  * Simple demonstration of using GLES to draw on a TextureView.
  * <p>
@@ -72,7 +75,8 @@ public class TextureViewGLActivity extends Activity {
         super.onCreate(savedInstanceState);
 
         // Start up the Renderer thread.  It'll sleep until the TextureView is ready.
-        mRenderer = new Renderer();
+        mRenderer = new Renderer(MiscUtils.getDisplayRefreshNsec(this),
+                new File(getFilesDir(), FrameStats.EXPORT_FILE_NAME));
         mRenderer.start();
 
         setContentView(R.layout.activity_texture_view_gl);
@@ -124,8 +128,16 @@ public class TextureViewGLActivity extends Activity {
         private EglCore mEglCore;
         private boolean mDone;
 
-        public Renderer() {
+        // Frame timing for each doAnimation() run.  There's no vsync here, so the interval
+        // is measured from the start of one frame to the start of the next.
+        private final FrameStats mFrameStats;
+        private final FrameStats.Snapshot mStatsSnapshot = new FrameStats.Snapshot();
+        private final File mStatsFile;
+
+        public Renderer(long refreshPeriodNs, File statsFile) {
             super("TextureViewGL Renderer");
+            mFrameStats = new FrameStats("TextureViewGL", refreshPeriodNs);
+            mStatsFile = statsFile;
         }
 
         @Override
@@ -192,6 +204,7 @@ public class TextureViewGLActivity extends Activity {
             int height = eglSurface.getHeight();
 
             Log.d(TAG, "Animating " + width + "x" + height + " EGL surface");
+            mFrameStats.reset();
 
             while (true) {
                 // Check to see if the TextureView's SurfaceTexture is still valid.
@@ -199,11 +212,13 @@ public class TextureViewGLActivity extends Activity {
                     SurfaceTexture surfaceTexture = mSurfaceTexture;
                     if (surfaceTexture == null) {
                         Log.d(TAG, "doAnimation exiting");
+                        reportStats();
                         return;
                     }
                 }
 
                 // Still alive, render a frame.
+                mFrameStats.beginFrame(System.nanoTime());
                 GLES20.glClearColor(clearColor, clearColor, clearColor, 1.0f);
                 GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
@@ -212,6 +227,7 @@ public class TextureViewGLActivity extends Activity {
                 GLES20.glClearColor(1.0f, 0.0f, 0.0f, 1.0f);
                 GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
                 GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+                mFrameStats.stageDone(FrameStats.STAGE_DRAW);
 
                 // Publish the frame.  If we overrun the consumer, frames will be dropped,
                 // so on a sufficiently fast device the animation will run at faster than
@@ -219,6 +235,7 @@ public class TextureViewGLActivity extends Activity {
                 //
                 // If the SurfaceTexture has been destroyed, this will throw an exception.
                 eglSurface.swapBuffers();
+                mFrameStats.stageDone(FrameStats.STAGE_SWAP);
 
                 // Advance state
                 clearColor += 0.015625f;
@@ -230,6 +247,20 @@ public class TextureViewGLActivity extends Activity {
                     Log.d(TAG, "change direction");
                     xdir = -xdir;
                 }
+                mFrameStats.stageDone(FrameStats.STAGE_UPDATE);
+            }
+        }
+
+        /**
+         * Logs the frame statistics for the animation run, and appends them to the stats file.
+         */
+        private void reportStats() {
+            mFrameStats.snapshot(mStatsSnapshot);
+            Log.d(TAG, mStatsSnapshot.toString());
+            try {
+                mStatsSnapshot.appendTo(mStatsFile);
+            } catch (IOException ioe) {
+                Log.w(TAG, "Unable to write " + mStatsFile, ioe);
             }
         }
 
@@ -20,6 +20,7 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
+import android.os.Trace;
 import android.util.Log;
 import android.view.Surface;
 
@@ -46,12 +47,19 @@ public class VideoEncoderCore {
     private static final int FRAME_RATE = 30;               // 30fps
     private static final int IFRAME_INTERVAL = 5;           // 5 seconds between I-frames
 
+    private static final int EV_DRAIN = EventTrace.register(EventTrace.SUBSYS_ENCODER,
+            "VideoEncoderCore drain eos=%d");
+    private static final int EV_STATUS = EventTrace.register(EventTrace.SUBSYS_ENCODER,
+            "VideoEncoderCore encoderStatus=%d pts=%d");
+
     private Surface mInputSurface;
     private MediaMuxer mMuxer;
     private MediaCodec mEncoder;
     private MediaCodec.BufferInfo mBufferInfo;
     private int mTrackIndex;
     private boolean mMuxerStarted;
+    private FrameLatencyTracer mLatencyTracer;
+    private volatile int mEncodedFrames;    // written by the draining thread only
 
 
     /**
@@ -92,6 +100,22 @@ public class VideoEncoderCore {
         mMuxerStarted = false;
     }
 
+    /**
+     * Sets a tracer to mark the encoded and muxed stages in, keyed by PTS.  May be null.
+     */
+    public void setLatencyTracer(FrameLatencyTracer tracer) {
+        mLatencyTracer = tracer;
+    }
+
+    /**
+     * Returns the number of encoded frames that have been drained so far.  May be called
+     * from any thread; comparing it against the number of frames submitted to the input
+     * surface gives the encoder's backlog.
+     */
+    public int getEncodedFrameCount() {
+        return mEncodedFrames;
+    }
+
     /**
      * Returns the encoder's input surface.
      */
@@ -129,7 +153,7 @@ public class VideoEncoderCore {
      * not recording audio.
      */
     public void drainEncoder(boolean endOfStream) {
-        Log.d("MyLog", "drainEncoder VideoEncoderCore");
+        EventTrace.record(EV_DRAIN, endOfStream ? 1 : 0, 0);
         final int TIMEOUT_USEC = 10000;
         if (VERBOSE) Log.d(TAG, "drainEncoder(" + endOfStream + ")");
 
@@ -141,7 +165,8 @@ public class VideoEncoderCore {
         ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
         while (true) {
             int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
-            Log.d("MyLog", "encoderStatus = "+ encoderStatus);
+            EventTrace.record(EV_STATUS, encoderStatus,
+                    encoderStatus >= 0 ? mBufferInfo.presentationTimeUs : 0);
             if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 // no output available yet
                 if (!endOfStream) {
@@ -191,7 +216,17 @@ public class VideoEncoderCore {
                     encodedData.position(mBufferInfo.offset);
                     encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
 
+                    long ptsUsec = mBufferInfo.presentationTimeUs;
+                    if (mLatencyTracer != null) {
+                        mLatencyTracer.markPtsUsec(FrameLatencyTracer.STAGE_ENCODED, ptsUsec);
+                    }
+                    Trace.beginSection("writeSampleData");
                     mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
+                    Trace.endSection();
+                    mEncodedFrames++;
+                    if (mLatencyTracer != null) {
+                        mLatencyTracer.markPtsUsec(FrameLatencyTracer.STAGE_MUXED, ptsUsec);
+                    }
                     if (VERBOSE) {
                         Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
                                 mBufferInfo.presentationTimeUs);
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+/**
+ * The "are we too late to bother rendering this frame?" check used by RecordFBOActivity.
+ * <p>
+ * If we're already within "margin" of the end of the refresh period that started at the
+ * Choreographer frame time, the frame won't make it to the display in time, and we're
+ * better off dropping it to catch up.
+ * <p>
+ * This has no Android dependencies.
+ */
+public class VsyncDeadline {
+    private final long mRefreshPeriodNs;
+    private final long mMarginNs;
+    private final PacingClock mClock;
+
+    public VsyncDeadline(long refreshPeriodNs, long marginNs, PacingClock clock) {
+        mRefreshPeriodNs = refreshPeriodNs;
+        mMarginNs = marginNs;
+        mClock = clock;
+    }
+
+    /**
+     * Returns the time that has passed since the Choreographer frame time.
+     */
+    public long getElapsedNs(long frameTimeNs) {
+        return mClock.nanoTime() - frameTimeNs;
+    }
+
+    /**
+     * Returns the most time that can pass before the frame is dropped.
+     */
+    public long getMaxElapsedNs() {
+        return mRefreshPeriodNs - mMarginNs;
+    }
+
+    /**
+     * Returns true if it's too late to render a frame for this vsync.
+     */
+    public boolean isMissed(long frameTimeNs) {
+        return getElapsedNs(frameTimeNs) > getMaxElapsedNs();
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads pixels back from the GPU without stalling the render thread.
+ * <p>
+ * A plain glReadPixels() into a client buffer has to wait for all pending rendering to
+ * finish and then copy the pixels out, all before it returns.  Here we issue the read into
+ * a GL_PIXEL_PACK_BUFFER, which just queues the transfer, and drop a fence behind it.  The
+ * buffers form a ring; each call to readPixels() starts a new read and hands back the one
+ * that was started N-1 calls earlier, by which time the GPU has usually finished it.
+ * <p>
+ * The mapped PBO contents are copied into a direct ByteBuffer from a small pool, so the
+ * caller can hold on to the pixels (e.g. pass them to another thread) while we reuse the
+ * PBO.  Return buffers with recycle() when done; if you don't, we'll allocate more.
+ * <p>
+ * The data is RGBA, bottom row first, like glReadPixels() provides.
+ * <p>
+ * Requires GLES 3.  Must be created, used, and released on the thread with the EGL context.
+ * <p>
+ * The Java binding for glReadPixels() into a PBO (the variant that takes an offset) only
+ * exists in API 24 and later.  On older releases we fall back to a plain synchronous
+ * glReadPixels(): readPixels() returns the frame it just read, and isAsync() is false.
+ */
+public class AsyncPixelReader {
+    private static final String TAG = GlUtil.TAG;
+
+    private static final int RGBA_BPP = 4;
+    private static final long FENCE_TIMEOUT_NANOS = 100 * 1000000L;
+
+    // GLES30.glReadPixels(..., int offset) was added in API 24.
+    private static final boolean HAS_PBO_READ = Build.VERSION.SDK_INT >= 24;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mBufferSize;
+
+    // Ring of pack buffers.  A slot is "pending" if its fence is nonzero.
+    private final int[] mBuffers;
+    private final long[] mFences;
+    private final long[] mTags;
+    private final long[] mIssueNanos;
+    private int mNext;
+
+    // Pool of direct buffers handed to the caller.
+    private final ByteBuffer[] mFreeBuffers;
+    private int mFreeCount;
+
+    // Info about the most recently returned frame.
+    private long mFrameTag;
+    private long mFrameLatencyNanos;
+
+    private int mReadCount;
+    private int mStallCount;
+    private int mAllocCount;
+
+    /**
+     * Allocates the pixel pack buffers.
+     *
+     * @param width Width of the region to read, in pixels.
+     * @param height Height of the region to read, in pixels.
+     * @param numBuffers Depth of the ring.  A frame comes back numBuffers-1 reads after it
+     *     was issued; 3 is usually enough for the GPU to stay ahead of us.
+     */
+    public AsyncPixelReader(int width, int height, int numBuffers) {
+        if (numBuffers < 2) {
+            throw new IllegalArgumentException("need at least two buffers");
+        }
+        mWidth = width;
+        mHeight = height;
+        mBufferSize = width * height * RGBA_BPP;
+        mBuffers = new int[numBuffers];
+        mFences = new long[numBuffers];
+        mTags = new long[numBuffers];
+        mIssueNanos = new long[numBuffers];
+        mFreeBuffers = new ByteBuffer[numBuffers * 2];
+
+        if (!HAS_PBO_READ) {
+            Log.d(TAG, "AsyncPixelReader: no PBO readback before API 24, reading synchronously");
+            return;
+        }
+        GLES30.glGenBuffers(numBuffers, mBuffers, 0);
+        GlUtil.checkGlError("glGenBuffers");
+        for (int i = 0; i < numBuffers; i++) {
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mBuffers[i]);
+            GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, mBufferSize, null,
+                    GLES30.GL_STREAM_READ);
+            GlUtil.checkGlError("glBufferData");
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        Log.d(TAG, "AsyncPixelReader: " + numBuffers + " x " + mBufferSize + " bytes");
+    }
+
+    /**
+     * Starts reading the current read framebuffer, and returns the oldest outstanding frame
+     * once the ring has filled.
+     *
+     * @param tag Caller-supplied value associated with this frame, e.g. a timestamp.  The
+     *     tag for a returned frame is available from getFrameTag().
+     * @return The pixels of the frame issued numBuffers-1 calls ago, or null if the ring
+     *     hasn't filled yet.  Pass the buffer to recycle() when done with it.
+     */
+    public ByteBuffer readPixels(long tag) {
+        if (!HAS_PBO_READ) {
+            return readPixelsSync(tag);
+        }
+        int index = mNext;
+        mNext = (mNext + 1) % mBuffers.length;
+
+        // We retire the oldest slot at the end of every call, so this one should be idle.
+        if (mFences[index] != 0) {
+            throw new IllegalStateException("read buffer " + index + " still pending");
+        }
+
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mBuffers[index]);
+        // With a PBO bound, the last argument is an offset into the buffer.
+        GLES30.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("glReadPixels");
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        mFences[index] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        mTags[index] = tag;
+        mIssueNanos[index] = System.nanoTime();
+        mReadCount++;
+
+        int oldest = mNext;
+        if (mFences[oldest] == 0) {
+            return null;        // ring not full yet
+        }
+        return retire(oldest);
+    }
+
+    /**
+     * Reads the frame into a pool buffer with a plain glReadPixels(), for releases that
+     * can't read into a PBO.
+     */
+    private ByteBuffer readPixelsSync(long tag) {
+        long startNanos = System.nanoTime();
+        ByteBuffer dest = obtainBuffer();
+        GLES20.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                dest);
+        if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("glReadPixels");
+        mReadCount++;
+        mFrameTag = tag;
+        mFrameLatencyNanos = System.nanoTime() - startNanos;
+        return dest;
+    }
+
+    /**
+     * Returns the oldest outstanding frame, blocking until it's available.  Use this at
+     * the end of a sequence to drain the ring.
+     *
+     * @return The pixels, or null if no reads are outstanding.
+     */
+    public ByteBuffer finish() {
+        for (int i = 0; i < mBuffers.length; i++) {
+            int index = (mNext + i) % mBuffers.length;
+            if (mFences[index] != 0) {
+                return retire(index);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits for the read in the specified slot to complete, and copies the result out.
+     */
+    private ByteBuffer retire(int index) {
+        long fence = mFences[index];
+        int status = GLES30.glClientWaitSync(fence, 0, 0);
+        if (status == GLES30.GL_TIMEOUT_EXPIRED) {
+            mStallCount++;
+            status = GLES30.glClientWaitSync(fence, GLES30.GL_SYNC_FLUSH_COMMANDS_BIT,
+                    FENCE_TIMEOUT_NANOS);
+        }
+        if (status == GLES30.GL_WAIT_FAILED || status == GLES30.GL_TIMEOUT_EXPIRED) {
+            Log.w(TAG, "glClientWaitSync on read buffer " + index + " returned 0x" +
+                    Integer.toHexString(status));
+        }
+        GLES30.glDeleteSync(fence);
+        mFences[index] = 0;
+
+        ByteBuffer dest = obtainBuffer();
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mBuffers[index]);
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER,
+                0, mBufferSize, GLES30.GL_MAP_READ_BIT);
+        if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("glMapBufferRange");
+        if (mapped == null) {
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            throw new RuntimeException("glMapBufferRange failed");
+        }
+        dest.put(mapped);
+        dest.rewind();
+        GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+
+        mFrameTag = mTags[index];
+        mFrameLatencyNanos = System.nanoTime() - mIssueNanos[index];
+        return dest;
+    }
+
+    /**
+     * Gets a buffer from the pool, allocating a new one if the pool is empty.
+     */
+    private ByteBuffer obtainBuffer() {
+        if (mFreeCount > 0) {
+            ByteBuffer buf = mFreeBuffers[--mFreeCount];
+            mFreeBuffers[mFreeCount] = null;
+            buf.clear();
+            return buf;
+        }
+        mAllocCount++;
+        ByteBuffer buf = ByteBuffer.allocateDirect(mBufferSize);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        return buf;
+    }
+
+    /**
+     * Returns a buffer obtained from readPixels() or finish() to the pool.  If the pool is
+     * full the buffer is simply dropped.
+     */
+    public void recycle(ByteBuffer buf) {
+        if (buf.capacity() != mBufferSize || mFreeCount == mFreeBuffers.length) {
+            return;
+        }
+        mFreeBuffers[mFreeCount++] = buf;
+    }
+
+    /**
+     * Returns true if reads go through pixel pack buffers, false if we're falling back to
+     * synchronous reads.
+     */
+    public boolean isAsync() {
+        return HAS_PBO_READ;
+    }
+
+    /**
+     * Returns the tag passed to readPixels() for the most recently returned frame.
+     */
+    public long getFrameTag() {
+        return mFrameTag;
+    }
+
+    /**
+     * Returns the time between issuing the read and getting the pixels back, for the most
+     * recently returned frame.
+     */
+    public long getFrameLatencyNanos() {
+        return mFrameLatencyNanos;
+    }
+
+    /**
+     * Returns the number of reads issued so far.
+     */
+    public int getReadCount() {
+        return mReadCount;
+    }
+
+    /**
+     * Returns the number of times we had to block waiting for the GPU to finish a read.
+     * If this is a significant fraction of the read count, the ring isn't deep enough.
+     */
+    public int getStallCount() {
+        return mStallCount;
+    }
+
+    /**
+     * Returns the number of output buffers allocated.  Should stop increasing once the
+     * pool warms up, as long as the caller recycles buffers.
+     */
+    public int getAllocCount() {
+        return mAllocCount;
+    }
+
+    /**
+     * Releases the buffers and any outstanding fences.  The EGL context must be current.
+     */
+    public void release() {
+        mFreeCount = 0;
+        if (!HAS_PBO_READ) {
+            return;
+        }
+        for (int i = 0; i < mFences.length; i++) {
+            if (mFences[i] != 0) {
+                GLES30.glDeleteSync(mFences[i]);
+                mFences[i] = 0;
+            }
+        }
+        GLES30.glDeleteBuffers(mBuffers.length, mBuffers, 0);
+        GlUtil.checkGlError("glDeleteBuffers");
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+
+/**
+ * A 3D color lookup table, as used for color grading.
+ * <p>
+ * The table maps input RGB to output RGB on an NxNxN grid; values in between are
+ * interpolated.  Tables can be parsed from Adobe/Resolve ".cube" files or unpacked from the
+ * usual 2D "LUT strip" images, and are packed into a 2D strip for upload, since GLES 2 has
+ * no 3D textures.
+ * <p>
+ * The input domain is normally [0,1] on each axis.  A .cube file can declare a different
+ * one with DOMAIN_MIN / DOMAIN_MAX; input colors are mapped from the domain onto the grid
+ * before the lookup.  The output values are used as-is.
+ * <p>
+ * This class doesn't touch GL or Android APIs, so it can be exercised on a desktop JVM.
+ */
+public class ColorLut {
+    /** Largest table we accept.  A 64^3 strip is 4096x64. */
+    public static final int MAX_SIZE = 64;
+
+    private final int mSize;
+    // RGB triplets, red varying fastest, then green, then blue (same order as .cube files).
+    private final float[] mData;
+    private final float[] mDomainMin;
+    private final float[] mDomainMax;
+
+    /**
+     * Creates a table from RGB triplets in the range [0,1], ordered red-fastest, with the
+     * default [0,1] input domain.
+     */
+    public ColorLut(int size, float[] data) {
+        this(size, data, new float[] { 0.0f, 0.0f, 0.0f }, new float[] { 1.0f, 1.0f, 1.0f });
+    }
+
+    /**
+     * Creates a table from RGB triplets in the range [0,1], ordered red-fastest.  The grid
+     * spans domainMin to domainMax on each input axis.
+     */
+    public ColorLut(int size, float[] data, float[] domainMin, float[] domainMax) {
+        if (size < 2 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("bad LUT size " + size);
+        }
+        if (data.length != size * size * size * 3) {
+            throw new IllegalArgumentException("LUT data has " + data.length +
+                    " values, expected " + size * size * size * 3);
+        }
+        if (domainMin.length != 3 || domainMax.length != 3) {
+            throw new IllegalArgumentException("domain must be RGB");
+        }
+        for (int i = 0; i < 3; i++) {
+            if (!(domainMax[i] > domainMin[i])) {
+                throw new IllegalArgumentException("empty domain " + domainMin[i] + " to " +
+                        domainMax[i]);
+            }
+        }
+        mSize = size;
+        mData = data.clone();
+        mDomainMin = domainMin.clone();
+        mDomainMax = domainMax.clone();
+    }
+
+    /**
+     * Returns a table that leaves colors unchanged.
+     */
+    public static ColorLut identity(int size) {
+        float[] data = new float[size * size * size * 3];
+        int idx = 0;
+        for (int b = 0; b < size; b++) {
+            for (int g = 0; g < size; g++) {
+                for (int r = 0; r < size; r++) {
+                    data[idx++] = (float) r / (size - 1);
+                    data[idx++] = (float) g / (size - 1);
+                    data[idx++] = (float) b / (size - 1);
+                }
+            }
+        }
+        return new ColorLut(size, data);
+    }
+
+    /**
+     * Parses a ".cube" file.  Only 3D tables are supported.  DOMAIN_MIN / DOMAIN_MAX set
+     * the input domain; they don't affect the table values.
+     *
+     * @throws IOException if the file can't be read or isn't a valid 3D .cube file.
+     */
+    public static ColorLut parseCube(Reader reader) throws IOException {
+        BufferedReader br = new BufferedReader(reader);
+        int size = -1;
+        float[] domainMin = { 0.0f, 0.0f, 0.0f };
+        float[] domainMax = { 1.0f, 1.0f, 1.0f };
+        float[] data = null;
+        int count = 0;
+        int lineNum = 0;
+
+        String line;
+        while ((line = br.readLine()) != null) {
+            lineNum++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] tokens = line.split("\\s+");
+            String first = tokens[0];
+            char ch = first.charAt(0);
+            boolean numeric = (ch >= '0' && ch <= '9') || ch == '-' || ch == '+' || ch == '.';
+            try {
+                if (numeric) {
+                    if (data == null) {
+                        throw new IOException("line " + lineNum + ": data before LUT_3D_SIZE");
+                    }
+                    if (tokens.length != 3) {
+                        throw new IOException("line " + lineNum + ": expected 3 values");
+                    }
+                    if (count == data.length) {
+                        throw new IOException("line " + lineNum + ": too many entries");
+                    }
+                    for (int i = 0; i < 3; i++) {
+                        data[count++] = Float.parseFloat(tokens[i]);
+                    }
+                } else if (first.equals("LUT_3D_SIZE")) {
+                    size = Integer.parseInt(tokens[1]);
+                    if (size < 2 || size > MAX_SIZE) {
+                        throw new IOException("unsupported LUT_3D_SIZE " + size);
+                    }
+                    data = new float[size * size * size * 3];
+                } else if (first.equals("LUT_1D_SIZE")) {
+                    throw new IOException("1D LUTs are not supported");
+                } else if (first.equals("DOMAIN_MIN") || first.equals("DOMAIN_MAX")) {
+                    float[] dest = first.equals("DOMAIN_MIN") ? domainMin : domainMax;
+                    for (int i = 0; i < 3; i++) {
+                        dest[i] = Float.parseFloat(tokens[i + 1]);
+                    }
+                }
+                // Anything else (TITLE, LUT_3D_INPUT_RANGE, vendor keywords) is ignored.
+            } catch (NumberFormatException nfe) {
+                throw malformed(lineNum, line);
+            } catch (ArrayIndexOutOfBoundsException aioobe) {
+                throw malformed(lineNum, line);
+            }
+        }
+
+        if (data == null) {
+            throw new IOException("no LUT_3D_SIZE found");
+        }
+        if (count != data.length) {
+            throw new IOException("expected " + data.length / 3 + " entries, found " +
+                    count / 3);
+        }
+        for (int i = 0; i < 3; i++) {
+            if (!(domainMax[i] > domainMin[i])) {
+                throw new IOException("bad domain " + domainMin[i] + " to " + domainMax[i]);
+            }
+        }
+        return new ColorLut(size, data, domainMin, domainMax);
+    }
+
+    private static IOException malformed(int lineNum, String line) {
+        return new IOException("line " + lineNum + ": malformed '" + line + "'");
+    }
+
+    /**
+     * Unpacks a table from a 2D image, given as ARGB pixels (e.g. from Bitmap.getPixels()).
+     * Two layouts are recognized:
+     * <ul>
+     * <li>A horizontal strip, N*N wide and N high: N tiles side by side, one per blue
+     *     value, with red increasing to the right and green increasing downward.
+     * <li>A square of tiles, e.g. 512x512 holding 8x8 tiles of 64x64, tiles ordered by
+     *     blue left-to-right then top-to-bottom.
+     * </ul>
+     */
+    public static ColorLut fromImage(int[] argb, int width, int height) {
+        if (argb.length < width * height) {
+            throw new IllegalArgumentException("pixel array too small");
+        }
+        int size;
+        int tilesPerRow;
+        if (width == height * height) {
+            size = height;
+            tilesPerRow = size;
+        } else if (width == height) {
+            // N*sqrt(N) on a side; find N.
+            size = (int) Math.round(Math.pow(width, 2.0 / 3.0));
+            tilesPerRow = (int) Math.round(Math.sqrt(size));
+            if (size * tilesPerRow != width || tilesPerRow * tilesPerRow != size) {
+                throw new IllegalArgumentException("unrecognized square LUT " + width + "x" +
+                        height);
+            }
+        } else {
+            throw new IllegalArgumentException("unrecognized LUT image " + width + "x" +
+                    height);
+        }
+
+        float[] data = new float[size * size * size * 3];
+        int idx = 0;
+        for (int b = 0; b < size; b++) {
+            int tileX = (b % tilesPerRow) * size;
+            int tileY = (b / tilesPerRow) * size;
+            for (int g = 0; g < size; g++) {
+                int rowStart = (tileY + g) * width + tileX;
+                for (int r = 0; r < size; r++) {
+                    int pixel = argb[rowStart + r];
+                    data[idx++] = ((pixel >> 16) & 0xff) / 255.0f;
+                    data[idx++] = ((pixel >> 8) & 0xff) / 255.0f;
+                    data[idx++] = (pixel & 0xff) / 255.0f;
+                }
+            }
+        }
+        return new ColorLut(size, data);
+    }
+
+    /**
+     * Returns N, the number of grid points along each axis.
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Returns the low end of the input domain, as RGB.
+     */
+    public float[] getDomainMin() {
+        return mDomainMin.clone();
+    }
+
+    /**
+     * Returns the high end of the input domain, as RGB.
+     */
+    public float[] getDomainMax() {
+        return mDomainMax.clone();
+    }
+
+    /**
+     * Returns the width of the packed strip, N*N.
+     */
+    public int getStripWidth() {
+        return mSize * mSize;
+    }
+
+    /**
+     * Returns the height of the packed strip, N.
+     */
+    public int getStripHeight() {
+        return mSize;
+    }
+
+    /**
+     * Packs the table into RGBA8 pixels laid out as an (N*N)xN strip, suitable for
+     * glTexImage2D().  Row 0 (the bottom row in GL terms) is green=0; blue selects the tile.
+     *
+     * @param dest Buffer with at least N*N*N*4 bytes remaining.  Filled from its current
+     *     position, which is advanced.
+     */
+    public void packStrip(ByteBuffer dest) {
+        int size = mSize;
+        for (int g = 0; g < size; g++) {
+            for (int b = 0; b < size; b++) {
+                int idx = ((b * size + g) * size) * 3;
+                for (int r = 0; r < size; r++) {
+                    dest.put(toByte(mData[idx++]));
+                    dest.put(toByte(mData[idx++]));
+                    dest.put(toByte(mData[idx++]));
+                    dest.put((byte) 0xff);
+                }
+            }
+        }
+    }
+
+    /**
+     * Looks up a color with trilinear interpolation.  This is a reference for what the
+     * shader computes.
+     *
+     * @param rgb Input color; replaced with the output.
+     */
+    public void lookup(float[] rgb) {
+        int max = mSize - 1;
+        float fr = clamp(toGrid(rgb[0], 0)) * max;
+        float fg = clamp(toGrid(rgb[1], 1)) * max;
+        float fb = clamp(toGrid(rgb[2], 2)) * max;
+        int r0 = Math.min((int) fr, max - 1);
+        int g0 = Math.min((int) fg, max - 1);
+        int b0 = Math.min((int) fb, max - 1);
+        float dr = fr - r0;
+        float dg = fg - g0;
+        float db = fb - b0;
+
+        for (int c = 0; c < 3; c++) {
+            float c00 = lerp(entry(r0, g0, b0, c), entry(r0 + 1, g0, b0, c), dr);
+            float c10 = lerp(entry(r0, g0 + 1, b0, c), entry(r0 + 1, g0 + 1, b0, c), dr);
+            float c01 = lerp(entry(r0, g0, b0 + 1, c), entry(r0 + 1, g0, b0 + 1, c), dr);
+            float c11 = lerp(entry(r0, g0 + 1, b0 + 1, c),
+                    entry(r0 + 1, g0 + 1, b0 + 1, c), dr);
+            rgb[c] = lerp(lerp(c00, c10, dg), lerp(c01, c11, dg), db);
+        }
+    }
+
+    private float toGrid(float val, int channel) {
+        return (val - mDomainMin[channel]) / (mDomainMax[channel] - mDomainMin[channel]);
+    }
+
+    private float entry(int r, int g, int b, int channel) {
+        return mData[((b * mSize + g) * mSize + r) * 3 + channel];
+    }
+
+    private static float lerp(float a, float b, float t) {
+        return a + (b - a) * t;
+    }
+
+    private static float clamp(float val) {
+        return val < 0.0f ? 0.0f : (val > 1.0f ? 1.0f : val);
+    }
+
+    private static byte toByte(float val) {
+        return (byte) Math.round(clamp(val) * 255.0f);
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A process-wide pool of "direct" ByteBuffers.
+ * <p>
+ * Allocating a direct buffer is much slower than allocating a byte[], and the native memory
+ * behind it isn't returned until the GC gets around to finalizing the Java object, which
+ * can take a while if the Java heap isn't under pressure.  Code that needs a large buffer
+ * for a short time should acquire() one here and release() it when done.
+ * <p>
+ * Requests are rounded up to a power of two (minimum 4KB), and each size class keeps a few
+ * free buffers around.  The buffer returned has position 0, limit set to the requested
+ * size, and big-endian byte order, same as a fresh allocateDirect().  The capacity may be
+ * larger than requested.
+ * <p>
+ * Small buffers that live as long as the process, like vertex arrays, can be carved out of
+ * a shared slab with allocatePermanent().  That avoids the per-buffer overhead of
+ * allocateDirect() on tiny allocations.
+ * <p>
+ * Releasing a buffer that's already sitting in the pool is always rejected.  With leak
+ * tracking enabled (do this in debug builds), we also remember where each outstanding
+ * buffer was acquired, reject foreign releases, and can dump the list of buffers that
+ * were never returned.
+ * <p>
+ * Thread-safe.
+ */
+public final class DirectBufferPool {
+    private static final String TAG = GlUtil.TAG;
+
+    private static final int MIN_CLASS_SHIFT = 12;          // 4KB
+    private static final int MAX_CLASS_SHIFT = 26;          // 64MB; bigger isn't pooled
+    private static final int MAX_FREE_PER_CLASS = 4;
+    private static final long MAX_FREE_BYTES = 48 * 1024 * 1024;
+    private static final int SLAB_SIZE = 16 * 1024;
+    private static final int SLAB_ALIGNMENT = 16;
+
+    private static final DirectBufferPool sInstance = new DirectBufferPool();
+
+    private final ArrayDeque<ByteBuffer>[] mFreeLists;
+    private final Set<ByteBuffer> mFreeSet =
+            Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+    private long mFreeBytes;
+
+    private ByteBuffer mSlab;
+
+    private boolean mTrackLeaks;
+    private final Map<ByteBuffer, Throwable> mOutstanding =
+            new IdentityHashMap<ByteBuffer, Throwable>();
+
+    // Statistics.
+    private long mHitCount;
+    private long mMissCount;
+    private long mBytesOutstanding;
+    private long mPeakBytesOutstanding;
+    private long mPermanentBytes;
+
+    /**
+     * Returns the shared pool.
+     */
+    public static DirectBufferPool getInstance() {
+        return sInstance;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private DirectBufferPool() {
+        mFreeLists = new ArrayDeque[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+        for (int i = 0; i < mFreeLists.length; i++) {
+            mFreeLists[i] = new ArrayDeque<ByteBuffer>(MAX_FREE_PER_CLASS);
+        }
+    }
+
+    /**
+     * Enables or disables leak tracking.  Tracking records a stack trace for every acquire(),
+     * so it should only be enabled in debug builds.  Only buffers acquired while tracking is
+     * enabled are tracked; releasing one acquired earlier is rejected as foreign, so turn
+     * this on before the first acquire().
+     */
+    public synchronized void setLeakTracking(boolean enabled) {
+        mTrackLeaks = enabled;
+        if (!enabled) {
+            mOutstanding.clear();
+        }
+    }
+
+    /**
+     * Gets a direct buffer with room for at least "size" bytes.
+     */
+    public ByteBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        ByteBuffer buf = null;
+        synchronized (this) {
+            if (sizeClass >= 0) {
+                buf = mFreeLists[sizeClass].pollFirst();
+            }
+            if (buf != null) {
+                mHitCount++;
+                mFreeSet.remove(buf);
+                mFreeBytes -= buf.capacity();
+            } else {
+                mMissCount++;
+            }
+        }
+
+        if (buf == null) {
+            // Allocate outside the lock; this can be slow.
+            int capacity = sizeClass >= 0 ? 1 << (sizeClass + MIN_CLASS_SHIFT) : size;
+            buf = ByteBuffer.allocateDirect(capacity);
+        }
+        buf.clear();
+        buf.limit(size);
+        buf.order(ByteOrder.BIG_ENDIAN);
+
+        synchronized (this) {
+            mBytesOutstanding += buf.capacity();
+            if (mBytesOutstanding > mPeakBytesOutstanding) {
+                mPeakBytesOutstanding = mBytesOutstanding;
+            }
+            if (mTrackLeaks) {
+                mOutstanding.put(buf, new Throwable("acquired " + size + " bytes"));
+            }
+        }
+        return buf;
+    }
+
+    /**
+     * Returns a buffer obtained from acquire() to the pool.  The caller must not touch the
+     * buffer, or any views created from it, afterward.
+     */
+    public void release(ByteBuffer buf) {
+        int sizeClass = sizeClass(buf.capacity());
+        synchronized (this) {
+            // Reject bad releases before touching any state.  Pooling a buffer twice would
+            // hand it to two acquire() callers at once.
+            if (mFreeSet.contains(buf)) {
+                Log.w(TAG, "DirectBufferPool: double release of " + buf, new Throwable());
+                return;
+            }
+            if (mTrackLeaks && mOutstanding.remove(buf) == null) {
+                // Released twice after being dropped, didn't come from us, or was acquired
+                // before tracking was enabled.  Either way, don't count or pool it.
+                Log.w(TAG, "DirectBufferPool: release of unknown buffer " + buf,
+                        new Throwable());
+                return;
+            }
+            mBytesOutstanding -= buf.capacity();
+
+            if (sizeClass < 0 || buf.capacity() != 1 << (sizeClass + MIN_CLASS_SHIFT)) {
+                return;     // not one of ours, or too big to keep
+            }
+            ArrayDeque<ByteBuffer> freeList = mFreeLists[sizeClass];
+            if (freeList.size() >= MAX_FREE_PER_CLASS ||
+                    mFreeBytes + buf.capacity() > MAX_FREE_BYTES) {
+                return;     // let the GC have it
+            }
+            freeList.addFirst(buf);
+            mFreeSet.add(buf);
+            mFreeBytes += buf.capacity();
+        }
+    }
+
+    /**
+     * Allocates a small direct buffer that will never be released, e.g. for static vertex
+     * data.  The buffer has native byte order.
+     */
+    public ByteBuffer allocatePermanent(int size) {
+        if (size > SLAB_SIZE / 4) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(size);
+            buf.order(ByteOrder.nativeOrder());
+            synchronized (this) {
+                mPermanentBytes += size;
+            }
+            return buf;
+        }
+
+        int alignedSize = (size + SLAB_ALIGNMENT - 1) & ~(SLAB_ALIGNMENT - 1);
+        ByteBuffer buf;
+        synchronized (this) {
+            if (mSlab == null || mSlab.remaining() < alignedSize) {
+                mSlab = ByteBuffer.allocateDirect(SLAB_SIZE);
+            }
+            int start = mSlab.position();
+            mSlab.limit(start + size);
+            buf = mSlab.slice();
+            mSlab.limit(mSlab.capacity());
+            mSlab.position(start + alignedSize);
+            mPermanentBytes += size;
+        }
+        buf.order(ByteOrder.nativeOrder());
+        return buf;
+    }
+
+    /**
+     * Discards all free buffers.  Call this when memory is tight.
+     */
+    public synchronized void trim() {
+        for (ArrayDeque<ByteBuffer> freeList : mFreeLists) {
+            freeList.clear();
+        }
+        mFreeSet.clear();
+        mFreeBytes = 0;
+    }
+
+    /**
+     * Returns true if leak tracking is enabled.
+     */
+    public synchronized boolean isLeakTracking() {
+        return mTrackLeaks;
+    }
+
+    /**
+     * Returns the number of acquire() calls satisfied from the pool.
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Returns the number of acquire() calls that required a new allocation.
+     */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Returns the total capacity of buffers acquired and not yet released.
+     */
+    public synchronized long getBytesOutstanding() {
+        return mBytesOutstanding;
+    }
+
+    /**
+     * Logs the pool statistics, and (if leak tracking is enabled) the acquisition site of
+     * every outstanding buffer.
+     *
+     * @return Number of outstanding tracked buffers.
+     */
+    public synchronized int dumpStats() {
+        Log.i(TAG, "DirectBufferPool: hits=" + mHitCount + " misses=" + mMissCount +
+                " outstanding=" + mBytesOutstanding + " peak=" + mPeakBytesOutstanding +
+                " free=" + mFreeBytes + " permanent=" + mPermanentBytes);
+        for (Map.Entry<ByteBuffer, Throwable> entry : mOutstanding.entrySet()) {
+            Log.w(TAG, "DirectBufferPool: outstanding " + entry.getKey(), entry.getValue());
+        }
+        return mOutstanding.size();
+    }
+
+    /**
+     * Returns the free-list index for a buffer of the given size, or -1 if it's too big
+     * to pool.
+     */
+    private static int sizeClass(int size) {
+        if (size <= 1 << MIN_CLASS_SHIFT) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);    // ceil(log2(size))
+        if (shift > MAX_CLASS_SHIFT) {
+            return -1;
+        }
+        return shift - MIN_CLASS_SHIFT;
+    }
+}
@@ -89,6 +89,23 @@ public class Drawable2d {
     private static final FloatBuffer FULL_RECTANGLE_TEX_BUF =
             GlUtil.createFloatBuffer(FULL_RECTANGLE_TEX_COORDS);
 
+    /**
+     * A disc inscribed in FULL_RECTANGLE, with matching texture coordinates.  Drawing a
+     * texture with this instead of FULL_RECTANGLE masks it to a circle without the fragment
+     * shader having to discard anything, which keeps early depth/hidden-surface removal
+     * working on tiled GPUs.
+     * <p>
+     * Specified as a triangle strip (zig-zagging across the polygon) so it can be drawn the
+     * same way as everything else.
+     */
+    private static final int FULL_DISC_SEGMENTS = 64;
+    private static final float FULL_DISC_COORDS[] = generateDiscStrip(FULL_DISC_SEGMENTS);
+    private static final float FULL_DISC_TEX_COORDS[] = generateDiscTexCoords(FULL_DISC_COORDS);
+    private static final FloatBuffer FULL_DISC_BUF =
+            GlUtil.createFloatBuffer(FULL_DISC_COORDS);
+    private static final FloatBuffer FULL_DISC_TEX_BUF =
+            GlUtil.createFloatBuffer(FULL_DISC_TEX_COORDS);
+
 
     private FloatBuffer mVertexArray;
     private FloatBuffer mTexCoordArray;
@@ -102,7 +119,7 @@ public class Drawable2d {
      * Enum values for constructor.
      */
     public enum Prefab {
-        TRIANGLE, RECTANGLE, FULL_RECTANGLE
+        TRIANGLE, RECTANGLE, FULL_RECTANGLE, FULL_DISC
     }
 
     /**
@@ -133,6 +150,13 @@ public class Drawable2d {
                 mVertexStride = mCoordsPerVertex * SIZEOF_FLOAT;
                 mVertexCount = FULL_RECTANGLE_COORDS.length / mCoordsPerVertex;
                 break;
+            case FULL_DISC:
+                mVertexArray = FULL_DISC_BUF;
+                mTexCoordArray = FULL_DISC_TEX_BUF;
+                mCoordsPerVertex = 2;
+                mVertexStride = mCoordsPerVertex * SIZEOF_FLOAT;
+                mVertexCount = FULL_DISC_COORDS.length / mCoordsPerVertex;
+                break;
             default:
                 throw new RuntimeException("Unknown shape " + shape);
         }
@@ -186,6 +210,41 @@ public class Drawable2d {
         return mCoordsPerVertex;
     }
 
+    /**
+     * Generates a unit-radius polygon as a triangle strip.  Vertex order is 0, 1, N-1, 2,
+     * N-2, ..., which works for any convex polygon.
+     */
+    private static float[] generateDiscStrip(int segments) {
+        float[] coords = new float[segments * 2];
+        int lo = 0;
+        int hi = segments;
+        for (int i = 0; i < segments; i++) {
+            int vertex;
+            if (i == 0) {
+                vertex = 0;
+            } else if ((i & 1) != 0) {
+                vertex = ++lo;
+            } else {
+                vertex = --hi;
+            }
+            double angle = 2.0 * Math.PI * vertex / segments;
+            coords[i * 2] = (float) Math.cos(angle);
+            coords[i * 2 + 1] = (float) Math.sin(angle);
+        }
+        return coords;
+    }
+
+    /**
+     * Maps [-1,1] positions to [0,1] texture coordinates, the same way FULL_RECTANGLE does.
+     */
+    private static float[] generateDiscTexCoords(float[] coords) {
+        float[] texCoords = new float[coords.length];
+        for (int i = 0; i < coords.length; i++) {
+            texCoords[i] = (coords[i] + 1.0f) * 0.5f;
+        }
+        return texCoords;
+    }
+
     @Override
     public String toString() {
         if (mPrefab != null) {
@@ -54,6 +54,7 @@ public final class EglCore {
     private EGLContext mEGLContext = EGL14.EGL_NO_CONTEXT;
     private EGLConfig mEGLConfig = null;
     private int mGlVersion = -1;
+    private boolean mValidationSetUp;
 
 
     /**
@@ -275,6 +276,7 @@ public final class EglCore {
         if (!EGL14.eglMakeCurrent(mEGLDisplay, eglSurface, eglSurface, mEGLContext)) {
             throw new RuntimeException("eglMakeCurrent failed");
         }
+        setUpValidation();
     }
 
     /**
@@ -289,6 +291,17 @@ public final class EglCore {
         if (!EGL14.eglMakeCurrent(mEGLDisplay, drawSurface, readSurface, mEGLContext)) {
             throw new RuntimeException("eglMakeCurrent(draw,read) failed");
         }
+        setUpValidation();
+    }
+
+    /**
+     * Lets GlValidation configure the context the first time it's made current.
+     */
+    private void setUpValidation() {
+        if (!mValidationSetUp) {
+            mValidationSetUp = true;
+            GlValidation.onContextCurrent();
+        }
     }
 
     /**
@@ -309,6 +322,8 @@ public final class EglCore {
      */
     public boolean swapBuffers(EGLSurface eglSurface) {
         Log.d("MyLog", "EGL14.eglSwapBuffers swapBuffers");
+        GlValidation.onSwap();
+        GlUtil.gl().endFrame();
         return EGL14.eglSwapBuffers(mEGLDisplay, eglSurface);
     }
 
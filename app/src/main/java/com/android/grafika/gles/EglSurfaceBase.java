@@ -164,8 +164,7 @@ public class EglSurfaceBase {
         // constructor that takes an int[] wants little-endian ARGB (blue/red swapped), the
         // Bitmap "copy pixels" method wants the same format GL provides.
         //
-        // Ideally we'd have some way to re-use the ByteBuffer, especially if we're calling
-        // here often.
+        // We get the ByteBuffer from the shared pool, since we may be called here often.
         //
         // Making this even more interesting is the upside-down nature of GL, which means
         // our output will look upside down relative to what appears on screen if the
@@ -175,23 +174,57 @@ public class EglSurfaceBase {
 
         int width = getWidth();
         int height = getHeight();
-        ByteBuffer buf = ByteBuffer.allocateDirect(width * height * 4);
-        buf.order(ByteOrder.LITTLE_ENDIAN);
-        GLES20.glReadPixels(0, 0, width, height,
-                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buf);
-        GlUtil.checkGlError("glReadPixels");
-        buf.rewind();
-
+        DirectBufferPool pool = DirectBufferPool.getInstance();
+        ByteBuffer buf = pool.acquire(width * height * 4);
         BufferedOutputStream bos = null;
         try {
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            GLES20.glReadPixels(0, 0, width, height,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buf);
+            GlUtil.checkGlError("glReadPixels");
+            buf.rewind();
+
             bos = new BufferedOutputStream(new FileOutputStream(filename));
             Bitmap bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
             bmp.copyPixelsFromBuffer(buf);
             bmp.compress(Bitmap.CompressFormat.PNG, 90, bos);
             bmp.recycle();
         } finally {
+            pool.release(buf);
             if (bos != null) bos.close();
         }
         Log.d(TAG, "Saved " + width + "x" + height + " frame as '" + filename + "'");
     }
+
+    /**
+     * Reads the EGL surface into a buffer from the FrameDumper's pool, and queues it for
+     * writing.  Unlike saveFrame(), the only cost on this thread is the glReadPixels().
+     * <p>
+     * Expects that this object's EGL surface is current, and that its size matches the
+     * dumper's.
+     *
+     * @param timestampNanos Timestamp to record for the frame, e.g. from System.nanoTime().
+     * @return false if the frame was dropped because the writer has fallen behind.
+     */
+    public boolean dumpFrame(FrameDumper dumper, long timestampNanos) {
+        if (!mEglCore.isCurrent(mEGLSurface)) {
+            throw new RuntimeException("Expected EGL context/surface is not current");
+        }
+        int width = getWidth();
+        int height = getHeight();
+        if (width != dumper.getWidth() || height != dumper.getHeight()) {
+            throw new IllegalArgumentException("surface is " + width + "x" + height +
+                    ", dumper wants " + dumper.getWidth() + "x" + dumper.getHeight());
+        }
+
+        ByteBuffer buf = dumper.obtainBuffer();
+        if (buf == null) {
+            return false;
+        }
+        GLES20.glReadPixels(0, 0, width, height,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buf);
+        GlUtil.checkGlError("glReadPixels");
+        dumper.submit(buf, timestampNanos);
+        return true;
+    }
 }
@@ -0,0 +1,410 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Chains FilterPasses together and renders them with as few draw calls as possible.
+ * <p>
+ * The passes are grouped into stages.  Each stage is one render pass: it starts with either
+ * a sampling pass or a plain texture fetch, and any per-pixel passes that follow are fused
+ * into the same generated fragment shader.  So "grayscale, blur, tint, vignette" is two
+ * render passes, not four.  Intermediate results ping-pong between two off-screen targets
+ * from a RenderTargetPool; the last stage draws straight into the caller's framebuffer.
+ * <p>
+ * Shaders are only regenerated when the list of passes changes.  Programs are cached by
+ * source, so switching back and forth between filters doesn't recompile anything.
+ * <p>
+ * Must be used on the thread with the EGL context.
+ */
+public class FilterGraph {
+    private static final String TAG = GlUtil.TAG;
+
+    // Same attribute/uniform names as Texture2dProgram.
+    private static final String VERTEX_SHADER =
+            "uniform mat4 uTexMatrix;\n" +
+            "attribute vec4 aPosition;\n" +
+            "attribute vec2 aTexCoord;\n" +
+            "varying vec2 vTexCoord;\n" +
+            "void main() {\n" +
+            "    gl_Position = aPosition;\n" +
+            "    vTexCoord = (uTexMatrix * vec4(aTexCoord, 0.0, 1.0)).xy;\n" +
+            "}\n";
+
+    private final Drawable2d mRectDrawable = new Drawable2d(Drawable2d.Prefab.FULL_RECTANGLE);
+    private final RenderTargetPool mTargetPool;
+
+    private final List<FilterPass> mPasses = new ArrayList<FilterPass>();
+    private boolean mDirty = true;
+    private boolean mBuiltForExternal;
+
+    private final List<Stage> mStages = new ArrayList<Stage>();
+    private final HashMap<String, Program> mProgramCache = new HashMap<String, Program>();
+
+    // Ping-pong targets for render(); kept so we don't allocate an array every frame.
+    private final RenderTargetPool.Target[] mTargets = new RenderTargetPool.Target[2];
+
+    /**
+     * A compiled program plus the locations every generated shader has.
+     */
+    private static class Program {
+        int handle;
+        int aPositionLoc;
+        int aTexCoordLoc;
+        int uTexMatrixLoc;
+        int uTexelSizeLoc;      // -1 if unused
+        int sTextureLoc;
+    }
+
+    /**
+     * One render pass: a program plus the FilterPasses baked into it.
+     */
+    private static class Stage {
+        Program program;
+        boolean external;
+        final List<FilterPass> passes = new ArrayList<FilterPass>();
+    }
+
+    /**
+     * Creates an empty graph.  Render targets come from the supplied pool, which may be
+     * shared with other graphs.
+     */
+    public FilterGraph(RenderTargetPool targetPool) {
+        mTargetPool = targetPool;
+    }
+
+    /**
+     * Appends a pass to the end of the graph.
+     */
+    public void addPass(FilterPass pass) {
+        mPasses.add(pass);
+        mDirty = true;
+    }
+
+    /**
+     * Replaces the contents of the graph.
+     */
+    public void setPasses(FilterPass... passes) {
+        mPasses.clear();
+        for (FilterPass pass : passes) {
+            mPasses.add(pass);
+        }
+        mDirty = true;
+    }
+
+    /**
+     * Removes all passes.  An empty graph just copies the input.
+     */
+    public void clear() {
+        mPasses.clear();
+        mDirty = true;
+    }
+
+    /**
+     * Returns the number of render passes the current graph needs.  Only valid after
+     * render() has been called.
+     */
+    public int getStageCount() {
+        return mStages.size();
+    }
+
+    /**
+     * Runs the graph.
+     *
+     * @param inputTexture Texture to filter.
+     * @param external If true, inputTexture is a GL_TEXTURE_EXTERNAL_OES texture (e.g. from
+     *     a SurfaceTexture); otherwise GL_TEXTURE_2D.
+     * @param inputWidth Width of the input texture, in pixels.
+     * @param inputHeight Height of the input texture, in pixels.
+     * @param texMatrix Texture coordinate transform for the input, e.g. from
+     *     SurfaceTexture.getTransformMatrix().  Intermediate stages use identity.
+     * @param outputFramebuffer Where the final stage draws; 0 for the window surface.
+     * @param width Output width, in pixels.  Intermediate targets are this size too.
+     * @param height Output height, in pixels.
+     */
+    public void render(int inputTexture, boolean external, int inputWidth, int inputHeight,
+            float[] texMatrix, int outputFramebuffer, int width, int height) {
+        if (mDirty || mBuiltForExternal != external) {
+            rebuild(external);
+        }
+
+        RenderTargetPool.Target[] targets = mTargets;
+        int numStages = mStages.size();
+        if (numStages > 1) {
+            targets[0] = mTargetPool.acquire(width, height);
+        }
+        if (numStages > 2) {
+            targets[1] = mTargetPool.acquire(width, height);
+        }
+
+        int texture = inputTexture;
+        float texelW = 1.0f / inputWidth;
+        float texelH = 1.0f / inputHeight;
+        float[] matrix = texMatrix;
+        for (int i = 0; i < numStages; i++) {
+            Stage stage = mStages.get(i);
+            int framebuffer;
+            if (i == numStages - 1) {
+                framebuffer = outputFramebuffer;
+            } else {
+                framebuffer = targets[i & 1].getFramebuffer();
+            }
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+            GLES20.glViewport(0, 0, width, height);
+            drawStage(stage, texture, matrix, texelW, texelH);
+
+            if (i != numStages - 1) {
+                texture = targets[i & 1].getTexture();
+                texelW = 1.0f / width;
+                texelH = 1.0f / height;
+                matrix = GlUtil.IDENTITY_MATRIX;
+            }
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, outputFramebuffer);
+
+        for (int i = 0; i < targets.length; i++) {
+            if (targets[i] != null) {
+                mTargetPool.release(targets[i]);
+                targets[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Releases the cached programs.  The render target pool is not affected.
+     */
+    public void release() {
+        for (Program program : mProgramCache.values()) {
+            GLES20.glDeleteProgram(program.handle);
+        }
+        mProgramCache.clear();
+        mStages.clear();
+        mDirty = true;
+    }
+
+    /**
+     * Queues the programs a list of passes will need on a ProgramWarmer, so that a later
+     * setPasses() with the same structure doesn't have to compile anything.  Pick the
+     * results up with adoptPrograms().
+     *
+     * @param name Label for logging.
+     * @param external Whether the graph's input will be an external texture.
+     */
+    public static void prepare(ProgramWarmer warmer, String name, boolean external,
+            FilterPass... passes) {
+        List<FilterPass> passList = new ArrayList<FilterPass>();
+        for (FilterPass pass : passes) {
+            passList.add(pass);
+        }
+        List<Stage> stages = buildStages(passList, external);
+        int passIndex = 0;
+        for (int i = 0; i < stages.size(); i++) {
+            Stage stage = stages.get(i);
+            warmer.add(name + "/" + i, VERTEX_SHADER, generateFragmentShader(stage, passIndex));
+            passIndex += stage.passes.size();
+        }
+    }
+
+    /**
+     * Adds programs compiled by a ProgramWarmer to the cache.  Programs the graph doesn't
+     * need (e.g. ones it has already compiled itself) are deleted.
+     */
+    public void adoptPrograms(ProgramWarmer warmer) {
+        for (ProgramWarmer.Result result : warmer.getResults()) {
+            if (result.program == 0) {
+                continue;
+            }
+            if (!VERTEX_SHADER.equals(result.vertexSource) ||
+                    mProgramCache.containsKey(result.fragmentSource)) {
+                GLES20.glDeleteProgram(result.program);
+                continue;
+            }
+            mProgramCache.put(result.fragmentSource, initProgram(result.program));
+        }
+    }
+
+    /**
+     * Groups the passes into stages.  Each sampling pass starts a new stage.
+     */
+    private static List<Stage> buildStages(List<FilterPass> passes, boolean external) {
+        List<Stage> stages = new ArrayList<Stage>();
+        Stage stage = null;
+        for (FilterPass pass : passes) {
+            if (stage == null || pass.getType() == FilterPass.TYPE_SAMPLING) {
+                stage = new Stage();
+                stage.external = external && stages.isEmpty();
+                stages.add(stage);
+            }
+            stage.passes.add(pass);
+        }
+        if (stages.isEmpty()) {
+            stage = new Stage();
+            stage.external = external;
+            stages.add(stage);
+        }
+        return stages;
+    }
+
+    /**
+     * Groups the passes into stages and finds (or generates) a program for each.
+     */
+    private void rebuild(boolean external) {
+        mStages.clear();
+        mStages.addAll(buildStages(mPasses, external));
+
+        int passIndex = 0;
+        for (Stage st : mStages) {
+            String source = generateFragmentShader(st, passIndex);
+            st.program = mProgramCache.get(source);
+            if (st.program == null) {
+                Log.d(TAG, "FilterGraph: compiling program on demand");
+                st.program = createProgram(source);
+                mProgramCache.put(source, st.program);
+            }
+            for (FilterPass pass : st.passes) {
+                pass.onLinked(st.program.handle, prefix(passIndex++));
+            }
+        }
+
+        Log.d(TAG, "FilterGraph: " + mPasses.size() + " passes -> " + mStages.size() +
+                " stages (" + mProgramCache.size() + " programs cached)");
+        mBuiltForExternal = external;
+        mDirty = false;
+    }
+
+    /**
+     * Generates the fragment shader for a stage.
+     */
+    private static String generateFragmentShader(Stage stage, int firstPassIndex) {
+        StringBuilder sb = new StringBuilder();
+        if (stage.external) {
+            sb.append("#extension GL_OES_EGL_image_external : require\n");
+        }
+        sb.append("precision mediump float;\n");
+        // highp is optional in GLES 2 fragment shaders; passes that want it use HIGHP.
+        sb.append("#ifdef GL_FRAGMENT_PRECISION_HIGH\n");
+        sb.append("#define HIGHP highp\n");
+        sb.append("#else\n");
+        sb.append("#define HIGHP mediump\n");
+        sb.append("#endif\n");
+        sb.append("varying vec2 vTexCoord;\n");
+        sb.append(stage.external ? "uniform samplerExternalOES" : "uniform sampler2D")
+                .append(" sTexture;\n");
+        sb.append("uniform vec2 uTexelSize;\n");
+        sb.append("vec4 sampleInput(vec2 coord) {\n");
+        sb.append("    return texture2D(sTexture, coord);\n");
+        sb.append("}\n");
+
+        int index = firstPassIndex;
+        for (FilterPass pass : stage.passes) {
+            sb.append(pass.getDeclarations().replace("$", prefix(index++)));
+        }
+
+        sb.append("void main() {\n");
+        sb.append("vec4 color;\n");
+        boolean startsWithSampler = !stage.passes.isEmpty() &&
+                stage.passes.get(0).getType() == FilterPass.TYPE_SAMPLING;
+        if (!startsWithSampler) {
+            sb.append("color = sampleInput(vTexCoord);\n");
+        }
+        index = firstPassIndex;
+        for (FilterPass pass : stage.passes) {
+            // Scope each pass so their locals can't collide.
+            sb.append("{\n");
+            sb.append(pass.getCode().replace("$", prefix(index++)));
+            sb.append("}\n");
+        }
+        sb.append("gl_FragColor = color;\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static String prefix(int passIndex) {
+        return "p" + passIndex + "_";
+    }
+
+    private static Program createProgram(String fragmentSource) {
+        int handle = GlUtil.createProgram(VERTEX_SHADER, fragmentSource);
+        if (handle == 0) {
+            throw new RuntimeException("Unable to create filter program");
+        }
+        return initProgram(handle);
+    }
+
+    /**
+     * Looks up the common attribute and uniform locations for a linked program.
+     */
+    private static Program initProgram(int handle) {
+        Program program = new Program();
+        program.handle = handle;
+        program.aPositionLoc = GLES20.glGetAttribLocation(program.handle, "aPosition");
+        GlUtil.checkLocation(program.aPositionLoc, "aPosition");
+        program.aTexCoordLoc = GLES20.glGetAttribLocation(program.handle, "aTexCoord");
+        GlUtil.checkLocation(program.aTexCoordLoc, "aTexCoord");
+        program.uTexMatrixLoc = GLES20.glGetUniformLocation(program.handle, "uTexMatrix");
+        GlUtil.checkLocation(program.uTexMatrixLoc, "uTexMatrix");
+        program.sTextureLoc = GLES20.glGetUniformLocation(program.handle, "sTexture");
+        GlUtil.checkLocation(program.sTextureLoc, "sTexture");
+        // The compiler strips uTexelSize if no pass uses it.
+        program.uTexelSizeLoc = GLES20.glGetUniformLocation(program.handle, "uTexelSize");
+        return program;
+    }
+
+    private void drawStage(Stage stage, int texture, float[] texMatrix, float texelW,
+            float texelH) {
+        Program program = stage.program;
+        int target = stage.external ? GLES11Ext.GL_TEXTURE_EXTERNAL_OES : GLES20.GL_TEXTURE_2D;
+
+        GLES20.glUseProgram(program.handle);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(target, texture);
+        GLES20.glUniform1i(program.sTextureLoc, 0);
+        GLES20.glUniformMatrix4fv(program.uTexMatrixLoc, 1, false, texMatrix, 0);
+        if (program.uTexelSizeLoc >= 0) {
+            GLES20.glUniform2f(program.uTexelSizeLoc, texelW, texelH);
+        }
+
+        int unit = 1;
+        for (FilterPass pass : stage.passes) {
+            unit += pass.onDraw(unit);
+        }
+
+        GLES20.glEnableVertexAttribArray(program.aPositionLoc);
+        GLES20.glVertexAttribPointer(program.aPositionLoc, mRectDrawable.getCoordsPerVertex(),
+                GLES20.GL_FLOAT, false, mRectDrawable.getVertexStride(),
+                mRectDrawable.getVertexArray());
+        GLES20.glEnableVertexAttribArray(program.aTexCoordLoc);
+        GLES20.glVertexAttribPointer(program.aTexCoordLoc, 2, GLES20.GL_FLOAT, false,
+                mRectDrawable.getTexCoordStride(), mRectDrawable.getTexCoordArray());
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, mRectDrawable.getVertexCount());
+        if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("FilterGraph draw");
+
+        GLES20.glDisableVertexAttribArray(program.aPositionLoc);
+        GLES20.glDisableVertexAttribArray(program.aTexCoordLoc);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(target, 0);
+        GLES20.glUseProgram(0);
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One node in a FilterGraph.
+ * <p>
+ * A pass contributes a fragment of GLSL that FilterGraph pastes into a generated shader.
+ * There are two kinds:
+ * <ul>
+ * <li>Per-pixel passes only look at the color of the current pixel (e.g. color grading).
+ *     Any number of these can be fused into the same shader, so they cost no extra
+ *     render passes.
+ * <li>Sampling passes fetch from the input texture themselves (e.g. convolution).  These
+ *     need the previous stage's output in a texture, so each one starts a new render pass.
+ *     Per-pixel passes that follow are fused onto the end of it.
+ * </ul>
+ * In the GLSL returned by getDeclarations() and getCode(), every '$' is replaced with a
+ * prefix unique to the pass, so two instances of the same pass can share a shader.  The
+ * code can use these names provided by the generated shader:
+ * <ul>
+ * <li>{@code vec4 color} -- sampling passes assign it, per-pixel passes modify it
+ * <li>{@code vec2 vTexCoord} -- coordinate of the current pixel in the input texture
+ * <li>{@code vec2 uTexelSize} -- size of one input texel, in texture coordinates
+ * <li>{@code vec4 sampleInput(vec2 coord)} -- fetches from the input texture
+ * </ul>
+ * Changing parameters (kernel weights, strength, etc.) doesn't require regenerating the
+ * shader; parameters are uniforms set in onDraw().
+ * <p>
+ * The input texture may be sampled with GL_LINEAR or GL_NEAREST depending on where it came
+ * from.  Render targets from RenderTargetPool are always GL_LINEAR.
+ */
+public abstract class FilterPass {
+    /** Pass only reads the current pixel's color; can be fused with its neighbors. */
+    public static final int TYPE_PER_PIXEL = 0;
+    /** Pass reads the input texture itself; starts a new render pass. */
+    public static final int TYPE_SAMPLING = 1;
+
+    private final int mType;
+
+    protected FilterPass(int type) {
+        mType = type;
+    }
+
+    /**
+     * Returns TYPE_PER_PIXEL or TYPE_SAMPLING.
+     */
+    public final int getType() {
+        return mType;
+    }
+
+    /**
+     * Returns uniform and function declarations, with '$' as the name prefix.  The default
+     * precision is mediump; use HIGHP rather than highp, which not every device supports
+     * in fragment shaders.
+     */
+    protected abstract String getDeclarations();
+
+    /**
+     * Returns the statements that compute or modify {@code color}.
+     */
+    protected abstract String getCode();
+
+    /**
+     * Called when the shader containing this pass has been linked, so the pass can look up
+     * its uniform locations.
+     *
+     * @param prefix The string that replaced '$'.
+     */
+    protected abstract void onLinked(int program, String prefix);
+
+    /**
+     * Called with the program in use just before drawing.  Set uniforms here.  Passes that
+     * need extra textures bind them to texture units starting at firstTextureUnit.
+     *
+     * @return Number of texture units used.
+     */
+    protected abstract int onDraw(int firstTextureUnit);
+
+    /**
+     * Helper for onLinked(): looks up a uniform and throws if it's missing.
+     */
+    protected static int getUniformLocation(int program, String name) {
+        int loc = GLES20.glGetUniformLocation(program, name);
+        GlUtil.checkLocation(loc, name);
+        return loc;
+    }
+
+
+    /**
+     * Converts to grayscale, using the same weights as Texture2dProgram's TEXTURE_EXT_BW.
+     */
+    public static class Grayscale extends FilterPass {
+        public Grayscale() {
+            super(TYPE_PER_PIXEL);
+        }
+
+        @Override
+        protected String getDeclarations() {
+            return "";
+        }
+
+        @Override
+        protected String getCode() {
+            return "float $lum = dot(color.rgb, vec3(0.3, 0.59, 0.11));\n" +
+                   "color = vec4($lum, $lum, $lum, 1.0);\n";
+        }
+
+        @Override
+        protected void onLinked(int program, String prefix) {}
+
+        @Override
+        protected int onDraw(int firstTextureUnit) {
+            return 0;
+        }
+    }
+
+    /**
+     * Applies a 3x3 convolution kernel, plus a constant color offset.  This is the effect
+     * of Texture2dProgram's TEXTURE_EXT_FILT.
+     */
+    public static class Convolution3x3 extends FilterPass {
+        private final float[] mKernel = new float[9];
+        private float mColorAdjust;
+        private int muKernelLoc;
+        private int muColorAdjustLoc;
+
+        public Convolution3x3(float[] kernel, float colorAdjust) {
+            super(TYPE_SAMPLING);
+            setKernel(kernel, colorAdjust);
+        }
+
+        /**
+         * Changes the kernel.  Doesn't require a graph rebuild.
+         */
+        public void setKernel(float[] kernel, float colorAdjust) {
+            if (kernel.length != 9) {
+                throw new IllegalArgumentException("Kernel size is " + kernel.length + " vs. 9");
+            }
+            System.arraycopy(kernel, 0, mKernel, 0, 9);
+            mColorAdjust = colorAdjust;
+        }
+
+        @Override
+        protected String getDeclarations() {
+            return "uniform float $kernel[9];\n" +
+                   "uniform float $colorAdjust;\n";
+        }
+
+        @Override
+        protected String getCode() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("color = vec4(0.0);\n");
+            int i = 0;
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dx = -1; dx <= 1; dx++) {
+                    sb.append("color += sampleInput(vTexCoord + vec2(")
+                            .append(dx).append(".0, ").append(dy)
+                            .append(".0) * uTexelSize) * $kernel[").append(i++).append("];\n");
+                }
+            }
+            sb.append("color = vec4(color.rgb + $colorAdjust, 1.0);\n");
+            return sb.toString();
+        }
+
+        @Override
+        protected void onLinked(int program, String prefix) {
+            muKernelLoc = getUniformLocation(program, prefix + "kernel");
+            muColorAdjustLoc = getUniformLocation(program, prefix + "colorAdjust");
+        }
+
+        @Override
+        protected int onDraw(int firstTextureUnit) {
+            GLES20.glUniform1fv(muKernelLoc, 9, mKernel, 0);
+            GLES20.glUniform1f(muColorAdjustLoc, mColorAdjust);
+            return 0;
+        }
+    }
+
+    /**
+     * One direction of a separable convolution.  Use {@link #separable} to get the pair.
+     * <p>
+     * The merged taps assume the input is bilinear-filtered.  The tap count is baked into
+     * the shader but the offsets and weights are uniforms, so e.g. changing sigma at a fixed
+     * radius reuses the same program.
+     */
+    public static class SeparableConvolution extends FilterPass {
+        private final boolean mVertical;
+        private float[] mOffsets;
+        private float[] mWeights;
+        private int muOffsetsLoc;
+        private int muWeightsLoc;
+
+        public SeparableConvolution(SeparableKernel kernel, boolean vertical) {
+            super(TYPE_SAMPLING);
+            mVertical = vertical;
+            setKernel(kernel);
+        }
+
+        /**
+         * Changes the kernel.  Doesn't require a graph rebuild if the number of merged taps
+         * stays the same.
+         */
+        public void setKernel(SeparableKernel kernel) {
+            SeparableKernel.Taps taps = kernel.getTaps(mVertical);
+            if (taps.getCount() == 0) {
+                throw new IllegalArgumentException("kernel is all zeroes");
+            }
+            if (mOffsets != null && mOffsets.length != taps.getCount()) {
+                throw new IllegalArgumentException("tap count changed from " +
+                        mOffsets.length + " to " + taps.getCount());
+            }
+            mOffsets = taps.offsets;
+            mWeights = taps.weights;
+        }
+
+        @Override
+        protected String getDeclarations() {
+            int count = mOffsets.length;
+            return "uniform float $offsets[" + count + "];\n" +
+                   "uniform float $weights[" + count + "];\n";
+        }
+
+        @Override
+        protected String getCode() {
+            String step = mVertical ? "vec2(0.0, uTexelSize.y)" : "vec2(uTexelSize.x, 0.0)";
+            StringBuilder sb = new StringBuilder();
+            sb.append("vec2 $step = ").append(step).append(";\n");
+            sb.append("color = vec4(0.0);\n");
+            for (int i = 0; i < mOffsets.length; i++) {
+                sb.append("color += sampleInput(vTexCoord + $step * $offsets[").append(i)
+                        .append("]) * $weights[").append(i).append("];\n");
+            }
+            return sb.toString();
+        }
+
+        @Override
+        protected void onLinked(int program, String prefix) {
+            muOffsetsLoc = getUniformLocation(program, prefix + "offsets");
+            muWeightsLoc = getUniformLocation(program, prefix + "weights");
+        }
+
+        @Override
+        protected int onDraw(int firstTextureUnit) {
+            GLES20.glUniform1fv(muOffsetsLoc, mOffsets.length, mOffsets, 0);
+            GLES20.glUniform1fv(muWeightsLoc, mWeights.length, mWeights, 0);
+            return 0;
+        }
+    }
+
+    /**
+     * Color grading through a 3D lookup table.
+     * <p>
+     * The table is uploaded as a 2D strip (see ColorLut.packStrip()) the first time the pass
+     * is drawn.  The strip's bilinear filtering interpolates red and green; blue is
+     * interpolated by hand between the two nearest tiles, so this costs two LUT fetches per
+     * pixel.  (GLES 2 shaders can't sample 3D textures.)  Since it's a per-pixel pass it is
+     * fused into the shader before it, so there's no extra render pass.
+     * <p>
+     * The strip coordinates are computed in highp where the device has it: a 33^3 strip is
+     * 1089 texels wide, more than mediump can address to within a texel.  Without highp,
+     * 17^3 and smaller tables still work.
+     */
+    public static class ColorGrade extends FilterPass {
+        private ColorLut mLut;
+        private boolean mLutChanged;
+        private int mLutTexture = -1;
+        private final float[] mDomainMin = new float[3];
+        private final float[] mDomainScale = new float[3];
+        private int muLutLoc;
+        private int muSizeLoc;
+        private int muDomainMinLoc;
+        private int muDomainScaleLoc;
+
+        public ColorGrade(ColorLut lut) {
+            super(TYPE_PER_PIXEL);
+            setLut(lut);
+        }
+
+        /**
+         * Changes the table.  It will be uploaded on the next draw.
+         */
+        public void setLut(ColorLut lut) {
+            mLut = lut;
+            mLutChanged = true;
+            float[] min = lut.getDomainMin();
+            float[] max = lut.getDomainMax();
+            for (int i = 0; i < 3; i++) {
+                mDomainMin[i] = min[i];
+                mDomainScale[i] = 1.0f / (max[i] - min[i]);
+            }
+        }
+
+        /**
+         * Deletes the LUT texture.  Must be called on the thread with the EGL context.
+         */
+        public void release() {
+            if (mLutTexture >= 0) {
+                int[] values = new int[] { mLutTexture };
+                GLES20.glDeleteTextures(1, values, 0);
+                mLutTexture = -1;
+                mLutChanged = true;
+            }
+        }
+
+        @Override
+        protected String getDeclarations() {
+            return "uniform sampler2D $lut;\n" +
+                   "uniform HIGHP float $size;\n" +
+                   "uniform vec3 $domainMin;\n" +
+                   "uniform vec3 $domainScale;\n";
+        }
+
+        @Override
+        protected String getCode() {
+            return "HIGHP vec3 $c = clamp((color.rgb - $domainMin) * $domainScale, 0.0, 1.0) *\n" +
+                   "        ($size - 1.0);\n" +
+                   "HIGHP float $b0 = floor($c.b);\n" +
+                   "HIGHP float $b1 = min($b0 + 1.0, $size - 1.0);\n" +
+                   "HIGHP vec2 $uv = vec2(($c.r + 0.5) / ($size * $size),\n" +
+                   "        ($c.g + 0.5) / $size);\n" +
+                   "HIGHP vec2 $uvLo = $uv + vec2($b0 / $size, 0.0);\n" +
+                   "HIGHP vec2 $uvHi = $uv + vec2($b1 / $size, 0.0);\n" +
+                   "vec3 $lo = texture2D($lut, $uvLo).rgb;\n" +
+                   "vec3 $hi = texture2D($lut, $uvHi).rgb;\n" +
+                   "color.rgb = mix($lo, $hi, $c.b - $b0);\n";
+        }
+
+        @Override
+        protected void onLinked(int program, String prefix) {
+            muLutLoc = getUniformLocation(program, prefix + "lut");
+            muSizeLoc = getUniformLocation(program, prefix + "size");
+            muDomainMinLoc = getUniformLocation(program, prefix + "domainMin");
+            muDomainScaleLoc = getUniformLocation(program, prefix + "domainScale");
+        }
+
+        @Override
+        protected int onDraw(int firstTextureUnit) {
+            // Select our unit first, so the upload doesn't disturb the input on unit 0.
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + firstTextureUnit);
+            if (mLutChanged) {
+                uploadLut();
+            }
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mLutTexture);
+            GLES20.glUniform1i(muLutLoc, firstTextureUnit);
+            GLES20.glUniform1f(muSizeLoc, mLut.getSize());
+            GLES20.glUniform3fv(muDomainMinLoc, 1, mDomainMin, 0);
+            GLES20.glUniform3fv(muDomainScaleLoc, 1, mDomainScale, 0);
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+            return 1;
+        }
+
+        private void uploadLut() {
+            if (mLutTexture < 0) {
+                int[] values = new int[1];
+                GLES20.glGenTextures(1, values, 0);
+                mLutTexture = values[0];
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mLutTexture);
+                GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                        GLES20.GL_LINEAR);
+                GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                        GLES20.GL_LINEAR);
+                GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                        GLES20.GL_CLAMP_TO_EDGE);
+                GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                        GLES20.GL_CLAMP_TO_EDGE);
+            } else {
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mLutTexture);
+            }
+
+            int width = mLut.getStripWidth();
+            int height = mLut.getStripHeight();
+            DirectBufferPool pool = DirectBufferPool.getInstance();
+            ByteBuffer buf = pool.acquire(width * height * 4);
+            try {
+                mLut.packStrip(buf);
+                buf.flip();
+                GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                        GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buf);
+                GlUtil.checkGlError("LUT upload");
+            } finally {
+                pool.release(buf);
+            }
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+            mLutChanged = false;
+        }
+    }
+
+    /**
+     * Returns the horizontal and vertical passes for a separable kernel.
+     */
+    public static FilterPass[] separable(SeparableKernel kernel) {
+        return new FilterPass[] {
+                new SeparableConvolution(kernel, false),
+                new SeparableConvolution(kernel, true)
+        };
+    }
+}
@@ -60,11 +60,12 @@ public class FlatShadedProgram {
 
         // get locations of attributes and uniforms
 
-        maPositionLoc = GLES20.glGetAttribLocation(mProgramHandle, "aPosition");
+        GlApi gl = GlUtil.gl();
+        maPositionLoc = gl.glGetAttribLocation(mProgramHandle, "aPosition");
         GlUtil.checkLocation(maPositionLoc, "aPosition");
-        muMVPMatrixLoc = GLES20.glGetUniformLocation(mProgramHandle, "uMVPMatrix");
+        muMVPMatrixLoc = gl.glGetUniformLocation(mProgramHandle, "uMVPMatrix");
         GlUtil.checkLocation(muMVPMatrixLoc, "uMVPMatrix");
-        muColorLoc = GLES20.glGetUniformLocation(mProgramHandle, "uColor");
+        muColorLoc = gl.glGetUniformLocation(mProgramHandle, "uColor");
         GlUtil.checkLocation(muColorLoc, "uColor");
     }
 
@@ -72,7 +73,8 @@ public class FlatShadedProgram {
      * Releases the program.
      */
     public void release() {
-        GLES20.glDeleteProgram(mProgramHandle);
+        GlApi gl = GlUtil.gl();
+        gl.glDeleteProgram(mProgramHandle);
         mProgramHandle = -1;
     }
 
@@ -90,35 +92,36 @@ public class FlatShadedProgram {
      */
     public void draw(float[] mvpMatrix, float[] color, FloatBuffer vertexBuffer,
             int firstVertex, int vertexCount, int coordsPerVertex, int vertexStride) {
-        GlUtil.checkGlError("draw start");
+        GlApi gl = GlUtil.gl();
+        if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("draw start");
 
         // Select the program.
-        GLES20.glUseProgram(mProgramHandle);
-        GlUtil.checkGlError("glUseProgram");
+        gl.glUseProgram(mProgramHandle);
+        if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("glUseProgram");
 
         // Copy the model / view / projection matrix over.
-        GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mvpMatrix, 0);
-        GlUtil.checkGlError("glUniformMatrix4fv");
+        gl.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mvpMatrix, 0);
+        if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("glUniformMatrix4fv");
 
         // Copy the color vector in.
-        GLES20.glUniform4fv(muColorLoc, 1, color, 0);
-        GlUtil.checkGlError("glUniform4fv ");
+        gl.glUniform4fv(muColorLoc, 1, color, 0);
+        if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("glUniform4fv ");
 
         // Enable the "aPosition" vertex attribute.
-        GLES20.glEnableVertexAttribArray(maPositionLoc);
-        GlUtil.checkGlError("glEnableVertexAttribArray");
+        gl.glEnableVertexAttribArray(maPositionLoc);
+        if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("glEnableVertexAttribArray");
 
         // Connect vertexBuffer to "aPosition".
-        GLES20.glVertexAttribPointer(maPositionLoc, coordsPerVertex,
+        gl.glVertexAttribPointer(maPositionLoc, coordsPerVertex,
             GLES20.GL_FLOAT, false, vertexStride, vertexBuffer);
-        GlUtil.checkGlError("glVertexAttribPointer");
+        if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("glVertexAttribPointer");
 
         // Draw the rect.
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, firstVertex, vertexCount);
-        GlUtil.checkGlError("glDrawArrays");
+        gl.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, firstVertex, vertexCount);
+        if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("glDrawArrays");
 
         // Done -- disable vertex array and program.
-        GLES20.glDisableVertexAttribArray(maPositionLoc);
-        GLES20.glUseProgram(0);
+        gl.glDisableVertexAttribArray(maPositionLoc);
+        gl.glUseProgram(0);
     }
 }
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads frames back out of a file written by FrameDumper.
+ * <p>
+ * This is where the expensive conversion to a real image format happens, after the capture
+ * is over (or on another device entirely -- the container is trivial to parse).
+ */
+public class FrameDumpReader {
+    private static final String TAG = GlUtil.TAG;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final ByteBuffer mIndex;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameCount;
+
+    // Scratch buffers for saveQoi(), allocated on first use.
+    private ByteBuffer mPixelBuf;
+    private ByteBuffer mEncodeBuf;
+
+    /**
+     * Opens the file and reads the header and frame index.
+     */
+    public FrameDumpReader(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        mChannel = mFile.getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(FrameDumper.HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            readFully(header, 0);
+            if (header.getInt(0) != FrameDumper.MAGIC ||
+                    header.getInt(4) != FrameDumper.VERSION) {
+                throw new IOException("not a frame dump file: " + file);
+            }
+            mWidth = header.getInt(8);
+            mHeight = header.getInt(12);
+            mFrameCount = header.getInt(FrameDumper.HDR_FRAME_COUNT);
+
+            mIndex = ByteBuffer.allocate(mFrameCount * FrameDumper.INDEX_ENTRY_SIZE);
+            mIndex.order(ByteOrder.LITTLE_ENDIAN);
+            readFully(mIndex, FrameDumper.HEADER_SIZE);
+        } catch (IOException ioe) {
+            mFile.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Returns the frame width, in pixels.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Returns the frame height, in pixels.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns the number of frames in the file.
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Returns the timestamp that was passed to FrameDumper.submit() for the Nth frame.
+     */
+    public long getTimestamp(int index) {
+        checkIndex(index);
+        return mIndex.getLong(index * FrameDumper.INDEX_ENTRY_SIZE);
+    }
+
+    /**
+     * Reads the RGBA pixels of the Nth frame into the buffer.
+     *
+     * @param dest Buffer with at least width * height * 4 bytes remaining.  Filled from its
+     *     current position; rewind it before use.
+     */
+    public void readFrame(int index, ByteBuffer dest) throws IOException {
+        checkIndex(index);
+        long offset = mIndex.getLong(index * FrameDumper.INDEX_ENTRY_SIZE + 8);
+        int oldLimit = dest.limit();
+        dest.limit(dest.position() + mWidth * mHeight * 4);
+        readFully(dest, offset);
+        dest.limit(oldLimit);
+    }
+
+    /**
+     * Converts the Nth frame to a PNG file.  Like EglSurfaceBase.saveFrame(), the output
+     * will be upside down relative to the screen.
+     *
+     * @param pixelBuf Scratch buffer of at least width * height * 4 bytes, or null to
+     *     allocate one.
+     */
+    public void savePng(int index, File file, ByteBuffer pixelBuf) throws IOException {
+        if (pixelBuf == null) {
+            pixelBuf = ByteBuffer.allocateDirect(mWidth * mHeight * 4);
+        }
+        pixelBuf.clear();
+        readFrame(index, pixelBuf);
+        pixelBuf.rewind();
+
+        BufferedOutputStream bos = null;
+        try {
+            bos = new BufferedOutputStream(new FileOutputStream(file));
+            Bitmap bmp = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+            bmp.copyPixelsFromBuffer(pixelBuf);
+            bmp.compress(Bitmap.CompressFormat.PNG, 90, bos);
+            bmp.recycle();
+        } finally {
+            if (bos != null) bos.close();
+        }
+        Log.d(TAG, "Saved frame " + index + " as '" + file + "'");
+    }
+
+    /**
+     * Converts the Nth frame to a QOI file.  This is much faster than savePng(), and unlike
+     * savePng() the output is right side up.
+     *
+     * @param codec Codec configured for this file's frame size.  With one strip the output
+     *     is a standard .qoi file.
+     */
+    public void saveQoi(int index, File file, QoiCodec codec) throws IOException {
+        if (mPixelBuf == null) {
+            mPixelBuf = ByteBuffer.allocateDirect(mWidth * mHeight * 4);
+        }
+        if (mEncodeBuf == null || mEncodeBuf.capacity() < codec.getMaxEncodedSize()) {
+            mEncodeBuf = ByteBuffer.allocateDirect(codec.getMaxEncodedSize());
+        }
+        mPixelBuf.clear();
+        readFrame(index, mPixelBuf);
+        mEncodeBuf.clear();
+        codec.encode(mPixelBuf, true, mEncodeBuf);
+        mEncodeBuf.flip();
+
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            FileChannel out = fos.getChannel();
+            while (mEncodeBuf.hasRemaining()) {
+                out.write(mEncodeBuf);
+            }
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * Closes the file.
+     */
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mFrameCount) {
+            throw new IndexOutOfBoundsException("frame " + index + " of " + mFrameCount);
+        }
+    }
+
+    private void readFully(ByteBuffer dest, long offset) throws IOException {
+        while (dest.hasRemaining()) {
+            int count = mChannel.read(dest, offset);
+            if (count < 0) {
+                throw new IOException("unexpected EOF at " + offset);
+            }
+            offset += count;
+        }
+    }
+}
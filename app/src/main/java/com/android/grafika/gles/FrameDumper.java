@@ -0,0 +1,296 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Captures a sequence of raw RGBA frames to a single file, without doing any real work on
+ * the GL thread.
+ * <p>
+ * Compressing a frame to PNG takes hundreds of milliseconds, which rules it out for
+ * capturing at the display rate.  Instead, the GL thread grabs a buffer from a fixed pool
+ * with obtainBuffer(), glReadPixels()s into it, and hands it back with submit().  A writer
+ * thread copies the pixels into a memory-mapped container file and returns the buffer to
+ * the pool.  If the writer falls behind and the pool runs dry, obtainBuffer() returns null
+ * and the caller drops the frame rather than stalling.
+ * <p>
+ * The container is a fixed header, a frame index, and the frames themselves, all
+ * little-endian:
+ * <pre>
+ *   header (32 bytes): magic, version, width, height, maxFrames, frameCount, dataOffset (long)
+ *   index (maxFrames * 16 bytes): per-frame timestamp (long), data offset (long)
+ *   data: frameCount * width * height * 4 bytes of RGBA, bottom row first
+ * </pre>
+ * The frame count in the header is updated after each frame is written, so the file is
+ * usable even if we never get to shutdown().  Use FrameDumpReader to get frames back out
+ * and convert them to a proper image format.
+ */
+public class FrameDumper {
+    private static final String TAG = GlUtil.TAG;
+
+    public static final int MAGIC = 0x44465247;         // "GRFD" in little-endian
+    public static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int INDEX_ENTRY_SIZE = 16;
+    static final int HDR_FRAME_COUNT = 20;
+
+    // We map the data area a chunk at a time, to avoid asking for a huge chunk of address
+    // space up front.
+    private static final int SEGMENT_TARGET_SIZE = 32 * 1024 * 1024;
+
+    // Stand-in for a frame, used to tell the writer thread to finish up.
+    private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameSize;
+    private final int mMaxFrames;
+    private final long mDataOffset;
+    private final int mFramesPerSegment;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final MappedByteBuffer mIndex;     // header + index
+
+    // Buffers move from mFree to the GL thread to mPending to the writer thread and back.
+    private final ArrayBlockingQueue<ByteBuffer> mFree;
+    private final ArrayBlockingQueue<ByteBuffer> mPending;
+    private final long[] mTimestamps;
+    private int mSubmitCount;                   // accessed from GL thread only
+
+    private final Thread mWriterThread;
+    private volatile int mFrameCount;
+    private final AtomicInteger mDroppedFrames = new AtomicInteger();   // both threads
+    private volatile long mWriteNanos;
+
+    /**
+     * Creates the container file and starts the writer thread.
+     *
+     * @param file Output file.  Will be overwritten.
+     * @param width Frame width, in pixels.
+     * @param height Frame height, in pixels.
+     * @param maxFrames Maximum number of frames the file can hold.  Additional frames are
+     *     dropped.
+     * @param numBuffers Number of pixel buffers in the pool.  This determines how far the
+     *     writer can fall behind before frames get dropped.
+     */
+    public FrameDumper(File file, int width, int height, int maxFrames, int numBuffers)
+            throws IOException {
+        mWidth = width;
+        mHeight = height;
+        mFrameSize = width * height * 4;
+        mMaxFrames = maxFrames;
+        mDataOffset = HEADER_SIZE + (long) maxFrames * INDEX_ENTRY_SIZE;
+        mFramesPerSegment = Math.max(1, SEGMENT_TARGET_SIZE / mFrameSize);
+
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        mIndex = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, mDataOffset);
+        mIndex.order(ByteOrder.LITTLE_ENDIAN);
+        mIndex.putInt(0, MAGIC);
+        mIndex.putInt(4, VERSION);
+        mIndex.putInt(8, width);
+        mIndex.putInt(12, height);
+        mIndex.putInt(16, maxFrames);
+        mIndex.putInt(HDR_FRAME_COUNT, 0);
+        mIndex.putLong(24, mDataOffset);
+
+        mFree = new ArrayBlockingQueue<ByteBuffer>(numBuffers);
+        mPending = new ArrayBlockingQueue<ByteBuffer>(numBuffers + 1);
+        mTimestamps = new long[numBuffers];
+        for (int i = 0; i < numBuffers; i++) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(mFrameSize);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            mFree.add(buf);
+        }
+
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writerLoop();
+            }
+        }, "FrameDumper");
+        mWriterThread.start();
+        Log.d(TAG, "FrameDumper: " + width + "x" + height + " x" + maxFrames + " to " + file);
+    }
+
+    /**
+     * Returns the frame width, in pixels.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Returns the frame height, in pixels.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Gets an empty pixel buffer from the pool.  Does not block.
+     *
+     * @return A cleared buffer of width * height * 4 bytes, or null if the writer has
+     *     fallen behind and all buffers are in use.
+     */
+    public ByteBuffer obtainBuffer() {
+        ByteBuffer buf = mFree.poll();
+        if (buf == null) {
+            mDroppedFrames.incrementAndGet();
+            return null;
+        }
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Queues a filled buffer for writing.  The buffer must have come from obtainBuffer(),
+     * and must not be touched after this call.
+     *
+     * @param timestampNanos Timestamp to store in the frame index.
+     */
+    public void submit(ByteBuffer buf, long timestampNanos) {
+        // At most mTimestamps.length buffers can be outstanding, so the slot we're writing
+        // has already been consumed by the writer.  The queue hand-off publishes the value.
+        mTimestamps[mSubmitCount % mTimestamps.length] = timestampNanos;
+        mSubmitCount++;
+        mPending.add(buf);
+    }
+
+    /**
+     * Waits for all submitted frames to be written, then closes the file.  Call from the
+     * thread that's been submitting frames.
+     */
+    public void shutdown() throws IOException {
+        mPending.add(END_OF_STREAM);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mWriterThread.join();
+                break;
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        try {
+            // Trim the unused part of the data area.
+            mChannel.truncate(mDataOffset + (long) mFrameCount * mFrameSize);
+        } finally {
+            mFile.close();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        Log.d(TAG, "FrameDumper: wrote " + mFrameCount + " frames, dropped " +
+                mDroppedFrames.get() + ", avg write " +
+                (mFrameCount == 0 ? 0 : mWriteNanos / mFrameCount / 1000) + " us");
+    }
+
+    /**
+     * Returns the number of frames written to the file so far.
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Returns the number of frames dropped, either because no buffer was available or
+     * because the file was full.
+     */
+    public int getDroppedFrames() {
+        return mDroppedFrames.get();
+    }
+
+    /**
+     * Writer thread main loop.
+     */
+    private void writerLoop() {
+        MappedByteBuffer segment = null;
+        int segmentIndex = -1;
+        int consumed = 0;
+
+        while (true) {
+            ByteBuffer buf;
+            try {
+                buf = mPending.take();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "FrameDumper writer interrupted");
+                break;
+            }
+            if (buf == END_OF_STREAM) {
+                break;
+            }
+            long timestamp = mTimestamps[consumed % mTimestamps.length];
+            consumed++;
+
+            int frameIndex = mFrameCount;
+            if (frameIndex >= mMaxFrames) {
+                mDroppedFrames.incrementAndGet();
+                mFree.add(buf);
+                continue;
+            }
+
+            long startWhen = System.nanoTime();
+            try {
+                int wantSegment = frameIndex / mFramesPerSegment;
+                if (wantSegment != segmentIndex) {
+                    segment = mapSegment(wantSegment);
+                    segmentIndex = wantSegment;
+                }
+                segment.position((frameIndex % mFramesPerSegment) * mFrameSize);
+                buf.position(0).limit(mFrameSize);
+                segment.put(buf);
+            } catch (IOException ioe) {
+                Log.e(TAG, "FrameDumper failed to write frame " + frameIndex, ioe);
+                mFree.add(buf);
+                break;
+            }
+            mFree.add(buf);
+
+            long offset = mDataOffset + (long) frameIndex * mFrameSize;
+            int entry = HEADER_SIZE + frameIndex * INDEX_ENTRY_SIZE;
+            mIndex.putLong(entry, timestamp);
+            mIndex.putLong(entry + 8, offset);
+            mIndex.putInt(HDR_FRAME_COUNT, frameIndex + 1);
+            mFrameCount = frameIndex + 1;
+            mWriteNanos += System.nanoTime() - startWhen;
+        }
+    }
+
+    /**
+     * Maps the Nth chunk of the data area.
+     */
+    private MappedByteBuffer mapSegment(int segmentIndex) throws IOException {
+        int firstFrame = segmentIndex * mFramesPerSegment;
+        int numFrames = Math.min(mFramesPerSegment, mMaxFrames - firstFrame);
+        long start = mDataOffset + (long) firstFrame * mFrameSize;
+        return mChannel.map(FileChannel.MapMode.READ_WRITE, start, (long) numFrames * mFrameSize);
+    }
+}
@@ -21,7 +21,12 @@ package com.android.grafika.gles;
  * a texture, usually from an external source like the camera or video decoder.
  */
 public class FullFrameRect {
-    private final Drawable2d mRectDrawable = new Drawable2d(Drawable2d.Prefab.FULL_RECTANGLE);
+    private static final Drawable2d RECT_DRAWABLE =
+            new Drawable2d(Drawable2d.Prefab.FULL_RECTANGLE);
+    private static final Drawable2d DISC_DRAWABLE =
+            new Drawable2d(Drawable2d.Prefab.FULL_DISC);
+
+    private Drawable2d mRectDrawable;
     private Texture2dProgram mProgram;
 
     /**
@@ -32,6 +37,7 @@ public class FullFrameRect {
      */
     public FullFrameRect(Texture2dProgram program) {
         mProgram = program;
+        mRectDrawable = selectDrawable(program);
     }
 
     /**
@@ -66,6 +72,18 @@ public class FullFrameRect {
     public void changeProgram(Texture2dProgram program) {
         mProgram.release();
         mProgram = program;
+        mRectDrawable = selectDrawable(program);
+    }
+
+    /**
+     * Programs with FEATURE_CIRCLE_MASK are drawn with a disc instead of a rect.
+     */
+    private static Drawable2d selectDrawable(Texture2dProgram program) {
+        if (program.hasFeature(Texture2dProgram.FEATURE_CIRCLE_MASK)) {
+            return DISC_DRAWABLE;
+        } else {
+            return RECT_DRAWABLE;
+        }
     }
 
     /**
@@ -80,6 +98,7 @@ public class FullFrameRect {
      */
     public void drawFrame(int textureId, float[] texMatrix, int videoWidth, int videoHeight) {
         // Use the identity matrix for MVP so our 2x2 FULL_RECTANGLE covers the viewport.
+        // (FULL_DISC is inscribed in the same square.)
         mProgram.draw(
                 GlUtil.IDENTITY_MATRIX,
                 mRectDrawable.getVertexArray(),
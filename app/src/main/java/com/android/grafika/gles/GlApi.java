@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import java.nio.Buffer;
+
+/**
+ * The GLES entry points used by the shared GL code (GlUtil, GlValidation, and the
+ * programs), so it can run against something other than the real driver.
+ * <p>
+ * The methods match the GLES20 ones.  GlUtil#gl() returns the implementation in use:
+ * GlesApi, which calls straight through to GLES20, unless RecordingGlApi (or something
+ * else) has been installed with GlUtil#setGlApi().
+ * <p>
+ * EGL isn't covered -- EGL objects can't exist off-device -- but EglCore reports frame
+ * boundaries with endFrame().
+ */
+public interface GlApi {
+    void glActiveTexture(int texture);
+    void glAttachShader(int program, int shader);
+    void glBindTexture(int target, int texture);
+    void glCompileShader(int shader);
+    int glCreateProgram();
+    int glCreateShader(int type);
+    void glDeleteProgram(int program);
+    void glDeleteShader(int shader);
+    void glDisableVertexAttribArray(int index);
+    void glDrawArrays(int mode, int first, int count);
+    void glEnable(int cap);
+    void glEnableVertexAttribArray(int index);
+    void glGenTextures(int n, int[] textures, int offset);
+    int glGetAttribLocation(int program, String name);
+    int glGetError();
+    void glGetIntegerv(int pname, int[] params, int offset);
+    String glGetProgramInfoLog(int program);
+    void glGetProgramiv(int program, int pname, int[] params, int offset);
+    String glGetShaderInfoLog(int shader);
+    void glGetShaderiv(int shader, int pname, int[] params, int offset);
+    String glGetString(int name);
+    int glGetUniformLocation(int program, String name);
+    void glLinkProgram(int program);
+    void glShaderSource(int shader, String string);
+    void glTexImage2D(int target, int level, int internalformat, int width, int height,
+            int border, int format, int type, Buffer pixels);
+    void glTexParameterf(int target, int pname, float param);
+    void glTexParameteri(int target, int pname, int param);
+    void glUniform1f(int location, float x);
+    void glUniform1fv(int location, int count, float[] v, int offset);
+    void glUniform2f(int location, float x, float y);
+    void glUniform2fv(int location, int count, float[] v, int offset);
+    void glUniform4fv(int location, int count, float[] v, int offset);
+    void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value,
+            int offset);
+    void glUseProgram(int program);
+    void glVertexAttribPointer(int indx, int size, int type, boolean normalized, int stride,
+            Buffer ptr);
+
+    /**
+     * Marks the end of a frame.  EglCore calls this just before eglSwapBuffers().
+     */
+    void endFrame();
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Plays a RecordingGlApi log back into a GlApi: another RecordingGlApi, to re-count or
+ * re-time a trace on the JVM, or GlesApi, to run it on a device.
+ * <p>
+ * The target will hand out its own object names and locations, so the ones in the log are
+ * translated as they're used.  Names the log uses without creating (e.g. because the
+ * recorder was reset partway through) are passed through unchanged.  Texture images are
+ * replayed without their contents, since the log only has their size.
+ * <p>
+ * The translation state carries over from one replay() to the next, so a trace can be
+ * played back in pieces.  Not thread-safe.
+ */
+public class GlTraceReplayer {
+    private static final int MAX_CACHED_ARRAYS = 16;
+
+    private final GlApi mTarget;
+
+    // Recorded name or location to target name or location.
+    private final Map<Integer, Integer> mObjects = new HashMap<Integer, Integer>();
+    private final Map<Long, Integer> mAttribs = new HashMap<Long, Integer>();
+    private final Map<Long, Integer> mUniforms = new HashMap<Long, Integer>();
+    private int mCurrentProgram;
+
+    // Vertex arrays have to stay put until the draw call, so keep one per attribute.
+    private final ByteBuffer[] mArrays = new ByteBuffer[MAX_CACHED_ARRAYS];
+
+    private final int[] mScratch = new int[64];
+
+    public GlTraceReplayer(GlApi target) {
+        mTarget = target;
+    }
+
+    /**
+     * Issues the calls in the log, from its position to its limit.  The log's position
+     * isn't changed.
+     *
+     * @return The number of calls issued, including endFrame().
+     */
+    public int replay(ByteBuffer log) {
+        ByteBuffer in = log.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        GlApi gl = mTarget;
+        int calls = 0;
+        while (in.hasRemaining()) {
+            int op = in.get();
+            switch (op) {
+                case RecordingGlApi.OP_ACTIVE_TEXTURE:
+                    gl.glActiveTexture(in.getInt());
+                    break;
+                case RecordingGlApi.OP_ATTACH_SHADER: {
+                    int program = mapObject(in.getInt());
+                    gl.glAttachShader(program, mapObject(in.getInt()));
+                    break;
+                }
+                case RecordingGlApi.OP_BIND_TEXTURE: {
+                    int target = in.getInt();
+                    gl.glBindTexture(target, mapObject(in.getInt()));
+                    break;
+                }
+                case RecordingGlApi.OP_COMPILE_SHADER:
+                    gl.glCompileShader(mapObject(in.getInt()));
+                    break;
+                case RecordingGlApi.OP_CREATE_PROGRAM:
+                    mObjects.put(in.getInt(), gl.glCreateProgram());
+                    break;
+                case RecordingGlApi.OP_CREATE_SHADER: {
+                    int type = in.getInt();
+                    mObjects.put(in.getInt(), gl.glCreateShader(type));
+                    break;
+                }
+                case RecordingGlApi.OP_DELETE_PROGRAM:
+                    gl.glDeleteProgram(mapObject(in.getInt()));
+                    break;
+                case RecordingGlApi.OP_DELETE_SHADER:
+                    gl.glDeleteShader(mapObject(in.getInt()));
+                    break;
+                case RecordingGlApi.OP_DISABLE_VERTEX_ATTRIB_ARRAY:
+                    gl.glDisableVertexAttribArray(mapAttrib(in.getInt()));
+                    break;
+                case RecordingGlApi.OP_DRAW_ARRAYS: {
+                    int mode = in.getInt();
+                    int first = in.getInt();
+                    gl.glDrawArrays(mode, first, in.getInt());
+                    break;
+                }
+                case RecordingGlApi.OP_ENABLE:
+                    gl.glEnable(in.getInt());
+                    break;
+                case RecordingGlApi.OP_ENABLE_VERTEX_ATTRIB_ARRAY:
+                    gl.glEnableVertexAttribArray(mapAttrib(in.getInt()));
+                    break;
+                case RecordingGlApi.OP_GEN_TEXTURES: {
+                    int n = in.getInt();
+                    int[] names = n <= mScratch.length ? mScratch : new int[n];
+                    gl.glGenTextures(n, names, 0);
+                    for (int i = 0; i < n; i++) {
+                        mObjects.put(in.getInt(), names[i]);
+                    }
+                    break;
+                }
+                case RecordingGlApi.OP_GET_ATTRIB_LOCATION: {
+                    int program = in.getInt();
+                    String name = getString(in);
+                    int location = in.getInt();
+                    if (location >= 0) {
+                        mAttribs.put(key(program, location),
+                                gl.glGetAttribLocation(mapObject(program), name));
+                    } else {
+                        gl.glGetAttribLocation(mapObject(program), name);
+                    }
+                    break;
+                }
+                case RecordingGlApi.OP_GET_ERROR:
+                    gl.glGetError();
+                    break;
+                case RecordingGlApi.OP_GET_INTEGERV:
+                    gl.glGetIntegerv(in.getInt(), mScratch, 0);
+                    break;
+                case RecordingGlApi.OP_GET_PROGRAM_INFO_LOG:
+                    gl.glGetProgramInfoLog(mapObject(in.getInt()));
+                    break;
+                case RecordingGlApi.OP_GET_PROGRAMIV: {
+                    int program = mapObject(in.getInt());
+                    gl.glGetProgramiv(program, in.getInt(), mScratch, 0);
+                    break;
+                }
+                case RecordingGlApi.OP_GET_SHADER_INFO_LOG:
+                    gl.glGetShaderInfoLog(mapObject(in.getInt()));
+                    break;
+                case RecordingGlApi.OP_GET_SHADERIV: {
+                    int shader = mapObject(in.getInt());
+                    gl.glGetShaderiv(shader, in.getInt(), mScratch, 0);
+                    break;
+                }
+                case RecordingGlApi.OP_GET_STRING:
+                    gl.glGetString(in.getInt());
+                    break;
+                case RecordingGlApi.OP_GET_UNIFORM_LOCATION: {
+                    int program = in.getInt();
+                    String name = getString(in);
+                    int location = in.getInt();
+                    if (location >= 0) {
+                        mUniforms.put(key(program, location),
+                                gl.glGetUniformLocation(mapObject(program), name));
+                    } else {
+                        gl.glGetUniformLocation(mapObject(program), name);
+                    }
+                    break;
+                }
+                case RecordingGlApi.OP_LINK_PROGRAM:
+                    gl.glLinkProgram(mapObject(in.getInt()));
+                    break;
+                case RecordingGlApi.OP_SHADER_SOURCE: {
+                    int shader = mapObject(in.getInt());
+                    gl.glShaderSource(shader, getString(in));
+                    break;
+                }
+                case RecordingGlApi.OP_TEX_IMAGE_2D: {
+                    int target = in.getInt();
+                    int level = in.getInt();
+                    int internalFormat = in.getInt();
+                    int width = in.getInt();
+                    int height = in.getInt();
+                    int border = in.getInt();
+                    int format = in.getInt();
+                    int type = in.getInt();
+                    in.getInt();        // byte count; the contents weren't recorded
+                    gl.glTexImage2D(target, level, internalFormat, width, height, border,
+                            format, type, null);
+                    break;
+                }
+                case RecordingGlApi.OP_TEX_PARAMETERF: {
+                    int target = in.getInt();
+                    int pname = in.getInt();
+                    gl.glTexParameterf(target, pname, in.getFloat());
+                    break;
+                }
+                case RecordingGlApi.OP_TEX_PARAMETERI: {
+                    int target = in.getInt();
+                    int pname = in.getInt();
+                    gl.glTexParameteri(target, pname, in.getInt());
+                    break;
+                }
+                case RecordingGlApi.OP_UNIFORM_1F: {
+                    int location = mapUniform(in.getInt());
+                    gl.glUniform1f(location, in.getFloat());
+                    break;
+                }
+                case RecordingGlApi.OP_UNIFORM_1FV: {
+                    int location = mapUniform(in.getInt());
+                    int count = in.getInt();
+                    gl.glUniform1fv(location, count, getFloats(in, count), 0);
+                    break;
+                }
+                case RecordingGlApi.OP_UNIFORM_2F: {
+                    int location = mapUniform(in.getInt());
+                    float x = in.getFloat();
+                    gl.glUniform2f(location, x, in.getFloat());
+                    break;
+                }
+                case RecordingGlApi.OP_UNIFORM_2FV: {
+                    int location = mapUniform(in.getInt());
+                    int count = in.getInt();
+                    gl.glUniform2fv(location, count, getFloats(in, count * 2), 0);
+                    break;
+                }
+                case RecordingGlApi.OP_UNIFORM_4FV: {
+                    int location = mapUniform(in.getInt());
+                    int count = in.getInt();
+                    gl.glUniform4fv(location, count, getFloats(in, count * 4), 0);
+                    break;
+                }
+                case RecordingGlApi.OP_UNIFORM_MATRIX_4FV: {
+                    int location = mapUniform(in.getInt());
+                    boolean transpose = in.get() != 0;
+                    int count = in.getInt();
+                    gl.glUniformMatrix4fv(location, count, transpose,
+                            getFloats(in, count * 16), 0);
+                    break;
+                }
+                case RecordingGlApi.OP_USE_PROGRAM:
+                    mCurrentProgram = in.getInt();
+                    gl.glUseProgram(mapObject(mCurrentProgram));
+                    break;
+                case RecordingGlApi.OP_VERTEX_ATTRIB_POINTER: {
+                    int index = mapAttrib(in.getInt());
+                    int size = in.getInt();
+                    int type = in.getInt();
+                    boolean normalized = in.get() != 0;
+                    int stride = in.getInt();
+                    gl.glVertexAttribPointer(index, size, type, normalized, stride,
+                            getArray(in, index));
+                    break;
+                }
+                case RecordingGlApi.OP_END_FRAME:
+                    gl.endFrame();
+                    break;
+                default:
+                    throw new IllegalArgumentException("bad opcode " + op + " at offset " +
+                            (in.position() - 1));
+            }
+            calls++;
+        }
+        return calls;
+    }
+
+    private static long key(int program, int location) {
+        return ((long) program << 32) | (location & 0xffffffffL);
+    }
+
+    private int mapObject(int name) {
+        Integer mapped = mObjects.get(name);
+        return mapped == null ? name : mapped;
+    }
+
+    private int mapAttrib(int location) {
+        Integer mapped = mAttribs.get(key(mCurrentProgram, location));
+        return mapped == null ? location : mapped;
+    }
+
+    private int mapUniform(int location) {
+        if (location < 0) {
+            return location;
+        }
+        Integer mapped = mUniforms.get(key(mCurrentProgram, location));
+        return mapped == null ? location : mapped;
+    }
+
+    private static String getString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, RecordingGlApi.UTF8);
+    }
+
+    private static float[] getFloats(ByteBuffer in, int n) {
+        float[] values = new float[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = in.getFloat();
+        }
+        return values;
+    }
+
+    /**
+     * Reads a recorded vertex array into a direct buffer, reusing the one we last used for
+     * the same attribute if it's big enough.
+     */
+    private Buffer getArray(ByteBuffer in, int index) {
+        int type = in.get();
+        if (type == RecordingGlApi.BUFFER_NULL) {
+            return null;
+        }
+        int count = in.getInt();
+        int elementSize;
+        switch (type) {
+            case RecordingGlApi.BUFFER_BYTE:
+                elementSize = 1;
+                break;
+            case RecordingGlApi.BUFFER_SHORT:
+                elementSize = 2;
+                break;
+            case RecordingGlApi.BUFFER_INT:
+            case RecordingGlApi.BUFFER_FLOAT:
+                elementSize = 4;
+                break;
+            default:
+                throw new IllegalArgumentException("bad buffer type " + type);
+        }
+        int bytes = count * elementSize;
+        boolean cacheable = index >= 0 && index < MAX_CACHED_ARRAYS;
+        ByteBuffer array = cacheable ? mArrays[index] : null;
+        if (array == null || array.capacity() < bytes) {
+            array = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+            if (cacheable) {
+                mArrays[index] = array;
+            }
+        }
+        array.clear();
+        switch (type) {
+            case RecordingGlApi.BUFFER_BYTE:
+                for (int i = 0; i < count; i++) {
+                    array.put(in.get());
+                }
+                array.flip();
+                return array;
+            case RecordingGlApi.BUFFER_SHORT:
+                for (int i = 0; i < count; i++) {
+                    array.putShort(in.getShort());
+                }
+                array.flip();
+                return array.asShortBuffer();
+            case RecordingGlApi.BUFFER_INT:
+                for (int i = 0; i < count; i++) {
+                    array.putInt(in.getInt());
+                }
+                array.flip();
+                return array.asIntBuffer();
+            default:
+                for (int i = 0; i < count; i++) {
+                    array.putFloat(in.getFloat());
+                }
+                array.flip();
+                return array.asFloatBuffer();
+        }
+    }
+}
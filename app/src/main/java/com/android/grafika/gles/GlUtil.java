@@ -22,7 +22,6 @@ import android.opengl.Matrix;
 import android.util.Log;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 
 /**
@@ -31,6 +30,12 @@ import java.nio.FloatBuffer;
 public class GlUtil {
     public static final String TAG = "Grafika";
 
+    /**
+     * Set to false to compile out the per-frame checks made through checkFrameGlError().
+     * Use GlValidation to change what the checks do at run time.
+     */
+    public static final boolean FRAME_CHECKS = true;
+
     /** Identity matrix for general use.  Don't modify or life will get weird. */
     public static final float[] IDENTITY_MATRIX;
     static {
@@ -40,9 +45,27 @@ public class GlUtil {
 
     private static final int SIZEOF_FLOAT = 4;
 
+    private static GlApi sGl = new GlesApi();
+
 
     private GlUtil() {}     // do not instantiate
 
+    /**
+     * Returns the GlApi that GL calls should go through.  This is GlesApi unless
+     * setGlApi() has been called.
+     */
+    public static GlApi gl() {
+        return sGl;
+    }
+
+    /**
+     * Routes GL calls made through gl() to a different implementation, e.g. a RecordingGlApi
+     * for running on the JVM.  Not synchronized; call before starting any render threads.
+     */
+    public static void setGlApi(GlApi gl) {
+        sGl = gl;
+    }
+
     /**
      * Creates a new program from the supplied vertex and fragment shaders.
      *
@@ -58,22 +81,23 @@ public class GlUtil {
             return 0;
         }
 
-        int program = GLES20.glCreateProgram();
+        GlApi gl = gl();
+        int program = gl.glCreateProgram();
         checkGlError("glCreateProgram");
         if (program == 0) {
             Log.e(TAG, "Could not create program");
         }
-        GLES20.glAttachShader(program, vertexShader);
+        gl.glAttachShader(program, vertexShader);
         checkGlError("glAttachShader");
-        GLES20.glAttachShader(program, pixelShader);
+        gl.glAttachShader(program, pixelShader);
         checkGlError("glAttachShader");
-        GLES20.glLinkProgram(program);
+        gl.glLinkProgram(program);
         int[] linkStatus = new int[1];
-        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        gl.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
         if (linkStatus[0] != GLES20.GL_TRUE) {
             Log.e(TAG, "Could not link program: ");
-            Log.e(TAG, GLES20.glGetProgramInfoLog(program));
-            GLES20.glDeleteProgram(program);
+            Log.e(TAG, gl.glGetProgramInfoLog(program));
+            gl.glDeleteProgram(program);
             program = 0;
         }
         return program;
@@ -85,31 +109,43 @@ public class GlUtil {
      * @return A handle to the shader, or 0 on failure.
      */
     public static int loadShader(int shaderType, String source) {
-        int shader = GLES20.glCreateShader(shaderType);
+        GlApi gl = gl();
+        int shader = gl.glCreateShader(shaderType);
         checkGlError("glCreateShader type=" + shaderType);
-        GLES20.glShaderSource(shader, source);
-        GLES20.glCompileShader(shader);
+        gl.glShaderSource(shader, source);
+        gl.glCompileShader(shader);
         int[] compiled = new int[1];
-        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+        gl.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
         if (compiled[0] == 0) {
             Log.e(TAG, "Could not compile shader " + shaderType + ":");
-            Log.e(TAG, " " + GLES20.glGetShaderInfoLog(shader));
-            GLES20.glDeleteShader(shader);
+            Log.e(TAG, " " + gl.glGetShaderInfoLog(shader));
+            gl.glDeleteShader(shader);
             shader = 0;
         }
         return shader;
     }
 
     /**
-     * Checks to see if a GLES error has been raised.
+     * Checks to see if a GLES error has been raised.  For setup code; per-frame rendering
+     * should use checkFrameGlError().
+     * <p>
+     * Throws a RuntimeException if an error was raised.  Only skipped when GlValidation's
+     * mode is MODE_OFF; the other modes check every setup call.
      */
     public static void checkGlError(String op) {
-        int error = GLES20.glGetError();
-        if (error != GLES20.GL_NO_ERROR) {
-            String msg = op + ": glError 0x" + Integer.toHexString(error);
-            Log.e(TAG, msg);
-            throw new RuntimeException(msg);
-        }
+        GlValidation.check(op);
+    }
+
+    /**
+     * Checks to see if a GLES error has been raised, in code that runs every frame.  Whether
+     * glGetError() is actually called depends on the GlValidation mode.  Call as:
+     * <pre>
+     * if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("draw");
+     * </pre>
+     * so the check disappears from builds with FRAME_CHECKS set to false.
+     */
+    public static void checkFrameGlError(String op) {
+        GlValidation.checkFrame(op);
     }
 
     /**
@@ -134,26 +170,27 @@ public class GlUtil {
      * @return Handle to texture.
      */
     public static int createImageTexture(ByteBuffer data, int width, int height, int format) {
+        GlApi gl = gl();
         int[] textureHandles = new int[1];
         int textureHandle;
 
-        GLES20.glGenTextures(1, textureHandles, 0);
+        gl.glGenTextures(1, textureHandles, 0);
         textureHandle = textureHandles[0];
         GlUtil.checkGlError("glGenTextures");
 
         // Bind the texture handle to the 2D texture target.
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandle);
+        gl.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandle);
 
         // Configure min/mag filtering, i.e. what scaling method do we use if what we're rendering
         // is smaller or larger than the source image.
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
                 GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
                 GLES20.GL_LINEAR);
         GlUtil.checkGlError("loadImageTexture");
 
         // Load the data from the buffer into the texture handle.
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, /*level*/ 0, format,
+        gl.glTexImage2D(GLES20.GL_TEXTURE_2D, /*level*/ 0, format,
                 width, height, /*border*/ 0, format, GLES20.GL_UNSIGNED_BYTE, data);
         GlUtil.checkGlError("loadImageTexture");
 
@@ -162,11 +199,15 @@ public class GlUtil {
 
     /**
      * Allocates a direct float buffer, and populates it with the float array data.
+     * <p>
+     * The buffer is carved out of a shared slab and is never freed, so this is intended
+     * for geometry that lives as long as the process.
      */
     public static FloatBuffer createFloatBuffer(float[] coords) {
-        // Allocate a direct ByteBuffer, using 4 bytes per float, and copy coords into it.
-        ByteBuffer bb = ByteBuffer.allocateDirect(coords.length * SIZEOF_FLOAT);
-        bb.order(ByteOrder.nativeOrder());
+        // Get a direct ByteBuffer in native order, using 4 bytes per float, and copy
+        // coords into it.
+        ByteBuffer bb = DirectBufferPool.getInstance().allocatePermanent(
+                coords.length * SIZEOF_FLOAT);
         FloatBuffer fb = bb.asFloatBuffer();
         fb.put(coords);
         fb.position(0);
@@ -177,17 +218,18 @@ public class GlUtil {
      * Writes GL version info to the log.
      */
     public static void logVersionInfo() {
-        Log.i(TAG, "vendor  : " + GLES20.glGetString(GLES20.GL_VENDOR));
-        Log.i(TAG, "renderer: " + GLES20.glGetString(GLES20.GL_RENDERER));
-        Log.i(TAG, "version : " + GLES20.glGetString(GLES20.GL_VERSION));
+        GlApi gl = gl();
+        Log.i(TAG, "vendor  : " + gl.glGetString(GLES20.GL_VENDOR));
+        Log.i(TAG, "renderer: " + gl.glGetString(GLES20.GL_RENDERER));
+        Log.i(TAG, "version : " + gl.glGetString(GLES20.GL_VERSION));
 
         if (false) {
             int[] values = new int[1];
-            GLES30.glGetIntegerv(GLES30.GL_MAJOR_VERSION, values, 0);
+            gl.glGetIntegerv(GLES30.GL_MAJOR_VERSION, values, 0);
             int majorVersion = values[0];
-            GLES30.glGetIntegerv(GLES30.GL_MINOR_VERSION, values, 0);
+            gl.glGetIntegerv(GLES30.GL_MINOR_VERSION, values, 0);
             int minorVersion = values[0];
-            if (GLES30.glGetError() == GLES30.GL_NO_ERROR) {
+            if (gl.glGetError() == GLES30.GL_NO_ERROR) {
                 Log.i(TAG, "iversion: " + majorVersion + "." + minorVersion);
             }
         }
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.opengl.GLES20;
+import android.opengl.GLES31Ext;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Controls how much GLES error checking GlUtil#checkGlError() and
+ * GlUtil#checkFrameGlError() do.
+ * <p>
+ * glGetError() can force the CPU to wait for the GPU on some drivers, so calling it after
+ * every draw call costs real frame time.  The modes:
+ * <ul>
+ * <li>MODE_OFF: no checks at all.
+ * <li>MODE_FULL: every check calls glGetError(), and an error throws.  This is the default,
+ *     and what debug builds use.
+ * <li>MODE_SAMPLED: per-frame checks only run in one frame out of every N, counting
+ *     eglSwapBuffers() calls.  Errors raised in the frames in between are picked up at the
+ *     start of the next checked frame, so the reported operation is approximate.  Per-frame
+ *     errors are logged and counted rather than thrown.
+ * <li>MODE_DEBUG_OUTPUT: per-frame checks are skipped, and the driver reports errors through
+ *     a GL_KHR_debug callback, installed when each EglCore is first made current.  Many
+ *     Android releases ship a stub for the Java binding of glDebugMessageCallbackKHR(); if
+ *     the callback can't be installed we drop to MODE_SAMPLED.
+ * </ul>
+ * Checks in setup code (GlUtil#checkGlError()) run in every mode except MODE_OFF, and an
+ * error always throws.  Per-frame checks can also be compiled out entirely with
+ * GlUtil#FRAME_CHECKS.
+ * <p>
+ * The counters are approximate if several threads are rendering, since the frame count is
+ * shared; the mode and interval are global.
+ */
+public class GlValidation {
+    private static final String TAG = GlUtil.TAG;
+
+    public static final int MODE_OFF = 0;
+    public static final int MODE_FULL = 1;
+    public static final int MODE_SAMPLED = 2;
+    public static final int MODE_DEBUG_OUTPUT = 3;
+
+    private static final String[] MODE_NAMES = { "off", "full", "sampled", "debug" };
+
+    /** Default for MODE_SAMPLED: about once a second at 60fps. */
+    public static final int DEFAULT_SAMPLE_INTERVAL = 60;
+
+    private static volatile int sMode = MODE_FULL;
+    private static volatile int sSampleInterval = DEFAULT_SAMPLE_INTERVAL;
+    private static volatile boolean sCheckThisFrame = true;
+
+    private static final AtomicLong sFrames = new AtomicLong();
+    private static final AtomicLong sChecks = new AtomicLong();
+    private static final AtomicLong sSkipped = new AtomicLong();
+    private static final AtomicLong sErrors = new AtomicLong();
+    private static final AtomicLong sDebugMessages = new AtomicLong();
+
+    private GlValidation() {}       // do not instantiate
+
+    /**
+     * Sets the checking mode.
+     *
+     * @param sampleInterval For MODE_SAMPLED, check one frame in this many.
+     */
+    public static void setMode(int mode, int sampleInterval) {
+        if (mode < MODE_OFF || mode > MODE_DEBUG_OUTPUT || sampleInterval < 1) {
+            throw new IllegalArgumentException("bad mode " + mode + "/" + sampleInterval);
+        }
+        sSampleInterval = sampleInterval;
+        sCheckThisFrame = true;
+        sMode = mode;
+        Log.d(TAG, "GL error checking: " + MODE_NAMES[mode] +
+                (mode == MODE_SAMPLED ? " every " + sampleInterval + " frames" : ""));
+    }
+
+    public static int getMode() {
+        return sMode;
+    }
+
+    public static int getSampleInterval() {
+        return sSampleInterval;
+    }
+
+    /**
+     * Converts "off", "full", "sampled", or "debug" to a mode.
+     */
+    public static int parseMode(String name) {
+        for (int i = 0; i < MODE_NAMES.length; i++) {
+            if (MODE_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("unknown GL check mode '" + name + "'");
+    }
+
+    /**
+     * Checks for an error in setup code.  Called by GlUtil#checkGlError().  Errors always
+     * throw; sampling only applies to per-frame checks.
+     */
+    static void check(String op) {
+        int mode = sMode;
+        if (mode == MODE_OFF) {
+            return;
+        }
+        sChecks.incrementAndGet();
+        int error = GlUtil.gl().glGetError();
+        if (error != GLES20.GL_NO_ERROR) {
+            report(op, error, true);
+        }
+    }
+
+    /**
+     * Checks for an error in per-frame code, if this frame is being checked.  Called by
+     * GlUtil#checkFrameGlError().
+     */
+    static void checkFrame(String op) {
+        int mode = sMode;
+        if (mode == MODE_FULL || (mode == MODE_SAMPLED && sCheckThisFrame)) {
+            sChecks.incrementAndGet();
+            int error = GlUtil.gl().glGetError();
+            if (error != GLES20.GL_NO_ERROR) {
+                report(op, error, mode == MODE_FULL);
+            }
+        } else if (mode != MODE_OFF) {
+            sSkipped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Notes the end of a frame.  Called by EglCore#swapBuffers(), with the context current.
+     */
+    static void onSwap() {
+        long frame = sFrames.incrementAndGet();
+        if (sMode != MODE_SAMPLED) {
+            return;
+        }
+        boolean checkNext = frame % sSampleInterval == 0;
+        if (checkNext && !sCheckThisFrame) {
+            // Collect anything raised while we weren't looking, so it isn't blamed on the
+            // first check of the new frame.
+            sChecks.incrementAndGet();
+            int error = GlUtil.gl().glGetError();
+            if (error != GLES20.GL_NO_ERROR) {
+                report("(unchecked frames)", error, false);
+            }
+        }
+        sCheckThisFrame = checkNext;
+    }
+
+    /**
+     * Installs the GL_KHR_debug callback in the current context if we're in
+     * MODE_DEBUG_OUTPUT.  Called by EglCore the first time it's made current.
+     */
+    static void onContextCurrent() {
+        if (sMode != MODE_DEBUG_OUTPUT) {
+            return;
+        }
+        String extensions = GlUtil.gl().glGetString(GLES20.GL_EXTENSIONS);
+        boolean installed = Build.VERSION.SDK_INT >= 21 && extensions != null &&
+                extensions.contains("GL_KHR_debug") && DebugOutput.install();
+        if (!installed) {
+            Log.w(TAG, "GL_KHR_debug callback not available, using sampled checks");
+            setMode(MODE_SAMPLED, sSampleInterval);
+        }
+    }
+
+    private static void report(String op, int error, boolean fatal) {
+        sErrors.incrementAndGet();
+        String msg = op + ": glError 0x" + Integer.toHexString(error);
+        Log.e(TAG, msg);
+        if (fatal) {
+            throw new RuntimeException(msg);
+        }
+    }
+
+    /**
+     * Clears the counters.
+     */
+    public static void resetCounts() {
+        sFrames.set(0);
+        sChecks.set(0);
+        sSkipped.set(0);
+        sErrors.set(0);
+        sDebugMessages.set(0);
+    }
+
+    /**
+     * Returns the number of glGetError() calls made.
+     */
+    public static long getCheckCount() {
+        return sChecks.get();
+    }
+
+    /**
+     * Returns a one-line summary of the counters, for logging.
+     */
+    public static String getReport() {
+        return String.format(Locale.US,
+                "GL checks (%s): frames=%d checks=%d skipped=%d errors=%d debugMessages=%d",
+                MODE_NAMES[sMode], sFrames.get(), sChecks.get(), sSkipped.get(), sErrors.get(),
+                sDebugMessages.get());
+    }
+
+    /**
+     * The GL_KHR_debug callback.  Kept in its own class so the GLES31Ext types aren't
+     * loaded on releases that don't have them.
+     */
+    private static class DebugOutput implements GLES31Ext.DebugProcKHR {
+        private static final DebugOutput sInstance = new DebugOutput();
+
+        static boolean install() {
+            try {
+                GLES31Ext.glDebugMessageCallbackKHR(sInstance);
+            } catch (UnsupportedOperationException uoe) {
+                return false;
+            }
+            GlUtil.gl().glEnable(GLES31Ext.GL_DEBUG_OUTPUT_KHR);
+            return true;
+        }
+
+        @Override
+        public void onMessage(int source, int type, int id, int severity, String message) {
+            sDebugMessages.incrementAndGet();
+            if (type == GLES31Ext.GL_DEBUG_TYPE_ERROR_KHR) {
+                sErrors.incrementAndGet();
+                Log.e(TAG, "GL debug error " + id + ": " + message);
+            } else if (severity == GLES31Ext.GL_DEBUG_SEVERITY_HIGH_KHR ||
+                    severity == GLES31Ext.GL_DEBUG_SEVERITY_MEDIUM_KHR) {
+                Log.w(TAG, "GL debug " + id + ": " + message);
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+/**
+ * Measures GPU execution time with GL_EXT_disjoint_timer_query, without stalling the
+ * pipeline.
+ * <p>
+ * begin() / end() bracket the commands to be timed.  The result shows up a few frames
+ * later; call poll() once per frame, and while it returns true pick up getResultNanos()
+ * and the tag that was passed to begin().  A ring of query objects is used, so several
+ * measurements can be in flight; if they're all busy, begin() returns false and that
+ * frame isn't timed.
+ * <p>
+ * If the GPU reports a disjoint event (e.g. a frequency change), every pending result is
+ * thrown away.
+ * <p>
+ * Requires GLES 3 and the extension; check isSupported() with the context current.  Only
+ * one instance may be timing at a time in a given context.
+ */
+public class GpuTimer {
+    private static final String TAG = GlUtil.TAG;
+
+    /** From GL_EXT_disjoint_timer_query; not defined in GLES30. */
+    public static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    public static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+    private static final String TIMER_QUERY_EXT = "GL_EXT_disjoint_timer_query";
+
+    private final int[] mQueries;
+    private final int[] mTags;
+    private final int[] mValue = new int[1];
+    private int mHead;          // next query to begin
+    private int mPending;       // queries ended but not yet collected
+    private boolean mActive;
+    private long mResultNanos;
+    private int mResultTag;
+    private int mDisjointCount;
+
+    /**
+     * Returns true if timer queries are available in the current context.
+     */
+    public static boolean isSupported(EglCore eglCore) {
+        if (eglCore.getGlVersion() < 3) {
+            return false;
+        }
+        String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+        return extensions != null && extensions.contains(TIMER_QUERY_EXT);
+    }
+
+    /**
+     * Creates the query objects.  Call with the context current.
+     *
+     * @param depth Number of measurements that can be in flight; 3 or 4 covers the usual
+     *     amount of buffering between the CPU and GPU.
+     */
+    public GpuTimer(int depth) {
+        mQueries = new int[depth];
+        mTags = new int[depth];
+        GLES30.glGenQueries(depth, mQueries, 0);
+        GlUtil.checkGlError("glGenQueries");
+        // Clear any stale disjoint flag, so it doesn't discard our first results.
+        GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, mValue, 0);
+    }
+
+    /**
+     * Starts timing.  Returns false, without starting, if every query is still pending.
+     *
+     * @param tag Caller-defined value returned with the result.
+     */
+    public boolean begin(int tag) {
+        if (mActive) {
+            throw new IllegalStateException("already timing");
+        }
+        if (mPending == mQueries.length) {
+            return false;
+        }
+        mTags[mHead] = tag;
+        GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, mQueries[mHead]);
+        mActive = true;
+        return true;
+    }
+
+    /**
+     * Stops timing.
+     */
+    public void end() {
+        if (!mActive) {
+            throw new IllegalStateException("not timing");
+        }
+        GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+        mActive = false;
+        mHead = (mHead + 1) % mQueries.length;
+        mPending++;
+    }
+
+    /**
+     * Collects the oldest result if it's available.  Returns true if one was collected,
+     * false if there's nothing ready.  Doesn't block.
+     */
+    public boolean poll() {
+        if (mPending == 0) {
+            return false;
+        }
+        GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, mValue, 0);
+        if (mValue[0] != 0) {
+            // The timings we have in flight can't be trusted.  The queries still have to
+            // complete before they can be reused, so just forget about them.
+            Log.d(TAG, "GpuTimer: disjoint, discarding " + mPending + " results");
+            mDisjointCount++;
+            GLES30.glFinish();
+            mPending = 0;
+            return false;
+        }
+
+        int index = (mHead - mPending + mQueries.length) % mQueries.length;
+        GLES30.glGetQueryObjectuiv(mQueries[index], GLES30.GL_QUERY_RESULT_AVAILABLE,
+                mValue, 0);
+        if (mValue[0] == 0) {
+            return false;
+        }
+        GLES30.glGetQueryObjectuiv(mQueries[index], GLES30.GL_QUERY_RESULT, mValue, 0);
+        mResultNanos = mValue[0] & 0xffffffffL;     // unsigned; good for ~4 sec
+        mResultTag = mTags[index];
+        mPending--;
+        return true;
+    }
+
+    /**
+     * Returns the elapsed GPU time from the most recent successful poll().
+     */
+    public long getResultNanos() {
+        return mResultNanos;
+    }
+
+    /**
+     * Returns the tag of the most recent successful poll().
+     */
+    public int getResultTag() {
+        return mResultTag;
+    }
+
+    /**
+     * Returns the number of measurements that are still in flight.
+     */
+    public int getPendingCount() {
+        return mPending;
+    }
+
+    /**
+     * Returns the number of times results were discarded because of a disjoint event.
+     */
+    public int getDisjointCount() {
+        return mDisjointCount;
+    }
+
+    /**
+     * Deletes the query objects.  Call with the context current.
+     */
+    public void release() {
+        GLES30.glDeleteQueries(mQueries.length, mQueries, 0);
+    }
+}
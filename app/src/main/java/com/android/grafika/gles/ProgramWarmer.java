@@ -0,0 +1,264 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Compiles a batch of shader programs on a background thread, so the render thread never
+ * has to stall on the shader compiler mid-frame.
+ * <p>
+ * The worker thread creates its own EGL context in the same share group as the caller's,
+ * so the program objects it creates can be used directly by the render thread once
+ * isDone() returns true.
+ * <p>
+ * If the driver supports GL_KHR_parallel_shader_compile, all the programs are submitted
+ * up front and we poll GL_COMPLETION_STATUS_KHR, letting the driver spread the work across
+ * its compiler threads.  (The Java bindings don't expose glMaxShaderCompilerThreadsKHR, so
+ * we get the driver's default thread count.)  Otherwise they're compiled one at a time.
+ * Either way, the time taken by each program is logged and available from the results.
+ * <p>
+ * Usage: add() each program, start(), then poll isDone() from the render thread and pick
+ * up getResults().  Each instance can only be started once.
+ */
+public class ProgramWarmer {
+    private static final String TAG = GlUtil.TAG;
+
+    /** From GL_KHR_parallel_shader_compile; not defined in GLES20. */
+    public static final int GL_COMPLETION_STATUS_KHR = 0x91B1;
+    private static final String PARALLEL_COMPILE_EXT = "GL_KHR_parallel_shader_compile";
+
+    private final EGLContext mSharedContext;
+    private final List<Result> mResults = new ArrayList<Result>();
+    private final HashSet<String> mSources = new HashSet<String>();
+    private Thread mThread;
+    private volatile boolean mDone;
+    private volatile boolean mParallel;
+    private volatile long mTotalNanos;
+
+    /**
+     * One compiled program.
+     */
+    public static class Result {
+        /** Label passed to add(), for logging. */
+        public final String name;
+        public final String vertexSource;
+        public final String fragmentSource;
+        /** Program handle, or 0 if compilation failed. */
+        public int program;
+        /** Time from submission to completion. */
+        public long compileNanos;
+
+        Result(String name, String vertexSource, String fragmentSource) {
+            this.name = name;
+            this.vertexSource = vertexSource;
+            this.fragmentSource = fragmentSource;
+        }
+    }
+
+    /**
+     * @param sharedContext The render thread's context.  Obtain it with
+     *     EGL14.eglGetCurrentContext() on that thread.
+     */
+    public ProgramWarmer(EGLContext sharedContext) {
+        mSharedContext = sharedContext;
+    }
+
+    /**
+     * Queues a program for compilation.  Duplicates (same sources) are ignored.
+     *
+     * @return true if the program was added.
+     */
+    public boolean add(String name, String vertexSource, String fragmentSource) {
+        if (mThread != null) {
+            throw new IllegalStateException("already started");
+        }
+        if (!mSources.add(vertexSource + '\0' + fragmentSource)) {
+            return false;
+        }
+        mResults.add(new Result(name, vertexSource, fragmentSource));
+        return true;
+    }
+
+    /**
+     * Starts compiling on a new thread.
+     */
+    public void start() {
+        if (mThread != null) {
+            throw new IllegalStateException("already started");
+        }
+        mThread = new Thread("ProgramWarmer") {
+            @Override
+            public void run() {
+                compileAll();
+            }
+        };
+        mThread.start();
+    }
+
+    /**
+     * Returns true once every program has finished compiling (or failed).
+     */
+    public boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * Returns the compiled programs.  Only valid after isDone() returns true.  Ownership of
+     * the program objects passes to the caller.
+     */
+    public List<Result> getResults() {
+        if (!mDone) {
+            throw new IllegalStateException("not done");
+        }
+        return mResults;
+    }
+
+    /**
+     * Returns true if the driver compiled in parallel.  Only valid after isDone().
+     */
+    public boolean isParallel() {
+        return mParallel;
+    }
+
+    /**
+     * Returns the wall-clock time for the whole batch.  Only valid after isDone().
+     */
+    public long getTotalNanos() {
+        return mTotalNanos;
+    }
+
+    private void compileAll() {
+        EglCore eglCore = null;
+        OffscreenSurface surface = null;
+        try {
+            eglCore = new EglCore(mSharedContext, 0);
+            surface = new OffscreenSurface(eglCore, 1, 1);
+            surface.makeCurrent();
+
+            String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+            mParallel = extensions != null && extensions.contains(PARALLEL_COMPILE_EXT);
+
+            long startNanos = System.nanoTime();
+            if (mParallel) {
+                compileParallel(startNanos);
+            } else {
+                compileSerial();
+            }
+            // Make sure the programs are complete before the other context touches them.
+            GLES20.glFinish();
+            mTotalNanos = System.nanoTime() - startNanos;
+
+            for (Result result : mResults) {
+                Log.d(TAG, "ProgramWarmer: " + result.name + ": " +
+                        (result.program != 0 ? "" : "FAILED, ") +
+                        String.format("%.1f ms", result.compileNanos / 1000000.0));
+            }
+            Log.d(TAG, "ProgramWarmer: " + mResults.size() + " programs in " +
+                    String.format("%.1f ms", mTotalNanos / 1000000.0) +
+                    (mParallel ? " (parallel)" : " (serial)"));
+        } catch (RuntimeException re) {
+            // Leave whatever didn't compile as 0; the caller will compile it on demand.
+            Log.w(TAG, "ProgramWarmer failed", re);
+        } finally {
+            if (surface != null) {
+                surface.release();
+            }
+            if (eglCore != null) {
+                eglCore.release();
+            }
+            mDone = true;
+        }
+    }
+
+    private void compileSerial() {
+        for (Result result : mResults) {
+            long start = System.nanoTime();
+            result.program = GlUtil.createProgram(result.vertexSource, result.fragmentSource);
+            result.compileNanos = System.nanoTime() - start;
+        }
+    }
+
+    private void compileParallel(long startNanos) {
+        // Submit everything without querying any status, so the driver doesn't block.
+        int[] vertexShaders = new int[mResults.size()];
+        int[] fragmentShaders = new int[mResults.size()];
+        for (int i = 0; i < mResults.size(); i++) {
+            Result result = mResults.get(i);
+            vertexShaders[i] = submitShader(GLES20.GL_VERTEX_SHADER, result.vertexSource);
+            fragmentShaders[i] = submitShader(GLES20.GL_FRAGMENT_SHADER, result.fragmentSource);
+            int program = GLES20.glCreateProgram();
+            GLES20.glAttachShader(program, vertexShaders[i]);
+            GLES20.glAttachShader(program, fragmentShaders[i]);
+            GLES20.glLinkProgram(program);
+            result.program = program;
+        }
+        GlUtil.checkGlError("submit programs");
+
+        int[] status = new int[1];
+        int remaining = mResults.size();
+        boolean[] complete = new boolean[mResults.size()];
+        while (remaining > 0) {
+            for (int i = 0; i < mResults.size(); i++) {
+                if (complete[i]) {
+                    continue;
+                }
+                Result result = mResults.get(i);
+                GLES20.glGetProgramiv(result.program, GL_COMPLETION_STATUS_KHR, status, 0);
+                if (status[0] == GLES20.GL_TRUE) {
+                    result.compileNanos = System.nanoTime() - startNanos;
+                    complete[i] = true;
+                    remaining--;
+                }
+            }
+            if (remaining > 0) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ie) {
+                    // not expected; just poll again
+                }
+            }
+        }
+
+        for (int i = 0; i < mResults.size(); i++) {
+            Result result = mResults.get(i);
+            GLES20.glGetProgramiv(result.program, GLES20.GL_LINK_STATUS, status, 0);
+            if (status[0] != GLES20.GL_TRUE) {
+                Log.e(TAG, "Could not link program " + result.name + ": " +
+                        GLES20.glGetProgramInfoLog(result.program));
+                GLES20.glDeleteProgram(result.program);
+                result.program = 0;
+            }
+            // Flagged for deletion; they go away with the program.
+            GLES20.glDeleteShader(vertexShaders[i]);
+            GLES20.glDeleteShader(fragmentShaders[i]);
+        }
+    }
+
+    private static int submitShader(int type, String source) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        return shader;
+    }
+}
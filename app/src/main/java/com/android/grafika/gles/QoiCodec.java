@@ -0,0 +1,536 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Lossless "Quite OK Image" (QOI) encoder and decoder for RGBA frames.
+ * <p>
+ * QOI compresses about as well as a fast PNG setting, but runs an order of magnitude faster
+ * because it's a single pass with no entropy coding.  This works directly on the RGBA
+ * ByteBuffer layout glReadPixels() produces.  Because GL stores the bottom row first, the
+ * encoder and decoder can walk the rows in reverse, so the image comes out right side up
+ * without a separate flip pass.
+ * <p>
+ * To use more than one core, the frame is split into horizontal strips, each of which is
+ * coded independently as a complete QOI image.  With one strip the output is a standard
+ * .qoi file.  With more than one, the strips are wrapped in a small container:
+ * <pre>
+ *   "qois", width (u32), height (u32), stripCount (u32), stripCount * byte length (u32),
+ *   followed by the strips, each a standard QOI stream of width x rowsPerStrip pixels
+ * </pre>
+ * All values are big-endian, like the QOI header.  The last strip may be shorter.
+ * <p>
+ * All working memory is allocated up front, so steady-state encoding and decoding doesn't
+ * allocate.  Encoding and decoding must not be called concurrently on the same instance.
+ * Call release() to stop the worker threads.
+ * <p>
+ * This doesn't use any Android APIs, so it can be used (and benchmarked) on a desktop JVM.
+ */
+public final class QoiCodec {
+    private static final int QOI_MAGIC = 0x716f6966;        // "qoif"
+    private static final int STRIPS_MAGIC = 0x716f6973;     // "qois"
+    private static final int QOI_HEADER_SIZE = 14;
+    private static final int QOI_END_SIZE = 8;
+
+    private static final int OP_INDEX = 0x00;
+    private static final int OP_DIFF = 0x40;
+    private static final int OP_LUMA = 0x80;
+    private static final int OP_RUN = 0xc0;
+    private static final int OP_RGB = 0xfe;
+    private static final int OP_RGBA = 0xff;
+    private static final int MASK_2 = 0xc0;
+    private static final int MAX_RUN = 62;
+
+    // Packed RGBA of the implicit "previous pixel" at the start of each strip.
+    private static final int START_PIXEL = 0x000000ff;
+
+    private static final int OP_ENCODE = 1;
+    private static final int OP_DECODE = 2;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mNumStrips;
+    private final int mRowsPerStrip;
+
+    // Per-strip output from the encoder, and per-strip input offsets for the decoder.
+    private final byte[][] mStripData;
+    private final int[] mStripLength;
+    private final int[] mStripOffset;
+
+    // Per-thread QOI color index.  Thread 0 is the caller.
+    private final int[][] mIndexTables;
+
+    // Parameters for the current operation, read by the workers.
+    private ByteBuffer mSrc;
+    private ByteBuffer mDest;
+    private boolean mSrcLittleEndian;
+    private boolean mDestLittleEndian;
+    private boolean mBottomUp;
+    private int mStripCount;
+
+    // Worker thread coordination.  Workers sleep until mGeneration changes.
+    private final Object mLock = new Object();
+    private final Thread[] mWorkers;
+    private int mGeneration;
+    private int mOperation;
+    private int mBusyWorkers;
+    private boolean mShutdown;
+    private RuntimeException mWorkerFailure;
+
+    /**
+     * Prepares a codec for frames of a given size.
+     *
+     * @param width Frame width, in pixels.
+     * @param height Frame height, in pixels.
+     * @param numStrips Number of independently-coded strips to split the frame into when
+     *     encoding.  Use 1 for a standard QOI file.
+     * @param numThreads Number of threads to use, including the caller's.
+     */
+    public QoiCodec(int width, int height, int numStrips, int numThreads) {
+        if (width <= 0 || height <= 0 || numStrips <= 0 || numThreads <= 0) {
+            throw new IllegalArgumentException("bad args: " + width + "x" + height +
+                    " strips=" + numStrips + " threads=" + numThreads);
+        }
+        mWidth = width;
+        mHeight = height;
+        // Round the strip height up, then recompute the count so no strip is empty.
+        int rowsPerStrip = (height + numStrips - 1) / numStrips;
+        mRowsPerStrip = rowsPerStrip;
+        mNumStrips = (height + rowsPerStrip - 1) / rowsPerStrip;
+
+        mStripData = new byte[mNumStrips][];
+        for (int i = 0; i < mNumStrips; i++) {
+            mStripData[i] = new byte[maxStripSize(stripRows(i, mNumStrips, mRowsPerStrip))];
+        }
+        mStripLength = new int[mNumStrips];
+        mStripOffset = new int[mNumStrips];
+
+        int threads = Math.min(numThreads, mNumStrips);
+        mIndexTables = new int[threads][64];
+        mWorkers = new Thread[threads - 1];
+        for (int i = 0; i < mWorkers.length; i++) {
+            final int workerId = i + 1;
+            mWorkers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    workerLoop(workerId);
+                }
+            }, "QoiCodec-" + workerId);
+            mWorkers[i].setDaemon(true);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Returns the worst-case size of an encoded frame.  Size the output buffer accordingly.
+     */
+    public int getMaxEncodedSize() {
+        int size = mNumStrips == 1 ? 0 : 16 + 4 * mNumStrips;
+        for (int i = 0; i < mNumStrips; i++) {
+            size += mStripData[i].length;
+        }
+        return size;
+    }
+
+    /**
+     * Encodes a frame.
+     *
+     * @param src RGBA pixels, width * height * 4 bytes starting at position 0.
+     * @param bottomUp If set, the first row in src is the bottom of the image, as with
+     *     glReadPixels().  The output is always top-down.
+     * @param dest Output buffer.  Written from its current position, which is advanced.
+     * @return Number of bytes written.
+     */
+    public int encode(ByteBuffer src, boolean bottomUp, ByteBuffer dest) {
+        if (src.capacity() < mWidth * mHeight * 4) {
+            throw new IllegalArgumentException("source buffer too small");
+        }
+        mSrc = src;
+        mSrcLittleEndian = src.order() == ByteOrder.LITTLE_ENDIAN;
+        mBottomUp = bottomUp;
+        mStripCount = mNumStrips;
+        runAll(OP_ENCODE);
+        mSrc = null;
+
+        int start = dest.position();
+        if (mNumStrips > 1) {
+            ByteOrder origOrder = dest.order();
+            dest.order(ByteOrder.BIG_ENDIAN);
+            dest.putInt(STRIPS_MAGIC);
+            dest.putInt(mWidth);
+            dest.putInt(mHeight);
+            dest.putInt(mNumStrips);
+            for (int i = 0; i < mNumStrips; i++) {
+                dest.putInt(mStripLength[i]);
+            }
+            dest.order(origOrder);
+        }
+        for (int i = 0; i < mNumStrips; i++) {
+            dest.put(mStripData[i], 0, mStripLength[i]);
+        }
+        return dest.position() - start;
+    }
+
+    /**
+     * Decodes a frame produced by encode(), or any standard QOI image with matching
+     * dimensions and 4 channels.
+     *
+     * @param src Encoded data, from position to limit.
+     * @param dest Receives RGBA pixels, width * height * 4 bytes starting at position 0.
+     * @param bottomUp If set, the bottom row of the image is written first, as
+     *     glTexImage2D() expects.
+     */
+    public void decode(ByteBuffer src, ByteBuffer dest, boolean bottomUp) {
+        if (dest.capacity() < mWidth * mHeight * 4) {
+            throw new IllegalArgumentException("destination buffer too small");
+        }
+        int base = src.position();
+        int magic = getIntBE(src, base);
+        if (magic == QOI_MAGIC) {
+            mStripCount = 1;
+            mStripOffset[0] = base;
+        } else if (magic == STRIPS_MAGIC) {
+            if (getIntBE(src, base + 4) != mWidth || getIntBE(src, base + 8) != mHeight) {
+                throw new IllegalArgumentException("frame size mismatch");
+            }
+            int count = getIntBE(src, base + 12);
+            if (count != mNumStrips) {
+                throw new IllegalArgumentException("expected " + mNumStrips + " strips, found " +
+                        count);
+            }
+            int offset = base + 16 + 4 * count;
+            for (int i = 0; i < count; i++) {
+                mStripOffset[i] = offset;
+                offset += getIntBE(src, base + 16 + 4 * i);
+            }
+            if (offset > src.limit()) {
+                throw new IllegalArgumentException("truncated data");
+            }
+            mStripCount = count;
+        } else {
+            throw new IllegalArgumentException("not QOI data");
+        }
+
+        mSrc = src;
+        mDest = dest;
+        mDestLittleEndian = dest.order() == ByteOrder.LITTLE_ENDIAN;
+        mBottomUp = bottomUp;
+        runAll(OP_DECODE);
+        mSrc = mDest = null;
+    }
+
+    /**
+     * Stops the worker threads.  The codec may not be used afterward.
+     */
+    public void release() {
+        synchronized (mLock) {
+            mShutdown = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Runs the operation on all strips, spreading them across the threads, and waits for
+     * completion.
+     */
+    private void runAll(int op) {
+        synchronized (mLock) {
+            if (mShutdown) {
+                throw new IllegalStateException("codec released");
+            }
+            mOperation = op;
+            mBusyWorkers = mWorkers.length;
+            mWorkerFailure = null;
+            mGeneration++;
+            mLock.notifyAll();
+        }
+
+        RuntimeException failure = null;
+        try {
+            runStrips(0, op);
+        } catch (RuntimeException re) {
+            failure = re;
+        }
+
+        synchronized (mLock) {
+            while (mBusyWorkers > 0) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException ie) {
+                    // Workers are touching our buffers; we have to wait for them.
+                }
+            }
+            if (failure == null) {
+                failure = mWorkerFailure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Main loop for worker threads.
+     */
+    private void workerLoop(int workerId) {
+        int seenGeneration = 0;
+        while (true) {
+            int op;
+            synchronized (mLock) {
+                while (mGeneration == seenGeneration && !mShutdown) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException ie) {
+                        // ignore
+                    }
+                }
+                if (mShutdown) {
+                    return;
+                }
+                seenGeneration = mGeneration;
+                op = mOperation;
+            }
+
+            RuntimeException failure = null;
+            try {
+                runStrips(workerId, op);
+            } catch (RuntimeException re) {
+                failure = re;
+            }
+
+            synchronized (mLock) {
+                if (failure != null && mWorkerFailure == null) {
+                    mWorkerFailure = failure;
+                }
+                mBusyWorkers--;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Processes every Nth strip, where N is the thread count.
+     */
+    private void runStrips(int threadId, int op) {
+        int[] index = mIndexTables[threadId];
+        for (int strip = threadId; strip < mStripCount; strip += mIndexTables.length) {
+            int rows = mStripCount == 1 ? mHeight : stripRows(strip, mStripCount, mRowsPerStrip);
+            int firstRow = mStripCount == 1 ? 0 : strip * mRowsPerStrip;
+            if (op == OP_ENCODE) {
+                mStripLength[strip] = encodeStrip(firstRow, rows, mStripData[strip], index);
+            } else {
+                decodeStrip(mStripOffset[strip], firstRow, rows, index);
+            }
+        }
+    }
+
+    /**
+     * Encodes rows [firstRow, firstRow + rows) of the (top-down) image as a QOI stream.
+     *
+     * @return Number of bytes written to out.
+     */
+    private int encodeStrip(int firstRow, int rows, byte[] out, int[] index) {
+        final ByteBuffer src = mSrc;
+        final boolean swap = mSrcLittleEndian;
+        final int width = mWidth;
+        final int stride = width * 4;
+
+        int p = 0;
+        p = putIntBE(out, p, QOI_MAGIC);
+        p = putIntBE(out, p, width);
+        p = putIntBE(out, p, rows);
+        out[p++] = 4;       // channels
+        out[p++] = 0;       // sRGB with linear alpha
+
+        Arrays.fill(index, 0);
+        int prev = START_PIXEL;
+        int run = 0;
+        for (int row = 0; row < rows; row++) {
+            int imageRow = firstRow + row;
+            int srcRow = mBottomUp ? mHeight - 1 - imageRow : imageRow;
+            int off = srcRow * stride;
+            boolean lastRow = row == rows - 1;
+            for (int x = 0; x < width; x++, off += 4) {
+                int px = src.getInt(off);
+                if (swap) {
+                    px = Integer.reverseBytes(px);
+                }
+
+                if (px == prev) {
+                    run++;
+                    if (run == MAX_RUN || (lastRow && x == width - 1)) {
+                        out[p++] = (byte) (OP_RUN | (run - 1));
+                        run = 0;
+                    }
+                    continue;
+                }
+                if (run > 0) {
+                    out[p++] = (byte) (OP_RUN | (run - 1));
+                    run = 0;
+                }
+
+                int r = px >>> 24;
+                int g = (px >>> 16) & 0xff;
+                int b = (px >>> 8) & 0xff;
+                int a = px & 0xff;
+                int hash = (r * 3 + g * 5 + b * 7 + a * 11) & 63;
+                if (index[hash] == px) {
+                    out[p++] = (byte) (OP_INDEX | hash);
+                } else {
+                    index[hash] = px;
+                    if (a == (prev & 0xff)) {
+                        // Differences wrap around, as with signed char in the reference code.
+                        int vr = (byte) (r - (prev >>> 24));
+                        int vg = (byte) (g - ((prev >>> 16) & 0xff));
+                        int vb = (byte) (b - ((prev >>> 8) & 0xff));
+                        int vgr = vr - vg;
+                        int vgb = vb - vg;
+                        if (vr > -3 && vr < 2 && vg > -3 && vg < 2 && vb > -3 && vb < 2) {
+                            out[p++] = (byte) (OP_DIFF | (vr + 2) << 4 | (vg + 2) << 2 | (vb + 2));
+                        } else if (vgr > -9 && vgr < 8 && vg > -33 && vg < 32 &&
+                                vgb > -9 && vgb < 8) {
+                            out[p++] = (byte) (OP_LUMA | (vg + 32));
+                            out[p++] = (byte) ((vgr + 8) << 4 | (vgb + 8));
+                        } else {
+                            out[p++] = (byte) OP_RGB;
+                            out[p++] = (byte) r;
+                            out[p++] = (byte) g;
+                            out[p++] = (byte) b;
+                        }
+                    } else {
+                        out[p++] = (byte) OP_RGBA;
+                        p = putIntBE(out, p, px);
+                    }
+                }
+                prev = px;
+            }
+        }
+
+        for (int i = 0; i < QOI_END_SIZE - 1; i++) {
+            out[p++] = 0;
+        }
+        out[p++] = 1;
+        return p;
+    }
+
+    /**
+     * Decodes one QOI stream into rows [firstRow, firstRow + rows) of the (top-down) image.
+     */
+    private void decodeStrip(int inOffset, int firstRow, int rows, int[] index) {
+        final ByteBuffer src = mSrc;
+        final ByteBuffer dest = mDest;
+        final boolean swap = mDestLittleEndian;
+        final int width = mWidth;
+        final int stride = width * 4;
+
+        if (getIntBE(src, inOffset) != QOI_MAGIC || getIntBE(src, inOffset + 4) != width ||
+                getIntBE(src, inOffset + 8) != rows || src.get(inOffset + 12) != 4) {
+            throw new IllegalArgumentException("bad QOI header at " + inOffset);
+        }
+        int p = inOffset + QOI_HEADER_SIZE;
+        int end = src.limit() - QOI_END_SIZE;
+
+        Arrays.fill(index, 0);
+        int px = START_PIXEL;
+        int run = 0;
+        for (int row = 0; row < rows; row++) {
+            int imageRow = firstRow + row;
+            int destRow = mBottomUp ? mHeight - 1 - imageRow : imageRow;
+            int off = destRow * stride;
+            for (int x = 0; x < width; x++, off += 4) {
+                if (run > 0) {
+                    run--;
+                } else if (p < end) {
+                    int b1 = src.get(p++) & 0xff;
+                    if (b1 == OP_RGB) {
+                        px = (src.get(p) & 0xff) << 24 | (src.get(p + 1) & 0xff) << 16 |
+                                (src.get(p + 2) & 0xff) << 8 | (px & 0xff);
+                        p += 3;
+                    } else if (b1 == OP_RGBA) {
+                        px = getIntBE(src, p);
+                        p += 4;
+                    } else {
+                        switch (b1 & MASK_2) {
+                            case OP_INDEX:
+                                px = index[b1];
+                                break;
+                            case OP_DIFF: {
+                                int r = ((px >>> 24) + ((b1 >> 4) & 3) - 2) & 0xff;
+                                int g = ((px >>> 16) + ((b1 >> 2) & 3) - 2) & 0xff;
+                                int b = ((px >>> 8) + (b1 & 3) - 2) & 0xff;
+                                px = r << 24 | g << 16 | b << 8 | (px & 0xff);
+                                break;
+                            }
+                            case OP_LUMA: {
+                                int b2 = src.get(p++) & 0xff;
+                                int vg = (b1 & 0x3f) - 32;
+                                int r = ((px >>> 24) + vg - 8 + ((b2 >> 4) & 0x0f)) & 0xff;
+                                int g = ((px >>> 16) + vg) & 0xff;
+                                int b = ((px >>> 8) + vg - 8 + (b2 & 0x0f)) & 0xff;
+                                px = r << 24 | g << 16 | b << 8 | (px & 0xff);
+                                break;
+                            }
+                            default:    // OP_RUN
+                                run = b1 & 0x3f;
+                                break;
+                        }
+                    }
+                    int r = px >>> 24;
+                    int g = (px >>> 16) & 0xff;
+                    int b = (px >>> 8) & 0xff;
+                    int a = px & 0xff;
+                    index[(r * 3 + g * 5 + b * 7 + a * 11) & 63] = px;
+                }
+                dest.putInt(off, swap ? Integer.reverseBytes(px) : px);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of rows in the Nth strip.
+     */
+    private int stripRows(int strip, int numStrips, int rowsPerStrip) {
+        if (strip == numStrips - 1) {
+            return mHeight - rowsPerStrip * (numStrips - 1);
+        }
+        return rowsPerStrip;
+    }
+
+    /**
+     * Worst-case size of a QOI stream: every pixel coded as OP_RGBA.
+     */
+    private int maxStripSize(int rows) {
+        return QOI_HEADER_SIZE + mWidth * rows * 5 + QOI_END_SIZE;
+    }
+
+    private static int putIntBE(byte[] out, int p, int value) {
+        out[p] = (byte) (value >>> 24);
+        out[p + 1] = (byte) (value >>> 16);
+        out[p + 2] = (byte) (value >>> 8);
+        out[p + 3] = (byte) value;
+        return p + 4;
+    }
+
+    private static int getIntBE(ByteBuffer buf, int offset) {
+        return (buf.get(offset) & 0xff) << 24 | (buf.get(offset + 1) & 0xff) << 16 |
+                (buf.get(offset + 2) & 0xff) << 8 | (buf.get(offset + 3) & 0xff);
+    }
+}
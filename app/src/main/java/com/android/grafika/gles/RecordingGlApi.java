@@ -0,0 +1,605 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.opengl.GLES20;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * GlApi implementation that doesn't draw anything.  Each call is appended, with its
+ * arguments, to a compact binary log, and counted by type.
+ * <p>
+ * This lets the GL code run on a plain JVM: to count the calls a frame makes, to measure the
+ * CPU cost of issuing them, or to capture a trace that GlTraceReplayer can play back into
+ * another GlApi.
+ * <p>
+ * Queries get plausible answers.  Object names count up from 1, shaders always compile,
+ * programs always link, and glGetError() never reports an error.  Attribute and uniform
+ * locations are handed out in the order they're asked for, but only for names declared in
+ * the program's shaders, so code that probes for optional uniforms takes the same path it
+ * would on a device.
+ * <p>
+ * Log format: each call is a one-byte opcode (OP_*) followed by its arguments, little-endian.
+ * ints and floats are written as-is, booleans as one byte.  float[] arguments are written as
+ * the count argument followed by the values GL would read.  Strings are a byte count and the
+ * UTF-8 bytes.  Vertex attribute arrays are copied from the buffer's position to its limit,
+ * as an element type (BUFFER_*), an element count, and the elements; texture image data is
+ * only recorded as a byte count, -1 for null.  Calls that create objects or look up
+ * locations are followed by the value returned.  Output arguments aren't recorded.
+ * <p>
+ * Not thread-safe.
+ */
+public class RecordingGlApi implements GlApi {
+    public static final int OP_ACTIVE_TEXTURE = 1;
+    public static final int OP_ATTACH_SHADER = 2;
+    public static final int OP_BIND_TEXTURE = 3;
+    public static final int OP_COMPILE_SHADER = 4;
+    public static final int OP_CREATE_PROGRAM = 5;
+    public static final int OP_CREATE_SHADER = 6;
+    public static final int OP_DELETE_PROGRAM = 7;
+    public static final int OP_DELETE_SHADER = 8;
+    public static final int OP_DISABLE_VERTEX_ATTRIB_ARRAY = 9;
+    public static final int OP_DRAW_ARRAYS = 10;
+    public static final int OP_ENABLE = 11;
+    public static final int OP_ENABLE_VERTEX_ATTRIB_ARRAY = 12;
+    public static final int OP_GEN_TEXTURES = 13;
+    public static final int OP_GET_ATTRIB_LOCATION = 14;
+    public static final int OP_GET_ERROR = 15;
+    public static final int OP_GET_INTEGERV = 16;
+    public static final int OP_GET_PROGRAM_INFO_LOG = 17;
+    public static final int OP_GET_PROGRAMIV = 18;
+    public static final int OP_GET_SHADER_INFO_LOG = 19;
+    public static final int OP_GET_SHADERIV = 20;
+    public static final int OP_GET_STRING = 21;
+    public static final int OP_GET_UNIFORM_LOCATION = 22;
+    public static final int OP_LINK_PROGRAM = 23;
+    public static final int OP_SHADER_SOURCE = 24;
+    public static final int OP_TEX_IMAGE_2D = 25;
+    public static final int OP_TEX_PARAMETERF = 26;
+    public static final int OP_TEX_PARAMETERI = 27;
+    public static final int OP_UNIFORM_1F = 28;
+    public static final int OP_UNIFORM_1FV = 29;
+    public static final int OP_UNIFORM_2F = 30;
+    public static final int OP_UNIFORM_2FV = 31;
+    public static final int OP_UNIFORM_4FV = 32;
+    public static final int OP_UNIFORM_MATRIX_4FV = 33;
+    public static final int OP_USE_PROGRAM = 34;
+    public static final int OP_VERTEX_ATTRIB_POINTER = 35;
+    public static final int OP_END_FRAME = 36;
+    public static final int OP_COUNT = 37;
+
+    private static final String[] OP_NAMES = {
+            null, "glActiveTexture", "glAttachShader", "glBindTexture", "glCompileShader",
+            "glCreateProgram", "glCreateShader", "glDeleteProgram", "glDeleteShader",
+            "glDisableVertexAttribArray", "glDrawArrays", "glEnable",
+            "glEnableVertexAttribArray", "glGenTextures", "glGetAttribLocation", "glGetError",
+            "glGetIntegerv", "glGetProgramInfoLog", "glGetProgramiv", "glGetShaderInfoLog",
+            "glGetShaderiv", "glGetString", "glGetUniformLocation", "glLinkProgram",
+            "glShaderSource", "glTexImage2D", "glTexParameterf", "glTexParameteri",
+            "glUniform1f", "glUniform1fv", "glUniform2f", "glUniform2fv", "glUniform4fv",
+            "glUniformMatrix4fv", "glUseProgram", "glVertexAttribPointer", "endFrame"
+    };
+
+    /** Element types for recorded vertex arrays. */
+    public static final int BUFFER_NULL = 0;
+    public static final int BUFFER_BYTE = 1;
+    public static final int BUFFER_SHORT = 2;
+    public static final int BUFFER_INT = 3;
+    public static final int BUFFER_FLOAT = 4;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int INITIAL_LOG_SIZE = 64 * 1024;
+
+    private ByteBuffer mLog;
+    private final int[] mCounts = new int[OP_COUNT];
+    private long mTotalCalls;
+    private int mFrames;
+
+    // Fake GL state.
+    private int mNextName = 1;
+    private final Map<Integer, String> mShaderSource = new HashMap<Integer, String>();
+    private final Map<Integer, ProgramInfo> mPrograms = new HashMap<Integer, ProgramInfo>();
+
+    private static class ProgramInfo {
+        final List<Integer> shaders = new ArrayList<Integer>();
+        final Map<String, Integer> attribs = new HashMap<String, Integer>();
+        final Map<String, Integer> uniforms = new HashMap<String, Integer>();
+    }
+
+    public RecordingGlApi() {
+        mLog = ByteBuffer.allocate(INITIAL_LOG_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Returns the name of an OP_* value.
+     */
+    public static String getOpName(int op) {
+        return OP_NAMES[op];
+    }
+
+    /**
+     * Returns the log recorded so far, as a read-only buffer from 0 to the end of the log.
+     * The buffer is only valid until the next call is recorded.
+     */
+    public ByteBuffer getLog() {
+        ByteBuffer log = mLog.asReadOnlyBuffer();
+        log.flip();
+        return log.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Returns the size of the log, in bytes.
+     */
+    public int getLogSize() {
+        return mLog.position();
+    }
+
+    /**
+     * Returns the number of calls of one type (OP_*) recorded.
+     */
+    public int getCallCount(int op) {
+        return mCounts[op];
+    }
+
+    /**
+     * Returns the number of calls recorded, including endFrame().
+     */
+    public long getTotalCallCount() {
+        return mTotalCalls;
+    }
+
+    /**
+     * Returns the number of endFrame() calls recorded.
+     */
+    public int getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * Discards the log and zeroes the counts.  Objects created so far still exist, so a
+     * trace recorded after this will refer to names it doesn't create.
+     */
+    public void reset() {
+        mLog.clear();
+        for (int i = 0; i < OP_COUNT; i++) {
+            mCounts[i] = 0;
+        }
+        mTotalCalls = 0;
+        mFrames = 0;
+    }
+
+    /**
+     * Returns a multi-line summary of the call counts, most frequent first.
+     */
+    public String formatCounts() {
+        List<Integer> ops = new ArrayList<Integer>();
+        for (int op = 1; op < OP_COUNT; op++) {
+            if (mCounts[op] != 0) {
+                ops.add(op);
+            }
+        }
+        Collections.sort(ops, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return mCounts[rhs] - mCounts[lhs];
+            }
+        });
+        StringBuilder sb = new StringBuilder();
+        sb.append(mTotalCalls).append(" calls, ").append(mFrames).append(" frames, ")
+                .append(getLogSize()).append(" bytes\n");
+        for (int op : ops) {
+            sb.append("  ").append(OP_NAMES[op]).append(' ').append(mCounts[op]).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Starts a record: makes room for the opcode and "bytes" more, and writes the opcode.
+     */
+    private ByteBuffer begin(int op, int bytes) {
+        ensureSpace(1 + bytes);
+        mLog.put((byte) op);
+        mCounts[op]++;
+        mTotalCalls++;
+        return mLog;
+    }
+
+    private void ensureSpace(int bytes) {
+        if (mLog.remaining() < bytes) {
+            int newSize = Math.max(mLog.capacity() * 2, mLog.position() + bytes);
+            ByteBuffer newLog = ByteBuffer.allocate(newSize).order(ByteOrder.LITTLE_ENDIAN);
+            mLog.flip();
+            newLog.put(mLog);
+            mLog = newLog;
+        }
+    }
+
+    private void putBoolean(boolean value) {
+        mLog.put(value ? (byte) 1 : (byte) 0);
+    }
+
+    private void putString(String str) {
+        byte[] bytes = str.getBytes(UTF8);
+        ensureSpace(4 + bytes.length);
+        mLog.putInt(bytes.length);
+        mLog.put(bytes);
+    }
+
+    private void putFloats(int count, float[] values, int offset, int perItem) {
+        int n = count * perItem;
+        ensureSpace(4 + n * 4);
+        mLog.putInt(count);
+        for (int i = 0; i < n; i++) {
+            mLog.putFloat(values[offset + i]);
+        }
+    }
+
+    /**
+     * Copies a vertex array's contents, from position to limit, without changing it.
+     */
+    private void putBuffer(Buffer buf) {
+        if (buf == null) {
+            ensureSpace(1);
+            mLog.put((byte) BUFFER_NULL);
+            return;
+        }
+        int start = buf.position();
+        int count = buf.remaining();
+        if (buf instanceof FloatBuffer) {
+            FloatBuffer fb = (FloatBuffer) buf;
+            ensureSpace(5 + count * 4);
+            mLog.put((byte) BUFFER_FLOAT).putInt(count);
+            for (int i = 0; i < count; i++) {
+                mLog.putFloat(fb.get(start + i));
+            }
+        } else if (buf instanceof ShortBuffer) {
+            ShortBuffer sb = (ShortBuffer) buf;
+            ensureSpace(5 + count * 2);
+            mLog.put((byte) BUFFER_SHORT).putInt(count);
+            for (int i = 0; i < count; i++) {
+                mLog.putShort(sb.get(start + i));
+            }
+        } else if (buf instanceof IntBuffer) {
+            IntBuffer ib = (IntBuffer) buf;
+            ensureSpace(5 + count * 4);
+            mLog.put((byte) BUFFER_INT).putInt(count);
+            for (int i = 0; i < count; i++) {
+                mLog.putInt(ib.get(start + i));
+            }
+        } else if (buf instanceof ByteBuffer) {
+            ByteBuffer bb = (ByteBuffer) buf;
+            ensureSpace(5 + count);
+            mLog.put((byte) BUFFER_BYTE).putInt(count);
+            for (int i = 0; i < count; i++) {
+                mLog.put(bb.get(start + i));
+            }
+        } else {
+            throw new IllegalArgumentException("unsupported buffer " + buf.getClass());
+        }
+    }
+
+    private static int byteCount(Buffer buf) {
+        if (buf == null) {
+            return -1;
+        } else if (buf instanceof FloatBuffer || buf instanceof IntBuffer) {
+            return buf.remaining() * 4;
+        } else if (buf instanceof ShortBuffer) {
+            return buf.remaining() * 2;
+        } else {
+            return buf.remaining();
+        }
+    }
+
+    /**
+     * Returns the location of an attribute or uniform, assigning one if the name is declared
+     * in the program's shaders, or -1.
+     */
+    private int lookUp(int program, String name, boolean uniform) {
+        ProgramInfo info = mPrograms.get(program);
+        if (info == null) {
+            return -1;
+        }
+        Map<String, Integer> locations = uniform ? info.uniforms : info.attribs;
+        Integer location = locations.get(name);
+        if (location == null) {
+            if (!isDeclared(info, name, uniform)) {
+                return -1;
+            }
+            location = locations.size();
+            locations.put(name, location);
+        }
+        return location;
+    }
+
+    private boolean isDeclared(ProgramInfo info, String name, boolean uniform) {
+        for (int shader : info.shaders) {
+            String source = mShaderSource.get(shader);
+            if (source == null) {
+                continue;
+            }
+            // Not every shader has line breaks, so split into statements.
+            for (String decl : source.split("[;{}\n]")) {
+                decl = decl.trim();
+                boolean match = uniform ? decl.startsWith("uniform ") :
+                        decl.startsWith("attribute ") || decl.startsWith("in ");
+                if (!match) {
+                    continue;
+                }
+                // e.g. "uniform float uKernel[KERNEL_SIZE]" declares "uKernel".
+                String declName = decl.substring(decl.lastIndexOf(' ') + 1);
+                int bracket = declName.indexOf('[');
+                if (bracket >= 0) {
+                    declName = declName.substring(0, bracket);
+                }
+                if (declName.equals(name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void glActiveTexture(int texture) {
+        begin(OP_ACTIVE_TEXTURE, 4).putInt(texture);
+    }
+
+    @Override
+    public void glAttachShader(int program, int shader) {
+        begin(OP_ATTACH_SHADER, 8).putInt(program).putInt(shader);
+        ProgramInfo info = mPrograms.get(program);
+        if (info != null) {
+            info.shaders.add(shader);
+        }
+    }
+
+    @Override
+    public void glBindTexture(int target, int texture) {
+        begin(OP_BIND_TEXTURE, 8).putInt(target).putInt(texture);
+    }
+
+    @Override
+    public void glCompileShader(int shader) {
+        begin(OP_COMPILE_SHADER, 4).putInt(shader);
+    }
+
+    @Override
+    public int glCreateProgram() {
+        int program = mNextName++;
+        mPrograms.put(program, new ProgramInfo());
+        begin(OP_CREATE_PROGRAM, 4).putInt(program);
+        return program;
+    }
+
+    @Override
+    public int glCreateShader(int type) {
+        int shader = mNextName++;
+        begin(OP_CREATE_SHADER, 8).putInt(type).putInt(shader);
+        return shader;
+    }
+
+    @Override
+    public void glDeleteProgram(int program) {
+        begin(OP_DELETE_PROGRAM, 4).putInt(program);
+        mPrograms.remove(program);
+    }
+
+    @Override
+    public void glDeleteShader(int shader) {
+        begin(OP_DELETE_SHADER, 4).putInt(shader);
+        mShaderSource.remove(shader);
+    }
+
+    @Override
+    public void glDisableVertexAttribArray(int index) {
+        begin(OP_DISABLE_VERTEX_ATTRIB_ARRAY, 4).putInt(index);
+    }
+
+    @Override
+    public void glDrawArrays(int mode, int first, int count) {
+        begin(OP_DRAW_ARRAYS, 12).putInt(mode).putInt(first).putInt(count);
+    }
+
+    @Override
+    public void glEnable(int cap) {
+        begin(OP_ENABLE, 4).putInt(cap);
+    }
+
+    @Override
+    public void glEnableVertexAttribArray(int index) {
+        begin(OP_ENABLE_VERTEX_ATTRIB_ARRAY, 4).putInt(index);
+    }
+
+    @Override
+    public void glGenTextures(int n, int[] textures, int offset) {
+        begin(OP_GEN_TEXTURES, 4 + n * 4).putInt(n);
+        for (int i = 0; i < n; i++) {
+            textures[offset + i] = mNextName++;
+            mLog.putInt(textures[offset + i]);
+        }
+    }
+
+    @Override
+    public int glGetAttribLocation(int program, String name) {
+        begin(OP_GET_ATTRIB_LOCATION, 4).putInt(program);
+        putString(name);
+        int location = lookUp(program, name, false);
+        ensureSpace(4);
+        mLog.putInt(location);
+        return location;
+    }
+
+    @Override
+    public int glGetError() {
+        begin(OP_GET_ERROR, 0);
+        return GLES20.GL_NO_ERROR;
+    }
+
+    @Override
+    public void glGetIntegerv(int pname, int[] params, int offset) {
+        begin(OP_GET_INTEGERV, 4).putInt(pname);
+        params[offset] = 0;
+    }
+
+    @Override
+    public String glGetProgramInfoLog(int program) {
+        begin(OP_GET_PROGRAM_INFO_LOG, 4).putInt(program);
+        return "";
+    }
+
+    @Override
+    public void glGetProgramiv(int program, int pname, int[] params, int offset) {
+        begin(OP_GET_PROGRAMIV, 8).putInt(program).putInt(pname);
+        params[offset] = pname == GLES20.GL_LINK_STATUS ? GLES20.GL_TRUE : 0;
+    }
+
+    @Override
+    public String glGetShaderInfoLog(int shader) {
+        begin(OP_GET_SHADER_INFO_LOG, 4).putInt(shader);
+        return "";
+    }
+
+    @Override
+    public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+        begin(OP_GET_SHADERIV, 8).putInt(shader).putInt(pname);
+        params[offset] = pname == GLES20.GL_COMPILE_STATUS ? GLES20.GL_TRUE : 0;
+    }
+
+    @Override
+    public String glGetString(int name) {
+        begin(OP_GET_STRING, 4).putInt(name);
+        switch (name) {
+            case GLES20.GL_VENDOR:
+                return "Grafika";
+            case GLES20.GL_RENDERER:
+                return "RecordingGlApi";
+            case GLES20.GL_VERSION:
+                return "OpenGL ES 2.0 (recording)";
+            default:
+                return "";
+        }
+    }
+
+    @Override
+    public int glGetUniformLocation(int program, String name) {
+        begin(OP_GET_UNIFORM_LOCATION, 4).putInt(program);
+        putString(name);
+        int location = lookUp(program, name, true);
+        ensureSpace(4);
+        mLog.putInt(location);
+        return location;
+    }
+
+    @Override
+    public void glLinkProgram(int program) {
+        begin(OP_LINK_PROGRAM, 4).putInt(program);
+    }
+
+    @Override
+    public void glShaderSource(int shader, String string) {
+        begin(OP_SHADER_SOURCE, 4).putInt(shader);
+        putString(string);
+        mShaderSource.put(shader, string);
+    }
+
+    @Override
+    public void glTexImage2D(int target, int level, int internalformat, int width, int height,
+            int border, int format, int type, Buffer pixels) {
+        begin(OP_TEX_IMAGE_2D, 36).putInt(target).putInt(level).putInt(internalformat)
+                .putInt(width).putInt(height).putInt(border).putInt(format).putInt(type)
+                .putInt(byteCount(pixels));
+    }
+
+    @Override
+    public void glTexParameterf(int target, int pname, float param) {
+        begin(OP_TEX_PARAMETERF, 12).putInt(target).putInt(pname).putFloat(param);
+    }
+
+    @Override
+    public void glTexParameteri(int target, int pname, int param) {
+        begin(OP_TEX_PARAMETERI, 12).putInt(target).putInt(pname).putInt(param);
+    }
+
+    @Override
+    public void glUniform1f(int location, float x) {
+        begin(OP_UNIFORM_1F, 8).putInt(location).putFloat(x);
+    }
+
+    @Override
+    public void glUniform1fv(int location, int count, float[] v, int offset) {
+        begin(OP_UNIFORM_1FV, 4).putInt(location);
+        putFloats(count, v, offset, 1);
+    }
+
+    @Override
+    public void glUniform2f(int location, float x, float y) {
+        begin(OP_UNIFORM_2F, 12).putInt(location).putFloat(x).putFloat(y);
+    }
+
+    @Override
+    public void glUniform2fv(int location, int count, float[] v, int offset) {
+        begin(OP_UNIFORM_2FV, 4).putInt(location);
+        putFloats(count, v, offset, 2);
+    }
+
+    @Override
+    public void glUniform4fv(int location, int count, float[] v, int offset) {
+        begin(OP_UNIFORM_4FV, 4).putInt(location);
+        putFloats(count, v, offset, 4);
+    }
+
+    @Override
+    public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value,
+            int offset) {
+        begin(OP_UNIFORM_MATRIX_4FV, 5).putInt(location);
+        putBoolean(transpose);
+        putFloats(count, value, offset, 16);
+    }
+
+    @Override
+    public void glUseProgram(int program) {
+        begin(OP_USE_PROGRAM, 4).putInt(program);
+    }
+
+    @Override
+    public void glVertexAttribPointer(int indx, int size, int type, boolean normalized, int stride,
+            Buffer ptr) {
+        begin(OP_VERTEX_ATTRIB_POINTER, 17).putInt(indx).putInt(size).putInt(type);
+        putBoolean(normalized);
+        mLog.putInt(stride);
+        putBuffer(ptr);
+    }
+
+    @Override
+    public void endFrame() {
+        begin(OP_END_FRAME, 0);
+        mFrames++;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Pool of off-screen render targets (framebuffer object + RGBA texture), keyed by size.
+ * <p>
+ * Creating and attaching textures is not free, and some drivers do a fair bit of work the
+ * first time a new FBO is bound.  Multi-pass rendering needs intermediate targets whose
+ * size changes rarely, so we hang on to them.
+ * <p>
+ * Must be used on the thread with the EGL context.  Not thread-safe.
+ */
+public class RenderTargetPool {
+    private static final String TAG = GlUtil.TAG;
+
+    private final HashMap<Long, ArrayDeque<Target>> mFree = new HashMap<Long, ArrayDeque<Target>>();
+    private int mCreatedCount;
+
+    /**
+     * An FBO with a texture attached as the color buffer.
+     */
+    public static class Target {
+        private final int mFramebuffer;
+        private final int mTexture;
+        private final int mWidth;
+        private final int mHeight;
+
+        private Target(int framebuffer, int texture, int width, int height) {
+            mFramebuffer = framebuffer;
+            mTexture = texture;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        public int getFramebuffer() {
+            return mFramebuffer;
+        }
+
+        public int getTexture() {
+            return mTexture;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+    }
+
+    /**
+     * Returns a render target of the requested size, creating one if necessary.  The
+     * contents are undefined.
+     */
+    public Target acquire(int width, int height) {
+        ArrayDeque<Target> free = mFree.get(key(width, height));
+        if (free != null && !free.isEmpty()) {
+            return free.pollFirst();
+        }
+        return create(width, height);
+    }
+
+    /**
+     * Returns a target to the pool.
+     */
+    public void release(Target target) {
+        Long key = key(target.mWidth, target.mHeight);
+        ArrayDeque<Target> free = mFree.get(key);
+        if (free == null) {
+            free = new ArrayDeque<Target>();
+            mFree.put(key, free);
+        }
+        free.addFirst(target);
+    }
+
+    /**
+     * Deletes the GL objects for all targets currently in the pool.  Targets that have been
+     * acquired but not released are unaffected.
+     */
+    public void trim() {
+        for (ArrayDeque<Target> free : mFree.values()) {
+            for (Target target : free) {
+                int[] values = new int[] { target.mFramebuffer };
+                GLES20.glDeleteFramebuffers(1, values, 0);
+                values[0] = target.mTexture;
+                GLES20.glDeleteTextures(1, values, 0);
+            }
+        }
+        mFree.clear();
+    }
+
+    /**
+     * Returns the number of targets created over the lifetime of the pool.
+     */
+    public int getCreatedCount() {
+        return mCreatedCount;
+    }
+
+    private Target create(int width, int height) {
+        int[] values = new int[1];
+        GLES20.glGenTextures(1, values, 0);
+        int texture = values[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GlUtil.checkGlError("render target texture");
+
+        GLES20.glGenFramebuffers(1, values, 0);
+        int framebuffer = values[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, texture, 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            throw new RuntimeException("Framebuffer not complete, status=" + status);
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+        mCreatedCount++;
+        Log.d(TAG, "RenderTargetPool: created " + width + "x" + height + " target #" +
+                mCreatedCount);
+        return new Target(framebuffer, texture, width, height);
+    }
+
+    private static Long key(int width, int height) {
+        return ((long) width << 32) | (height & 0xffffffffL);
+    }
+}
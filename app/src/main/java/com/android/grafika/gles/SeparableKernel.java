@@ -0,0 +1,169 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import java.util.HashMap;
+
+/**
+ * A convolution kernel that can be applied as a horizontal pass followed by a vertical
+ * pass.
+ * <p>
+ * An NxN kernel costs N*N texture fetches per pixel.  If the kernel is the outer product of
+ * two 1D kernels (e.g. a Gaussian), the same result comes from two passes of N fetches
+ * each.  We can halve that again by letting the texture unit do some of the work: a
+ * bilinear fetch halfway between two texels returns a weighted average of both, so two
+ * adjacent taps with weights a and b can be replaced by one fetch at offset b/(a+b) with
+ * weight a+b.  This only works if the texture has GL_LINEAR filtering, and only for taps
+ * with the same sign.
+ * <p>
+ * Gaussian kernels are cached by radius and sigma, so flipping between filters doesn't
+ * redo the math.
+ */
+public class SeparableKernel {
+    private static final HashMap<String, SeparableKernel> sGaussianCache =
+            new HashMap<String, SeparableKernel>();
+
+    private final float[] mHorizontal;
+    private final float[] mVertical;
+    private Taps mHorizontalTaps;
+    private Taps mVerticalTaps;
+
+    /**
+     * Texture fetches for one direction, after merging.
+     */
+    public static class Taps {
+        /** Offset of each fetch, in texels from the center. */
+        public final float[] offsets;
+        /** Weight of each fetch. */
+        public final float[] weights;
+
+        Taps(float[] offsets, float[] weights) {
+            this.offsets = offsets;
+            this.weights = weights;
+        }
+
+        public int getCount() {
+            return offsets.length;
+        }
+    }
+
+    /**
+     * Creates a kernel from 1D weights.  Both arrays must have the same odd length, with
+     * the center weight in the middle.
+     */
+    public SeparableKernel(float[] horizontal, float[] vertical) {
+        if (horizontal.length != vertical.length || (horizontal.length & 1) == 0) {
+            throw new IllegalArgumentException("Kernel must be square with odd size (" +
+                    horizontal.length + "x" + vertical.length + ")");
+        }
+        mHorizontal = horizontal.clone();
+        mVertical = vertical.clone();
+    }
+
+    /**
+     * Returns a normalized Gaussian kernel with 2*radius+1 taps in each direction.
+     */
+    public static SeparableKernel gaussian(int radius, float sigma) {
+        if (radius < 1 || sigma <= 0.0f) {
+            throw new IllegalArgumentException("bad Gaussian radius=" + radius +
+                    " sigma=" + sigma);
+        }
+        String key = radius + "/" + sigma;
+        synchronized (sGaussianCache) {
+            SeparableKernel kernel = sGaussianCache.get(key);
+            if (kernel == null) {
+                float[] weights = new float[radius * 2 + 1];
+                float sum = 0.0f;
+                for (int i = -radius; i <= radius; i++) {
+                    float weight = (float) Math.exp(-(i * i) / (2.0 * sigma * sigma));
+                    weights[i + radius] = weight;
+                    sum += weight;
+                }
+                for (int i = 0; i < weights.length; i++) {
+                    weights[i] /= sum;
+                }
+                kernel = new SeparableKernel(weights, weights);
+                kernel.getTaps(false);      // compute merged taps now, while we hold the lock
+                kernel.getTaps(true);
+                sGaussianCache.put(key, kernel);
+            }
+            return kernel;
+        }
+    }
+
+    /**
+     * Returns the number of taps in each direction before merging (N for an NxN kernel).
+     */
+    public int getSize() {
+        return mHorizontal.length;
+    }
+
+    /**
+     * Returns the merged texture fetches for the horizontal or vertical pass.
+     */
+    public synchronized Taps getTaps(boolean vertical) {
+        if (vertical) {
+            if (mVerticalTaps == null) {
+                mVerticalTaps = mergeTaps(mVertical);
+            }
+            return mVerticalTaps;
+        } else {
+            if (mHorizontalTaps == null) {
+                mHorizontalTaps = mergeTaps(mHorizontal);
+            }
+            return mHorizontalTaps;
+        }
+    }
+
+    /**
+     * Combines pairs of adjacent same-sign taps into single bilinear fetches.
+     */
+    private static Taps mergeTaps(float[] weights) {
+        int radius = weights.length / 2;
+        float[] offsets = new float[weights.length];
+        float[] merged = new float[weights.length];
+        int count = 0;
+        int i = 0;
+        while (i < weights.length) {
+            float a = weights[i];
+            if (a == 0.0f) {
+                i++;
+                continue;
+            }
+            if (i + 1 < weights.length) {
+                float b = weights[i + 1];
+                if (b != 0.0f && (a > 0.0f) == (b > 0.0f)) {
+                    offsets[count] = (i - radius) + b / (a + b);
+                    merged[count] = a + b;
+                    count++;
+                    i += 2;
+                    continue;
+                }
+            }
+            offsets[count] = i - radius;
+            merged[count] = a;
+            count++;
+            i++;
+        }
+
+        float[] finalOffsets = new float[count];
+        float[] finalWeights = new float[count];
+        System.arraycopy(offsets, 0, finalOffsets, 0, count);
+        System.arraycopy(merged, 0, finalWeights, 0, count);
+        return new Taps(finalOffsets, finalWeights);
+    }
+}
@@ -52,14 +52,8 @@ public class Sprite2d {
      * translation.
      */
     private void recomputeMatrix() {
-        float[] modelView = mModelViewMatrix;
-
-        Matrix.setIdentityM(modelView, 0);
-        Matrix.translateM(modelView, 0, mPosX, mPosY, 0.0f);
-        if (mAngle != 0.0f) {
-            Matrix.rotateM(modelView, 0, mAngle, 0.0f, 0.0f, 1.0f);
-        }
-        Matrix.scaleM(modelView, 0, mScaleX, mScaleY, 1.0f);
+        SpriteTransform.setTranslateRotateScale(mModelViewMatrix, 0, mPosX, mPosY, mAngle,
+                mScaleX, mScaleY);
         mMatrixReady = true;
     }
 
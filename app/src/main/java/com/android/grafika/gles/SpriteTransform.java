@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+/**
+ * Model-view matrix math for Sprite2d.
+ * <p>
+ * Has no Android dependencies, so it can be compiled into the JVM benchmarks.
+ */
+public final class SpriteTransform {
+    private SpriteTransform() {}
+
+    /**
+     * Sets a column-major 4x4 matrix to translate * rotate * scale.  This is the same matrix
+     * that Matrix.setIdentityM(), translateM(), rotateM() around Z, and scaleM() produce,
+     * written out directly so we don't pay for the general-purpose 4x4 multiply in rotateM().
+     *
+     * @param m Output; 16 elements starting at offset.
+     * @param angle Rotation around the Z axis, in degrees.
+     */
+    public static void setTranslateRotateScale(float[] m, int offset, float posX, float posY,
+            float angle, float scaleX, float scaleY) {
+        // Same precision as Matrix.setRotateM().
+        float cos = 1.0f;
+        float sin = 0.0f;
+        if (angle != 0.0f) {
+            float radians = angle * (float) (Math.PI / 180.0f);
+            sin = (float) Math.sin(radians);
+            cos = (float) Math.cos(radians);
+        }
+
+        m[offset]      = cos * scaleX;
+        m[offset + 1]  = sin * scaleX;
+        m[offset + 2]  = 0.0f;
+        m[offset + 3]  = 0.0f;
+        m[offset + 4]  = -sin * scaleY;
+        m[offset + 5]  = cos * scaleY;
+        m[offset + 6]  = 0.0f;
+        m[offset + 7]  = 0.0f;
+        m[offset + 8]  = 0.0f;
+        m[offset + 9]  = 0.0f;
+        m[offset + 10] = 1.0f;
+        m[offset + 11] = 0.0f;
+        m[offset + 12] = posX;
+        m[offset + 13] = posY;
+        m[offset + 14] = 0.0f;
+        m[offset + 15] = 1.0f;
+    }
+}
@@ -29,6 +29,19 @@ public class Texture2dProgram {
         TEXTURE_2D, TEXTURE_EXT, TEXTURE_EXT_BW, TEXTURE_EXT_FILT
     }
 
+    /**
+     * Feature flag: mask the output to the circle inscribed in the viewport.  The mask comes
+     * from geometry (FullFrameRect draws a Drawable2d FULL_DISC), not from the shader, so
+     * this doesn't change the generated code.
+     */
+    public static final int FEATURE_CIRCLE_MASK = 1;
+    /**
+     * Feature flag: crop the center square out of the video, based on the video size passed
+     * to draw().  The scale factor is computed on the CPU when the size changes and applied
+     * per-vertex.
+     */
+    public static final int FEATURE_CENTER_CROP = 2;
+
     private static final String VERTEX_SHADER =
                     "uniform mat4 uTexMatrix;\n" +
                     "attribute vec4 aPosition;\n" +
@@ -39,44 +52,24 @@ public class Texture2dProgram {
                     "    vTexCoord = (uTexMatrix * vec4(aTexCoord, 0.0, 1.0)).xy;\n" +
                     "}\n";
 
-    // MODIFIED: Circle mask applied for TEXTURE_2D
+    private static final String VERTEX_SHADER_CROP =
+                    "uniform mat4 uTexMatrix;\n" +
+                    "uniform vec2 uCropScale;\n" +
+                    "attribute vec4 aPosition;\n" +
+                    "attribute vec2 aTexCoord;\n" +
+                    "varying vec2 vTexCoord;\n" +
+                    "void main() {\n" +
+                    "    gl_Position = aPosition;\n" +
+                    "    vec2 tc = (uTexMatrix * vec4(aTexCoord, 0.0, 1.0)).xy;\n" +
+                    "    vTexCoord = (tc - 0.5) * uCropScale + 0.5;\n" +
+                    "}\n";
+
     private static final String FRAGMENT_SHADER_2D =
-            "precision mediump float;\n" +
+                    "precision mediump float;\n" +
                     "varying vec2 vTexCoord;\n" +
                     "uniform sampler2D sTexture;\n" +
-                    "uniform vec2 uVideoSize;\n" +
                     "void main() {\n" +
-                    "    vec2 center = vec2(0.5, 0.5);\n" +
-                    "    float dist = distance(vTexCoord, center);\n" +
-                    "    if (dist > 0.5) {\n" +
-                    "        discard;\n" +
-                    "    }\n" +
                     "    gl_FragColor = texture2D(sTexture, vTexCoord);\n" +
-
-
-
-                    /*"vec2 uv = vTexCoord;\n" +
-                    "                vec2 center = vec2(0.5, 0.5);\n" +
-                    "                float radius = 0.5;\n" +
-                    "                float dist = distance(uv, center);\n" +
-                    "                if (dist > radius) {\n" +
-                    "                    gl_FragColor = vec4(0.0, 0.0, 0.0, 0.0);\n" +
-                    "                    return;\n" +
-                    "                }\n" +
-                    "                float videoAspect = uVideoSize.x / uVideoSize.y;\n" +
-                    "                float viewAspect = 1.0;\n" +
-                    "                vec2 adjustedUv = uv - 0.5;\n" +
-                    "                if (videoAspect > viewAspect) {\n" +
-                    "                    adjustedUv.x *= (viewAspect / videoAspect);\n" +
-                    "                } else {\n" +
-                    "                    adjustedUv.y *= (videoAspect / viewAspect);\n" +
-                    "                }\n" +
-                    "                adjustedUv += 0.5;\n" +
-                    "                if (adjustedUv.x < 0.0 || adjustedUv.x > 1.0 || adjustedUv.y < 0.0 || adjustedUv.y > 1.0) {\n" +
-                    "                    gl_FragColor = vec4(0.0, 0.0, 0.0, 0.0);\n" +
-                    "                } else {\n" +
-                    "                    gl_FragColor = texture2D(sTexture, adjustedUv);\n" +
-                    "                }" +*/
                     "}\n";
 
     private static final String FRAGMENT_SHADER_EXT =
@@ -109,60 +102,20 @@ public class Texture2dProgram {
                     "uniform float uKernel[KERNEL_SIZE];\n" +
                     "uniform vec2 uTexOffset[KERNEL_SIZE];\n" +
                     "uniform float uColorAdjust;\n" +
-                    "uniform vec2 uVideoSize;;\n" +
                     "void main() {\n" +
-                    /*"    int i = 0;\n" +
                     "    vec4 sum = vec4(0.0);\n" +
-                    "    if (vTexCoord.x < vTexCoord.y - 0.005) {\n" +
-                    "        for (i = 0; i < KERNEL_SIZE; i++) {\n" +
-                    "            vec4 texc = texture2D(sTexture, vTexCoord + uTexOffset[i]);\n" +
-                    "            sum += texc * uKernel[i];\n" +
-                    "        }\n" +
-                    "        sum += uColorAdjust;\n" +
-                    "    } else if (vTexCoord.x > vTexCoord.y + 0.005) {\n" +
-                    "        sum = texture2D(sTexture, vTexCoord);\n" +
-                    "    } else {\n" +
-                    "        sum.r = 1.0;\n" +
+                    "    for (int i = 0; i < KERNEL_SIZE; i++) {\n" +
+                    "        sum += texture2D(sTexture, vTexCoord + uTexOffset[i]) * uKernel[i];\n" +
                     "    }\n" +
-                    "    gl_FragColor = sum;\n" +*/
-
-
-
-
-
-
-                    "vec2 uv = vTexCoord;\n" +
-                    "                vec2 center = vec2(0.5, 0.5);\n" +
-                    "                float radius = 0.5;\n" +
-                    "                float dist = distance(uv, center);\n" +
-                    "                if (dist > radius) {\n" +
-                    "                    gl_FragColor = vec4(0.0, 0.0, 0.0, 0.0);\n" +
-                    "                    return;\n" +
-                    "                }\n" +
-                    "                float videoAspect = uVideoSize.x / uVideoSize.y;\n" +
-                    "                float viewAspect = 1.0; // квадратный viewport\n" +
-                    "                vec2 adjustedUv = uv - 0.5; // смещаем в центр\n" +
-                    "                if (videoAspect > viewAspect) {\n" +
-                    "                    // Видео шире - сжимаем по X\n" +
-                    "                    adjustedUv.x *= (viewAspect / videoAspect);\n" +
-                    "                } else {\n" +
-                    "                    // Видео уже - сжимаем по Y\n" +
-                    "                    adjustedUv.y *= (videoAspect / viewAspect);\n" +
-                    "                }\n" +
-                    "                adjustedUv += 0.5; // возвращаем на место\n" +
-                    "                if (adjustedUv.x < 0.0 || adjustedUv.x > 1.0 || adjustedUv.y < 0.0 || adjustedUv.y > 1.0) {\n" +
-                    "                    gl_FragColor = vec4(0.0, 0.0, 0.0, 0.0);\n" +
-                    "                } else {\n" +
-                    "                    gl_FragColor = texture2D(sTexture, adjustedUv);\n" +
-                    "                }" +
+                    "    gl_FragColor = sum + uColorAdjust;\n" +
                     "}\n";
 
     private ProgramType mProgramType;
+    private int mFeatures;
     private int mProgramHandle;
     private int muTexMatrixLoc;
     private int muKernelLoc;
-
-    private int muVideoSize;
+    private int muCropScaleLoc;
     private int muTexOffsetLoc;
     private int muColorAdjustLoc;
     private int maPositionLoc;
@@ -173,51 +126,81 @@ public class Texture2dProgram {
     private float[] mTexOffset;
     private float mColorAdjust;
 
+    // Video size the crop scale was last computed for.
+    private int mCropWidth = -1;
+    private int mCropHeight = -1;
+    private float mCropScaleX;
+    private float mCropScaleY;
+
+    /**
+     * Creates a program with the default features for the type.  TEXTURE_2D is masked to a
+     * circle; TEXTURE_EXT_FILT is masked and center-cropped.
+     */
     public Texture2dProgram(ProgramType programType) {
+        this(programType, getDefaultFeatures(programType));
+    }
+
+    /**
+     * Creates a program for a specific combination of FEATURE_* flags.
+     */
+    public Texture2dProgram(ProgramType programType, int features) {
         mProgramType = programType;
+        mFeatures = features;
 
+        String fragmentShader;
         switch (programType) {
             case TEXTURE_2D:
                 mTextureTarget = GLES20.GL_TEXTURE_2D;
-                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_2D);
+                fragmentShader = FRAGMENT_SHADER_2D;
                 break;
             case TEXTURE_EXT:
                 mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
-                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_EXT);
+                fragmentShader = FRAGMENT_SHADER_EXT;
                 break;
             case TEXTURE_EXT_BW:
                 mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
-                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_EXT_BW);
+                fragmentShader = FRAGMENT_SHADER_EXT_BW;
                 break;
             case TEXTURE_EXT_FILT:
                 mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
-                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_EXT_FILT);
+                fragmentShader = FRAGMENT_SHADER_EXT_FILT;
                 break;
             default:
                 throw new RuntimeException("Unhandled type " + programType);
         }
+        String vertexShader =
+                (features & FEATURE_CENTER_CROP) != 0 ? VERTEX_SHADER_CROP : VERTEX_SHADER;
+        mProgramHandle = GlUtil.createProgram(vertexShader, fragmentShader);
 
         if (mProgramHandle == 0) {
             throw new RuntimeException("Unable to create program");
         }
+        Log.d(TAG, "Created program " + mProgramHandle + " (" + programType + ", features=" +
+                features + ")");
 
-        maPositionLoc = GLES20.glGetAttribLocation(mProgramHandle, "aPosition");
+        GlApi gl = GlUtil.gl();
+        maPositionLoc = gl.glGetAttribLocation(mProgramHandle, "aPosition");
         GlUtil.checkLocation(maPositionLoc, "aPosition");
-        maTextureCoordLoc = GLES20.glGetAttribLocation(mProgramHandle, "aTexCoord");
+        maTextureCoordLoc = gl.glGetAttribLocation(mProgramHandle, "aTexCoord");
         GlUtil.checkLocation(maTextureCoordLoc, "aTexCoord");
-        muTexMatrixLoc = GLES20.glGetUniformLocation(mProgramHandle, "uTexMatrix");
+        muTexMatrixLoc = gl.glGetUniformLocation(mProgramHandle, "uTexMatrix");
         GlUtil.checkLocation(muTexMatrixLoc, "uTexMatrix");
-        muKernelLoc = GLES20.glGetUniformLocation(mProgramHandle, "uKernel");
-        muVideoSize = GLES20.glGetUniformLocation(mProgramHandle, "uKernel");
+        if ((features & FEATURE_CENTER_CROP) != 0) {
+            muCropScaleLoc = gl.glGetUniformLocation(mProgramHandle, "uCropScale");
+            GlUtil.checkLocation(muCropScaleLoc, "uCropScale");
+        } else {
+            muCropScaleLoc = -1;
+        }
+        muKernelLoc = gl.glGetUniformLocation(mProgramHandle, "uKernel");
 
         if (muKernelLoc < 0) {
             muKernelLoc = -1;
             muTexOffsetLoc = -1;
             muColorAdjustLoc = -1;
         } else {
-            muTexOffsetLoc = GLES20.glGetUniformLocation(mProgramHandle, "uTexOffset");
+            muTexOffsetLoc = gl.glGetUniformLocation(mProgramHandle, "uTexOffset");
             GlUtil.checkLocation(muTexOffsetLoc, "uTexOffset");
-            muColorAdjustLoc = GLES20.glGetUniformLocation(mProgramHandle, "uColorAdjust");
+            muColorAdjustLoc = gl.glGetUniformLocation(mProgramHandle, "uColorAdjust");
             GlUtil.checkLocation(muColorAdjustLoc, "uColorAdjust");
 
             setKernel(new float[] {0f, 0f, 0f, 0f, 1f, 0f, 0f, 0f, 0f}, 0f);
@@ -225,8 +208,30 @@ public class Texture2dProgram {
         }
     }
 
+    /**
+     * Returns the features a program type gets from the single-argument constructor.
+     */
+    public static int getDefaultFeatures(ProgramType programType) {
+        switch (programType) {
+            case TEXTURE_2D:
+                return FEATURE_CIRCLE_MASK;
+            case TEXTURE_EXT_FILT:
+                return FEATURE_CIRCLE_MASK | FEATURE_CENTER_CROP;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns true if the program was created with the specified FEATURE_* flag.
+     */
+    public boolean hasFeature(int feature) {
+        return (mFeatures & feature) != 0;
+    }
+
     public void release() {
-        GLES20.glDeleteProgram(mProgramHandle);
+        GlApi gl = GlUtil.gl();
+        gl.glDeleteProgram(mProgramHandle);
         mProgramHandle = -1;
     }
 
@@ -235,15 +240,16 @@ public class Texture2dProgram {
     }
 
     public int createTextureObject() {
+        GlApi gl = GlUtil.gl();
         int[] textures = new int[1];
-        GLES20.glGenTextures(1, textures, 0);
+        gl.glGenTextures(1, textures, 0);
         int texId = textures[0];
-        GLES20.glBindTexture(mTextureTarget, texId);
+        gl.glBindTexture(mTextureTarget, texId);
 
-        GLES20.glTexParameterf(mTextureTarget, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameterf(mTextureTarget, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(mTextureTarget, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(mTextureTarget, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        gl.glTexParameterf(mTextureTarget, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+        gl.glTexParameterf(mTextureTarget, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        gl.glTexParameteri(mTextureTarget, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(mTextureTarget, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
 
         return texId;
     }
@@ -267,34 +273,57 @@ public class Texture2dProgram {
         };
     }
 
+    /**
+     * Computes the texture coordinate scale that crops the center square out of a video of
+     * the given size.
+     */
+    private void updateCropScale(int videoWidth, int videoHeight) {
+        float videoAspect = (float) videoWidth / videoHeight;
+        if (videoAspect > 1.0f) {
+            // Video is wider than the square viewport; squeeze X.
+            mCropScaleX = 1.0f / videoAspect;
+            mCropScaleY = 1.0f;
+        } else {
+            mCropScaleX = 1.0f;
+            mCropScaleY = videoAspect;
+        }
+        mCropWidth = videoWidth;
+        mCropHeight = videoHeight;
+    }
+
     public void draw(float[] mvpMatrix, FloatBuffer vertexBuffer, int firstVertex,
                      int vertexCount, int coordsPerVertex, int vertexStride,
                      float[] texMatrix, FloatBuffer texBuffer, int textureId, int texStride, int videoWidth, int videoHeight) {
-        GLES20.glUseProgram(mProgramHandle);
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(mTextureTarget, textureId);
-
-        GLES20.glUniformMatrix4fv(muTexMatrixLoc, 1, false, texMatrix, 0);
-        Log.d("MyLog", "GLES20.glUniform2f(muVideoSize, videoWidth, videoHeight) videoWidth = "+videoWidth+", videoHeight = "+videoHeight);
-        GLES20.glUniform2f(muVideoSize, videoWidth, videoHeight);
+        GlApi gl = GlUtil.gl();
+        gl.glUseProgram(mProgramHandle);
+        gl.glActiveTexture(GLES20.GL_TEXTURE0);
+        gl.glBindTexture(mTextureTarget, textureId);
+
+        gl.glUniformMatrix4fv(muTexMatrixLoc, 1, false, texMatrix, 0);
+        if (muCropScaleLoc >= 0) {
+            if (videoWidth != mCropWidth || videoHeight != mCropHeight) {
+                updateCropScale(videoWidth, videoHeight);
+            }
+            gl.glUniform2f(muCropScaleLoc, mCropScaleX, mCropScaleY);
+        }
 
-        GLES20.glEnableVertexAttribArray(maPositionLoc);
-        GLES20.glVertexAttribPointer(maPositionLoc, coordsPerVertex, GLES20.GL_FLOAT, false, vertexStride, vertexBuffer);
+        gl.glEnableVertexAttribArray(maPositionLoc);
+        gl.glVertexAttribPointer(maPositionLoc, coordsPerVertex, GLES20.GL_FLOAT, false, vertexStride, vertexBuffer);
 
-        GLES20.glEnableVertexAttribArray(maTextureCoordLoc);
-        GLES20.glVertexAttribPointer(maTextureCoordLoc, 2, GLES20.GL_FLOAT, false, texStride, texBuffer);
+        gl.glEnableVertexAttribArray(maTextureCoordLoc);
+        gl.glVertexAttribPointer(maTextureCoordLoc, 2, GLES20.GL_FLOAT, false, texStride, texBuffer);
 
         if (muKernelLoc >= 0) {
-            GLES20.glUniform1fv(muKernelLoc, KERNEL_SIZE, mKernel, 0);
-            GLES20.glUniform2fv(muTexOffsetLoc, KERNEL_SIZE, mTexOffset, 0);
-            GLES20.glUniform1f(muColorAdjustLoc, mColorAdjust);
+            gl.glUniform1fv(muKernelLoc, KERNEL_SIZE, mKernel, 0);
+            gl.glUniform2fv(muTexOffsetLoc, KERNEL_SIZE, mTexOffset, 0);
+            gl.glUniform1f(muColorAdjustLoc, mColorAdjust);
         }
 
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, firstVertex, vertexCount);
+        gl.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, firstVertex, vertexCount);
 
-        GLES20.glDisableVertexAttribArray(maPositionLoc);
-        GLES20.glDisableVertexAttribArray(maTextureCoordLoc);
-        GLES20.glBindTexture(mTextureTarget, 0);
-        GLES20.glUseProgram(0);
+        gl.glDisableVertexAttribArray(maPositionLoc);
+        gl.glDisableVertexAttribArray(maTextureCoordLoc);
+        gl.glBindTexture(mTextureTarget, 0);
+        gl.glUseProgram(0);
     }
 }
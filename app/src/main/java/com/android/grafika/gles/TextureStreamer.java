@@ -0,0 +1,197 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streams pixel data into textures through a ring of pixel unpack buffers.
+ * <p>
+ * With a plain glTexImage2D() from a client ByteBuffer, the driver has to finish copying
+ * the data out of our memory before the call returns.  Here we copy each frame into a
+ * mapped PBO, and the glTexSubImage2D() call just records an offset into the buffer, so
+ * the GPU can pull the data in while we're filling the next buffer in the ring.
+ * <p>
+ * Each buffer gets a fence when its transfer is issued.  Before a buffer is reused we wait
+ * on that fence, so we never scribble on data the GPU hasn't consumed yet.  If the ring is
+ * deep enough, the wait is already satisfied and costs nothing.
+ * <p>
+ * Requires GLES 3.  Must be created, used, and released on the thread with the EGL context.
+ */
+public class TextureStreamer {
+    private static final String TAG = GlUtil.TAG;
+
+    private static final int RGBA_BPP = 4;
+    private static final long FENCE_TIMEOUT_NANOS = 100 * 1000000L;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mBufferSize;
+    private final int[] mBuffers;
+    private final long[] mFences;
+    private int mNext;
+
+    private int mUploadCount;
+    private int mStallCount;
+
+    /**
+     * Allocates the pixel unpack buffers.
+     *
+     * @param width Width of the frames we'll be uploading, in pixels.
+     * @param height Height of the frames, in pixels.
+     * @param numBuffers Depth of the ring.  Two is the minimum for any overlap; three
+     *     gives the GPU a frame of slack.
+     */
+    public TextureStreamer(int width, int height, int numBuffers) {
+        if (numBuffers < 1) {
+            throw new IllegalArgumentException("need at least one buffer");
+        }
+        mWidth = width;
+        mHeight = height;
+        mBufferSize = width * height * RGBA_BPP;
+        mBuffers = new int[numBuffers];
+        mFences = new long[numBuffers];
+
+        GLES30.glGenBuffers(numBuffers, mBuffers, 0);
+        GlUtil.checkGlError("glGenBuffers");
+        for (int i = 0; i < numBuffers; i++) {
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, mBuffers[i]);
+            GLES30.glBufferData(GLES30.GL_PIXEL_UNPACK_BUFFER, mBufferSize, null,
+                    GLES30.GL_STREAM_DRAW);
+            GlUtil.checkGlError("glBufferData");
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+        Log.d(TAG, "TextureStreamer: " + numBuffers + " x " + mBufferSize + " bytes");
+    }
+
+    /**
+     * Creates an RGBA texture with immutable storage that matches our frame size.  The
+     * contents are undefined until the first upload().
+     */
+    public int createTexture() {
+        int[] handles = new int[1];
+        GLES20.glGenTextures(1, handles, 0);
+        GlUtil.checkGlError("glGenTextures");
+
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, handles[0]);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        GLES30.glTexStorage2D(GLES20.GL_TEXTURE_2D, 1, GLES30.GL_RGBA8, mWidth, mHeight);
+        GlUtil.checkGlError("glTexStorage2D");
+        return handles[0];
+    }
+
+    /**
+     * Copies a frame of RGBA pixels into the next buffer in the ring, and issues the transfer
+     * from that buffer into the texture.  Returns as soon as the copy into the buffer is done;
+     * the texture will have the new contents by the time any subsequently-issued draw
+     * command samples from it.
+     *
+     * @param pixels Tightly-packed RGBA data, width * height * 4 bytes, starting at position 0.
+     * @param textureId Texture to update, e.g. from createTexture().
+     */
+    public void upload(ByteBuffer pixels, int textureId) {
+        int index = mNext;
+        mNext = (mNext + 1) % mBuffers.length;
+
+        waitForFence(index);
+
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, mBuffers[index]);
+        // The fence tells us the GPU is done with this buffer, so we don't need the driver
+        // to do its own synchronization on the map.
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_UNPACK_BUFFER,
+                0, mBufferSize, GLES30.GL_MAP_WRITE_BIT | GLES30.GL_MAP_INVALIDATE_BUFFER_BIT |
+                GLES30.GL_MAP_UNSYNCHRONIZED_BIT);
+        if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("glMapBufferRange");
+        if (mapped == null) {
+            throw new RuntimeException("glMapBufferRange failed");
+        }
+        pixels.position(0).limit(mBufferSize);
+        mapped.put(pixels);
+        pixels.clear();
+        GLES30.glUnmapBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER);
+
+        // With a PBO bound, the last argument is an offset into the buffer.
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        GLES30.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, mWidth, mHeight,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        if (GlUtil.FRAME_CHECKS) GlUtil.checkFrameGlError("glTexSubImage2D");
+
+        mFences[index] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+        mUploadCount++;
+    }
+
+    /**
+     * Waits until the GPU is done with the specified buffer, then discards its fence.
+     */
+    private void waitForFence(int index) {
+        long fence = mFences[index];
+        if (fence == 0) {
+            return;
+        }
+        int status = GLES30.glClientWaitSync(fence, 0, 0);
+        if (status == GLES30.GL_TIMEOUT_EXPIRED) {
+            // Not done yet.  Flush so the fence is guaranteed to signal, then block.
+            mStallCount++;
+            status = GLES30.glClientWaitSync(fence, GLES30.GL_SYNC_FLUSH_COMMANDS_BIT,
+                    FENCE_TIMEOUT_NANOS);
+        }
+        if (status == GLES30.GL_WAIT_FAILED || status == GLES30.GL_TIMEOUT_EXPIRED) {
+            Log.w(TAG, "glClientWaitSync on upload buffer " + index + " returned 0x" +
+                    Integer.toHexString(status));
+        }
+        GLES30.glDeleteSync(fence);
+        mFences[index] = 0;
+    }
+
+    /**
+     * Returns the number of frames uploaded so far.
+     */
+    public int getUploadCount() {
+        return mUploadCount;
+    }
+
+    /**
+     * Returns the number of uploads that had to block because the GPU hadn't yet consumed
+     * the buffer we wanted to reuse.  If this is a significant fraction of the upload count,
+     * the ring isn't deep enough.
+     */
+    public int getStallCount() {
+        return mStallCount;
+    }
+
+    /**
+     * Releases the buffers and any outstanding fences.  The EGL context must be current.
+     */
+    public void release() {
+        for (int i = 0; i < mFences.length; i++) {
+            if (mFences[i] != 0) {
+                GLES30.glDeleteSync(mFences[i]);
+                mFences[i] = 0;
+            }
+        }
+        GLES30.glDeleteBuffers(mBuffers.length, mBuffers, 0);
+        GlUtil.checkGlError("glDeleteBuffers");
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.benchmark;
+
+import android.media.MediaCodec;
+
+import com.android.grafika.CircularEncoderBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CircularEncoderBuffer, configured the way ContinuousCaptureActivity uses it: 6Mbps,
+ * 30fps, 7 seconds.
+ * <p>
+ * add() runs against a full buffer, so every call also evicts old packets.  saveAll()
+ * walks the whole buffer with getChunk(), as CircularEncoder does when saving a file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CircularEncoderBufferBenchmark {
+    private static final int BIT_RATE = 6000000;
+    private static final int FRAME_RATE = 30;
+    private static final int SPAN_SEC = 7;
+    private static final long FRAME_USEC = 1000000 / FRAME_RATE;
+
+    // A GOP's worth of packets: one sync frame, then P-frames, sized to roughly match the
+    // bit rate.
+    private static final int GOP_LENGTH = FRAME_RATE;
+    private static final int SYNC_FRAME_SIZE = 60000;
+    private static final int P_FRAME_SIZE = 20000;
+
+    private CircularEncoderBuffer mBuffer;
+    private ByteBuffer[] mPackets;
+    private MediaCodec.BufferInfo mInfo;
+    private int mNextPacket;
+    private long mPtsUsec;
+
+    @Setup
+    public void setUp() {
+        Random rand = new Random(0);
+        mPackets = new ByteBuffer[GOP_LENGTH];
+        for (int i = 0; i < GOP_LENGTH; i++) {
+            int size = (i == 0) ? SYNC_FRAME_SIZE : P_FRAME_SIZE + rand.nextInt(P_FRAME_SIZE / 4);
+            byte[] data = new byte[size];
+            rand.nextBytes(data);
+            // Encoder output buffers are direct.
+            mPackets[i] = ByteBuffer.allocateDirect(size);
+            mPackets[i].put(data);
+            mPackets[i].flip();
+        }
+        mInfo = new MediaCodec.BufferInfo();
+
+        // Fill to steady state.
+        mBuffer = new CircularEncoderBuffer(BIT_RATE, FRAME_RATE, SPAN_SEC);
+        for (int i = 0; i < FRAME_RATE * SPAN_SEC * 2; i++) {
+            add();
+        }
+    }
+
+    @Benchmark
+    public void add() {
+        int index = mNextPacket;
+        mNextPacket = (index + 1) % GOP_LENGTH;
+        ByteBuffer packet = mPackets[index];
+        packet.clear();
+        mBuffer.add(packet, index == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0, mPtsUsec);
+        mPtsUsec += FRAME_USEC;
+    }
+
+    @Benchmark
+    public void saveAll(Blackhole bh) {
+        int index = mBuffer.getFirstIndex();
+        while (index >= 0) {
+            bh.consume(mBuffer.getChunk(index, mInfo));
+            bh.consume(mInfo.size);
+            index = mBuffer.getNextIndex(index);
+        }
+        mBuffer.releaseChunks();
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.benchmark;
+
+import com.android.grafika.FileGlob;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MiscUtils.getFiles() and its glob-to-regex conversion, against a directory that looks
+ * like the app's files dir after a while: a few dozen recordings plus assorted other files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileGlobBenchmark {
+    private static final int NUM_MOVIES = 40;
+    private static final int NUM_OTHER = 20;
+
+    private File mDir;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("fileglob", "");
+        if (!mDir.delete() || !mDir.mkdir()) {
+            throw new IOException("unable to create " + mDir);
+        }
+        for (int i = 0; i < NUM_MOVIES; i++) {
+            new File(mDir, "recording-" + i + ".mp4").createNewFile();
+        }
+        for (int i = 0; i < NUM_OTHER; i++) {
+            new File(mDir, "frame-stats-" + i + ".txt").createNewFile();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Benchmark
+    public String globToRegex() {
+        return FileGlob.toRegex("*.mp4");
+    }
+
+    @Benchmark
+    public String[] getFiles() {
+        return FileGlob.list(mDir, "*.mp4");
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.benchmark;
+
+import com.android.grafika.gles.GeneratedTextureData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GeneratedTexture's test image generators.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeneratedTextureBenchmark {
+    private static final int SIZE = GeneratedTextureData.TEX_SIZE;
+
+    @State(Scope.Thread)
+    public static class Checker {
+        /** Checkerboard square size, in pixels. */
+        @Param({ "1", "8" })
+        public int bit;
+
+        final byte[] mBuf = new byte[SIZE * SIZE * GeneratedTextureData.BYTES_PER_PIXEL];
+    }
+
+    @Benchmark
+    public ByteBuffer generateCoarseData() {
+        return GeneratedTextureData.generateCoarseData();
+    }
+
+    @Benchmark
+    public ByteBuffer generateFineData() {
+        return GeneratedTextureData.generateFineData();
+    }
+
+    @Benchmark
+    public byte[] checkerPattern(Checker checker) {
+        // Full image, opaque red / half-transparent blue, so the alpha multiply isn't trivial.
+        GeneratedTextureData.checkerPattern(checker.mBuf, 0, 0, SIZE, SIZE,
+                0xff0000ff, 0x80ff0000, checker.bit);
+        return checker.mBuf;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.benchmark;
+
+import com.android.grafika.ScaledDrawable2d;
+import com.android.grafika.gles.Drawable2d;
+import com.android.grafika.gles.SpriteTransform;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-frame geometry updates: ScaledDrawable2d's texture coordinate rescale (as done by
+ * TextureFromCameraActivity on every zoom change) and Sprite2d's model-view matrix.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeometryBenchmark {
+    private ScaledDrawable2d mDrawable;
+    private final float[] mMatrix = new float[16];
+    private float mScale;
+    private float mAngle;
+
+    @Setup
+    public void setUp() {
+        mDrawable = new ScaledDrawable2d(Drawable2d.Prefab.RECTANGLE);
+    }
+
+    @Benchmark
+    public FloatBuffer scaledTexCoords() {
+        // Change the scale every time, so the coordinates are recomputed.
+        mScale = mScale >= 0.99f ? 0.25f : mScale + 0.01f;
+        mDrawable.setScale(mScale);
+        return mDrawable.getTexCoordArray();
+    }
+
+    @Benchmark
+    public float[] spriteMatrix() {
+        mAngle = mAngle >= 360.0f ? 0.0f : mAngle + 1.5f;
+        SpriteTransform.setTranslateRotateScale(mMatrix, 0, 320.0f, 240.0f, mAngle,
+                100.0f, 50.0f);
+        return mMatrix;
+    }
+
+    @Benchmark
+    public float[] spriteMatrixUnrotated() {
+        SpriteTransform.setTranslateRotateScale(mMatrix, 0, 320.0f, 240.0f, 0.0f,
+                100.0f, 50.0f);
+        return mMatrix;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.benchmark;
+
+import android.opengl.Matrix;
+import android.util.Log;
+
+import com.android.grafika.gles.Drawable2d;
+import com.android.grafika.gles.FlatShadedProgram;
+import com.android.grafika.gles.FullFrameRect;
+import com.android.grafika.gles.GlTraceReplayer;
+import com.android.grafika.gles.GlUtil;
+import com.android.grafika.gles.GlValidation;
+import com.android.grafika.gles.RecordingGlApi;
+import com.android.grafika.gles.Sprite2d;
+import com.android.grafika.gles.Texture2dProgram;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost of issuing a frame's GL calls: a full-frame textured rect and a field of
+ * flat-shaded sprites, drawn through the real program classes into a RecordingGlApi.
+ * <p>
+ * submitFrame covers our side of the submission (matrix math, uniform and attribute setup,
+ * error checks) but not the driver's.  replayFrame decodes a recorded frame back into a
+ * second recorder, which bounds the cost of the log itself.  "glCheck" is the GlValidation
+ * mode, to show what per-call error checking adds.  The call counts for one frame are
+ * logged during setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GlSubmissionBenchmark {
+    private static final String TAG = GlUtil.TAG;
+    private static final int SPRITE_COUNT = 100;
+
+    @Param({"off", "full"})
+    public String glCheck;
+
+    private RecordingGlApi mRecorder;
+    private FullFrameRect mFullFrame;
+    private FlatShadedProgram mFlatProgram;
+    private Sprite2d[] mSprites;
+    private int mTextureId;
+    private final float[] mProjection = new float[16];
+
+    private ByteBuffer mTrace;
+    private RecordingGlApi mReplayTarget;
+    private GlTraceReplayer mReplayer;
+
+    @Setup
+    public void setUp() {
+        GlValidation.setMode(GlValidation.parseMode(glCheck),
+                GlValidation.DEFAULT_SAMPLE_INTERVAL);
+        mRecorder = new RecordingGlApi();
+        GlUtil.setGlApi(mRecorder);
+
+        mFullFrame = new FullFrameRect(
+                new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_2D));
+        mTextureId = mFullFrame.createTextureObject();
+        mFlatProgram = new FlatShadedProgram();
+        Matrix.orthoM(mProjection, 0, 0, 1280, 0, 720, -1, 1);
+
+        Drawable2d rect = new Drawable2d(Drawable2d.Prefab.RECTANGLE);
+        mSprites = new Sprite2d[SPRITE_COUNT];
+        for (int i = 0; i < SPRITE_COUNT; i++) {
+            Sprite2d sprite = new Sprite2d(rect);
+            sprite.setColor((i % 3) / 2.0f, (i % 5) / 4.0f, (i % 7) / 6.0f);
+            sprite.setPosition(64 + (i % 10) * 128, 36 + (i / 10) * 72);
+            sprite.setScale(48, 24);
+            sprite.setRotation(i * 3.6f);
+            mSprites[i] = sprite;
+        }
+
+        // Capture one frame for replayFrame.
+        mRecorder.reset();
+        drawFrame();
+        Log.i(TAG, "GlSubmissionBenchmark (" + glCheck + ") frame: " + mRecorder.formatCounts());
+        ByteBuffer log = mRecorder.getLog();
+        mTrace = ByteBuffer.allocate(log.remaining());
+        mTrace.put(log).flip();
+        mReplayTarget = new RecordingGlApi();
+        mReplayer = new GlTraceReplayer(mReplayTarget);
+    }
+
+    private void drawFrame() {
+        mFullFrame.drawFrame(mTextureId, GlUtil.IDENTITY_MATRIX, 1280, 720);
+        for (Sprite2d sprite : mSprites) {
+            sprite.draw(mFlatProgram, mProjection);
+        }
+        mRecorder.endFrame();
+    }
+
+    @Benchmark
+    public long submitFrame() {
+        mRecorder.reset();
+        drawFrame();
+        return mRecorder.getTotalCallCount();
+    }
+
+    @Benchmark
+    public int replayFrame() {
+        mReplayTarget.reset();
+        return mReplayer.replay(mTrace);
+    }
+}
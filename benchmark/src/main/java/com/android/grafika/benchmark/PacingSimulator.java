@@ -0,0 +1,559 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.benchmark;
+
+import com.android.grafika.FrameCadence;
+import com.android.grafika.FramePacer;
+import com.android.grafika.PacingClock;
+import com.android.grafika.PlaybackTimer;
+import com.android.grafika.VsyncDeadline;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays a vsync trace through the app's frame pacing policies and reports how the result
+ * would look on screen.
+ * <p>
+ * The policies are the real classes, driven by a simulated PacingClock:
+ * <ul>
+ * <li>record-fbo: RecordFBOActivity's "drop if within 2ms of the next vsync" check
+ *     (VsyncDeadline), rendering one frame per vsync.
+ * <li>scheduled-swap: ScheduledSwapActivity's FrameCadence + FramePacer, N frames ahead.
+ * <li>speed-control: SpeedControlCallback's PlaybackTimer, sleeping to the PTS.
+ * <li>speed-control+cadence: the same, with the fixed-rate FrameCadence durations.
+ * </ul>
+ * The render thread wakes up late by a random scheduler delay (exponentially distributed),
+ * and is stopped entirely by GC pauses (a Poisson process with uniformly distributed
+ * lengths).  Submitted buffers are latched at the first vsync at least LATCH_MARGIN_NS
+ * after submission (and no earlier than half a refresh before their presentation time, if
+ * they have one); if two buffers latch on the same vsync, the older one is never seen.
+ * <p>
+ * For every policy we report the number of content frames, how many were dropped (never
+ * shown) or repeated (shown for more refreshes than their cadence calls for), judder (RMS
+ * difference between actual and intended hold, in refreshes), and the latency from the
+ * content time stamp to the vsync at which the frame appeared.  Runs are deterministic for
+ * a given seed, so results can be compared from build to build.
+ * <p>
+ * Options (all optional):
+ * <pre>
+ *   --trace FILE        vsync times, one per line in ns ('#' comments); default synthetic
+ *   --refresh-hz N      synthetic refresh rate (60)
+ *   --jitter-us N       synthetic vsync jitter, std dev (100)
+ *   --seconds N         synthetic trace length (60)
+ *   --sched-delay-us N  mean scheduler wake-up delay (300)
+ *   --gc-per-sec N      GC pause rate (0.5)
+ *   --gc-ms MIN:MAX     GC pause length range (5:40)
+ *   --render-ms N       mean render time per frame (4)
+ *   --fps N             content rate for the cadence-based policies (24)
+ *   --ahead N           frames ahead for scheduled-swap, 0-2 (2)
+ *   --seed N            random seed (1)
+ *   --csv               machine-readable output
+ * </pre>
+ * Run with: ./gradlew :benchmark:runPacingSimulator --args="..."
+ */
+public class PacingSimulator {
+    private static final long LATCH_MARGIN_NS = 1000000;
+    private static final long RECORD_FBO_MARGIN_NS = 2000000;   // RecordFBOActivity's
+
+    private static String sTraceFile;
+    private static double sRefreshHz = 60.0;
+    private static double sJitterUs = 100.0;
+    private static double sSeconds = 60.0;
+    private static double sSchedDelayUs = 300.0;
+    private static double sGcPerSec = 0.5;
+    private static double sGcMinMs = 5.0;
+    private static double sGcMaxMs = 40.0;
+    private static double sRenderMs = 4.0;
+    private static double sContentFps = 24.0;
+    private static int sFramesAhead = 2;
+    private static long sSeed = 1;
+    private static boolean sCsv;
+
+    public static void main(String[] args) throws IOException {
+        parseArgs(args);
+
+        long[] vsyncs = (sTraceFile != null) ? readTrace(sTraceFile) : synthesizeTrace();
+        long refreshNs = medianInterval(vsyncs);
+
+        if (sCsv) {
+            System.out.println("policy,content,shown,dropped,repeated,judder_rms," +
+                    "lat_p50_ms,lat_p90_ms,lat_p99_ms,lat_max_ms");
+        } else {
+            System.out.println(String.format("%d vsyncs, refresh %.3f ms (%.2f Hz); " +
+                    "sched delay %.0f us, GC %.2f/s %.0f-%.0f ms, render %.1f ms, seed %d",
+                    vsyncs.length, refreshNs / 1e6, 1e9 / refreshNs, sSchedDelayUs, sGcPerSec,
+                    sGcMinMs, sGcMaxMs, sRenderMs, sSeed));
+            System.out.println(String.format("%-22s %7s %7s %7s %7s %7s %8s %8s %8s %8s",
+                    "policy", "content", "shown", "dropped", "repeat", "judder",
+                    "p50 ms", "p90 ms", "p99 ms", "max ms"));
+        }
+
+        report("record-fbo", simulateRecordFbo(vsyncs, refreshNs));
+        report("scheduled-swap+" + sFramesAhead, simulateScheduledSwap(vsyncs, refreshNs));
+        report("speed-control", simulatePlayback(vsyncs, refreshNs, false));
+        report("speed-control+cadence", simulatePlayback(vsyncs, refreshNs, true));
+    }
+
+    /**
+     * RecordFBOActivity: a new animation frame on every vsync, dropped if we're too late.
+     */
+    private static Display simulateRecordFbo(long[] vsyncs, long refreshNs) {
+        Scheduler sched = new Scheduler(vsyncs[0]);
+        SimClock clock = new SimClock(sched);
+        VsyncDeadline deadline = new VsyncDeadline(refreshNs, RECORD_FBO_MARGIN_NS, clock);
+        Display display = new Display(vsyncs);
+
+        long busyUntil = 0;
+        for (int i = 0; i < vsyncs.length; i++) {
+            // Choreographer messages queue up behind whatever the thread is doing.
+            clock.mNow = Math.max(sched.wake(vsyncs[i]), busyUntil);
+            display.addContent(vsyncs[i], 1);
+            if (deadline.isMissed(vsyncs[i])) {
+                busyUntil = clock.mNow;
+                continue;
+            }
+            busyUntil = sched.run(clock.mNow, sched.renderTime());
+            display.submit(i, busyUntil, 0);
+        }
+        return display;
+    }
+
+    /**
+     * ScheduledSwapActivity: cadence-driven content, scheduled N frames ahead by FramePacer.
+     */
+    private static Display simulateScheduledSwap(long[] vsyncs, long refreshNs) {
+        Scheduler sched = new Scheduler(vsyncs[0]);
+        SimClock clock = new SimClock(sched);
+        FramePacer pacer = new FramePacer(refreshNs, sFramesAhead, clock);
+        FrameCadence cadence = FrameCadence.get(sContentFps, refreshNs);
+        Display display = new Display(vsyncs);
+
+        long busyUntil = 0;
+        int holdFrames = 0;
+        long contentIndex = -1;
+        for (int i = 0; i < vsyncs.length; i++) {
+            clock.mNow = Math.max(sched.wake(vsyncs[i]), busyUntil);
+            busyUntil = clock.mNow;
+            pacer.onVsync(vsyncs[i]);
+
+            // Same hold logic as ScheduledSwapActivity.advance().
+            if (holdFrames > 1) {
+                holdFrames--;
+                continue;
+            }
+            do {
+                contentIndex++;
+                holdFrames = cadence.getHold(contentIndex);
+                if (holdFrames == 0) {
+                    display.addContent(vsyncs[i], 0);
+                }
+            } while (holdFrames == 0);
+            int id = display.addContent(vsyncs[i], holdFrames);
+
+            long presentNs = pacer.scheduleFrame();
+            if (presentNs == FramePacer.DROP) {
+                continue;
+            }
+            busyUntil = sched.run(clock.mNow, sched.renderTime());
+            clock.mNow = busyUntil;
+            pacer.frameSubmitted();
+            display.submit(id, busyUntil, sFramesAhead > 0 ? presentNs : 0);
+        }
+        return display;
+    }
+
+    /**
+     * SpeedControlCallback: the decode thread sleeps until each frame's PTS, then releases it
+     * to the display without a presentation time.
+     */
+    private static Display simulatePlayback(long[] vsyncs, long refreshNs, boolean useCadence) {
+        Scheduler sched = new Scheduler(vsyncs[0]);
+        SimClock clock = new SimClock(sched);
+        PlaybackTimer timer = new PlaybackTimer(clock);
+        FrameCadence cadence = FrameCadence.get(sContentFps, refreshNs);
+        if (useCadence) {
+            timer.setCadence(cadence);
+        }
+        Display display = new Display(vsyncs);
+
+        long endNs = vsyncs[vsyncs.length - 1];
+        long startNs = -1;
+        clock.mNow = vsyncs[0];
+        for (long n = 0; ; n++) {
+            long ptsUsec = Math.round(n * 1e6 / sContentFps);
+            timer.waitForFrame(ptsUsec);
+            if (startNs < 0) {
+                startNs = clock.mNow;
+            }
+            if (clock.mNow >= endNs) {
+                break;
+            }
+            // With the cadence, frames are released on the cadence's schedule; its hold
+            // counts are what we expect to see.
+            long contentNs = startNs + ptsUsec * 1000;
+            int id = display.addContent(contentNs, cadence.getHold(n));
+            // Decode and release take a little time too.
+            clock.mNow = sched.run(clock.mNow, sched.renderTime() / 4);
+            display.submit(id, clock.mNow, 0);
+        }
+        return display;
+    }
+
+    private static void report(String name, Display display) {
+        display.resolve();
+        long[] lat = display.getLatencies();
+        Arrays.sort(lat);
+        if (sCsv) {
+            System.out.println(String.format("%s,%d,%d,%d,%d,%.4f,%.3f,%.3f,%.3f,%.3f",
+                    name, display.mContentCount, display.mShown, display.mDropped,
+                    display.mRepeated, display.mJudderRms, pct(lat, 50), pct(lat, 90),
+                    pct(lat, 99), pct(lat, 100)));
+        } else {
+            System.out.println(String.format(
+                    "%-22s %7d %7d %7d %7d %7.3f %8.2f %8.2f %8.2f %8.2f",
+                    name, display.mContentCount, display.mShown, display.mDropped,
+                    display.mRepeated, display.mJudderRms, pct(lat, 50), pct(lat, 90),
+                    pct(lat, 99), pct(lat, 100)));
+        }
+    }
+
+    /**
+     * Returns the given percentile of a sorted array of nanosecond values, in milliseconds.
+     */
+    private static double pct(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0.0;
+        }
+        int idx = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(idx, sorted.length - 1))] / 1e6;
+    }
+
+    /**
+     * Models thread scheduling: wake-up delays and GC pauses.
+     */
+    private static class Scheduler {
+        private final Random mRandom = new Random(sSeed);
+        private final long[] mGcStart;
+        private final long[] mGcEnd;
+
+        Scheduler(long startNs) {
+            // Pre-generate GC pauses for the whole run so every policy sees the same ones.
+            Random gcRandom = new Random(sSeed * 31 + 7);
+            List<long[]> pauses = new ArrayList<long[]>();
+            double horizonNs = (sTraceFile != null ? 3600.0 : sSeconds + 10.0) * 1e9;
+            double t = startNs;
+            while (sGcPerSec > 0 && t < startNs + horizonNs) {
+                t += -Math.log(1.0 - gcRandom.nextDouble()) / sGcPerSec * 1e9;
+                double len = (sGcMinMs + gcRandom.nextDouble() * (sGcMaxMs - sGcMinMs)) * 1e6;
+                pauses.add(new long[] { (long) t, (long) (t + len) });
+                t += len;
+            }
+            mGcStart = new long[pauses.size()];
+            mGcEnd = new long[pauses.size()];
+            for (int i = 0; i < pauses.size(); i++) {
+                mGcStart[i] = pauses.get(i)[0];
+                mGcEnd[i] = pauses.get(i)[1];
+            }
+        }
+
+        /**
+         * Returns when a thread that becomes runnable at "timeNs" actually gets to run.
+         */
+        long wake(long timeNs) {
+            double delay = -Math.log(1.0 - mRandom.nextDouble()) * sSchedDelayUs * 1000;
+            return pauseEnd(timeNs + (long) delay);
+        }
+
+        /**
+         * Returns when work of the given length, started at "startNs", finishes.
+         */
+        long run(long startNs, long lengthNs) {
+            long end = startNs + lengthNs;
+            int idx = Arrays.binarySearch(mGcStart, startNs);
+            if (idx < 0) {
+                idx = -idx - 1;
+            }
+            while (idx < mGcStart.length && mGcStart[idx] < end) {
+                end += mGcEnd[idx] - mGcStart[idx];
+                idx++;
+            }
+            return end;
+        }
+
+        long renderTime() {
+            // Render time varies +/- 50% around the mean.
+            return (long) (sRenderMs * 1e6 * (0.5 + mRandom.nextDouble()));
+        }
+
+        private long pauseEnd(long timeNs) {
+            int idx = Arrays.binarySearch(mGcStart, timeNs);
+            if (idx < 0) {
+                idx = -idx - 2;     // last pause starting before timeNs
+            }
+            if (idx >= 0 && timeNs < mGcEnd[idx]) {
+                return mGcEnd[idx];
+            }
+            return timeNs;
+        }
+    }
+
+    /**
+     * Simulated clock.  Sleeping advances time, plus whatever the scheduler adds.
+     */
+    private static class SimClock implements PacingClock {
+        private final Scheduler mScheduler;
+        long mNow;
+
+        SimClock(Scheduler scheduler) {
+            mScheduler = scheduler;
+        }
+
+        @Override
+        public long nanoTime() {
+            return mNow;
+        }
+
+        @Override
+        public void sleepNanos(long nanos) {
+            mNow = mScheduler.wake(mNow + nanos);
+        }
+    }
+
+    /**
+     * Models SurfaceFlinger latching buffers on vsync, and collects the results.
+     */
+    private static class Display {
+        private final long[] mVsyncs;
+        private final List<long[]> mContent = new ArrayList<long[]>();  // {timeNs, hold}
+        private final List<long[]> mBuffers = new ArrayList<long[]>();  // {id, submit, pts}
+        private long[] mLatencies;
+
+        int mContentCount;
+        int mShown;
+        int mDropped;
+        int mRepeated;
+        double mJudderRms;
+
+        Display(long[] vsyncs) {
+            mVsyncs = vsyncs;
+        }
+
+        /**
+         * Registers a content frame with its time stamp and intended hold count.
+         *
+         * @return The frame's id.
+         */
+        int addContent(long contentNs, int hold) {
+            mContent.add(new long[] { contentNs, hold });
+            return mContent.size() - 1;
+        }
+
+        void submit(int id, long submitNs, long presentNs) {
+            mBuffers.add(new long[] { id, submitNs, presentNs });
+        }
+
+        /**
+         * Works out which buffer was on screen at each vsync, and computes the stats.
+         */
+        void resolve() {
+            long halfPeriod = (mVsyncs[1] - mVsyncs[0]) / 2;
+            int[] onScreen = new int[mVsyncs.length];     // content id per vsync, or -1
+            Arrays.fill(onScreen, -1);
+            int[] latchIdx = new int[mBuffers.size()];
+            int prevIdx = 0;
+            for (int i = 0; i < mBuffers.size(); i++) {
+                long[] buf = mBuffers.get(i);
+                long earliest = buf[1] + LATCH_MARGIN_NS;
+                if (buf[2] != 0) {
+                    earliest = Math.max(earliest, buf[2] - halfPeriod);
+                }
+                int idx = Arrays.binarySearch(mVsyncs, earliest);
+                if (idx < 0) {
+                    idx = -idx - 1;
+                }
+                idx = Math.max(idx, prevIdx);   // buffers are latched in order
+                latchIdx[i] = idx;
+                prevIdx = idx;
+            }
+
+            long[] firstShown = new long[mContent.size()];
+            int[] holds = new int[mContent.size()];
+            Arrays.fill(firstShown, -1);
+            for (int i = 0; i < mBuffers.size(); i++) {
+                int idx = latchIdx[i];
+                if (idx >= mVsyncs.length) {
+                    continue;
+                }
+                if (i + 1 < mBuffers.size() && latchIdx[i + 1] == idx) {
+                    continue;   // replaced before it was seen
+                }
+                int id = (int) mBuffers.get(i)[0];
+                int end = (i + 1 < mBuffers.size()) ?
+                        Math.min(latchIdx[i + 1], mVsyncs.length) : mVsyncs.length;
+                firstShown[id] = mVsyncs[idx];
+                holds[id] = end - idx;
+            }
+
+            // Ignore content generated after the last buffer that could have been latched.
+            int lastId = -1;
+            for (int i = 0; i < mBuffers.size(); i++) {
+                if (latchIdx[i] < mVsyncs.length) {
+                    lastId = (int) mBuffers.get(i)[0];
+                }
+            }
+            mContentCount = lastId + 1;
+
+            List<Long> latencies = new ArrayList<Long>();
+            double sumSq = 0;
+            for (int id = 0; id < mContentCount; id++) {
+                long[] content = mContent.get(id);
+                if (firstShown[id] < 0) {
+                    if (content[1] != 0) {
+                        mDropped++;
+                    }
+                    continue;
+                }
+                mShown++;
+                latencies.add(firstShown[id] - content[0]);
+                if (id == lastId) {
+                    continue;   // still on screen when the trace ended
+                }
+                long diff = holds[id] - content[1];
+                if (diff > 0) {
+                    mRepeated += diff;
+                }
+                sumSq += diff * diff;
+            }
+            mJudderRms = mShown > 1 ? Math.sqrt(sumSq / (mShown - 1)) : 0.0;
+            mLatencies = new long[latencies.size()];
+            for (int i = 0; i < mLatencies.length; i++) {
+                mLatencies[i] = latencies.get(i);
+            }
+        }
+
+        long[] getLatencies() {
+            return mLatencies.clone();
+        }
+    }
+
+    private static long[] synthesizeTrace() {
+        Random random = new Random(sSeed * 17 + 3);
+        long periodNs = Math.round(1e9 / sRefreshHz);
+        int count = (int) (sSeconds * sRefreshHz);
+        long[] vsyncs = new long[count];
+        long base = 1000000000L;
+        for (int i = 0; i < count; i++) {
+            vsyncs[i] = base + i * periodNs + (long) (random.nextGaussian() * sJitterUs * 1000);
+            if (i > 0 && vsyncs[i] <= vsyncs[i - 1]) {
+                vsyncs[i] = vsyncs[i - 1] + 1;
+            }
+        }
+        return vsyncs;
+    }
+
+    private static long[] readTrace(String fileName) throws IOException {
+        List<Long> times = new ArrayList<Long>();
+        BufferedReader br = new BufferedReader(new FileReader(fileName));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                times.add(Long.parseLong(line));
+            }
+        } finally {
+            br.close();
+        }
+        if (times.size() < 2) {
+            throw new IOException(fileName + ": need at least two vsync times");
+        }
+        long[] vsyncs = new long[times.size()];
+        for (int i = 0; i < vsyncs.length; i++) {
+            vsyncs[i] = times.get(i);
+        }
+        Arrays.sort(vsyncs);
+        return vsyncs;
+    }
+
+    private static long medianInterval(long[] vsyncs) {
+        long[] deltas = new long[vsyncs.length - 1];
+        for (int i = 0; i < deltas.length; i++) {
+            deltas[i] = vsyncs[i + 1] - vsyncs[i];
+        }
+        Arrays.sort(deltas);
+        return deltas[deltas.length / 2];
+    }
+
+    private static void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--csv")) {
+                sCsv = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                usage("missing value for " + arg);
+            }
+            String val = args[++i];
+            try {
+                if (arg.equals("--trace")) {
+                    sTraceFile = val;
+                } else if (arg.equals("--refresh-hz")) {
+                    sRefreshHz = Double.parseDouble(val);
+                } else if (arg.equals("--jitter-us")) {
+                    sJitterUs = Double.parseDouble(val);
+                } else if (arg.equals("--seconds")) {
+                    sSeconds = Double.parseDouble(val);
+                } else if (arg.equals("--sched-delay-us")) {
+                    sSchedDelayUs = Double.parseDouble(val);
+                } else if (arg.equals("--gc-per-sec")) {
+                    sGcPerSec = Double.parseDouble(val);
+                } else if (arg.equals("--gc-ms")) {
+                    String[] parts = val.split(":");
+                    sGcMinMs = Double.parseDouble(parts[0]);
+                    sGcMaxMs = Double.parseDouble(parts[parts.length - 1]);
+                } else if (arg.equals("--render-ms")) {
+                    sRenderMs = Double.parseDouble(val);
+                } else if (arg.equals("--fps")) {
+                    sContentFps = Double.parseDouble(val);
+                } else if (arg.equals("--ahead")) {
+                    sFramesAhead = Integer.parseInt(val);
+                } else if (arg.equals("--seed")) {
+                    sSeed = Long.parseLong(val);
+                } else {
+                    usage("unknown option " + arg);
+                }
+            } catch (NumberFormatException nfe) {
+                usage("bad value for " + arg + ": " + val);
+            }
+        }
+    }
+
+    private static void usage(String msg) {
+        System.err.println("PacingSimulator: " + msg);
+        System.err.println("see the class comment for options");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.benchmark;
+
+import com.android.grafika.gles.QoiCodec;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Compares QoiCodec against the JDK's PNG encoder on synthetic 720p frames laid out the way
+ * glReadPixels() returns them (RGBA, bottom row first).
+ * <p>
+ * Also verifies that every QOI configuration round-trips exactly.
+ */
+public class QoiBenchmark {
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int WARMUP_ITERATIONS = 10;
+    private static final int ITERATIONS = 30;
+    private static final int PNG_ITERATIONS = 5;
+
+    public static void main(String[] args) throws IOException {
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("QOI vs. PNG, " + WIDTH + "x" + HEIGHT + " RGBA, " + cores +
+                " cores");
+        System.out.println(String.format("%-10s %-18s %10s %10s %8s",
+                "content", "encoder", "enc ms", "dec ms", "ratio"));
+
+        String[] names = { "flat", "gradient", "noise" };
+        for (int i = 0; i < names.length; i++) {
+            ByteBuffer frame = createFrame(i);
+            benchQoi(names[i], frame, 1, 1);
+            benchQoi(names[i], frame, 8, Math.min(cores, 8));
+            benchPng(names[i], frame);
+        }
+    }
+
+    /**
+     * Generates a test frame.  Type 0 is the ReadPixelsActivity pattern (two solid colors),
+     * type 1 is a smooth gradient with a little sensor-like noise, type 2 is random.
+     */
+    private static ByteBuffer createFrame(int type) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 4);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        Random rnd = new Random(type);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int r, g, b;
+                if (type == 0) {
+                    boolean inner = x >= WIDTH / 4 && x < WIDTH * 3 / 4 &&
+                            y >= HEIGHT / 4 && y < HEIGHT * 3 / 4;
+                    r = inner ? 40 : 200;
+                    g = 120;
+                    b = inner ? 200 : 40;
+                } else if (type == 1) {
+                    r = clamp(x * 255 / WIDTH + rnd.nextInt(5) - 2);
+                    g = clamp(y * 255 / HEIGHT + rnd.nextInt(5) - 2);
+                    b = clamp((x + y) * 255 / (WIDTH + HEIGHT) + rnd.nextInt(5) - 2);
+                } else {
+                    r = rnd.nextInt(256);
+                    g = rnd.nextInt(256);
+                    b = rnd.nextInt(256);
+                }
+                buf.put((byte) r).put((byte) g).put((byte) b).put((byte) 255);
+            }
+        }
+        buf.rewind();
+        return buf;
+    }
+
+    private static int clamp(int val) {
+        return val < 0 ? 0 : (val > 255 ? 255 : val);
+    }
+
+    private static void benchQoi(String name, ByteBuffer frame, int strips, int threads) {
+        QoiCodec codec = new QoiCodec(WIDTH, HEIGHT, strips, threads);
+        ByteBuffer encoded = ByteBuffer.allocateDirect(codec.getMaxEncodedSize());
+        ByteBuffer decoded = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 4);
+        decoded.order(ByteOrder.LITTLE_ENDIAN);
+
+        int size = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            encoded.clear();
+            size = codec.encode(frame, true, encoded);
+            encoded.flip();
+            codec.decode(encoded, decoded, true);
+        }
+
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            encoded.clear();
+            long start = System.nanoTime();
+            codec.encode(frame, true, encoded);
+            encodeNanos += System.nanoTime() - start;
+
+            encoded.flip();
+            start = System.nanoTime();
+            codec.decode(encoded, decoded, true);
+            decodeNanos += System.nanoTime() - start;
+        }
+        codec.release();
+
+        if (!frame.equals(decoded)) {
+            throw new RuntimeException("QOI round trip failed: " + name + " strips=" + strips);
+        }
+        print(name, "qoi " + strips + "s/" + threads + "t", encodeNanos / ITERATIONS,
+                decodeNanos / ITERATIONS, size);
+    }
+
+    private static void benchPng(String name, ByteBuffer frame) throws IOException {
+        // Build the image up front, flipping as we go; we only want to time the encoder.
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < HEIGHT; y++) {
+            int off = (HEIGHT - 1 - y) * WIDTH * 4;
+            for (int x = 0; x < WIDTH; x++, off += 4) {
+                int r = frame.get(off) & 0xff;
+                int g = frame.get(off + 1) & 0xff;
+                int b = frame.get(off + 2) & 0xff;
+                int a = frame.get(off + 3) & 0xff;
+                image.setRGB(x, y, a << 24 | r << 16 | g << 8 | b);
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(WIDTH * HEIGHT * 4);
+        for (int i = 0; i < 2; i++) {
+            out.reset();
+            ImageIO.write(image, "png", out);
+        }
+        long encodeNanos = 0;
+        for (int i = 0; i < PNG_ITERATIONS; i++) {
+            out.reset();
+            long start = System.nanoTime();
+            ImageIO.write(image, "png", out);
+            encodeNanos += System.nanoTime() - start;
+        }
+        print(name, "png (ImageIO)", encodeNanos / PNG_ITERATIONS, -1, out.size());
+    }
+
+    private static void print(String name, String encoder, long encodeNanos, long decodeNanos,
+            int size) {
+        float ratio = (float) size / (WIDTH * HEIGHT * 4);
+        System.out.println(String.format("%-10s %-18s %10.2f %10s %8.3f", name, encoder,
+                encodeNanos / 1e6, decodeNanos < 0 ? "-" : String.format("%.2f", decodeNanos / 1e6),
+                ratio));
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.opengl;
+
+import java.nio.Buffer;
+
+/**
+ * JVM stand-in for GLES20, with the constants and entry points that GlesApi and the gles
+ * classes use.  There's no GL on the JVM, so the entry points throw; install a
+ * RecordingGlApi with GlUtil.setGlApi() instead.
+ */
+public class GLES20 {
+    public static final int GL_NO_ERROR = 0;
+    public static final int GL_TRUE = 1;
+    public static final int GL_TRIANGLE_STRIP = 0x0005;
+    public static final int GL_TEXTURE_2D = 0x0DE1;
+    public static final int GL_UNSIGNED_BYTE = 0x1401;
+    public static final int GL_FLOAT = 0x1406;
+    public static final int GL_RGBA = 0x1908;
+    public static final int GL_VENDOR = 0x1F00;
+    public static final int GL_RENDERER = 0x1F01;
+    public static final int GL_VERSION = 0x1F02;
+    public static final int GL_EXTENSIONS = 0x1F03;
+    public static final int GL_NEAREST = 0x2600;
+    public static final int GL_LINEAR = 0x2601;
+    public static final int GL_TEXTURE_MAG_FILTER = 0x2800;
+    public static final int GL_TEXTURE_MIN_FILTER = 0x2801;
+    public static final int GL_TEXTURE_WRAP_S = 0x2802;
+    public static final int GL_TEXTURE_WRAP_T = 0x2803;
+    public static final int GL_CLAMP_TO_EDGE = 0x812F;
+    public static final int GL_TEXTURE0 = 0x84C0;
+    public static final int GL_FRAGMENT_SHADER = 0x8B30;
+    public static final int GL_VERTEX_SHADER = 0x8B31;
+    public static final int GL_COMPILE_STATUS = 0x8B81;
+    public static final int GL_LINK_STATUS = 0x8B82;
+
+    GLES20() {}
+
+    public static void glActiveTexture(int texture) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glAttachShader(int program, int shader) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glBindTexture(int target, int texture) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glCompileShader(int shader) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static int glCreateProgram() {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static int glCreateShader(int type) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glDeleteProgram(int program) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glDeleteShader(int shader) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glDisableVertexAttribArray(int index) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glDrawArrays(int mode, int first, int count) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glEnable(int cap) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glEnableVertexAttribArray(int index) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glGenTextures(int n, int[] textures, int offset) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static int glGetAttribLocation(int program, String name) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static int glGetError() {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glGetIntegerv(int pname, int[] params, int offset) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static String glGetProgramInfoLog(int program) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glGetProgramiv(int program, int pname, int[] params, int offset) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static String glGetShaderInfoLog(int shader) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static String glGetString(int name) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static int glGetUniformLocation(int program, String name) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glLinkProgram(int program) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glShaderSource(int shader, String string) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glTexImage2D(int target, int level, int internalformat, int width,
+            int height, int border, int format, int type, Buffer pixels) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glTexParameterf(int target, int pname, float param) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glTexParameteri(int target, int pname, int param) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glUniform1f(int location, float x) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glUniform1fv(int location, int count, float[] v, int offset) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glUniform2f(int location, float x, float y) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glUniform2fv(int location, int count, float[] v, int offset) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glUniform4fv(int location, int count, float[] v, int offset) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value,
+            int offset) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glUseProgram(int program) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+
+    public static void glVertexAttribPointer(int indx, int size, int type, boolean normalized,
+            int stride, Buffer ptr) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+}
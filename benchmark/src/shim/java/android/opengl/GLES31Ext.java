@@ -0,0 +1,37 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.opengl;
+
+/**
+ * JVM stand-in for the GL_KHR_debug parts of GLES31Ext that GlValidation uses.
+ */
+public class GLES31Ext {
+    public static final int GL_DEBUG_OUTPUT_KHR = 0x92E0;
+    public static final int GL_DEBUG_TYPE_ERROR_KHR = 0x824C;
+    public static final int GL_DEBUG_SEVERITY_HIGH_KHR = 0x9146;
+    public static final int GL_DEBUG_SEVERITY_MEDIUM_KHR = 0x9147;
+
+    private GLES31Ext() {}
+
+    public interface DebugProcKHR {
+        void onMessage(int source, int type, int id, int severity, String message);
+    }
+
+    public static void glDebugMessageCallbackKHR(DebugProcKHR callback) {
+        throw new UnsupportedOperationException("no GLES on the JVM");
+    }
+}
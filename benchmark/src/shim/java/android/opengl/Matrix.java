@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.opengl;
+
+/**
+ * JVM stand-in for the Matrix methods the gles classes and benchmarks use.  Same
+ * column-major layout and results as the framework version.
+ */
+public class Matrix {
+    private Matrix() {}
+
+    public static void setIdentityM(float[] sm, int smOffset) {
+        for (int i = 0; i < 16; i++) {
+            sm[smOffset + i] = 0;
+        }
+        for (int i = 0; i < 16; i += 5) {
+            sm[smOffset + i] = 1.0f;
+        }
+    }
+
+    /**
+     * result = lhs x rhs.  The result may not overlap either input.
+     */
+    public static void multiplyMM(float[] result, int resultOffset,
+            float[] lhs, int lhsOffset, float[] rhs, int rhsOffset) {
+        for (int col = 0; col < 4; col++) {
+            for (int row = 0; row < 4; row++) {
+                float sum = 0;
+                for (int k = 0; k < 4; k++) {
+                    sum += lhs[lhsOffset + k * 4 + row] * rhs[rhsOffset + col * 4 + k];
+                }
+                result[resultOffset + col * 4 + row] = sum;
+            }
+        }
+    }
+
+    public static void orthoM(float[] m, int mOffset, float left, float right,
+            float bottom, float top, float near, float far) {
+        float rWidth = 1.0f / (right - left);
+        float rHeight = 1.0f / (top - bottom);
+        float rDepth = 1.0f / (far - near);
+        setIdentityM(m, mOffset);
+        m[mOffset] = 2.0f * rWidth;
+        m[mOffset + 5] = 2.0f * rHeight;
+        m[mOffset + 10] = -2.0f * rDepth;
+        m[mOffset + 12] = -(right + left) * rWidth;
+        m[mOffset + 13] = -(top + bottom) * rHeight;
+        m[mOffset + 14] = -(far + near) * rDepth;
+    }
+}
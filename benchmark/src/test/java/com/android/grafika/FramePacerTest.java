@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Drives FramePacer with synthetic vsync timestamps, drawing a new frame on every vsync.
+ */
+public class FramePacerTest {
+    private static final long REFRESH_NS = 16666667;
+    private static final long RENDER_NS = 4000000;
+    private static final int FRAMES = 3600;
+
+    private static class FakeClock implements PacingClock {
+        long mNow;
+
+        @Override
+        public long nanoTime() {
+            return mNow;
+        }
+
+        @Override
+        public void sleepNanos(long nanos) {
+            mNow += nanos;
+        }
+    }
+
+    /**
+     * Runs FRAMES vsyncs with Gaussian jitter on the timestamps, and returns the stats.
+     */
+    private static FramePacer.Stats run(int framesAhead, long jitterNs) {
+        FakeClock clock = new FakeClock();
+        FramePacer pacer = new FramePacer(REFRESH_NS, framesAhead, clock);
+        Random rand = new Random(1);
+        long base = 1000000000L;
+        for (int i = 0; i < FRAMES; i++) {
+            long vsyncNs = base + i * REFRESH_NS + (long) (rand.nextGaussian() * jitterNs);
+            clock.mNow = vsyncNs + 500000;
+            pacer.onVsync(vsyncNs);
+            if (pacer.scheduleFrame() != FramePacer.DROP) {
+                clock.mNow += RENDER_NS;
+                pacer.frameSubmitted();
+            }
+        }
+        FramePacer.Stats stats = new FramePacer.Stats();
+        pacer.getStats(stats);
+        return stats;
+    }
+
+    @Test
+    public void steadyVsyncNeverDrops() {
+        for (int ahead = 0; ahead <= FramePacer.MAX_QUEUED; ahead++) {
+            FramePacer.Stats stats = run(ahead, 0);
+            assertEquals("ahead=" + ahead + " " + stats, 0, stats.getDropped());
+        }
+    }
+
+    @Test
+    public void jitteredVsyncNeverDrops() {
+        // A vsync that arrives a few microseconds before the extrapolated latch time must
+        // still retire the queued frame.
+        for (int ahead = 0; ahead <= FramePacer.MAX_QUEUED; ahead++) {
+            FramePacer.Stats stats = run(ahead, 100000);
+            assertEquals("ahead=" + ahead + " " + stats, 0, stats.getDropped());
+            assertEquals("ahead=" + ahead + " " + stats, FRAMES, stats.submitted);
+        }
+    }
+}
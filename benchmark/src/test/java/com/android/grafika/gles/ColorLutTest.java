@@ -0,0 +1,221 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+
+/**
+ * Checks .cube parsing, image unpacking, and strip packing in ColorLut.
+ */
+public class ColorLutTest {
+    private static final float EPSILON = 1e-5f;
+
+    // 2^3 table that swaps red and blue, with a title and a comment.
+    private static final String SWAP_CUBE =
+            "# red/blue swap\n" +
+            "TITLE \"swap\"\n" +
+            "LUT_3D_SIZE 2\n" +
+            "\n" +
+            "0 0 0\n" +
+            "0 0 1\n" +
+            "0 1 0\n" +
+            "0 1 1\n" +
+            "1 0 0\n" +
+            "1 0 1\n" +
+            "1 1 0\n" +
+            "1 1 1\n";
+
+    @Test
+    public void parseCube() throws IOException {
+        ColorLut lut = ColorLut.parseCube(new StringReader(SWAP_CUBE));
+        assertEquals(2, lut.getSize());
+
+        float[] rgb = { 1.0f, 0.25f, 0.0f };
+        lut.lookup(rgb);
+        assertArrayEquals(new float[] { 0.0f, 0.25f, 1.0f }, rgb, EPSILON);
+
+        rgb = new float[] { 0.2f, 0.4f, 0.6f };
+        lut.lookup(rgb);
+        assertArrayEquals(new float[] { 0.6f, 0.4f, 0.2f }, rgb, EPSILON);
+    }
+
+    @Test
+    public void domainMapsInputNotOutput() throws IOException {
+        String cube = "DOMAIN_MIN 0 0 0\n" +
+                "DOMAIN_MAX 2 2 2\n" +
+                SWAP_CUBE;
+        ColorLut lut = ColorLut.parseCube(new StringReader(cube));
+        assertArrayEquals(new float[] { 2.0f, 2.0f, 2.0f }, lut.getDomainMax(), 0.0f);
+
+        // Input 1.0 is the middle of the domain; the output values are untouched.
+        float[] rgb = { 1.0f, 2.0f, 0.0f };
+        lut.lookup(rgb);
+        assertArrayEquals(new float[] { 0.0f, 1.0f, 0.5f }, rgb, EPSILON);
+
+        // The table entries themselves shouldn't have been rescaled.
+        ByteBuffer strip = ByteBuffer.allocate(2 * 2 * 2 * 4);
+        lut.packStrip(strip);
+        assertEquals((byte) 0xff, strip.get(1 * 4 + 2));    // r=1 g=0 b=0 -> blue 1.0
+    }
+
+    @Test
+    public void rejectsBadFiles() {
+        assertRejected("0 0 0\n");                                  // data before size
+        assertRejected("LUT_3D_SIZE 2\n0 0 0\n");                   // too few entries
+        assertRejected("LUT_3D_SIZE 1\n");                          // too small
+        assertRejected("LUT_1D_SIZE 16\n");                         // 1D
+        assertRejected("LUT_3D_SIZE 2\n0 0\n");                     // short line
+        assertRejected("LUT_3D_SIZE 2\n0 x 0\n");                   // not a number
+        assertRejected("DOMAIN_MIN 1 1 1\nDOMAIN_MAX 1 1 1\n" + SWAP_CUBE);    // empty
+        assertRejected(SWAP_CUBE + "1 1 1\n");                      // too many entries
+    }
+
+    private static void assertRejected(String cube) {
+        try {
+            ColorLut.parseCube(new StringReader(cube));
+            fail("accepted: " + cube);
+        } catch (IOException expected) {
+            // good
+        }
+    }
+
+    @Test
+    public void packStripLayout() {
+        final int size = 3;
+        ColorLut lut = ColorLut.identity(size);
+        assertEquals(size * size, lut.getStripWidth());
+        assertEquals(size, lut.getStripHeight());
+
+        ByteBuffer strip = ByteBuffer.allocate(size * size * size * 4);
+        lut.packStrip(strip);
+        assertEquals(strip.capacity(), strip.position());
+
+        // Row is green, blue picks the tile, red increases across the tile.
+        for (int g = 0; g < size; g++) {
+            for (int b = 0; b < size; b++) {
+                for (int r = 0; r < size; r++) {
+                    int offset = (g * size * size + b * size + r) * 4;
+                    assertEquals(expectedByte(r, size), strip.get(offset) & 0xff);
+                    assertEquals(expectedByte(g, size), strip.get(offset + 1) & 0xff);
+                    assertEquals(expectedByte(b, size), strip.get(offset + 2) & 0xff);
+                    assertEquals(0xff, strip.get(offset + 3) & 0xff);
+                }
+            }
+        }
+    }
+
+    private static int expectedByte(int index, int size) {
+        return Math.round(index * 255.0f / (size - 1));
+    }
+
+    @Test
+    public void packStripClampsOutput() {
+        float[] data = new float[2 * 2 * 2 * 3];
+        data[0] = -0.5f;
+        data[1] = 1.5f;
+        ColorLut lut = new ColorLut(2, data);
+        ByteBuffer strip = ByteBuffer.allocate(2 * 2 * 2 * 4);
+        lut.packStrip(strip);
+        assertEquals(0, strip.get(0) & 0xff);
+        assertEquals(0xff, strip.get(1) & 0xff);
+    }
+
+    @Test
+    public void fromImageStrip() {
+        // 3 tiles of 3x3, side by side.
+        final int size = 3;
+        int width = size * size;
+        int[] argb = new int[width * size];
+        for (int b = 0; b < size; b++) {
+            for (int g = 0; g < size; g++) {
+                for (int r = 0; r < size; r++) {
+                    argb[g * width + b * size + r] = tagPixel(r, g, b);
+                }
+            }
+        }
+        checkTagged(ColorLut.fromImage(argb, width, size), size);
+    }
+
+    @Test
+    public void fromImageSquare() {
+        // 4 tiles of 4x4, arranged 2x2 in an 8x8 image.
+        final int size = 4;
+        final int tilesPerRow = 2;
+        int width = size * tilesPerRow;
+        int[] argb = new int[width * width];
+        for (int b = 0; b < size; b++) {
+            int tileX = (b % tilesPerRow) * size;
+            int tileY = (b / tilesPerRow) * size;
+            for (int g = 0; g < size; g++) {
+                for (int r = 0; r < size; r++) {
+                    argb[(tileY + g) * width + tileX + r] = tagPixel(r, g, b);
+                }
+            }
+        }
+        checkTagged(ColorLut.fromImage(argb, width, width), size);
+    }
+
+    @Test
+    public void fromImageRejectsBadDimensions() {
+        assertImageRejected(new int[10 * 3], 10, 3);    // not N*N x N
+        assertImageRejected(new int[9 * 9], 9, 9);      // square, but not N*sqrt(N)
+        assertImageRejected(new int[9 * 3 - 1], 9, 3);  // pixel array too short
+    }
+
+    private static void assertImageRejected(int[] argb, int width, int height) {
+        try {
+            ColorLut.fromImage(argb, width, height);
+            fail("accepted " + width + "x" + height);
+        } catch (IllegalArgumentException expected) {
+            // good
+        }
+    }
+
+    /**
+     * Returns a pixel whose channels identify its grid position.
+     */
+    private static int tagPixel(int r, int g, int b) {
+        return 0xff000000 | (r * 10 + 1) << 16 | (g * 10 + 2) << 8 | (b * 10 + 3);
+    }
+
+    /**
+     * Checks that each grid entry holds the pixel tagged with its position.
+     */
+    private static void checkTagged(ColorLut lut, int size) {
+        assertEquals(size, lut.getSize());
+        ByteBuffer strip = ByteBuffer.allocate(size * size * size * 4);
+        lut.packStrip(strip);
+        for (int g = 0; g < size; g++) {
+            for (int b = 0; b < size; b++) {
+                for (int r = 0; r < size; r++) {
+                    int offset = (g * size * size + b * size + r) * 4;
+                    assertEquals(r * 10 + 1, strip.get(offset) & 0xff);
+                    assertEquals(g * 10 + 2, strip.get(offset + 1) & 0xff);
+                    assertEquals(b * 10 + 3, strip.get(offset + 2) & 0xff);
+                }
+            }
+        }
+    }
+}
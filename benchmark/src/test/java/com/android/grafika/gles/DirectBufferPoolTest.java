@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Checks that bad releases can't corrupt DirectBufferPool's bookkeeping.
+ */
+public class DirectBufferPoolTest {
+    private static final int SIZE = 64 * 1024;
+
+    private final DirectBufferPool mPool = DirectBufferPool.getInstance();
+
+    @After
+    public void tearDown() {
+        mPool.setLeakTracking(false);
+        mPool.trim();
+    }
+
+    @Test
+    public void doubleReleaseIsIgnoredWithoutTracking() {
+        mPool.setLeakTracking(false);
+        checkDoubleRelease();
+    }
+
+    @Test
+    public void doubleReleaseIsIgnoredWithTracking() {
+        mPool.setLeakTracking(true);
+        checkDoubleRelease();
+        assertEquals(0, mPool.dumpStats());
+    }
+
+    @Test
+    public void foreignReleaseIsIgnoredWithTracking() {
+        mPool.setLeakTracking(true);
+        long outstanding = mPool.getBytesOutstanding();
+        mPool.release(ByteBuffer.allocateDirect(SIZE));
+        assertEquals(outstanding, mPool.getBytesOutstanding());
+    }
+
+    private void checkDoubleRelease() {
+        mPool.trim();
+        long outstanding = mPool.getBytesOutstanding();
+        ByteBuffer buf = mPool.acquire(SIZE);
+        mPool.release(buf);
+        mPool.release(buf);
+        assertEquals(outstanding, mPool.getBytesOutstanding());
+
+        // If the buffer had been pooled twice, these two would share it.
+        ByteBuffer first = mPool.acquire(SIZE);
+        ByteBuffer second = mPool.acquire(SIZE);
+        assertNotSame(first, second);
+        mPool.release(first);
+        mPool.release(second);
+        assertEquals(outstanding, mPool.getBytesOutstanding());
+    }
+}
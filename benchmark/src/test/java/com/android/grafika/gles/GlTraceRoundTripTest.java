@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.opengl.Matrix;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Records setup and one frame through the real drawing classes, replays the trace into a
+ * second recorder, and checks that the replay issues exactly the same calls.
+ */
+public class GlTraceRoundTripTest {
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int SPRITE_COUNT = 4;
+
+    private GlApi mSavedGl;
+    private int mSavedMode;
+    private int mSavedSampleInterval;
+
+    @Before
+    public void setUp() {
+        mSavedGl = GlUtil.gl();
+        mSavedMode = GlValidation.getMode();
+        mSavedSampleInterval = GlValidation.getSampleInterval();
+        // Full checking, so the glGetError() calls are part of the trace too.
+        GlValidation.setMode(GlValidation.MODE_FULL, GlValidation.DEFAULT_SAMPLE_INTERVAL);
+    }
+
+    @After
+    public void tearDown() {
+        GlUtil.setGlApi(mSavedGl);
+        GlValidation.setMode(mSavedMode, mSavedSampleInterval);
+    }
+
+    @Test
+    public void replayMatchesRecording() {
+        RecordingGlApi recorder = new RecordingGlApi();
+        GlUtil.setGlApi(recorder);
+        recordScene(recorder);
+
+        ByteBuffer log = recorder.getLog();
+        ByteBuffer copy = ByteBuffer.allocate(log.remaining());
+        copy.put(log).flip();
+
+        RecordingGlApi target = new RecordingGlApi();
+        GlTraceReplayer replayer = new GlTraceReplayer(target);
+        int calls = replayer.replay(copy);
+
+        assertEquals(recorder.getTotalCallCount(), calls);
+        assertEquals(recorder.getTotalCallCount(), target.getTotalCallCount());
+        assertEquals(1, target.getFrameCount());
+        for (int op = 1; op < RecordingGlApi.OP_COUNT; op++) {
+            assertEquals(RecordingGlApi.getOpName(op),
+                    recorder.getCallCount(op), target.getCallCount(op));
+        }
+        assertTrue(recorder.getCallCount(RecordingGlApi.OP_GET_ERROR) > 0);
+        assertEquals(1 + SPRITE_COUNT, target.getCallCount(RecordingGlApi.OP_DRAW_ARRAYS));
+
+        // A fresh recorder hands out names and locations in the same order, so once the
+        // replayer has translated them the two logs should be byte-for-byte identical.
+        assertEquals(0, copy.position());
+        assertEquals(copy, target.getLog());
+    }
+
+    /**
+     * Builds a textured full-frame quad and some flat-shaded sprites, and draws one frame,
+     * the same way GlSubmissionBenchmark does.
+     */
+    private static void recordScene(RecordingGlApi recorder) {
+        FullFrameRect fullFrame = new FullFrameRect(
+                new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_2D));
+        int textureId = fullFrame.createTextureObject();
+        FlatShadedProgram flatProgram = new FlatShadedProgram();
+
+        float[] projectionMatrix = new float[16];
+        Matrix.orthoM(projectionMatrix, 0, 0, WIDTH, 0, HEIGHT, -1, 1);
+
+        Drawable2d rect = new Drawable2d(Drawable2d.Prefab.RECTANGLE);
+        Sprite2d[] sprites = new Sprite2d[SPRITE_COUNT];
+        for (int i = 0; i < SPRITE_COUNT; i++) {
+            Sprite2d sprite = new Sprite2d(rect);
+            sprite.setColor(0.25f * i, 0.5f, 1.0f - 0.25f * i);
+            sprite.setPosition(100 + 200 * i, 100 + 100 * i);
+            sprite.setScale(50, 50);
+            sprite.setRotation(15 * i);
+            sprites[i] = sprite;
+        }
+
+        fullFrame.drawFrame(textureId, GlUtil.IDENTITY_MATRIX, WIDTH, HEIGHT);
+        for (Sprite2d sprite : sprites) {
+            sprite.draw(flatProgram, projectionMatrix);
+        }
+        recorder.endFrame();
+    }
+}